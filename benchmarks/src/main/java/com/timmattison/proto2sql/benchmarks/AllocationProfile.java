@@ -0,0 +1,50 @@
+package com.timmattison.proto2sql.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Runs the row binding and decoding benchmarks with JMH's GC profiler and prints the bytes allocated per operation.
+ * Decoding a row should allocate little more than the message it returns.
+ *
+ * java -cp target/benchmarks.jar com.timmattison.proto2sql.benchmarks.AllocationProfile
+ *
+ * Any arguments are passed on to JMH, for example -p messageEncoding=BINARY to only profile binary child messages.
+ */
+public class AllocationProfile {
+    private static final String ALLOCATION_RATE = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(StatementPlanBenchmark.class.getSimpleName() + "\\.(bindParameters|buildProtobuf)$")
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        Collection<RunResult> runResults = new Runner(options).run();
+
+        System.out.println();
+        System.out.println("Bytes allocated per operation:");
+
+        for (RunResult runResult : runResults) {
+            for (Map.Entry<String, Result> secondaryResult : runResult.getSecondaryResults().entrySet()) {
+                // Older JMH versions put a dot in front of the profiler's result names
+                if (secondaryResult.getKey().endsWith(ALLOCATION_RATE)) {
+                    System.out.println(String.format("%-20s %-10s %-8s %10.1f",
+                            runResult.getParams().getBenchmark().replaceAll(".*\\.", ""),
+                            runResult.getParams().getParam("messageShape"),
+                            runResult.getParams().getParam("messageEncoding"),
+                            secondaryResult.getValue().getScore()));
+                }
+            }
+        }
+    }
+}
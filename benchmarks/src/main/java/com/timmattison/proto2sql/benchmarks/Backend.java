@@ -0,0 +1,79 @@
+package com.timmattison.proto2sql.benchmarks;
+
+import com.google.protobuf.DynamicMessage;
+import com.timmattison.proto2sql.sql.ConcurrentInMemoryProtobufPersistence;
+import com.timmattison.proto2sql.sql.ConvertToPostgresql;
+import com.timmattison.proto2sql.sql.InMemoryProtobufPersistence;
+import com.timmattison.proto2sql.sql.InMemoryStorage;
+import com.timmattison.proto2sql.sql.PostgresqlProtobufPersistence;
+import com.timmattison.proto2sql.sql.ProtobufPersistence;
+import org.flywaydb.core.Flyway;
+import org.postgresql.ds.PGSimpleDataSource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+/**
+ * The implementations the benchmarks can be run against
+ */
+public enum Backend {
+    IN_MEMORY {
+        @Override
+        public ProtobufPersistence open(MessageShape messageShape) {
+            return new InMemoryProtobufPersistence();
+        }
+    },
+    IN_MEMORY_OFF_HEAP {
+        @Override
+        public ProtobufPersistence open(MessageShape messageShape) {
+            return new InMemoryProtobufPersistence(InMemoryStorage.OFF_HEAP);
+        }
+    },
+    CONCURRENT_IN_MEMORY {
+        @Override
+        public ProtobufPersistence open(MessageShape messageShape) {
+            return new ConcurrentInMemoryProtobufPersistence();
+        }
+    },
+    /**
+     * A local PostgreSQL server, the same one the integration tests use.  The connection can be changed with the
+     * proto2sql.benchmark.host, proto2sql.benchmark.database, proto2sql.benchmark.user and
+     * proto2sql.benchmark.password system properties.  Everything in the database is dropped first.
+     */
+    POSTGRESQL {
+        @Override
+        public ProtobufPersistence open(MessageShape messageShape) throws Exception {
+            PGSimpleDataSource dataSource = new PGSimpleDataSource();
+            dataSource.setServerName(System.getProperty("proto2sql.benchmark.host", "localhost"));
+            dataSource.setDatabaseName(System.getProperty("proto2sql.benchmark.database", "proto2sql"));
+
+            String user = System.getProperty("proto2sql.benchmark.user");
+
+            if (user != null) {
+                dataSource.setUser(user);
+                dataSource.setPassword(System.getProperty("proto2sql.benchmark.password"));
+            }
+
+            Flyway flyway = new Flyway();
+            flyway.setDataSource(dataSource);
+            flyway.clean();
+
+            try (Connection connection = dataSource.getConnection()) {
+                for (String sql : new ConvertToPostgresql().generateSql(DynamicMessage.getDefaultInstance(messageShape.getDescriptor()))) {
+                    try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+                        preparedStatement.execute();
+                    }
+                }
+            }
+
+            return new PostgresqlProtobufPersistence(dataSource);
+        }
+    };
+
+    /**
+     * @param messageShape the messages that will be stored
+     * @return an empty persistence ready for messages of that shape
+     * @throws Exception
+     */
+    public abstract ProtobufPersistence open(MessageShape messageShape) throws Exception;
+}
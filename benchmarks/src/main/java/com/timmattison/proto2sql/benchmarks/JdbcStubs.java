@@ -0,0 +1,124 @@
+package com.timmattison.proto2sql.benchmarks;
+
+import com.google.protobuf.Descriptors;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Just enough of JDBC to run the statement plan's binding and row reading without a database so the benchmarks
+ * measure proto2sql and not the driver or the network.  Parameters bound to a statement are kept in a row that a
+ * result set can then be read from, which makes the row hold exactly what the binders would have sent.
+ */
+public class JdbcStubs {
+    private JdbcStubs() {
+    }
+
+    /**
+     * @return a connection that can only create arrays
+     */
+    public static Connection newConnection() {
+        return (Connection) Proxy.newProxyInstance(JdbcStubs.class.getClassLoader(), new Class<?>[]{Connection.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("createArrayOf")) {
+                    return newArray((Object[]) args[1]);
+                }
+
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * @param row where the parameters are kept, parameter N goes in row[N - 1]
+     * @return a statement that only accepts parameters
+     */
+    public static PreparedStatement newPreparedStatement(final Object[] row) {
+        return (PreparedStatement) Proxy.newProxyInstance(JdbcStubs.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("setNull")) {
+                    row[(Integer) args[0] - 1] = null;
+                    return null;
+                }
+
+                // Is this one of the setters?
+                if (method.getName().startsWith("set") && (args != null) && (args.length == 2) && (args[0] instanceof Integer)) {
+                    // Yes, keep the value
+                    row[(Integer) args[0] - 1] = args[1];
+                    return null;
+                }
+
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * @param descriptor the type of the row, its fields are the columns in order
+     * @param row        the values of the columns
+     * @return a result set positioned on the row
+     */
+    public static ResultSet newResultSet(Descriptors.Descriptor descriptor, final Object[] row) {
+        final Map<String, Integer> columns = new HashMap<String, Integer>();
+
+        for (Descriptors.FieldDescriptor fieldDescriptor : descriptor.getFields()) {
+            columns.put(fieldDescriptor.getName(), fieldDescriptor.getIndex() + 1);
+        }
+
+        return (ResultSet) Proxy.newProxyInstance(JdbcStubs.class.getClassLoader(), new Class<?>[]{ResultSet.class}, new InvocationHandler() {
+            private boolean wasNull = false;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+
+                if (name.equals("findColumn")) {
+                    return columns.get(args[0]);
+                }
+
+                if (name.equals("wasNull")) {
+                    return wasNull;
+                }
+
+                Object value = row[(Integer) args[0] - 1];
+                wasNull = (value == null);
+
+                if (name.equals("getString")) {
+                    return (value == null) ? null : value.toString();
+                } else if (name.equals("getInt")) {
+                    return (value == null) ? 0 : ((Number) value).intValue();
+                } else if (name.equals("getLong")) {
+                    return (value == null) ? 0L : ((Number) value).longValue();
+                } else if (name.equals("getBoolean")) {
+                    return (value == null) ? false : value;
+                } else if (name.equals("getBytes") || name.equals("getArray") || name.equals("getObject")) {
+                    return value;
+                }
+
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    private static Array newArray(final Object[] elements) {
+        return (Array) Proxy.newProxyInstance(JdbcStubs.class.getClassLoader(), new Class<?>[]{Array.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getArray") && (args == null)) {
+                    return elements;
+                }
+
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
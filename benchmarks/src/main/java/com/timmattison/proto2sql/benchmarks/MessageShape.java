@@ -0,0 +1,161 @@
+package com.timmattison.proto2sql.benchmarks;
+
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+
+/**
+ * The kinds of messages the benchmarks are run with.  The types are built at runtime so the benchmarks don't need
+ * generated code:
+ *
+ * message Flat { required string id = 1; optional string name = 2; optional int32 count = 3; optional int64 size = 4; optional bool active = 5; }
+ * message Child { required string name = 1; optional int64 size = 2; }
+ * message Nested { required string id = 1; optional string name = 2; optional Child child = 3; }
+ * message Repeated { required string id = 1; repeated Child children = 2; repeated string tags = 3; }
+ */
+public enum MessageShape {
+    /**
+     * Only scalar columns
+     */
+    FLAT("Flat") {
+        @Override
+        protected void populate(DynamicMessage.Builder builder, int id, int version) {
+            builder.setField(getField("name"), "Name " + id);
+            builder.setField(getField("count"), version);
+            builder.setField(getField("size"), (long) id * version);
+            builder.setField(getField("active"), (version % 2) == 0);
+        }
+    },
+    /**
+     * One child message column
+     */
+    NESTED("Nested") {
+        @Override
+        protected void populate(DynamicMessage.Builder builder, int id, int version) {
+            builder.setField(getField("name"), "Name " + id);
+            builder.setField(getField("child"), newChild("Child " + id, version));
+        }
+    },
+    /**
+     * Array columns of child messages and strings
+     */
+    REPEATED("Repeated") {
+        @Override
+        protected void populate(DynamicMessage.Builder builder, int id, int version) {
+            for (int loop = 0; loop < REPEATED_COUNT; loop++) {
+                builder.addRepeatedField(getField("children"), newChild("Child " + id + " " + loop, version + loop));
+                builder.addRepeatedField(getField("tags"), "Tag " + loop);
+            }
+        }
+    };
+
+    public static final String ID_NAME = "id";
+
+    private static final int REPEATED_COUNT = 5;
+
+    private static final Descriptors.FileDescriptor FILE_DESCRIPTOR = buildFileDescriptor();
+
+    private final String typeName;
+
+    private MessageShape(String typeName) {
+        this.typeName = typeName;
+    }
+
+    protected abstract void populate(DynamicMessage.Builder builder, int id, int version);
+
+    public Descriptors.Descriptor getDescriptor() {
+        return FILE_DESCRIPTOR.findMessageTypeByName(typeName);
+    }
+
+    public Descriptors.FieldDescriptor getIdField() {
+        return getField(ID_NAME);
+    }
+
+    public DynamicMessage.Builder newBuilder() {
+        return DynamicMessage.newBuilder(getDescriptor());
+    }
+
+    /**
+     * @param id      the message's ID
+     * @param version changes the other fields so updates have something to change
+     * @return a message of this shape
+     */
+    public Message newMessage(int id, int version) {
+        DynamicMessage.Builder builder = newBuilder();
+        builder.setField(getIdField(), toId(id));
+        populate(builder, id, version);
+
+        return builder.build();
+    }
+
+    public static String toId(int id) {
+        return "id-" + id;
+    }
+
+    protected Descriptors.FieldDescriptor getField(String name) {
+        return getDescriptor().findFieldByName(name);
+    }
+
+    private static Message newChild(String name, long size) {
+        Descriptors.Descriptor child = FILE_DESCRIPTOR.findMessageTypeByName("Child");
+
+        return DynamicMessage.newBuilder(child)
+                .setField(child.findFieldByName("name"), name)
+                .setField(child.findFieldByName("size"), size)
+                .build();
+    }
+
+    private static Descriptors.FileDescriptor buildFileDescriptor() {
+        DescriptorProtos.DescriptorProto flat = DescriptorProtos.DescriptorProto.newBuilder()
+                .setName("Flat")
+                .addField(field("id", 1, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING, DescriptorProtos.FieldDescriptorProto.Label.LABEL_REQUIRED))
+                .addField(field("name", 2, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING, DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL))
+                .addField(field("count", 3, DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT32, DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL))
+                .addField(field("size", 4, DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT64, DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL))
+                .addField(field("active", 5, DescriptorProtos.FieldDescriptorProto.Type.TYPE_BOOL, DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL))
+                .build();
+
+        DescriptorProtos.DescriptorProto child = DescriptorProtos.DescriptorProto.newBuilder()
+                .setName("Child")
+                .addField(field("name", 1, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING, DescriptorProtos.FieldDescriptorProto.Label.LABEL_REQUIRED))
+                .addField(field("size", 2, DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT64, DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL))
+                .build();
+
+        DescriptorProtos.DescriptorProto nested = DescriptorProtos.DescriptorProto.newBuilder()
+                .setName("Nested")
+                .addField(field("id", 1, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING, DescriptorProtos.FieldDescriptorProto.Label.LABEL_REQUIRED))
+                .addField(field("name", 2, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING, DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL))
+                .addField(field("child", 3, DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE, DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL).setTypeName("Child"))
+                .build();
+
+        DescriptorProtos.DescriptorProto repeated = DescriptorProtos.DescriptorProto.newBuilder()
+                .setName("Repeated")
+                .addField(field("id", 1, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING, DescriptorProtos.FieldDescriptorProto.Label.LABEL_REQUIRED))
+                .addField(field("children", 2, DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE, DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED).setTypeName("Child"))
+                .addField(field("tags", 3, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING, DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED))
+                .build();
+
+        DescriptorProtos.FileDescriptorProto fileDescriptorProto = DescriptorProtos.FileDescriptorProto.newBuilder()
+                .setName("MessageShape.proto")
+                .addMessageType(flat)
+                .addMessageType(child)
+                .addMessageType(nested)
+                .addMessageType(repeated)
+                .build();
+
+        try {
+            return Descriptors.FileDescriptor.buildFrom(fileDescriptorProto, new Descriptors.FileDescriptor[0]);
+        } catch (Descriptors.DescriptorValidationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static DescriptorProtos.FieldDescriptorProto.Builder field(String name, int number, DescriptorProtos.FieldDescriptorProto.Type type, DescriptorProtos.FieldDescriptorProto.Label label) {
+        return DescriptorProtos.FieldDescriptorProto.newBuilder()
+                .setName(name)
+                .setNumber(number)
+                .setType(type)
+                .setLabel(label);
+    }
+}
@@ -0,0 +1,158 @@
+package com.timmattison.proto2sql.benchmarks;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.timmattison.proto2sql.sql.ProtobufPersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Times each ProtobufPersistence operation against a table that starts every iteration with rowCount messages.
+ * The state is shared so running with more than one thread (-t) measures contention too.
+ *
+ * To run only the in-memory backends:
+ *
+ * java -jar target/benchmarks.jar PersistenceBenchmark -p backend=IN_MEMORY,IN_MEMORY_OFF_HEAP,CONCURRENT_IN_MEMORY
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"IN_MEMORY", "IN_MEMORY_OFF_HEAP", "CONCURRENT_IN_MEMORY", "POSTGRESQL"})
+    public Backend backend;
+
+    @Param({"FLAT", "NESTED", "REPEATED"})
+    public MessageShape messageShape;
+
+    @Param({"100", "10000"})
+    public int rowCount;
+
+    private ProtobufPersistence protobufPersistence;
+    private Descriptors.FieldDescriptor idField;
+
+    /**
+     * IDs of messages that don't exist yet, inserts take the next one
+     */
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void openPersistence() throws Exception {
+        protobufPersistence = backend.open(messageShape);
+        idField = messageShape.getIdField();
+    }
+
+    /**
+     * Puts the table back the way it started so inserts and deletes in one iteration don't change what the next one
+     * measures
+     */
+    @Setup(Level.Iteration)
+    public void loadRows() throws Exception {
+        protobufPersistence.deleteAll(messageShape.getDescriptor());
+
+        List<Message> messages = new ArrayList<Message>(rowCount);
+
+        for (int loop = 0; loop < rowCount; loop++) {
+            messages.add(messageShape.newMessage(loop, 0));
+        }
+
+        protobufPersistence.insertAll(messages, idField);
+        nextId.set(rowCount);
+    }
+
+    @Benchmark
+    public void insert() throws Exception {
+        protobufPersistence.insert(messageShape.newMessage(nextId.getAndIncrement(), 0), idField);
+    }
+
+    /**
+     * Inserts BATCH_SIZE messages at once, divide by BATCH_SIZE to compare with insert()
+     */
+    @Benchmark
+    public void insertAll() throws Exception {
+        int firstId = nextId.getAndAdd(BATCH_SIZE);
+        List<Message> messages = new ArrayList<Message>(BATCH_SIZE);
+
+        for (int loop = 0; loop < BATCH_SIZE; loop++) {
+            messages.add(messageShape.newMessage(firstId + loop, 0));
+        }
+
+        protobufPersistence.insertAll(messages, idField);
+    }
+
+    @Benchmark
+    public List<Message> selectById() throws Exception {
+        return protobufPersistence.select(MessageShape.ID_NAME, MessageShape.toId(randomId()), messageShape.newBuilder());
+    }
+
+    /**
+     * Selects all rowCount messages
+     */
+    @Benchmark
+    public List<Message> selectAll() throws Exception {
+        return protobufPersistence.select(null, null, messageShape.newBuilder());
+    }
+
+    @Benchmark
+    public void update() throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        protobufPersistence.update(messageShape.newMessage(random.nextInt(rowCount), random.nextInt()), idField);
+    }
+
+    /**
+     * Inserts a new message and deletes it so the table doesn't run out of messages to delete and threads never
+     * delete each other's messages, subtract insert() to get the cost of the delete
+     */
+    @Benchmark
+    public void insertAndDelete() throws Exception {
+        Message message = messageShape.newMessage(nextId.getAndIncrement(), 0);
+
+        protobufPersistence.insert(message, idField);
+        protobufPersistence.delete(message, idField);
+    }
+
+    /**
+     * Selects by ID on three threads while a fourth updates, the mix the in-memory implementations are tuned for.
+     * Use -tg to change the ratio.
+     */
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public List<Message> readWriteSelect() throws Exception {
+        return selectById();
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void readWriteUpdate() throws Exception {
+        update();
+    }
+
+    private int randomId() {
+        return ThreadLocalRandom.current().nextInt(rowCount);
+    }
+}
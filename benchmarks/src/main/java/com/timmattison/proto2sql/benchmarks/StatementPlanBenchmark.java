@@ -0,0 +1,100 @@
+package com.timmattison.proto2sql.benchmarks;
+
+import com.google.protobuf.Message;
+import com.timmattison.proto2sql.sql.ConvertToPostgresql;
+import com.timmattison.proto2sql.sql.MessageEncoding;
+import com.timmattison.proto2sql.sql.PostgresqlStatementPlan;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the PostgreSQL work that doesn't need a database: binding a message to a statement's parameters, building a
+ * message from a row and generating the DDL for a type.  JDBC is stubbed out with JdbcStubs.
+ *
+ * Run AllocationProfile to see how many bytes each of these allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatementPlanBenchmark {
+    @Param({"FLAT", "NESTED", "REPEATED"})
+    public MessageShape messageShape;
+
+    @Param({"JSON", "JSONB", "BINARY"})
+    public MessageEncoding messageEncoding;
+
+    private PostgresqlStatementPlan plan;
+    private ConvertToPostgresql convertToPostgresql;
+    private Message message;
+    private Message.Builder builder;
+    private Connection connection;
+    private PreparedStatement preparedStatement;
+    private ResultSet resultSet;
+    private int[] columns;
+
+    @Setup
+    public void setup() throws Exception {
+        plan = new PostgresqlStatementPlan(messageShape.getDescriptor(), messageShape.getDescriptor().getName(), messageEncoding);
+        convertToPostgresql = new ConvertToPostgresql(messageEncoding);
+        message = messageShape.newMessage(1, 1);
+        builder = messageShape.newBuilder();
+
+        Object[] row = new Object[messageShape.getDescriptor().getFields().size()];
+
+        connection = JdbcStubs.newConnection();
+        preparedStatement = JdbcStubs.newPreparedStatement(row);
+
+        // The row read back is whatever binding the message produces
+        plan.bindParameters(message, connection, preparedStatement, 1);
+
+        resultSet = JdbcStubs.newResultSet(messageShape.getDescriptor(), row);
+        columns = plan.resolveColumns(resultSet);
+    }
+
+    @Benchmark
+    public int bindParameters() throws Exception {
+        return plan.bindParameters(message, connection, preparedStatement, 1);
+    }
+
+    /**
+     * Reads a row the way selects do, reusing one builder for every row
+     */
+    @Benchmark
+    public Message buildProtobuf() throws Exception {
+        builder.clear();
+        plan.readRow(resultSet, columns, builder);
+
+        return builder.build();
+    }
+
+    @Benchmark
+    public StringBuilder appendCopyRow() {
+        StringBuilder copyRow = new StringBuilder();
+        plan.appendCopyRow(message, copyRow);
+
+        return copyRow;
+    }
+
+    @Benchmark
+    public List<String> generateSql() {
+        return convertToPostgresql.generateSql(message);
+    }
+}
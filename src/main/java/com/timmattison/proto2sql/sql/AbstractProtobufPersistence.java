@@ -5,7 +5,10 @@ import com.google.protobuf.Message;
 import com.googlecode.protobuf.format.JsonFormat;
 
 import java.sql.SQLException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by timmattison on 11/14/14.
@@ -13,6 +16,35 @@ import java.util.List;
 public abstract class AbstractProtobufPersistence implements ProtobufPersistence {
     private static final String DEFAULT_ID_NAME = "id";
 
+    private final TableNamingStrategy tableNamingStrategy;
+    private final ConcurrentMap<Descriptors.Descriptor, String> tableNames = new ConcurrentHashMap<Descriptors.Descriptor, String>();
+    private volatile PersistenceMetrics metrics = NoOpPersistenceMetrics.INSTANCE;
+
+    protected AbstractProtobufPersistence() {
+        this(new PrefixTableNamingStrategy());
+    }
+
+    protected AbstractProtobufPersistence(TableNamingStrategy tableNamingStrategy) {
+        this.tableNamingStrategy = tableNamingStrategy;
+    }
+
+    /**
+     * Sets where the latency, row count and byte count of every operation are recorded
+     *
+     * @param metrics the metrics, NULL to stop recording
+     */
+    public void setMetrics(PersistenceMetrics metrics) {
+        if (metrics == null) {
+            metrics = NoOpPersistenceMetrics.INSTANCE;
+        }
+
+        this.metrics = metrics;
+    }
+
+    public PersistenceMetrics getMetrics() {
+        return metrics;
+    }
+
     @Override
     public void delete(Message message, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
         // Get the descriptor
@@ -21,16 +53,72 @@ public abstract class AbstractProtobufPersistence implements ProtobufPersistence
         // Get the type name
         String protobufTypeName = getTableName(descriptor);
 
-        // Do the actual delete
-        innerDelete(message, fieldDescriptor, protobufTypeName);
+        PersistenceMetrics metrics = this.metrics;
+
+        // Are we recording metrics?
+        if (!metrics.isEnabled()) {
+            // No, just do the actual delete
+            innerDelete(message, fieldDescriptor, protobufTypeName);
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean succeeded = false;
+
+        try {
+            innerDelete(message, fieldDescriptor, protobufTypeName);
+            succeeded = true;
+        } finally {
+            recordOperation(metrics, protobufTypeName, PersistenceOperation.DELETE, start, succeeded, 1, 0);
+        }
     }
 
     @Override
     public final void deleteAll(Descriptors.Descriptor descriptor) throws SQLException {
         String protobufTypeName = getTableName(descriptor);
 
-        // Do the actual delete
-        innerDeleteAll(descriptor, protobufTypeName);
+        PersistenceMetrics metrics = this.metrics;
+
+        // Are we recording metrics?
+        if (!metrics.isEnabled()) {
+            // No, just do the actual delete
+            innerDeleteAll(descriptor, protobufTypeName);
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean succeeded = false;
+
+        try {
+            innerDeleteAll(descriptor, protobufTypeName);
+            succeeded = true;
+        } finally {
+            // The number of rows deleted isn't known
+            recordOperation(metrics, protobufTypeName, PersistenceOperation.DELETE_ALL, start, succeeded, 0, 0);
+        }
+    }
+
+    @Override
+    public final void deleteAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        PersistenceMetrics metrics = this.metrics;
+
+        // Are we recording metrics?
+        if (!metrics.isEnabled()) {
+            // No, just do the actual deletes
+            innerDeleteAll(messages, fieldDescriptor);
+            return;
+        }
+
+        MeasuredMessages measuredMessages = new MeasuredMessages(messages, false);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+
+        try {
+            innerDeleteAll(measuredMessages, fieldDescriptor);
+            succeeded = true;
+        } finally {
+            recordOperation(metrics, measuredMessages, PersistenceOperation.DELETE_ALL, start, succeeded);
+        }
     }
 
     protected static String setDefaultIdFieldNameIfNecessary(String idName) {
@@ -43,6 +131,43 @@ public abstract class AbstractProtobufPersistence implements ProtobufPersistence
         return idName;
     }
 
+    /**
+     * Finds the field to filter by for implementations that filter in memory
+     *
+     * @param descriptor the descriptor for the protobuf
+     * @param idName     the name of the field, NULL for the default ID field
+     * @return
+     */
+    protected static Descriptors.FieldDescriptor getFilterField(Descriptors.Descriptor descriptor, String idName) {
+        idName = setDefaultIdFieldNameIfNecessary(idName);
+
+        Descriptors.FieldDescriptor fieldDescriptor = descriptor.findFieldByName(idName);
+
+        if (fieldDescriptor == null) {
+            throw new IllegalArgumentException("Field " + idName + " does not exist in " + descriptor.getFullName());
+        }
+
+        return fieldDescriptor;
+    }
+
+    /**
+     * Checks if a message has a value in a field for implementations that filter in memory
+     *
+     * @param message         the message to check
+     * @param fieldDescriptor the field to filter by
+     * @param value           the value of the field converted with FieldValues.parse(), NULL to not filter
+     * @return
+     */
+    protected static boolean passesFilter(Message message, Descriptors.FieldDescriptor fieldDescriptor, Object value) {
+        // Did they specify a value?
+        if (value == null) {
+            // No, no filtering necessary
+            return true;
+        }
+
+        return value.equals(message.getField(fieldDescriptor));
+    }
+
     @Override
     public final List<Message> select(String idName, String id, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
         // Get the name of the table that this protobuf resides in in the database
@@ -52,8 +177,89 @@ public abstract class AbstractProtobufPersistence implements ProtobufPersistence
             idName = setDefaultIdFieldNameIfNecessary(idName);
         }
 
-        // Do the actual select
-        return innerSelect(idName, id, builder, tableName);
+        PersistenceMetrics metrics = this.metrics;
+
+        // Are we recording metrics?
+        if (!metrics.isEnabled()) {
+            // No, just do the actual select
+            return innerSelect(idName, id, builder, tableName);
+        }
+
+        long start = System.nanoTime();
+        List<Message> results = null;
+        boolean succeeded = false;
+
+        try {
+            // NULL is a valid result, the in-memory implementations return it for types that were never stored
+            results = innerSelect(idName, id, builder, tableName);
+            succeeded = true;
+
+            return results;
+        } finally {
+            recordOperation(metrics, tableName, PersistenceOperation.SELECT, start, succeeded, (results == null) ? 0 : results.size(), 0);
+        }
+    }
+
+    @Override
+    public final MessageCursor selectStream(String idName, String id, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+        // Get the name of the table that this protobuf resides in in the database
+        String tableName = getTableName(builder.getDescriptorForType());
+
+        if (id != null) {
+            idName = setDefaultIdFieldNameIfNecessary(idName);
+        }
+
+        PersistenceMetrics metrics = this.metrics;
+
+        // Are we recording metrics?
+        if (!metrics.isEnabled()) {
+            // No, just do the actual select
+            return innerSelectStream(idName, id, builder, tableName);
+        }
+
+        long start = System.nanoTime();
+        boolean succeeded = false;
+
+        try {
+            MessageCursor results = innerSelectStream(idName, id, builder, tableName);
+            succeeded = true;
+
+            return results;
+        } finally {
+            recordOperation(metrics, tableName, PersistenceOperation.SELECT_STREAM, start, succeeded, 0, 0);
+        }
+    }
+
+    @Override
+    public final List<Message> selectByPath(String path, String value, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+        Descriptors.Descriptor descriptor = builder.getDescriptorForType();
+
+        // Get the name of the table that this protobuf resides in in the database
+        String tableName = getTableName(descriptor);
+
+        // Resolve the path and convert the value to the type of the field at the end of it
+        FieldPath fieldPath = FieldPath.parse(descriptor, path);
+
+        PersistenceMetrics metrics = this.metrics;
+
+        // Are we recording metrics?
+        if (!metrics.isEnabled()) {
+            // No, just do the actual select
+            return innerSelectByPath(fieldPath, fieldPath.parseValue(value), builder, tableName);
+        }
+
+        long start = System.nanoTime();
+        List<Message> results = null;
+        boolean succeeded = false;
+
+        try {
+            results = innerSelectByPath(fieldPath, fieldPath.parseValue(value), builder, tableName);
+            succeeded = true;
+
+            return results;
+        } finally {
+            recordOperation(metrics, tableName, PersistenceOperation.SELECT_BY_PATH, start, succeeded, (results == null) ? 0 : results.size(), 0);
+        }
     }
 
     @Override
@@ -64,8 +270,24 @@ public abstract class AbstractProtobufPersistence implements ProtobufPersistence
         // Get the type name
         String protobufTypeName = getTableName(descriptor);
 
-        // Do the actual update
-        innerUpdate(message, fieldDescriptor, protobufTypeName, previousId);
+        PersistenceMetrics metrics = this.metrics;
+
+        // Are we recording metrics?
+        if (!metrics.isEnabled()) {
+            // No, just do the actual update
+            innerUpdate(message, fieldDescriptor, protobufTypeName, previousId);
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean succeeded = false;
+
+        try {
+            innerUpdate(message, fieldDescriptor, protobufTypeName, previousId);
+            succeeded = true;
+        } finally {
+            recordOperation(metrics, protobufTypeName, PersistenceOperation.UPDATE, start, succeeded, 1, message.getSerializedSize());
+        }
     }
 
     @Override
@@ -76,8 +298,70 @@ public abstract class AbstractProtobufPersistence implements ProtobufPersistence
         // Get the type name
         String protobufTypeName = getTableName(descriptor);
 
-        // Do the actual insert
-        innerInsert(message, fieldDescriptor, protobufTypeName);
+        PersistenceMetrics metrics = this.metrics;
+
+        // Are we recording metrics?
+        if (!metrics.isEnabled()) {
+            // No, just do the actual insert
+            innerInsert(message, fieldDescriptor, protobufTypeName);
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean succeeded = false;
+
+        try {
+            innerInsert(message, fieldDescriptor, protobufTypeName);
+            succeeded = true;
+        } finally {
+            recordOperation(metrics, protobufTypeName, PersistenceOperation.INSERT, start, succeeded, 1, message.getSerializedSize());
+        }
+    }
+
+    @Override
+    public final void insertAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        PersistenceMetrics metrics = this.metrics;
+
+        // Are we recording metrics?
+        if (!metrics.isEnabled()) {
+            // No, just do the actual inserts
+            innerInsertAll(messages, fieldDescriptor);
+            return;
+        }
+
+        MeasuredMessages measuredMessages = new MeasuredMessages(messages, true);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+
+        try {
+            innerInsertAll(measuredMessages, fieldDescriptor);
+            succeeded = true;
+        } finally {
+            recordOperation(metrics, measuredMessages, PersistenceOperation.INSERT_ALL, start, succeeded);
+        }
+    }
+
+    @Override
+    public final void updateAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        PersistenceMetrics metrics = this.metrics;
+
+        // Are we recording metrics?
+        if (!metrics.isEnabled()) {
+            // No, just do the actual updates
+            innerUpdateAll(messages, fieldDescriptor);
+            return;
+        }
+
+        MeasuredMessages measuredMessages = new MeasuredMessages(messages, true);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+
+        try {
+            innerUpdateAll(measuredMessages, fieldDescriptor);
+            succeeded = true;
+        } finally {
+            recordOperation(metrics, measuredMessages, PersistenceOperation.UPDATE_ALL, start, succeeded);
+        }
     }
 
     @Override
@@ -88,17 +372,65 @@ public abstract class AbstractProtobufPersistence implements ProtobufPersistence
         // Get the type name
         String protobufTypeName = getTableName(descriptor);
 
-        // Do the actual update
-        innerUpdate(message, fieldDescriptor, protobufTypeName);
+        PersistenceMetrics metrics = this.metrics;
+
+        // Are we recording metrics?
+        if (!metrics.isEnabled()) {
+            // No, just do the actual update
+            innerUpdate(message, fieldDescriptor, protobufTypeName);
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean succeeded = false;
+
+        try {
+            innerUpdate(message, fieldDescriptor, protobufTypeName);
+            succeeded = true;
+        } finally {
+            recordOperation(metrics, protobufTypeName, PersistenceOperation.UPDATE, start, succeeded, 1, message.getSerializedSize());
+        }
     }
 
     protected String getTableName(Descriptors.Descriptor descriptor) {
-        // Get the table name by removing "domain." from the full name and then by replacing all dots with underscores
-        return descriptor.getFullName().replaceFirst("domain.", "").replaceAll("\\.", "_");
+        String tableName = tableNames.get(descriptor);
+
+        // Have we named this type before?
+        if (tableName == null) {
+            // No, ask the naming strategy and remember the answer
+            tableName = tableNamingStrategy.getTableName(descriptor);
+            tableNames.putIfAbsent(descriptor, tableName);
+        }
+
+        return tableName;
+    }
+
+    private static void recordOperation(PersistenceMetrics metrics, String tableName, PersistenceOperation operation, long start, boolean succeeded, long rows, long bytes) {
+        long durationNanos = System.nanoTime() - start;
+
+        if (succeeded) {
+            metrics.recordOperation(tableName, operation, durationNanos, rows, bytes, false);
+        } else {
+            metrics.recordOperation(tableName, operation, durationNanos, 0, 0, true);
+        }
+    }
+
+    private void recordOperation(PersistenceMetrics metrics, MeasuredMessages measuredMessages, PersistenceOperation operation, long start, boolean succeeded) {
+        // Were there any messages?
+        if (measuredMessages.descriptor == null) {
+            // No, there is no table to record this against
+            return;
+        }
+
+        recordOperation(metrics, getTableName(measuredMessages.descriptor), operation, start, succeeded, measuredMessages.rows, measuredMessages.bytes);
     }
 
     protected abstract List<Message> innerSelect(String idName, String id, Message.Builder builder, String tableName) throws SQLException, JsonFormat.ParseException;
 
+    protected abstract MessageCursor innerSelectStream(String idName, String id, Message.Builder builder, String tableName) throws SQLException, JsonFormat.ParseException;
+
+    protected abstract List<Message> innerSelectByPath(FieldPath fieldPath, Object value, Message.Builder builder, String tableName) throws SQLException, JsonFormat.ParseException;
+
     protected abstract void innerInsert(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName) throws SQLException;
 
     protected abstract void innerUpdate(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName) throws SQLException;
@@ -109,4 +441,111 @@ public abstract class AbstractProtobufPersistence implements ProtobufPersistence
 
     protected abstract void innerDelete(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName) throws SQLException;
 
+    /**
+     * INSERTs many protobufs.  By default this INSERTs them one at a time, implementations that can batch should
+     * override it.
+     */
+    protected void innerInsertAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        // Go straight to the inner operation so each message isn't recorded on its own as well as in the batch
+        for (Message message : messages) {
+            innerInsert(message, fieldDescriptor, getTableName(message.getDescriptorForType()));
+        }
+    }
+
+    /**
+     * UPDATEs many protobufs.  By default this UPDATEs them one at a time, implementations that can batch should
+     * override it.
+     */
+    protected void innerUpdateAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        // Go straight to the inner operation so each message isn't recorded on its own as well as in the batch
+        for (Message message : messages) {
+            innerUpdate(message, fieldDescriptor, getTableName(message.getDescriptorForType()));
+        }
+    }
+
+    /**
+     * DELETEs many protobufs.  By default this DELETEs them one at a time, implementations that can batch should
+     * override it.
+     */
+    protected void innerDeleteAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        // Go straight to the inner operation so each message isn't recorded on its own as well as in the batch
+        for (Message message : messages) {
+            innerDelete(message, fieldDescriptor, getTableName(message.getDescriptorForType()));
+        }
+    }
+
+    /**
+     * Counts the messages a batch operation goes through and adds up their sizes as it goes so they are only walked
+     * once.  Batches are recorded against the table of their first message.
+     */
+    private static class MeasuredMessages implements Iterable<Message> {
+        private final Iterable<? extends Message> messages;
+        private final boolean measureBytes;
+        private boolean iterated = false;
+        private Descriptors.Descriptor descriptor;
+        private long rows;
+        private long bytes;
+
+        private MeasuredMessages(Iterable<? extends Message> messages, boolean measureBytes) {
+            this.messages = messages;
+            this.measureBytes = measureBytes;
+        }
+
+        @Override
+        public Iterator<Message> iterator() {
+            final Iterator<? extends Message> iterator = messages.iterator();
+
+            // Has this been iterated before?
+            if (iterated) {
+                // Yes, only the first pass is counted
+                return new Iterator<Message>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Message next() {
+                        return iterator.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                    }
+                };
+            }
+
+            iterated = true;
+
+            return new Iterator<Message>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Message next() {
+                    Message message = iterator.next();
+
+                    if (descriptor == null) {
+                        descriptor = message.getDescriptorForType();
+                    }
+
+                    rows++;
+
+                    if (measureBytes) {
+                        bytes += message.getSerializedSize();
+                    }
+
+                    return message;
+                }
+
+                @Override
+                public void remove() {
+                    iterator.remove();
+                }
+            };
+        }
+    }
 }
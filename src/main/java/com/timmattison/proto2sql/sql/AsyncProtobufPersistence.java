@@ -0,0 +1,381 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the operations of a blocking ProtobufPersistence on an executor and hands back futures so callers that are
+ * asynchronous don't have to block their own threads on the database.  Futures complete with the result or
+ * exceptionally with whatever the operation threw, e.g. an SQLException.
+ *
+ * No more than maximumOutstanding operations are running or waiting to run at once.  When that many are outstanding
+ * new operations fail right away with a RejectedExecutionException so the caller's thread, often an event loop, is
+ * never blocked.  setMaximumWait() lets them wait for one of the outstanding operations to finish instead, which
+ * blocks the caller for up to that long.  Either way a slow database can't build an unbounded queue of work.
+ *
+ * Thread bound transactions (startTransaction(), commit() and rollback()) don't make sense here since every
+ * operation can run on a different thread.  To run several operations in one transaction submit() a task that uses
+ * begin() on the underlying persistence.  Messages, builders and iterables passed in are used on another thread so
+ * they must not be changed until the future completes.
+ */
+public class AsyncProtobufPersistence implements AutoCloseable {
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    private final ProtobufPersistence protobufPersistence;
+    private final ExecutorService executorService;
+    private final boolean virtualThreads;
+    private final int maximumOutstanding;
+    private final Semaphore outstanding;
+    private volatile long maximumWaitNanos = 0;
+
+    /**
+     * Runs operations on a pool of platform threads
+     *
+     * @param protobufPersistence the persistence to run the operations on
+     * @param threads             the number of threads, usually the size of the connection pool
+     * @param maximumOutstanding  the most operations that can be running or waiting to run at once
+     */
+    public AsyncProtobufPersistence(ProtobufPersistence protobufPersistence, int threads, int maximumOutstanding) {
+        this(protobufPersistence, newThreadPool(threads), false, maximumOutstanding);
+    }
+
+    private AsyncProtobufPersistence(ProtobufPersistence protobufPersistence, ExecutorService executorService, boolean virtualThreads, int maximumOutstanding) {
+        if (maximumOutstanding < 1) {
+            throw new IllegalArgumentException("Maximum outstanding operations must be at least 1, was " + maximumOutstanding);
+        }
+
+        this.protobufPersistence = protobufPersistence;
+        this.executorService = executorService;
+        this.virtualThreads = virtualThreads;
+        this.maximumOutstanding = maximumOutstanding;
+        this.outstanding = new Semaphore(maximumOutstanding);
+    }
+
+    /**
+     * Runs every operation on its own virtual thread when the JVM has them (Java 21 and later), otherwise on a pool
+     * of up to maximumOutstanding platform threads.  Either way no more than maximumOutstanding operations are
+     * outstanding so the connection pool still has to be big enough for that many.
+     *
+     * @param protobufPersistence the persistence to run the operations on
+     * @param maximumOutstanding  the most operations that can be running or waiting to run at once
+     * @return the asynchronous persistence, isUsingVirtualThreads() says which kind of threads it got
+     */
+    public static AsyncProtobufPersistence withVirtualThreads(ProtobufPersistence protobufPersistence, int maximumOutstanding) {
+        ExecutorService virtualThreadExecutor = newVirtualThreadExecutor();
+
+        // Does this JVM have virtual threads?
+        if (virtualThreadExecutor == null) {
+            // No, use platform threads that go away when they aren't needed
+            return new AsyncProtobufPersistence(protobufPersistence, newThreadPool(maximumOutstanding), false, maximumOutstanding);
+        }
+
+        return new AsyncProtobufPersistence(protobufPersistence, virtualThreadExecutor, true, maximumOutstanding);
+    }
+
+    /**
+     * This is compiled for Java versions that don't have virtual threads so they are looked up by name
+     *
+     * @return an executor that starts a virtual thread for each task, NULL if the JVM doesn't have virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Older JVMs don't have the method, Java 19 and 20 only have it when preview features are enabled
+            return null;
+        }
+    }
+
+    private static ExecutorService newThreadPool(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1, was " + threads);
+        }
+
+        final int poolNumber = POOL_NUMBER.incrementAndGet();
+
+        // The semaphore bounds the number of outstanding operations so the queue never grows past that
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "proto2sql-async-" + poolNumber + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+
+        return threadPoolExecutor;
+    }
+
+    /**
+     * Sets how long new operations wait for an outstanding one to finish when there are already maximumOutstanding
+     * of them.  The caller's thread is blocked while they wait.  By default they don't wait at all.
+     *
+     * @param maximumWait how long to wait, 0 to fail right away, Long.MAX_VALUE to wait as long as it takes
+     * @param timeUnit    the unit of maximumWait
+     */
+    public void setMaximumWait(long maximumWait, TimeUnit timeUnit) {
+        if (maximumWait < 0) {
+            throw new IllegalArgumentException("Maximum wait can't be negative, was " + maximumWait);
+        }
+
+        this.maximumWaitNanos = timeUnit.toNanos(maximumWait);
+    }
+
+    public long getMaximumWait(TimeUnit timeUnit) {
+        return timeUnit.convert(maximumWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public int getMaximumOutstanding() {
+        return maximumOutstanding;
+    }
+
+    /**
+     * @return the number of operations that are running or waiting to run
+     */
+    public int getOutstandingCount() {
+        return maximumOutstanding - outstanding.availablePermits();
+    }
+
+    public boolean isUsingVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public ProtobufPersistence getProtobufPersistence() {
+        return protobufPersistence;
+    }
+
+    /**
+     * @see ProtobufPersistence#select(String, String, Message.Builder)
+     */
+    public CompletableFuture<List<Message>> select(final String idName, final String id, final Message.Builder builder) {
+        return submit(new Callable<List<Message>>() {
+            @Override
+            public List<Message> call() throws Exception {
+                return protobufPersistence.select(idName, id, builder);
+            }
+        });
+    }
+
+    /**
+     * @see ProtobufPersistence#selectByPath(String, String, Message.Builder)
+     */
+    public CompletableFuture<List<Message>> selectByPath(final String path, final String value, final Message.Builder builder) {
+        return submit(new Callable<List<Message>>() {
+            @Override
+            public List<Message> call() throws Exception {
+                return protobufPersistence.selectByPath(path, value, builder);
+            }
+        });
+    }
+
+    /**
+     * @see ProtobufPersistence#insert(Message, Descriptors.FieldDescriptor)
+     */
+    public CompletableFuture<Void> insert(final Message message, final Descriptors.FieldDescriptor fieldDescriptor) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                protobufPersistence.insert(message, fieldDescriptor);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see ProtobufPersistence#insertAll(Iterable, Descriptors.FieldDescriptor)
+     */
+    public CompletableFuture<Void> insertAll(final Iterable<? extends Message> messages, final Descriptors.FieldDescriptor fieldDescriptor) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                protobufPersistence.insertAll(messages, fieldDescriptor);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see ProtobufPersistence#update(Message, Descriptors.FieldDescriptor)
+     */
+    public CompletableFuture<Void> update(final Message message, final Descriptors.FieldDescriptor fieldDescriptor) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                protobufPersistence.update(message, fieldDescriptor);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see ProtobufPersistence#update(Message, Descriptors.FieldDescriptor, Object)
+     */
+    public CompletableFuture<Void> update(final Message message, final Descriptors.FieldDescriptor fieldDescriptor, final Object previousId) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                protobufPersistence.update(message, fieldDescriptor, previousId);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see ProtobufPersistence#updateAll(Iterable, Descriptors.FieldDescriptor)
+     */
+    public CompletableFuture<Void> updateAll(final Iterable<? extends Message> messages, final Descriptors.FieldDescriptor fieldDescriptor) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                protobufPersistence.updateAll(messages, fieldDescriptor);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see ProtobufPersistence#delete(Message, Descriptors.FieldDescriptor)
+     */
+    public CompletableFuture<Void> delete(final Message message, final Descriptors.FieldDescriptor fieldDescriptor) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                protobufPersistence.delete(message, fieldDescriptor);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see ProtobufPersistence#deleteAll(Iterable, Descriptors.FieldDescriptor)
+     */
+    public CompletableFuture<Void> deleteAll(final Iterable<? extends Message> messages, final Descriptors.FieldDescriptor fieldDescriptor) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                protobufPersistence.deleteAll(messages, fieldDescriptor);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see ProtobufPersistence#deleteAll(Descriptors.Descriptor)
+     */
+    public CompletableFuture<Void> deleteAll(final Descriptors.Descriptor descriptor) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                protobufPersistence.deleteAll(descriptor);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Runs any task on the executor with the same limit on outstanding operations, e.g. a whole transaction or reading
+     * a cursor from selectStream()
+     *
+     * @param task the task, it should use the underlying persistence from getProtobufPersistence()
+     * @return a future for what the task returns
+     */
+    public <T> CompletableFuture<T> submit(final Callable<T> task) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        // Is there room for another operation?
+        if (!acquire()) {
+            // No, don't let the backlog grow
+            future.completeExceptionally(new RejectedExecutionException("All " + maximumOutstanding + " operations are outstanding, none finished within the maximum wait"));
+            return future;
+        }
+
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                T result;
+
+                try {
+                    result = task.call();
+                } catch (Throwable throwable) {
+                    // Free up the slot before completing so anything chained on the future can use it
+                    outstanding.release();
+                    future.completeExceptionally(throwable);
+                    return;
+                }
+
+                outstanding.release();
+                future.complete(result);
+            }
+        };
+
+        try {
+            executorService.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down
+            outstanding.release();
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    private boolean acquire() {
+        long maximumWaitNanos = this.maximumWaitNanos;
+
+        // Is the caller willing to wait?
+        if (maximumWaitNanos == 0) {
+            // No, this never blocks
+            return outstanding.tryAcquire();
+        }
+
+        try {
+            if (maximumWaitNanos == Long.MAX_VALUE) {
+                outstanding.acquire();
+                return true;
+            }
+
+            return outstanding.tryAcquire(maximumWaitNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Stops accepting operations and waits for the outstanding ones to finish.  If the calling thread is interrupted
+     * it stops waiting and keeps its interrupt status, the outstanding operations still finish in the background.
+     * The underlying persistence isn't closed.
+     */
+    @Override
+    public void close() {
+        executorService.shutdown();
+
+        try {
+            while (!executorService.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Keep waiting, operations are bounded by the database's own timeouts
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
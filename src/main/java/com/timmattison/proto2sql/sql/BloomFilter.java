@@ -0,0 +1,192 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bloom filter over the values of an ID field.  mightContain() never returns false for a value that was put in
+ * but can return true for values that weren't, how often depends on how many values were put in compared to the size
+ * it was created for.  Values can't be removed.
+ *
+ * Puts and checks are lock-free so one filter can be shared by many threads.  Besides the false positive rate
+ * estimated from how full the filter is, it counts the checks that ruled a value out and the false positives its
+ * user reports so the rate actually seen can be compared with the estimate when sizing it.
+ */
+public class BloomFilter {
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    private final AtomicLong setBitCount = new AtomicLong();
+    private final AtomicLong checkCount = new AtomicLong();
+    private final AtomicLong rejectionCount = new AtomicLong();
+    private final AtomicLong falsePositiveCount = new AtomicLong();
+
+    /**
+     * @param expectedValues    how many values will be put in
+     * @param falsePositiveRate the rate of false positives wanted once that many values are in, between 0 and 1
+     */
+    public BloomFilter(long expectedValues, double falsePositiveRate) {
+        if ((falsePositiveRate <= 0) || (falsePositiveRate >= 1)) {
+            throw new IllegalArgumentException("The false positive rate must be between 0 and 1");
+        }
+
+        expectedValues = Math.max(1, expectedValues);
+
+        // The standard sizes for n values and a false positive rate of p, m = -n ln p / (ln 2)^2 and k = m / n ln 2
+        long optimalBitCount = (long) Math.ceil(-expectedValues * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE, (optimalBitCount + 63) / 64);
+
+        bits = new AtomicLongArray(words);
+        bitCount = words * 64L;
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedValues * Math.log(2)));
+    }
+
+    public void put(Object value) {
+        long hash = hash(value);
+        long hash1 = mix(hash);
+        long hash2 = mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+
+        for (int loop = 0; loop < hashCount; loop++) {
+            setBit(getIndex(hash1 + (loop * hash2)));
+        }
+    }
+
+    /**
+     * @return false if the value was definitely never put in, true if it might have been
+     */
+    public boolean mightContain(Object value) {
+        checkCount.incrementAndGet();
+
+        long hash = hash(value);
+        long hash1 = mix(hash);
+        long hash2 = mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+
+        for (int loop = 0; loop < hashCount; loop++) {
+            if (!getBit(getIndex(hash1 + (loop * hash2)))) {
+                rejectionCount.incrementAndGet();
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Records that mightContain() returned true for a value that turned out not to exist
+     */
+    public void recordFalsePositive() {
+        falsePositiveCount.incrementAndGet();
+    }
+
+    /**
+     * @return the false positive rate expected from how many bits are set
+     */
+    public double getExpectedFalsePositiveRate() {
+        return Math.pow((double) setBitCount.get() / bitCount, hashCount);
+    }
+
+    /**
+     * @return the share of the values that didn't exist that were let through, NaN if nothing has been checked
+     */
+    public double getObservedFalsePositiveRate() {
+        long falsePositives = falsePositiveCount.get();
+
+        return (double) falsePositives / (falsePositives + rejectionCount.get());
+    }
+
+    public long getCheckCount() {
+        return checkCount.get();
+    }
+
+    public long getRejectionCount() {
+        return rejectionCount.get();
+    }
+
+    public long getFalsePositiveCount() {
+        return falsePositiveCount.get();
+    }
+
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    private long getIndex(long hash) {
+        return (hash & Long.MAX_VALUE) % bitCount;
+    }
+
+    private void setBit(long index) {
+        int word = (int) (index >>> 6);
+        long mask = 1L << index;
+
+        while (true) {
+            long current = bits.get(word);
+
+            if ((current & mask) != 0) {
+                return;
+            }
+
+            if (bits.compareAndSet(word, current, current | mask)) {
+                setBitCount.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private boolean getBit(long index) {
+        return (bits.get((int) (index >>> 6)) & (1L << index)) != 0;
+    }
+
+    /**
+     * A 64 bit hash of a field value.  hashCode() only has 32 bits which isn't enough for filters with millions of
+     * values.
+     */
+    private static long hash(Object value) {
+        if (value instanceof String) {
+            // FNV-1a over the characters
+            String string = (String) value;
+            long hash = 0xCBF29CE484222325L;
+
+            for (int loop = 0; loop < string.length(); loop++) {
+                hash ^= string.charAt(loop);
+                hash *= 0x100000001B3L;
+            }
+
+            return hash;
+        }
+
+        if (value instanceof Long) {
+            return (Long) value;
+        }
+
+        if (value instanceof Double) {
+            return Double.doubleToLongBits((Double) value);
+        }
+
+        if (value instanceof Descriptors.EnumValueDescriptor) {
+            return ((Descriptors.EnumValueDescriptor) value).getNumber();
+        }
+
+        // Integer, Float and Boolean hash codes already hold all of their bits
+        return value.hashCode();
+    }
+
+    /**
+     * The MurmurHash3 finalizer, spreads every input bit over the whole result
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB93FE1A85A53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+}
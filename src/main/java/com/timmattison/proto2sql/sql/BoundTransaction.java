@@ -0,0 +1,221 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.format.JsonFormat;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * A transaction that runs each operation by temporarily binding itself to the calling thread and then calling the
+ * normal ProtobufPersistence methods.  Whatever was bound to the thread before is put back afterwards.
+ *
+ * @param <T> what the persistence implementation binds to a thread for a transaction
+ */
+public abstract class BoundTransaction<T> implements Transaction {
+    private static final String COMMIT = "COMMIT";
+    private static final String ROLLBACK = "ROLLBACK";
+
+    private final ProtobufPersistence protobufPersistence;
+    private final T state;
+    private boolean finished = false;
+
+    protected BoundTransaction(ProtobufPersistence protobufPersistence, T state) {
+        this.protobufPersistence = protobufPersistence;
+        this.state = state;
+    }
+
+    protected T getState() {
+        return state;
+    }
+
+    /**
+     * Binds a transaction's state to the calling thread
+     *
+     * @param state the state to bind, NULL to unbind
+     * @return the state that was bound before, NULL if there was none
+     */
+    protected abstract T bind(T state);
+
+    /**
+     * Commits the transaction's state
+     *
+     * @param synchronous true if the commit must be durable before returning, false otherwise
+     * @throws SQLException
+     */
+    protected abstract void commitState(boolean synchronous) throws SQLException;
+
+    /**
+     * Rolls the transaction's state back
+     *
+     * @throws SQLException
+     */
+    protected abstract void rollbackState() throws SQLException;
+
+    @Override
+    public List<Message> select(String idName, String id, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+        T previous = bindForOperation();
+
+        try {
+            return protobufPersistence.select(idName, id, builder);
+        } finally {
+            bind(previous);
+        }
+    }
+
+    @Override
+    public MessageCursor selectStream(String idName, String id, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+        T previous = bindForOperation();
+
+        try {
+            return protobufPersistence.selectStream(idName, id, builder);
+        } finally {
+            bind(previous);
+        }
+    }
+
+    @Override
+    public List<Message> selectByPath(String path, String value, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+        T previous = bindForOperation();
+
+        try {
+            return protobufPersistence.selectByPath(path, value, builder);
+        } finally {
+            bind(previous);
+        }
+    }
+
+    @Override
+    public void insert(Message message, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        T previous = bindForOperation();
+
+        try {
+            protobufPersistence.insert(message, fieldDescriptor);
+        } finally {
+            bind(previous);
+        }
+    }
+
+    @Override
+    public void insertAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        T previous = bindForOperation();
+
+        try {
+            protobufPersistence.insertAll(messages, fieldDescriptor);
+        } finally {
+            bind(previous);
+        }
+    }
+
+    @Override
+    public void update(Message message, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        T previous = bindForOperation();
+
+        try {
+            protobufPersistence.update(message, fieldDescriptor);
+        } finally {
+            bind(previous);
+        }
+    }
+
+    @Override
+    public void update(Message message, Descriptors.FieldDescriptor fieldDescriptor, Object previousId) throws SQLException {
+        T previous = bindForOperation();
+
+        try {
+            protobufPersistence.update(message, fieldDescriptor, previousId);
+        } finally {
+            bind(previous);
+        }
+    }
+
+    @Override
+    public void updateAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        T previous = bindForOperation();
+
+        try {
+            protobufPersistence.updateAll(messages, fieldDescriptor);
+        } finally {
+            bind(previous);
+        }
+    }
+
+    @Override
+    public void delete(Message message, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        T previous = bindForOperation();
+
+        try {
+            protobufPersistence.delete(message, fieldDescriptor);
+        } finally {
+            bind(previous);
+        }
+    }
+
+    @Override
+    public void deleteAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        T previous = bindForOperation();
+
+        try {
+            protobufPersistence.deleteAll(messages, fieldDescriptor);
+        } finally {
+            bind(previous);
+        }
+    }
+
+    @Override
+    public void deleteAll(Descriptors.Descriptor descriptor) throws SQLException {
+        T previous = bindForOperation();
+
+        try {
+            protobufPersistence.deleteAll(descriptor);
+        } finally {
+            bind(previous);
+        }
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        throwExceptionIfFinished(COMMIT);
+        finished = true;
+
+        commitState(true);
+    }
+
+    @Override
+    public void commitAsync() throws SQLException {
+        throwExceptionIfFinished(COMMIT);
+        finished = true;
+
+        commitState(false);
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        throwExceptionIfFinished(ROLLBACK);
+        finished = true;
+
+        rollbackState();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        // Was the transaction committed or rolled back?
+        if (!finished) {
+            // No, roll it back
+            rollback();
+        }
+    }
+
+    private T bindForOperation() {
+        throwExceptionIfFinished("Operation");
+
+        return bind(state);
+    }
+
+    private void throwExceptionIfFinished(String errorType) {
+        if (finished) {
+            throw new UnsupportedOperationException(errorType + " attempted after the transaction was committed or rolled back");
+        }
+    }
+}
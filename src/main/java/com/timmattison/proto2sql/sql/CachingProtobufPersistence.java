@@ -0,0 +1,879 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.format.JsonFormat;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Caches the results of select() from another ProtobufPersistence, usually one backed by a database.  Results are
+ * cached by type, field and value, the least recently used results are evicted once there are too many and results
+ * expire after a fixed time.
+ *
+ * Writes made through this instance invalidate the results they could have changed.  Results selected by the field
+ * and value that was written are removed, results selected by any other field of the type are invalidated because
+ * the written message could have moved in or out of them.  Writes made to the underlying database some other way are
+ * only noticed when the results expire.
+ *
+ * Changes made in a transaction only invalidate results once the transaction commits.  Selects inside a transaction
+ * bypass the cache so they see the transaction's own changes.  selectStream() and selectByPath() are never cached.
+ *
+ * Selects that find nothing can be kept for a shorter time than the rest.  Types with lots of lookups of IDs that
+ * don't exist can also get a bloom filter with enableBloomFilter() so most of those lookups never reach the
+ * underlying persistence at all.
+ */
+public class CachingProtobufPersistence implements ProtobufPersistence {
+    private final ProtobufPersistence protobufPersistence;
+    private final int maximumSize;
+    private final long timeToLiveNanos;
+    private final long negativeTimeToLiveNanos;
+
+    /**
+     * Access ordered so the eldest entry is the least recently used.  The map and the generations are both guarded
+     * by the map's lock, the underlying persistence is never called while holding it.
+     */
+    private final LinkedHashMap<CacheKey, CacheEntry> cache;
+    private final Map<Descriptors.Descriptor, Generations> generations = new HashMap<Descriptors.Descriptor, Generations>();
+
+    /**
+     * The invalidations waiting for the current thread's transaction to commit
+     */
+    private final ThreadLocal<List<Invalidation>> transactionInvalidations = new ThreadLocal<List<Invalidation>>();
+
+    private final ConcurrentMap<Descriptors.Descriptor, TableBloomFilter> bloomFilters = new ConcurrentHashMap<Descriptors.Descriptor, TableBloomFilter>();
+
+    /**
+     * Read locked by writes from adding their IDs to the bloom filters until the write is visible, write locked by
+     * enableBloomFilter() to wait for the writes that only added their IDs to the filter it is replacing
+     */
+    private final ReadWriteLock bloomFilterLock = new ReentrantReadWriteLock();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private volatile PersistenceMetrics metrics = NoOpPersistenceMetrics.INSTANCE;
+
+    /**
+     * @param protobufPersistence the persistence to cache
+     * @param maximumSize         the most results to keep
+     * @param timeToLive          how long results are kept
+     * @param timeUnit            the unit of timeToLive
+     */
+    public CachingProtobufPersistence(ProtobufPersistence protobufPersistence, int maximumSize, long timeToLive, TimeUnit timeUnit) {
+        this(protobufPersistence, maximumSize, timeToLive, timeToLive, timeUnit);
+    }
+
+    /**
+     * @param protobufPersistence the persistence to cache
+     * @param maximumSize         the most results to keep
+     * @param timeToLive          how long results are kept
+     * @param negativeTimeToLive  how long results that found nothing are kept
+     * @param timeUnit            the unit of timeToLive and negativeTimeToLive
+     */
+    public CachingProtobufPersistence(ProtobufPersistence protobufPersistence, final int maximumSize, long timeToLive, long negativeTimeToLive, TimeUnit timeUnit) {
+        this.protobufPersistence = protobufPersistence;
+        this.maximumSize = maximumSize;
+        this.timeToLiveNanos = timeUnit.toNanos(timeToLive);
+        this.negativeTimeToLiveNanos = timeUnit.toNanos(negativeTimeToLive);
+
+        cache = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+                return size() > maximumSize;
+            }
+        };
+    }
+
+    @Override
+    public List<Message> select(String idName, String id, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+        // Is this thread in a transaction?
+        if (transactionInvalidations.get() != null) {
+            // Yes, it has to see its own changes
+            return protobufPersistence.select(idName, id, builder);
+        }
+
+        CacheKey cacheKey = getCacheKey(idName, id, builder.getDescriptorForType());
+
+        // Can this select be cached?
+        if (cacheKey == null) {
+            // No, let the underlying persistence deal with it
+            return protobufPersistence.select(idName, id, builder);
+        }
+
+        BloomFilter bloomFilter = getBloomFilter(cacheKey);
+
+        // Is the ID definitely missing?
+        if ((bloomFilter != null) && !bloomFilter.mightContain(cacheKey.value)) {
+            // Yes, don't bother looking
+            hitCount.incrementAndGet();
+            recordCacheAccess(cacheKey, true);
+
+            return new ArrayList<Message>();
+        }
+
+        long now = System.nanoTime();
+        long[] loadGenerations;
+
+        synchronized (cache) {
+            CacheEntry cacheEntry = cache.get(cacheKey);
+
+            if (cacheEntry != null) {
+                if (isValid(cacheKey, cacheEntry, now)) {
+                    hitCount.incrementAndGet();
+                    recordCacheAccess(cacheKey, true);
+
+                    return copy(cacheEntry.messages);
+                }
+
+                cache.remove(cacheKey);
+            }
+
+            loadGenerations = readGenerations(cacheKey);
+        }
+
+        missCount.incrementAndGet();
+        recordCacheAccess(cacheKey, false);
+
+        List<Message> messages = protobufPersistence.select(idName, id, builder);
+
+        // Only selects that reached the underlying persistence count, a cached empty result was already counted
+        recordBloomFilterResult(bloomFilter, messages);
+
+        synchronized (cache) {
+            // Only cache the result if nothing was written while it was being selected
+            if (isCurrent(cacheKey, loadGenerations)) {
+                List<Message> cachedMessages = (messages == null) ? null : Collections.unmodifiableList(new ArrayList<Message>(messages));
+                long expiresAt = now + (isEmpty(messages) ? negativeTimeToLiveNanos : timeToLiveNanos);
+
+                cache.put(cacheKey, new CacheEntry(cachedMessages, loadGenerations, expiresAt));
+            }
+        }
+
+        return messages;
+    }
+
+    /**
+     * Keeps a bloom filter of the IDs of a type so lookups of IDs that don't exist can be answered without the
+     * underlying persistence.  The filter is filled by scanning every message of the type once the writes already under
+     * way have finished, IDs written while the scan runs are added too and it isn't used until the scan finishes.  From
+     * then on IDs are added as they are inserted or updated, or as their transaction commits.
+     *
+     * IDs inserted without going through this instance, by another process for example, are never added so selects
+     * for them will find nothing.  Only use this when every insert goes through this instance or call it again
+     * periodically to rebuild the filter.
+     *
+     * @param builder           a builder for the type
+     * @param idName            the name of the ID field, NULL for the default
+     * @param expectedIds       how many IDs the filter should be sized for
+     * @param falsePositiveRate the share of missing IDs the filter can let through once it has that many IDs
+     * @throws SQLException
+     * @throws JsonFormat.ParseException
+     */
+    public void enableBloomFilter(Message.Builder builder, String idName, long expectedIds, double falsePositiveRate) throws SQLException, JsonFormat.ParseException {
+        Descriptors.Descriptor descriptor = builder.getDescriptorForType();
+        Descriptors.FieldDescriptor idField = AbstractProtobufPersistence.getFilterField(descriptor, idName);
+
+        // Replace any existing filter but keep using it until the new one is ready
+        TableBloomFilter tableBloomFilter = new TableBloomFilter(idField, new BloomFilter(expectedIds, falsePositiveRate), bloomFilters.get(descriptor));
+        bloomFilters.put(descriptor, tableBloomFilter);
+
+        // Writes that started before the new filter was registered may not be visible to the scan yet, wait for them
+        bloomFilterLock.writeLock().lock();
+        bloomFilterLock.writeLock().unlock();
+
+        // There is no way to select only the IDs so this reads every message
+        try (MessageCursor messageCursor = protobufPersistence.selectStream(null, null, builder)) {
+            while (messageCursor.hasNext()) {
+                tableBloomFilter.bloomFilter.put(messageCursor.next().getField(idField));
+            }
+        } catch (SQLException | RuntimeException e) {
+            // Go back to the filter this was replacing, it has had every insert since added to it too
+            restoreBloomFilter(descriptor, tableBloomFilter);
+            throw e;
+        }
+
+        tableBloomFilter.ready = true;
+        tableBloomFilter.previous = null;
+    }
+
+    private void restoreBloomFilter(Descriptors.Descriptor descriptor, TableBloomFilter tableBloomFilter) {
+        if (tableBloomFilter.previous == null) {
+            bloomFilters.remove(descriptor, tableBloomFilter);
+        } else {
+            bloomFilters.replace(descriptor, tableBloomFilter, tableBloomFilter.previous);
+        }
+    }
+
+    /**
+     * @param descriptor the type
+     * @return the type's bloom filter with its statistics, NULL if it doesn't have one
+     */
+    public BloomFilter getBloomFilter(Descriptors.Descriptor descriptor) {
+        TableBloomFilter tableBloomFilter = bloomFilters.get(descriptor);
+
+        return (tableBloomFilter == null) ? null : tableBloomFilter.bloomFilter;
+    }
+
+    /**
+     * @return the bloom filter to check before selecting, NULL if the select can't use one
+     */
+    private BloomFilter getBloomFilter(CacheKey cacheKey) {
+        TableBloomFilter tableBloomFilter = bloomFilters.get(cacheKey.descriptor);
+
+        // Is the filter still being filled?
+        if ((tableBloomFilter != null) && !tableBloomFilter.ready) {
+            // Yes, use the one it is replacing if there is one
+            tableBloomFilter = tableBloomFilter.previous;
+        }
+
+        if ((tableBloomFilter == null) || !tableBloomFilter.idField.equals(cacheKey.fieldDescriptor)) {
+            return null;
+        }
+
+        return tableBloomFilter.bloomFilter;
+    }
+
+    private void recordCacheAccess(CacheKey cacheKey, boolean hit) {
+        PersistenceMetrics metrics = this.metrics;
+
+        if (!metrics.isEnabled()) {
+            return;
+        }
+
+        // Use the same table name as the underlying persistence so cache accesses line up with its operations
+        String tableName;
+
+        if (protobufPersistence instanceof AbstractProtobufPersistence) {
+            tableName = ((AbstractProtobufPersistence) protobufPersistence).getTableName(cacheKey.descriptor);
+        } else {
+            tableName = cacheKey.descriptor.getName();
+        }
+
+        metrics.recordCacheAccess(tableName, PersistenceOperation.SELECT, hit);
+    }
+
+    private static void recordBloomFilterResult(BloomFilter bloomFilter, List<Message> messages) {
+        if ((bloomFilter != null) && isEmpty(messages)) {
+            bloomFilter.recordFalsePositive();
+        }
+    }
+
+    private static boolean isEmpty(List<Message> messages) {
+        return (messages == null) || messages.isEmpty();
+    }
+
+    /**
+     * Adds the IDs of messages that are about to be written to their type's bloom filter.  This has to happen before
+     * the write or a select right after it could be turned away.  The read lock has to be held from before this until
+     * the write is visible.
+     *
+     * @param invalidations the transaction's invalidations, NULL if there is no transaction
+     */
+    private void addToBloomFilter(List<Invalidation> invalidations, Iterable<? extends Message> messages) {
+        // Is this write in a transaction?
+        if (invalidations != null) {
+            // Yes, other threads can't see it until it commits so the IDs are added then
+            return;
+        }
+
+        for (Message message : messages) {
+            addToBloomFilter(message);
+        }
+    }
+
+    /**
+     * Adds the IDs a transaction inserted and updated to their types' bloom filters.  The read lock has to be held from
+     * before this until the commit finishes, a filter registered after the writes were made gets the IDs here instead
+     * of missing them in its scan.
+     *
+     * @param invalidations the transaction's invalidations, NULL if there is no transaction
+     */
+    private void addWrittenToBloomFilter(List<Invalidation> invalidations) {
+        if (invalidations == null) {
+            return;
+        }
+
+        for (Invalidation invalidation : invalidations) {
+            if (invalidation.written != null) {
+                addToBloomFilter(invalidation.written);
+            }
+        }
+    }
+
+    private void addToBloomFilter(Message message) {
+        TableBloomFilter tableBloomFilter = bloomFilters.get(message.getDescriptorForType());
+
+        while (tableBloomFilter != null) {
+            tableBloomFilter.bloomFilter.put(message.getField(tableBloomFilter.idField));
+            tableBloomFilter = tableBloomFilter.previous;
+        }
+    }
+
+    @Override
+    public MessageCursor selectStream(String idName, String id, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+        return protobufPersistence.selectStream(idName, id, builder);
+    }
+
+    @Override
+    public List<Message> selectByPath(String path, String value, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+        return protobufPersistence.selectByPath(path, value, builder);
+    }
+
+    @Override
+    public void insert(Message message, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        List<Invalidation> invalidations = transactionInvalidations.get();
+        bloomFilterLock.readLock().lock();
+
+        try {
+            addToBloomFilter(invalidations, Collections.singletonList(message));
+            protobufPersistence.insert(message, fieldDescriptor);
+        } finally {
+            bloomFilterLock.readLock().unlock();
+        }
+
+        invalidate(invalidations, message, fieldDescriptor, null, true);
+    }
+
+    @Override
+    public void insertAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        List<Invalidation> invalidations = transactionInvalidations.get();
+        bloomFilterLock.readLock().lock();
+
+        try {
+            addToBloomFilter(invalidations, messages);
+            protobufPersistence.insertAll(messages, fieldDescriptor);
+        } finally {
+            bloomFilterLock.readLock().unlock();
+        }
+
+        invalidateAll(invalidations, messages, fieldDescriptor, true);
+    }
+
+    @Override
+    public void update(Message message, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        List<Invalidation> invalidations = transactionInvalidations.get();
+        bloomFilterLock.readLock().lock();
+
+        try {
+            addToBloomFilter(invalidations, Collections.singletonList(message));
+            protobufPersistence.update(message, fieldDescriptor);
+        } finally {
+            bloomFilterLock.readLock().unlock();
+        }
+
+        invalidate(invalidations, message, fieldDescriptor, null, true);
+    }
+
+    @Override
+    public void update(Message message, Descriptors.FieldDescriptor fieldDescriptor, Object previousId) throws SQLException {
+        List<Invalidation> invalidations = transactionInvalidations.get();
+        bloomFilterLock.readLock().lock();
+
+        try {
+            addToBloomFilter(invalidations, Collections.singletonList(message));
+            protobufPersistence.update(message, fieldDescriptor, previousId);
+        } finally {
+            bloomFilterLock.readLock().unlock();
+        }
+
+        invalidate(invalidations, message, fieldDescriptor, previousId, true);
+    }
+
+    @Override
+    public void updateAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        List<Invalidation> invalidations = transactionInvalidations.get();
+        bloomFilterLock.readLock().lock();
+
+        try {
+            addToBloomFilter(invalidations, messages);
+            protobufPersistence.updateAll(messages, fieldDescriptor);
+        } finally {
+            bloomFilterLock.readLock().unlock();
+        }
+
+        invalidateAll(invalidations, messages, fieldDescriptor, true);
+    }
+
+    @Override
+    public void delete(Message message, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        protobufPersistence.delete(message, fieldDescriptor);
+        invalidate(transactionInvalidations.get(), message, fieldDescriptor, null, false);
+    }
+
+    @Override
+    public void deleteAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        protobufPersistence.deleteAll(messages, fieldDescriptor);
+        invalidateAll(transactionInvalidations.get(), messages, fieldDescriptor, false);
+    }
+
+    @Override
+    public void deleteAll(Descriptors.Descriptor descriptor) throws SQLException {
+        protobufPersistence.deleteAll(descriptor);
+        publish(transactionInvalidations.get(), new Invalidation(descriptor, null, null, null, null));
+    }
+
+    @Override
+    public Transaction begin() throws SQLException {
+        return new CachingTransaction(protobufPersistence.begin());
+    }
+
+    @Override
+    public void startTransaction() throws SQLException {
+        protobufPersistence.startTransaction();
+
+        if (transactionInvalidations.get() == null) {
+            transactionInvalidations.set(new ArrayList<Invalidation>());
+        }
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        try {
+            protobufPersistence.rollback();
+        } finally {
+            // Nothing changed so nothing needs to be invalidated, the transaction is over even if the rollback failed
+            transactionInvalidations.remove();
+        }
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        List<Invalidation> invalidations = transactionInvalidations.get();
+        bloomFilterLock.readLock().lock();
+
+        try {
+            addWrittenToBloomFilter(invalidations);
+            protobufPersistence.commit();
+        } finally {
+            bloomFilterLock.readLock().unlock();
+
+            // The underlying persistence ends the transaction even when the commit fails
+            transactionInvalidations.remove();
+        }
+
+        publishAll(invalidations);
+    }
+
+    @Override
+    public void resultSetToProtobuf(Message.Builder builder, ResultSet resultSet) throws SQLException, JsonFormat.ParseException {
+        protobufPersistence.resultSetToProtobuf(builder, resultSet);
+    }
+
+    /**
+     * Removes every cached result
+     */
+    public void invalidateAll() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Sets where cache hits and misses are recorded.  Selects answered by a bloom filter count as hits.  Give the
+     * underlying persistence the same metrics to see the selects that missed as well.
+     *
+     * @param metrics the metrics, NULL to stop recording
+     */
+    public void setMetrics(PersistenceMetrics metrics) {
+        if (metrics == null) {
+            metrics = NoOpPersistenceMetrics.INSTANCE;
+        }
+
+        this.metrics = metrics;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * @return the key for a select, NULL if it can't be cached
+     */
+    private static CacheKey getCacheKey(String idName, String id, Descriptors.Descriptor descriptor) {
+        try {
+            Descriptors.FieldDescriptor fieldDescriptor = AbstractProtobufPersistence.getFilterField(descriptor, idName);
+
+            // Compare typed values so "05" and "5" are the same number
+            Object value = (id == null) ? null : FieldValues.parse(fieldDescriptor, id);
+
+            return new CacheKey(descriptor, (id == null) ? null : fieldDescriptor, value);
+        } catch (RuntimeException e) {
+            // The field doesn't exist or can't be compared, the underlying persistence reports the problem
+            return null;
+        }
+    }
+
+    private static List<Message> copy(List<Message> messages) {
+        return (messages == null) ? null : new ArrayList<Message>(messages);
+    }
+
+    /**
+     * @param written true if the message was inserted or updated, false if it was deleted
+     */
+    private void invalidate(List<Invalidation> invalidations, Message message, Descriptors.FieldDescriptor fieldDescriptor, Object previousId, boolean written) {
+        publish(invalidations, new Invalidation(message.getDescriptorForType(), fieldDescriptor, message.getField(fieldDescriptor), previousId, written ? message : null));
+    }
+
+    private void invalidateAll(List<Invalidation> invalidations, Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor, boolean written) {
+        for (Message message : messages) {
+            invalidate(invalidations, message, fieldDescriptor, null, written);
+        }
+    }
+
+    /**
+     * Applies an invalidation now, or when the transaction commits if there is one
+     *
+     * @param invalidations the transaction's invalidations, NULL if there is no transaction
+     */
+    private void publish(List<Invalidation> invalidations, Invalidation invalidation) {
+        if (invalidations != null) {
+            invalidations.add(invalidation);
+            return;
+        }
+
+        synchronized (cache) {
+            Generations typeGenerations = getGenerations(invalidation.descriptor);
+            typeGenerations.written(invalidation.fieldDescriptor);
+
+            // Is this a write by a field?
+            if (invalidation.fieldDescriptor == null) {
+                // No, everything of this type was deleted, the generation change already invalidates it all
+                return;
+            }
+
+            // Results selected by this field and value are still current by generation so remove them directly
+            cache.remove(new CacheKey(invalidation.descriptor, invalidation.fieldDescriptor, invalidation.value));
+
+            if (invalidation.previousValue != null) {
+                cache.remove(new CacheKey(invalidation.descriptor, invalidation.fieldDescriptor, invalidation.previousValue));
+            }
+        }
+    }
+
+    private void publishAll(List<Invalidation> invalidations) {
+        if (invalidations == null) {
+            return;
+        }
+
+        for (Invalidation invalidation : invalidations) {
+            publish(null, invalidation);
+        }
+    }
+
+    private Generations getGenerations(Descriptors.Descriptor descriptor) {
+        Generations typeGenerations = generations.get(descriptor);
+
+        if (typeGenerations == null) {
+            typeGenerations = new Generations();
+            generations.put(descriptor, typeGenerations);
+        }
+
+        return typeGenerations;
+    }
+
+    private long[] readGenerations(CacheKey cacheKey) {
+        Generations typeGenerations = getGenerations(cacheKey.descriptor);
+
+        return new long[]{typeGenerations.generation, typeGenerations.getFieldGeneration(cacheKey.fieldDescriptor)};
+    }
+
+    /**
+     * @return true if nothing of the key's type has been written since the generations were read
+     */
+    private boolean isCurrent(CacheKey cacheKey, long[] loadGenerations) {
+        return getGenerations(cacheKey.descriptor).generation == loadGenerations[0];
+    }
+
+    /**
+     * @return true if the entry hasn't expired and nothing that could change it has been written since it was loaded
+     */
+    private boolean isValid(CacheKey cacheKey, CacheEntry cacheEntry, long now) {
+        if (now - cacheEntry.expiresAt > 0) {
+            return false;
+        }
+
+        long[] currentGenerations = readGenerations(cacheKey);
+
+        long writes = currentGenerations[0] - cacheEntry.generations[0];
+        long writesByField = currentGenerations[1] - cacheEntry.generations[1];
+
+        // Writes by the entry's own field removed it if they matched its value, any other write may have changed it
+        return writes == writesByField;
+    }
+
+    /**
+     * Counts the writes to one type.  The generation counts every write and each field's generation counts the writes
+     * made by that field, so a result selected by a field is still valid if every write since it was loaded was made
+     * by that field with a different value.
+     */
+    private static class Generations {
+        private long generation = 0;
+        private final Map<Descriptors.FieldDescriptor, Long> fieldGenerations = new HashMap<Descriptors.FieldDescriptor, Long>();
+
+        /**
+         * @param fieldDescriptor the field the write was made by, NULL if it wasn't made by a field
+         */
+        private void written(Descriptors.FieldDescriptor fieldDescriptor) {
+            generation++;
+
+            if (fieldDescriptor != null) {
+                fieldGenerations.put(fieldDescriptor, getFieldGeneration(fieldDescriptor) + 1);
+            }
+        }
+
+        /**
+         * @param fieldDescriptor the field, NULL for selects of everything which no write is made by
+         */
+        private long getFieldGeneration(Descriptors.FieldDescriptor fieldDescriptor) {
+            Long fieldGeneration = (fieldDescriptor == null) ? null : fieldGenerations.get(fieldDescriptor);
+
+            return (fieldGeneration == null) ? 0 : fieldGeneration;
+        }
+    }
+
+    /**
+     * A type's bloom filter and the field it holds the values of
+     */
+    private static class TableBloomFilter {
+        private final Descriptors.FieldDescriptor idField;
+        private final BloomFilter bloomFilter;
+
+        /**
+         * False until the filter has been filled with the IDs that were already stored
+         */
+        private volatile boolean ready = false;
+
+        /**
+         * The filter this one replaces, used until this one is ready
+         */
+        private volatile TableBloomFilter previous;
+
+        private TableBloomFilter(Descriptors.FieldDescriptor idField, BloomFilter bloomFilter, TableBloomFilter previous) {
+            this.idField = idField;
+            this.bloomFilter = bloomFilter;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * What a select was for
+     */
+    private static class CacheKey {
+        private final Descriptors.Descriptor descriptor;
+        private final Descriptors.FieldDescriptor fieldDescriptor;
+        private final Object value;
+
+        /**
+         * @param descriptor      the type selected
+         * @param fieldDescriptor the field selected by, NULL if everything was selected
+         * @param value           the value selected, NULL if everything was selected
+         */
+        private CacheKey(Descriptors.Descriptor descriptor, Descriptors.FieldDescriptor fieldDescriptor, Object value) {
+            this.descriptor = descriptor;
+            this.fieldDescriptor = fieldDescriptor;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof CacheKey)) {
+                return false;
+            }
+
+            CacheKey otherKey = (CacheKey) other;
+
+            return descriptor.equals(otherKey.descriptor)
+                    && ((fieldDescriptor == null) ? (otherKey.fieldDescriptor == null) : fieldDescriptor.equals(otherKey.fieldDescriptor))
+                    && ((value == null) ? (otherKey.value == null) : value.equals(otherKey.value));
+        }
+
+        @Override
+        public int hashCode() {
+            int hashCode = descriptor.hashCode();
+            hashCode = (31 * hashCode) + ((fieldDescriptor == null) ? 0 : fieldDescriptor.hashCode());
+            hashCode = (31 * hashCode) + ((value == null) ? 0 : value.hashCode());
+
+            return hashCode;
+        }
+    }
+
+    private static class CacheEntry {
+        private final List<Message> messages;
+        private final long[] generations;
+        private final long expiresAt;
+
+        private CacheEntry(List<Message> messages, long[] generations, long expiresAt) {
+            this.messages = messages;
+            this.generations = generations;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A write that invalidates cached results
+     */
+    private static class Invalidation {
+        private final Descriptors.Descriptor descriptor;
+        private final Descriptors.FieldDescriptor fieldDescriptor;
+        private final Object value;
+        private final Object previousValue;
+        private final Message written;
+
+        /**
+         * @param descriptor      the type written
+         * @param fieldDescriptor the field the write was made by, NULL if everything of the type was deleted
+         * @param value           the value of the field
+         * @param previousValue   the value the field had before, NULL if it didn't change
+         * @param written         the message inserted or updated, its ID goes in the bloom filter when a transaction
+         *                        commits, NULL if this was a delete
+         */
+        private Invalidation(Descriptors.Descriptor descriptor, Descriptors.FieldDescriptor fieldDescriptor, Object value, Object previousValue, Message written) {
+            this.descriptor = descriptor;
+            this.fieldDescriptor = fieldDescriptor;
+            this.value = value;
+            this.previousValue = previousValue;
+            this.written = written;
+        }
+    }
+
+    /**
+     * A transaction that publishes its invalidations when it commits.  Its selects go straight to the underlying
+     * transaction.
+     */
+    private class CachingTransaction implements Transaction {
+        private final Transaction transaction;
+        private final List<Invalidation> invalidations = new ArrayList<Invalidation>();
+
+        private CachingTransaction(Transaction transaction) {
+            this.transaction = transaction;
+        }
+
+        @Override
+        public List<Message> select(String idName, String id, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+            return transaction.select(idName, id, builder);
+        }
+
+        @Override
+        public MessageCursor selectStream(String idName, String id, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+            return transaction.selectStream(idName, id, builder);
+        }
+
+        @Override
+        public List<Message> selectByPath(String path, String value, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+            return transaction.selectByPath(path, value, builder);
+        }
+
+        @Override
+        public void insert(Message message, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+            transaction.insert(message, fieldDescriptor);
+            invalidate(invalidations, message, fieldDescriptor, null, true);
+        }
+
+        @Override
+        public void insertAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+            transaction.insertAll(messages, fieldDescriptor);
+            invalidateAll(invalidations, messages, fieldDescriptor, true);
+        }
+
+        @Override
+        public void update(Message message, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+            transaction.update(message, fieldDescriptor);
+            invalidate(invalidations, message, fieldDescriptor, null, true);
+        }
+
+        @Override
+        public void update(Message message, Descriptors.FieldDescriptor fieldDescriptor, Object previousId) throws SQLException {
+            transaction.update(message, fieldDescriptor, previousId);
+            invalidate(invalidations, message, fieldDescriptor, previousId, true);
+        }
+
+        @Override
+        public void updateAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+            transaction.updateAll(messages, fieldDescriptor);
+            invalidateAll(invalidations, messages, fieldDescriptor, true);
+        }
+
+        @Override
+        public void delete(Message message, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+            transaction.delete(message, fieldDescriptor);
+            invalidate(invalidations, message, fieldDescriptor, null, false);
+        }
+
+        @Override
+        public void deleteAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+            transaction.deleteAll(messages, fieldDescriptor);
+            invalidateAll(invalidations, messages, fieldDescriptor, false);
+        }
+
+        @Override
+        public void deleteAll(Descriptors.Descriptor descriptor) throws SQLException {
+            transaction.deleteAll(descriptor);
+            invalidations.add(new Invalidation(descriptor, null, null, null, null));
+        }
+
+        @Override
+        public void commit() throws SQLException {
+            bloomFilterLock.readLock().lock();
+
+            try {
+                addWrittenToBloomFilter(invalidations);
+                transaction.commit();
+            } finally {
+                bloomFilterLock.readLock().unlock();
+            }
+
+            publishAll(invalidations);
+        }
+
+        @Override
+        public void commitAsync() throws SQLException {
+            bloomFilterLock.readLock().lock();
+
+            try {
+                addWrittenToBloomFilter(invalidations);
+                transaction.commitAsync();
+            } finally {
+                bloomFilterLock.readLock().unlock();
+            }
+
+            publishAll(invalidations);
+        }
+
+        @Override
+        public void rollback() throws SQLException {
+            transaction.rollback();
+        }
+
+        @Override
+        public void close() throws SQLException {
+            transaction.close();
+        }
+    }
+}
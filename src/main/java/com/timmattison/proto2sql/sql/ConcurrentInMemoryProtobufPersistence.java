@@ -0,0 +1,288 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.format.JsonFormat;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An in-memory implementation for many threads.  InMemoryProtobufPersistence makes every operation wait for the
+ * same lock, this one keeps each type in its own ConcurrentHashMap keyed by the value of its ID field so reads never
+ * wait and writes only contend with writes to the same ID.
+ *
+ * Unlike InMemoryProtobufPersistence messages are not returned in the order they were inserted.  The ID field is the
+ * field passed to the first insert of each type, operations that use a different field scan the whole type.  Each
+ * message is replaced atomically but an update that changes a message's ID removes the old ID after the new one is
+ * added so a concurrent select over the whole type can briefly see both.  Transactions are not supported, changes
+ * are visible as soon as they are made and can't be rolled back.
+ */
+public class ConcurrentInMemoryProtobufPersistence extends AbstractProtobufPersistence implements ProtobufPersistence {
+    private static final String UNIQUE_VIOLATION = "23505";
+
+    private final ConcurrentMap<String, Table> tables = new ConcurrentHashMap<String, Table>();
+
+    public ConcurrentInMemoryProtobufPersistence() {
+        super();
+    }
+
+    public ConcurrentInMemoryProtobufPersistence(TableNamingStrategy tableNamingStrategy) {
+        super(tableNamingStrategy);
+    }
+
+    @Override
+    protected List<Message> innerSelect(String idName, String id, Message.Builder builder, String protobufTypeName) throws SQLException, JsonFormat.ParseException {
+        Table table = tables.get(protobufTypeName);
+
+        if (table == null) {
+            return null;
+        }
+
+        // Are they selecting by the ID field?
+        if ((id != null) && table.isIdField(idName)) {
+            // Yes, look it up directly
+            Message message = table.messages.get(FieldValues.parse(table.idField, id));
+
+            List<Message> messages = new ArrayList<Message>(1);
+
+            if (message != null) {
+                messages.add(message);
+            }
+
+            return messages;
+        }
+
+        // Convert the value once instead of for every message
+        Descriptors.FieldDescriptor fieldDescriptor = null;
+        Object value = null;
+
+        if (id != null) {
+            fieldDescriptor = getFilterField(builder.getDescriptorForType(), idName);
+            value = FieldValues.parse(fieldDescriptor, id);
+        }
+
+        List<Message> filteredMessages = new ArrayList<Message>();
+
+        for (Message message : table.messages.values()) {
+            if (passesFilter(message, fieldDescriptor, value)) {
+                filteredMessages.add(message);
+            }
+        }
+
+        return filteredMessages;
+    }
+
+    @Override
+    protected MessageCursor innerSelectStream(String idName, String id, Message.Builder builder, String protobufTypeName) throws SQLException, JsonFormat.ParseException {
+        // Everything is already in memory so just iterate over the selected messages
+        return new IteratorMessageCursor(innerSelect(idName, id, builder, protobufTypeName));
+    }
+
+    @Override
+    protected List<Message> innerSelectByPath(FieldPath fieldPath, Object value, Message.Builder builder, String protobufTypeName) throws SQLException, JsonFormat.ParseException {
+        Table table = tables.get(protobufTypeName);
+        List<Message> filteredMessages = new ArrayList<Message>();
+
+        if (table == null) {
+            return filteredMessages;
+        }
+
+        for (Message message : table.messages.values()) {
+            if (fieldPath.matches(message, value)) {
+                filteredMessages.add(message);
+            }
+        }
+
+        return filteredMessages;
+    }
+
+    @Override
+    protected void innerInsert(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName) throws SQLException {
+        Table table = getTable(protobufTypeName, fieldDescriptor);
+
+        table.put(message);
+    }
+
+    private Table getTable(String protobufTypeName, Descriptors.FieldDescriptor fieldDescriptor) {
+        Table table = tables.get(protobufTypeName);
+
+        if (table == null) {
+            // The first field used to store this type becomes its ID field, only the first thread's table is kept
+            table = new Table(fieldDescriptor);
+            Table existingTable = tables.putIfAbsent(protobufTypeName, table);
+
+            if (existingTable != null) {
+                table = existingTable;
+            }
+        }
+
+        return table;
+    }
+
+    @Override
+    protected void innerUpdate(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName) throws SQLException {
+        replace(message, fieldDescriptor, protobufTypeName, message.getField(fieldDescriptor));
+    }
+
+    @Override
+    protected void innerUpdate(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName, Object previousId) throws SQLException {
+        if (previousId == null) {
+            update(message, fieldDescriptor);
+            return;
+        }
+
+        replace(message, fieldDescriptor, protobufTypeName, previousId);
+    }
+
+    @Override
+    protected void innerDeleteAll(Descriptors.Descriptor descriptor, String protobufTypeName) throws SQLException {
+        Table table = tables.get(protobufTypeName);
+
+        if (table != null) {
+            table.messages.clear();
+        }
+    }
+
+    @Override
+    protected void innerDelete(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName) throws SQLException {
+        Table table = tables.get(protobufTypeName);
+
+        if (table == null) {
+            return;
+        }
+
+        Object id = message.getField(fieldDescriptor);
+
+        // Is this the ID field?
+        if (fieldDescriptor.equals(table.idField)) {
+            // Yes, remove it directly
+            table.messages.remove(id);
+            return;
+        }
+
+        for (Map.Entry<Object, Message> entry : table.messages.entrySet()) {
+            if (entry.getValue().getField(fieldDescriptor).equals(id)) {
+                // Only remove it if nobody replaced it in the meantime
+                table.messages.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Replaces the messages whose field has a certain value with a new message, moving it to a new key if its ID
+     * changed
+     */
+    private void replace(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName, Object id) throws SQLException {
+        Table table = tables.get(protobufTypeName);
+
+        if (table == null) {
+            return;
+        }
+
+        Object newKey = table.getKey(message);
+
+        // Is this the ID field?
+        if (fieldDescriptor.equals(table.idField)) {
+            // Yes, did the ID change?
+            if (id.equals(newKey)) {
+                // No, only replace it if it is still there
+                table.messages.replace(newKey, message);
+            } else if (table.messages.containsKey(id)) {
+                // Yes, add it under the new ID before removing the old one
+                table.put(message);
+                table.messages.remove(id);
+            }
+
+            return;
+        }
+
+        for (Map.Entry<Object, Message> entry : table.messages.entrySet()) {
+            if (!entry.getValue().getField(fieldDescriptor).equals(id)) {
+                continue;
+            }
+
+            if (entry.getKey().equals(newKey)) {
+                // Only replace it if nobody replaced it in the meantime
+                table.messages.replace(newKey, entry.getValue(), message);
+            } else {
+                table.put(message);
+                table.messages.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public Transaction begin() throws SQLException {
+        return new BoundTransaction<Void>(this, null) {
+            @Override
+            protected Void bind(Void state) {
+                // Do nothing
+                return null;
+            }
+
+            @Override
+            protected void commitState(boolean synchronous) {
+                // Do nothing
+            }
+
+            @Override
+            protected void rollbackState() {
+                // Do nothing
+            }
+        };
+    }
+
+    @Override
+    public void startTransaction() throws SQLException {
+        // Do nothing
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        // Do nothing
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        // Do nothing
+    }
+
+    @Override
+    public void resultSetToProtobuf(Message.Builder builder, ResultSet resultSet) throws SQLException, JsonFormat.ParseException {
+        throw new UnsupportedOperationException("This method is not relevant in the in-memory implementation");
+    }
+
+    /**
+     * All of the messages of one type keyed by their ID field
+     */
+    private static class Table {
+        private final Descriptors.FieldDescriptor idField;
+        private final ConcurrentMap<Object, Message> messages = new ConcurrentHashMap<Object, Message>();
+
+        private Table(Descriptors.FieldDescriptor idField) {
+            this.idField = idField;
+        }
+
+        private boolean isIdField(String idName) {
+            return idField.getName().equals(setDefaultIdFieldNameIfNecessary(idName));
+        }
+
+        private Object getKey(Message message) {
+            return message.getField(idField);
+        }
+
+        private void put(Message message) throws SQLException {
+            Object key = getKey(message);
+
+            if (messages.putIfAbsent(key, message) != null) {
+                throw new SQLException("Duplicate " + idField.getName() + " " + key + " in " + idField.getContainingType().getFullName(), UNIQUE_VIOLATION);
+            }
+        }
+    }
+}
@@ -12,6 +12,8 @@ import java.util.List;
 public class ConvertToPostgresql implements ConvertToSql {
     private static final String VARCHAR_255 = "varchar";
     private static final String TEXT = "text";
+    private static final String BYTEA = "bytea";
+    private static final String JSONB = "jsonb";
     private static final String BIGINT = "bigint";
     private static final String INTEGER = "integer";
     private static final String NOT_NULL = "not null";
@@ -21,6 +23,34 @@ public class ConvertToPostgresql implements ConvertToSql {
     private static final String PRIMARY_KEY = "primary key";
     private static final String ID = "id";
 
+    private final MessageEncoding messageEncoding;
+    private final boolean ginIndexes;
+
+    public ConvertToPostgresql() {
+        this(MessageEncoding.JSON);
+    }
+
+    /**
+     * @param messageEncoding how child messages are stored, this must match the encoding used by the persistence layer
+     */
+    public ConvertToPostgresql(MessageEncoding messageEncoding) {
+        this(messageEncoding, false);
+    }
+
+    /**
+     * @param messageEncoding how child messages are stored, this must match the encoding used by the persistence layer
+     * @param ginIndexes      true to create a GIN index on every child message column so selectByPath() doesn't have
+     *                        to scan the table, only used with MessageEncoding.JSONB
+     */
+    public ConvertToPostgresql(MessageEncoding messageEncoding, boolean ginIndexes) {
+        if (ginIndexes && (messageEncoding != MessageEncoding.JSONB)) {
+            throw new IllegalArgumentException("GIN indexes can only be created on " + MessageEncoding.JSONB + " columns");
+        }
+
+        this.messageEncoding = messageEncoding;
+        this.ginIndexes = ginIndexes;
+    }
+
     @Override
     public List<String> generateSql(Message message) {
         // Create an output array list and an array list for our enums
@@ -50,6 +80,16 @@ public class ConvertToPostgresql implements ConvertToSql {
             output.add(stringBuilder.toString());
         }
 
+        // Do we need to index the child messages?
+        if (ginIndexes) {
+            // Yes, the indexes go after the table they are on
+            for (Descriptors.FieldDescriptor field : descriptor.getFields()) {
+                if (MESSAGE.equals(field.getType().name())) {
+                    output.add(createGinIndex(protobufTypeName, field));
+                }
+            }
+        }
+
         return output;
     }
 
@@ -77,6 +117,12 @@ public class ConvertToPostgresql implements ConvertToSql {
             } else if (BOOL.equals(typeName)) {
                 // Bool type, convert it to a boolean
                 sqlType = BOOLEAN;
+            } else if (MESSAGE.equals(typeName) && (messageEncoding == MessageEncoding.BINARY)) {
+                // Store the protobuf wire format
+                sqlType = BYTEA;
+            } else if (MESSAGE.equals(typeName) && (messageEncoding == MessageEncoding.JSONB)) {
+                // Store it as JSON that can be indexed and queried
+                sqlType = JSONB;
             } else if (MESSAGE.equals(typeName)) {
                 // Treat this as text
                 sqlType = TEXT;
@@ -107,8 +153,8 @@ public class ConvertToPostgresql implements ConvertToSql {
             stringBuilder.append("\" ");
             stringBuilder.append(sqlType);
 
-            // Is this field repeated?
-            if (field.isRepeated()) {
+            // Is this field repeated?  Repeated jsonb messages are stored in a JSON array instead.
+            if (field.isRepeated() && !JSONB.equals(sqlType)) {
                 // Yes, make it a SQL array
                 stringBuilder.append(SQL_ARRAY);
             }
@@ -134,6 +180,21 @@ public class ConvertToPostgresql implements ConvertToSql {
         return stringBuilder;
     }
 
+    private static String createGinIndex(String protobufTypeName, Descriptors.FieldDescriptor field) {
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append("create index ");
+        stringBuilder.append(protobufTypeName);
+        stringBuilder.append("_");
+        stringBuilder.append(field.getName());
+        stringBuilder.append("_gin on ");
+        stringBuilder.append(protobufTypeName);
+        stringBuilder.append(" using gin (\"");
+        stringBuilder.append(field.getName());
+        stringBuilder.append("\");");
+
+        return stringBuilder.toString();
+    }
+
     private static String createEnum(Descriptors.FieldDescriptor field) {
         // Get the type name of the enum
         String enumTypeName = getEnumTypeName(field);
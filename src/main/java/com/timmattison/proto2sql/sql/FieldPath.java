@@ -0,0 +1,145 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A dotted path from a protobuf type down to a scalar field in one of its child messages, for example "child.name".
+ * Every field on the path except the last one must be a message.  A repeated field on the path matches if any of its
+ * elements match.
+ */
+public class FieldPath {
+    private static final Pattern DOT = Pattern.compile("\\.");
+
+    private final String path;
+    private final Descriptors.FieldDescriptor[] fields;
+
+    private FieldPath(String path, Descriptors.FieldDescriptor[] fields) {
+        this.path = path;
+        this.fields = fields;
+    }
+
+    /**
+     * Resolves a dotted path against a protobuf type
+     *
+     * @param descriptor the descriptor for the protobuf the path starts at
+     * @param path       the field names separated by dots
+     * @return
+     */
+    public static FieldPath parse(Descriptors.Descriptor descriptor, String path) {
+        String[] names = DOT.split(path);
+        Descriptors.FieldDescriptor[] fields = new Descriptors.FieldDescriptor[names.length];
+
+        Descriptors.Descriptor currentDescriptor = descriptor;
+
+        for (int loop = 0; loop < names.length; loop++) {
+            // Did the previous field lead to a message?
+            if (currentDescriptor == null) {
+                // No, the path goes past a scalar field
+                throw new IllegalArgumentException("Field " + names[loop - 1] + " in path " + path + " is not a message");
+            }
+
+            fields[loop] = currentDescriptor.findFieldByName(names[loop]);
+
+            if (fields[loop] == null) {
+                throw new IllegalArgumentException("Field " + names[loop] + " in path " + path + " does not exist in " + currentDescriptor.getFullName());
+            }
+
+            if (fields[loop].getType() == Descriptors.FieldDescriptor.Type.MESSAGE) {
+                currentDescriptor = fields[loop].getMessageType();
+            } else {
+                currentDescriptor = null;
+            }
+        }
+
+        // Does the path end on a message?
+        if (currentDescriptor != null) {
+            // Yes, only scalars can be compared
+            throw new IllegalArgumentException("Path " + path + " must end at a scalar field");
+        }
+
+        return new FieldPath(path, fields);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public List<Descriptors.FieldDescriptor> getFields() {
+        return Arrays.asList(fields);
+    }
+
+    /**
+     * Gets the field at the end of the path
+     *
+     * @return
+     */
+    public Descriptors.FieldDescriptor getLeaf() {
+        return fields[fields.length - 1];
+    }
+
+    /**
+     * Converts a string to the type of the field at the end of the path
+     *
+     * @param value the value as a string
+     * @return
+     */
+    public Object parseValue(String value) {
+        return FieldValues.parse(getLeaf(), value);
+    }
+
+    /**
+     * Checks if a message has the value at the end of this path
+     *
+     * @param message the message to check
+     * @param value   the value, already converted with parseValue()
+     * @return true if the value was found, false otherwise
+     */
+    public boolean matches(Message message, Object value) {
+        return matches(message, 0, value);
+    }
+
+    private boolean matches(Message message, int depth, Object value) {
+        Descriptors.FieldDescriptor field = fields[depth];
+        boolean leaf = (depth == (fields.length - 1));
+
+        // Is this field repeated?
+        if (field.isRepeated()) {
+            // Yes, any element can match
+            int count = message.getRepeatedFieldCount(field);
+
+            for (int loop = 0; loop < count; loop++) {
+                if (elementMatches(message.getRepeatedField(field, loop), leaf, depth, value)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        // Is a child message on the path missing?
+        if (!leaf && !message.hasField(field)) {
+            // Yes, nothing below it can match
+            return false;
+        }
+
+        return elementMatches(message.getField(field), leaf, depth, value);
+    }
+
+    private boolean elementMatches(Object element, boolean leaf, int depth, Object value) {
+        if (leaf) {
+            return value.equals(element);
+        }
+
+        return matches((Message) element, depth + 1, value);
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -0,0 +1,93 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+
+import java.util.Comparator;
+
+/**
+ * Converts the string values used in queries to the types protobuf uses for fields so they can be compared with
+ * equals()
+ */
+public class FieldValues {
+    /**
+     * Orders the values of a scalar field.  Enums are ordered by their numbers, everything else by its natural order.
+     */
+    public static final Comparator<Object> COMPARATOR = new Comparator<Object>() {
+        @Override
+        public int compare(Object first, Object second) {
+            return FieldValues.compare(first, second);
+        }
+    };
+
+    private FieldValues() {
+    }
+
+    /**
+     * Converts a string to the Java type protobuf uses for a field
+     *
+     * @param fieldDescriptor the field
+     * @param value           the value as a string
+     * @return
+     */
+    public static Object parse(Descriptors.FieldDescriptor fieldDescriptor, String value) {
+        switch (fieldDescriptor.getJavaType()) {
+            case INT:
+                return Integer.valueOf(value);
+            case LONG:
+                return Long.valueOf(value);
+            case FLOAT:
+                return Float.valueOf(value);
+            case DOUBLE:
+                return Double.valueOf(value);
+            case BOOLEAN:
+                return Boolean.valueOf(value);
+            case STRING:
+                return value;
+            case ENUM:
+                Descriptors.EnumValueDescriptor enumValue = fieldDescriptor.getEnumType().findValueByName(value);
+
+                if (enumValue == null) {
+                    throw new IllegalArgumentException(value + " is not a value of " + fieldDescriptor.getEnumType().getFullName());
+                }
+
+                return enumValue;
+            default:
+                throw new UnsupportedOperationException("Can't compare values of type " + fieldDescriptor.getJavaType());
+        }
+    }
+
+    /**
+     * Compares two values of the same scalar field
+     *
+     * @param first  the first value
+     * @param second the second value
+     * @return less than zero, zero or greater than zero like Comparable.compareTo()
+     */
+    @SuppressWarnings("unchecked")
+    public static int compare(Object first, Object second) {
+        if (first instanceof Descriptors.EnumValueDescriptor) {
+            int firstNumber = ((Descriptors.EnumValueDescriptor) first).getNumber();
+            int secondNumber = ((Descriptors.EnumValueDescriptor) second).getNumber();
+
+            return (firstNumber < secondNumber) ? -1 : ((firstNumber == secondNumber) ? 0 : 1);
+        }
+
+        if (!(first instanceof Comparable)) {
+            throw new UnsupportedOperationException("Can't order values of type " + first.getClass().getName());
+        }
+
+        return ((Comparable<Object>) first).compareTo(second);
+    }
+
+    /**
+     * Checks if a value is in a range
+     *
+     * @param value the value
+     * @param from  the lowest value in the range, NULL for no lower bound
+     * @param to    the value just past the end of the range, NULL for no upper bound
+     * @return
+     */
+    public static boolean inRange(Object value, Object from, Object to) {
+        return ((from == null) || (compare(value, from) >= 0)) && ((to == null) || (compare(value, to) < 0));
+    }
+}
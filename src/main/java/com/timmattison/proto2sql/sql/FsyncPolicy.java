@@ -0,0 +1,23 @@
+package com.timmattison.proto2sql.sql;
+
+/**
+ * When a write-ahead log forces its writes to disk
+ */
+public enum FsyncPolicy {
+    /**
+     * Every commit waits for fsync.  Commits that arrive while an fsync is running wait for the next one together so
+     * many concurrent writers share one fsync.
+     */
+    ALWAYS,
+
+    /**
+     * Commits wait until their records are written to the operating system and a background thread calls fsync
+     * periodically.  A crash of the process loses nothing, a crash of the machine can lose the last interval.
+     */
+    INTERVAL,
+
+    /**
+     * Commits wait until their records are written to the operating system and fsync is left to the operating system
+     */
+    NEVER
+}
@@ -0,0 +1,55 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Message;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the message objects in a LinkedHashMap.  NULL messages are allowed so transactions can record deletes.
+ */
+public class HeapMessageStore implements MessageStore {
+    private final Map<Object, Message> messages = new LinkedHashMap<Object, Message>();
+
+    @Override
+    public Message get(Object key) {
+        return messages.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return messages.containsKey(key);
+    }
+
+    @Override
+    public void put(Object key, Message message) {
+        messages.put(key, message);
+    }
+
+    @Override
+    public void remove(Object key) {
+        messages.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        messages.clear();
+    }
+
+    @Override
+    public int size() {
+        return messages.size();
+    }
+
+    @Override
+    public List<Object> keys() {
+        return new ArrayList<Object>(messages.keySet());
+    }
+
+    @Override
+    public List<Message> values() {
+        return new ArrayList<Message>(messages.values());
+    }
+}
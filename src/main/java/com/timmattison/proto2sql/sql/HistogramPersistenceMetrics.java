@@ -0,0 +1,193 @@
+package com.timmattison.proto2sql.sql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Formatter;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a latency histogram and counts of rows, bytes, errors and cache accesses for every table and operation in
+ * memory.  dump() prints them all as a table, e.g. from a debug endpoint or a shutdown hook.
+ */
+public class HistogramPersistenceMetrics implements PersistenceMetrics {
+    private static final PersistenceOperation[] OPERATIONS = PersistenceOperation.values();
+
+    /**
+     * The metrics for every operation on a table are created together, indexed by the operation's ordinal, so
+     * recording is one map lookup and never allocates after the first time a table is seen
+     */
+    private final ConcurrentMap<String, OperationMetrics[]> tables = new ConcurrentHashMap<String, OperationMetrics[]>();
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void recordOperation(String tableName, PersistenceOperation operation, long durationNanos, long rows, long bytes, boolean failed) {
+        OperationMetrics operationMetrics = getTable(tableName)[operation.ordinal()];
+
+        operationMetrics.latencies.record(durationNanos);
+
+        if (failed) {
+            operationMetrics.errorCount.incrementAndGet();
+            return;
+        }
+
+        operationMetrics.rowCount.addAndGet(rows);
+        operationMetrics.byteCount.addAndGet(bytes);
+    }
+
+    @Override
+    public void recordCacheAccess(String tableName, PersistenceOperation operation, boolean hit) {
+        OperationMetrics operationMetrics = getTable(tableName)[operation.ordinal()];
+
+        if (hit) {
+            operationMetrics.cacheHitCount.incrementAndGet();
+        } else {
+            operationMetrics.cacheMissCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets what has been recorded for an operation on a table
+     *
+     * @param tableName the name of the table
+     * @param operation the operation
+     * @return the metrics, NULL if nothing has been recorded for the table
+     */
+    public OperationMetrics getOperationMetrics(String tableName, PersistenceOperation operation) {
+        OperationMetrics[] operationMetrics = tables.get(tableName);
+
+        if (operationMetrics == null) {
+            return null;
+        }
+
+        return operationMetrics[operation.ordinal()];
+    }
+
+    /**
+     * Forgets everything that has been recorded
+     */
+    public void reset() {
+        tables.clear();
+    }
+
+    /**
+     * Prints one line for every table and operation that has been used.  Latencies are in microseconds.
+     *
+     * @return the table of metrics
+     */
+    public String dump() {
+        List<String> tableNames = new ArrayList<String>(tables.keySet());
+        Collections.sort(tableNames);
+
+        Formatter formatter = new Formatter();
+        String lineFormat = "%-30s %-14s %10s %8s %12s %14s %10s %10s %10s %10s %10s %10s %10s %10s%n";
+        formatter.format(lineFormat, "table", "operation", "count", "errors", "rows", "bytes", "mean", "p50", "p90", "p99", "p99.9", "max", "hits", "misses");
+
+        for (String tableName : tableNames) {
+            OperationMetrics[] operationMetrics = tables.get(tableName);
+
+            for (PersistenceOperation operation : OPERATIONS) {
+                OperationMetrics metrics = operationMetrics[operation.ordinal()];
+                LatencyHistogram latencies = metrics.getLatencies();
+
+                // Was this operation used?
+                if ((latencies.getTotalCount() == 0) && (metrics.getCacheHitCount() == 0) && (metrics.getCacheMissCount() == 0)) {
+                    // No, leave it out
+                    continue;
+                }
+
+                formatter.format(lineFormat, tableName, operation,
+                        latencies.getTotalCount(), metrics.getErrorCount(), metrics.getRowCount(), metrics.getByteCount(),
+                        toMicroseconds(latencies.getMean()),
+                        toMicroseconds(latencies.getValueAtPercentile(50)),
+                        toMicroseconds(latencies.getValueAtPercentile(90)),
+                        toMicroseconds(latencies.getValueAtPercentile(99)),
+                        toMicroseconds(latencies.getValueAtPercentile(99.9)),
+                        toMicroseconds(latencies.getMaxValue()),
+                        metrics.getCacheHitCount(), metrics.getCacheMissCount());
+            }
+        }
+
+        return formatter.toString();
+    }
+
+    private static String toMicroseconds(double nanoseconds) {
+        return String.format("%.1f", nanoseconds / 1000.0);
+    }
+
+    private OperationMetrics[] getTable(String tableName) {
+        OperationMetrics[] operationMetrics = tables.get(tableName);
+
+        // Have we seen this table before?
+        if (operationMetrics == null) {
+            // No, create its metrics and use whichever ones won if another thread got here first
+            operationMetrics = new OperationMetrics[OPERATIONS.length];
+
+            for (int loop = 0; loop < operationMetrics.length; loop++) {
+                operationMetrics[loop] = new OperationMetrics();
+            }
+
+            OperationMetrics[] existing = tables.putIfAbsent(tableName, operationMetrics);
+
+            if (existing != null) {
+                operationMetrics = existing;
+            }
+        }
+
+        return operationMetrics;
+    }
+
+    /**
+     * What has been recorded for one operation on one table
+     */
+    public static class OperationMetrics {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final AtomicLong errorCount = new AtomicLong();
+        private final AtomicLong rowCount = new AtomicLong();
+        private final AtomicLong byteCount = new AtomicLong();
+        private final AtomicLong cacheHitCount = new AtomicLong();
+        private final AtomicLong cacheMissCount = new AtomicLong();
+
+        private OperationMetrics() {
+        }
+
+        /**
+         * @return how long every operation took in nanoseconds, including the ones that failed
+         */
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+
+        public long getErrorCount() {
+            return errorCount.get();
+        }
+
+        /**
+         * @return the number of messages selected or written by the operations that succeeded
+         */
+        public long getRowCount() {
+            return rowCount.get();
+        }
+
+        /**
+         * @return the serialized size of the messages written by the operations that succeeded
+         */
+        public long getByteCount() {
+            return byteCount.get();
+        }
+
+        public long getCacheHitCount() {
+            return cacheHitCount.get();
+        }
+
+        public long getCacheMissCount() {
+            return cacheMissCount.get();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A secondary index on one scalar field of an in-memory type.  It maps each value of the field to the keys of the
+ * messages that have that value.  Indexes are not thread safe, the owner must synchronize access to them.
+ */
+public class InMemoryIndex {
+    private final Descriptors.FieldDescriptor fieldDescriptor;
+    private final IndexType indexType;
+    private final Map<Object, Set<Object>> keysByValue;
+
+    public InMemoryIndex(Descriptors.FieldDescriptor fieldDescriptor, IndexType indexType) {
+        // Can this field be indexed?
+        if (fieldDescriptor.isRepeated() || (fieldDescriptor.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) || (fieldDescriptor.getJavaType() == Descriptors.FieldDescriptor.JavaType.BYTE_STRING)) {
+            // No, only single scalar values can be indexed
+            throw new IllegalArgumentException("Field " + fieldDescriptor.getFullName() + " must be a scalar to be indexed");
+        }
+
+        this.fieldDescriptor = fieldDescriptor;
+        this.indexType = indexType;
+
+        if (indexType == IndexType.SORTED) {
+            keysByValue = new TreeMap<Object, Set<Object>>(FieldValues.COMPARATOR);
+        } else {
+            keysByValue = new HashMap<Object, Set<Object>>();
+        }
+    }
+
+    public Descriptors.FieldDescriptor getFieldDescriptor() {
+        return fieldDescriptor;
+    }
+
+    public IndexType getIndexType() {
+        return indexType;
+    }
+
+    /**
+     * Adds a message to the index
+     *
+     * @param key     the message's key
+     * @param message the message
+     */
+    public void add(Object key, Message message) {
+        Object value = message.getField(fieldDescriptor);
+        Set<Object> keys = keysByValue.get(value);
+
+        if (keys == null) {
+            keys = new LinkedHashSet<Object>();
+            keysByValue.put(value, keys);
+        }
+
+        keys.add(key);
+    }
+
+    /**
+     * Removes a message from the index
+     *
+     * @param key     the message's key
+     * @param message the message as it was when it was added
+     */
+    public void remove(Object key, Message message) {
+        Object value = message.getField(fieldDescriptor);
+        Set<Object> keys = keysByValue.get(value);
+
+        if (keys == null) {
+            return;
+        }
+
+        keys.remove(key);
+
+        // Don't keep empty sets for values that are no longer used
+        if (keys.isEmpty()) {
+            keysByValue.remove(value);
+        }
+    }
+
+    public void clear() {
+        keysByValue.clear();
+    }
+
+    /**
+     * Gets the keys of the messages with a value
+     *
+     * @param value the value
+     * @return a copy of the keys
+     */
+    public List<Object> get(Object value) {
+        Set<Object> keys = keysByValue.get(value);
+
+        if (keys == null) {
+            return new ArrayList<Object>();
+        }
+
+        return new ArrayList<Object>(keys);
+    }
+
+    /**
+     * Gets the keys of the messages with values in a range, ordered by value
+     *
+     * @param from the lowest value in the range, NULL for no lower bound
+     * @param to   the value just past the end of the range, NULL for no upper bound
+     * @return a copy of the keys
+     */
+    public List<Object> getRange(Object from, Object to) {
+        if (indexType != IndexType.SORTED) {
+            throw new UnsupportedOperationException("Only " + IndexType.SORTED + " indexes support ranges");
+        }
+
+        NavigableMap<Object, Set<Object>> sorted = (NavigableMap<Object, Set<Object>>) keysByValue;
+
+        if (from != null) {
+            sorted = sorted.tailMap(from, true);
+        }
+
+        if (to != null) {
+            sorted = sorted.headMap(to, false);
+        }
+
+        return flatten(sorted.values());
+    }
+
+    private static List<Object> flatten(Collection<Set<Object>> keySets) {
+        List<Object> keys = new ArrayList<Object>();
+
+        for (Set<Object> keySet : keySets) {
+            keys.addAll(keySet);
+        }
+
+        return keys;
+    }
+}
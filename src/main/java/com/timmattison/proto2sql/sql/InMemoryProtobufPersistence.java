@@ -4,112 +4,584 @@ import com.google.protobuf.Descriptors;
 import com.google.protobuf.Message;
 import com.googlecode.protobuf.format.JsonFormat;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Created by timmattison on 11/4/14.
+ *
+ * All operations are synchronized on the instance so it can be shared between threads.  That includes reads, so a
+ * select of a whole type or a selectByPath() scan holds the lock for as long as it takes and every writer waits for
+ * it.  Readers never wait for open transactions, but they do block writers and each other.  Use
+ * ConcurrentInMemoryProtobufPersistence when reads must not block writes.
+ *
+ * Each type is kept in a map from the value of its ID field to the message so selects, updates and deletes by ID
+ * don't have to scan every message.  The map keeps messages in the order they were inserted.  The ID field is the
+ * field passed to the first insert of each type.  Operations that use a different field still work but scan the
+ * whole type.
+ *
+ * Transactions behave like PostgreSQL's default read committed isolation.  Changes made in a transaction are kept
+ * in a private overlay that only that transaction sees until it commits, so rolling back just throws the overlay
+ * away.  Reads inside a transaction see the latest committed data plus the transaction's own changes.  Transactions
+ * don't lock rows but commits are checked against what was committed in the meantime the way PostgreSQL would
+ * resolve them: a commit that inserts an ID someone else inserted first fails with a unique violation and changes
+ * nothing, updates of messages that were deleted in the meantime are skipped and otherwise the last commit wins.
+ *
+ * Secondary indexes can be created on any other scalar field with createIndex().  Selects by an indexed field look
+ * the value up instead of scanning and sorted indexes also speed up selectRange().
+ *
+ * With OFF_HEAP storage the committed messages are kept serialized outside of the heap and decoded when they are
+ * selected, see OffHeapMessageStore.  Transactions still keep their changes on the heap until they commit.
+ *
+ * Once a WriteAheadLog is opened with openLog() every committed change is appended to the log before it is visible
+ * and waits for the log before returning, except for asynchronous commits.  The waiting happens outside of the
+ * instance's lock so concurrent writers can share an fsync.  That means a change is applied in memory, and other
+ * threads can see it, before it is durable.  If the log can't be written or synced the writer gets an SQLException
+ * but its change stays applied in memory along with any changes made after it.  The log stays failed from then on,
+ * so every later write fails too.  At that point the store holds changes that may not be durable and must be thrown
+ * away and reopened from the log.
+ *
+ * When the log grows past its checkpoint size the writer that crosses it runs checkpoint() while holding the
+ * instance's lock.  Every read and write waits while a snapshot of every type is written and synced, so pick a
+ * checkpoint size that keeps those pauses rare, or call checkpoint() yourself at a quiet time.
  */
 public class InMemoryProtobufPersistence extends AbstractProtobufPersistence implements ProtobufPersistence {
-    private final Map<String, List<Message>> protobufs = new HashMap<String, List<Message>>();
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final String ROLLBACK = "ROLLBACK";
+    private static final String COMMIT = "COMMIT";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final long NOT_LOGGED = -1;
+
+    /**
+     * The origin of a message a transaction inserted, as opposed to one it moved from another ID
+     */
+    private static final Object INSERTED = new Object();
+
+    /**
+     * The origin of a message a transaction put in place of a committed message it deleted first
+     */
+    private static final Object REPLACED = new Object();
+
+    private final Map<String, Table> tables = new HashMap<String, Table>();
+
+    /**
+     * The indexes to create on each type, kept so types that haven't been stored yet get them when they are
+     */
+    private final Map<String, Map<Descriptors.FieldDescriptor, IndexType>> indexTypes = new HashMap<String, Map<Descriptors.FieldDescriptor, IndexType>>();
+
+    /**
+     * Transactions belong to the thread that started them so one instance can be shared by many threads
+     */
+    private final ThreadLocal<TransactionState> currentTransaction = new ThreadLocal<TransactionState>();
+
+    private final InMemoryStorage storage;
+
+    /**
+     * The log committed changes are written to, NULL if they aren't logged
+     */
+    private volatile WriteAheadLog log;
+
+    public InMemoryProtobufPersistence() {
+        this(InMemoryStorage.HEAP);
+    }
+
+    public InMemoryProtobufPersistence(InMemoryStorage storage) {
+        super();
+        this.storage = storage;
+    }
+
+    public InMemoryProtobufPersistence(TableNamingStrategy tableNamingStrategy) {
+        this(tableNamingStrategy, InMemoryStorage.HEAP);
+    }
+
+    public InMemoryProtobufPersistence(TableNamingStrategy tableNamingStrategy, InMemoryStorage storage) {
+        super(tableNamingStrategy);
+        this.storage = storage;
+    }
 
     @Override
-    public List<Message> innerSelect(String idName, String id, Message.Builder builder, String protobufTypeName) throws SQLException, JsonFormat.ParseException {
-        List<Message> allMessages = protobufs.get(protobufTypeName);
+    public synchronized List<Message> innerSelect(String idName, String id, Message.Builder builder, String protobufTypeName) throws SQLException, JsonFormat.ParseException {
+        TableView table = getTableForRead(protobufTypeName);
 
-        if (allMessages == null) {
+        if (table == null) {
             return null;
         }
 
-        List<Message> filteredMessages = new ArrayList<Message>();
+        // Did they specify an ID?
+        if (id == null) {
+            // No, return everything
+            return table.values();
+        }
 
-        for (Message message : allMessages) {
-            if (passesFilter(message, idName, id)) {
-                filteredMessages.add(message);
+        Descriptors.FieldDescriptor fieldDescriptor = getFilterField(builder.getDescriptorForType(), idName);
+
+        return table.select(fieldDescriptor, FieldValues.parse(fieldDescriptor, id));
+    }
+
+    /**
+     * SELECTs protobufs with a field in a range of values, ordered by that field.  A SORTED index on the field makes
+     * this a lookup instead of a scan.
+     *
+     * @param fieldName the field to filter by
+     * @param from      the lowest value in the range, NULL for no lower bound
+     * @param to        the value just past the end of the range, NULL for no upper bound
+     * @param builder   a builder for the type of protobuf requested
+     * @return
+     */
+    public synchronized List<Message> selectRange(String fieldName, String from, String to, Message.Builder builder) {
+        TableView table = getTableForRead(getTableName(builder.getDescriptorForType()));
+
+        if (table == null) {
+            return new ArrayList<Message>();
+        }
+
+        Descriptors.FieldDescriptor fieldDescriptor = getFilterField(builder.getDescriptorForType(), fieldName);
+
+        Object fromValue = (from == null) ? null : FieldValues.parse(fieldDescriptor, from);
+        Object toValue = (to == null) ? null : FieldValues.parse(fieldDescriptor, to);
+
+        return table.selectRange(fieldDescriptor, fromValue, toValue);
+    }
+
+    /**
+     * Creates a secondary index on a field.  The index is built from the messages that are already stored and kept up
+     * to date as messages are inserted, updated and deleted.
+     *
+     * @param fieldDescriptor the field to index, it must be a single scalar value
+     * @param indexType       HASH for equality only, SORTED for equality and ranges
+     */
+    public synchronized void createIndex(Descriptors.FieldDescriptor fieldDescriptor, IndexType indexType) {
+        // Make sure the field can be indexed before remembering it
+        InMemoryIndex index = new InMemoryIndex(fieldDescriptor, indexType);
+
+        String protobufTypeName = getTableName(fieldDescriptor.getContainingType());
+
+        Map<Descriptors.FieldDescriptor, IndexType> typeIndexTypes = indexTypes.get(protobufTypeName);
+
+        if (typeIndexTypes == null) {
+            typeIndexTypes = new LinkedHashMap<Descriptors.FieldDescriptor, IndexType>();
+            indexTypes.put(protobufTypeName, typeIndexTypes);
+        }
+
+        typeIndexTypes.put(fieldDescriptor, indexType);
+
+        // Is this type already stored?
+        Table table = tables.get(protobufTypeName);
+
+        if (table != null) {
+            // Yes, index what is there now
+            table.addIndex(index);
+        }
+    }
+
+    /**
+     * Writes the committed messages of a type to a snapshot file so they can be reloaded with loadSnapshot() instead
+     * of being rebuilt from the database.  Changes in the current thread's transaction are not included.
+     *
+     * @param descriptor   the type to write
+     * @param snapshotFile the file, replaced once the snapshot is complete
+     * @throws IOException
+     */
+    public synchronized void saveSnapshot(Descriptors.Descriptor descriptor, File snapshotFile) throws IOException {
+        Table table = tables.get(getTableName(descriptor));
+
+        if (table == null) {
+            InMemorySnapshot.write(snapshotFile, descriptor, null, 0, Collections.<Message>emptyList().iterator());
+            return;
+        }
+
+        InMemorySnapshot.write(snapshotFile, descriptor, table.getIdField(), table.size(), table.iterator());
+    }
+
+    /**
+     * Replaces the committed messages of a type with the messages in a snapshot file.  The snapshot is checked before
+     * anything is replaced so a stale or corrupt snapshot leaves the current messages alone.
+     *
+     * @param builder      a builder for the type of protobuf in the snapshot
+     * @param snapshotFile the file
+     * @throws IOException if the file can't be read or is not a valid snapshot of the type
+     */
+    public synchronized void loadSnapshot(Message.Builder builder, File snapshotFile) throws IOException {
+        String protobufTypeName = getTableName(builder.getDescriptorForType());
+
+        try (InMemorySnapshot snapshot = InMemorySnapshot.open(snapshotFile, builder)) {
+            Table table = null;
+
+            // Was anything of this type stored when the snapshot was written?
+            if (snapshot.getIdField() != null) {
+                // Yes, load it
+                table = newTable(protobufTypeName, snapshot.getIdField());
+
+                while (snapshot.hasNext()) {
+                    Message message = snapshot.next();
+                    table.put(table.getKey(message), message);
+                }
+            }
+
+            if (log != null) {
+                logReplacement(protobufTypeName, table);
+            }
+
+            if (table == null) {
+                tables.remove(protobufTypeName);
+            } else {
+                tables.put(protobufTypeName, table);
+            }
+        }
+    }
+
+    /**
+     * Logs that a type's messages were replaced, by logging a delete of everything followed by the new messages
+     */
+    private void logReplacement(String protobufTypeName, Table table) throws IOException {
+        log.appendDeleteAll(protobufTypeName);
+
+        if (table != null) {
+            Iterator<Message> messages = table.iterator();
+
+            while (messages.hasNext()) {
+                log.appendPut(protobufTypeName, table.getIdField(), messages.next());
             }
         }
 
-        return filteredMessages;
+        log.awaitDurable(log.appendCommit());
     }
 
-    private boolean passesFilter(Message message, String idName, String id) {
-        // Did they specify an ID?
-        if (id != null) {
-            // Yes, figure out the ID field if necessary
-            idName = setDefaultIdFieldNameIfNecessary(idName);
-        } else {
-            // No, no ID specified.  No filtering necessary.
-            return true;
+    /**
+     * Makes the committed messages durable with a write-ahead log.  The snapshots in the log's directory are loaded,
+     * the log is replayed over them and from then on every committed change is logged.  Close the log to stop.
+     *
+     * @param log      the log, it must not have been replayed already
+     * @param builders builders for every type that has been stored in the log
+     * @throws IOException if the snapshots or the log can't be read or hold a type there is no builder for
+     */
+    public synchronized void openLog(WriteAheadLog log, Message.Builder... builders) throws IOException {
+        if (this.log != null) {
+            throw new IllegalStateException("A write-ahead log is already open");
         }
 
-        String idFieldValue = (String) message.getField(message.getDescriptorForType().findFieldByName(idName));
+        final Map<String, Message> prototypes = new HashMap<String, Message>();
 
-        // Return whether or not they match
-        return id.equals(idFieldValue);
+        for (Message.Builder builder : builders) {
+            prototypes.put(getTableName(builder.getDescriptorForType()), builder.getDefaultInstanceForType());
+        }
+
+        // The next checkpoint would delete snapshots of types we can't load
+        for (String protobufTypeName : getSnapshotNames(log)) {
+            if (!prototypes.containsKey(protobufTypeName)) {
+                throw new IOException("No builder was given for " + protobufTypeName + " which has a snapshot in " + log.getDirectory());
+            }
+        }
+
+        for (Message.Builder builder : builders) {
+            File snapshotFile = getSnapshotFile(log, getTableName(builder.getDescriptorForType()));
+
+            if (snapshotFile.exists()) {
+                loadSnapshot(builder, snapshotFile);
+            }
+        }
+
+        log.replay(new WriteAheadLog.ReplayHandler() {
+            @Override
+            public void replay(WriteAheadLog.Record record) throws IOException {
+                applyLogRecord(record, prototypes);
+            }
+        });
+
+        this.log = log;
     }
 
-    @Override
-    protected void innerInsert(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName) throws SQLException {
-        List<Message> list = getList(protobufTypeName);
+    /**
+     * Writes a snapshot of every type into the write-ahead log's directory and empties the log.  This happens
+     * automatically when the log grows past its checkpoint size.  The instance's lock is held the whole time so all
+     * reads and writes stall until every snapshot has been written and synced.
+     *
+     * @throws IOException
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (log == null) {
+            throw new IllegalStateException("There is no write-ahead log to checkpoint");
+        }
+
+        for (Map.Entry<String, Table> entry : tables.entrySet()) {
+            Table table = entry.getValue();
+
+            InMemorySnapshot.write(getSnapshotFile(log, entry.getKey()), table.getIdField().getContainingType(), table.getIdField(), table.size(), table.iterator());
+        }
+
+        // Types that have been removed since the last checkpoint must not come back
+        for (String protobufTypeName : getSnapshotNames(log)) {
+            if (!tables.containsKey(protobufTypeName)) {
+                Files.delete(getSnapshotFile(log, protobufTypeName).toPath());
+            }
+        }
+
+        log.truncate();
+    }
+
+    private void applyLogRecord(WriteAheadLog.Record record, Map<String, Message> prototypes) throws IOException {
+        String protobufTypeName = record.getProtobufTypeName();
+        Message prototype = prototypes.get(protobufTypeName);
+
+        if (prototype == null) {
+            throw new IOException("No builder was given for " + protobufTypeName + " which is in the write-ahead log");
+        }
+
+        Table table = tables.get(protobufTypeName);
+
+        switch (record.getOperation()) {
+            case PUT:
+                Message message = prototype.getParserForType().parseFrom(record.getMessage());
+
+                if (table == null) {
+                    table = createTable(protobufTypeName, prototype.getDescriptorForType().findFieldByNumber(record.getIdFieldNumber()));
+                }
+
+                table.put(table.getKey(message), message);
+                break;
+            case DELETE:
+                if (table != null) {
+                    table.remove(table.getKey(prototype.getParserForType().parseFrom(record.getMessage())));
+                }
+                break;
+            case DELETE_ALL:
+                if (table != null) {
+                    table.clear();
+                }
+                break;
+            default:
+                throw new IOException("Unexpected " + record.getOperation() + " record in the write-ahead log");
+        }
+    }
+
+    private static File getSnapshotFile(WriteAheadLog log, String protobufTypeName) {
+        return new File(log.getDirectory(), protobufTypeName + SNAPSHOT_SUFFIX);
+    }
+
+    private static List<String> getSnapshotNames(WriteAheadLog log) {
+        List<String> protobufTypeNames = new ArrayList<String>();
+        String[] fileNames = log.getDirectory().list();
+
+        if (fileNames != null) {
+            for (String fileName : fileNames) {
+                if (fileName.endsWith(SNAPSHOT_SUFFIX)) {
+                    protobufTypeNames.add(fileName.substring(0, fileName.length() - SNAPSHOT_SUFFIX.length()));
+                }
+            }
+        }
+
+        return protobufTypeNames;
+    }
+
+    /**
+     * Ends the log records of an operation made outside of a transaction, changes made in a transaction are logged
+     * when it commits.  Call this while holding the instance's lock so records are logged in the order the changes
+     * were made.
+     *
+     * @return the position to wait for with awaitDurable()
+     */
+    private long logCommit() throws SQLException {
+        if (currentTransaction.get() != null) {
+            return NOT_LOGGED;
+        }
+
+        return appendCommit();
+    }
+
+    private long appendCommit() throws SQLException {
+        if (log == null) {
+            return NOT_LOGGED;
+        }
+
+        long position = log.appendCommit();
+
+        if (log.isCheckpointDue()) {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                throw new SQLException("The write-ahead log could not be checkpointed", e);
+            }
+        }
 
-        list.add(message);
+        return position;
     }
 
-    private List<Message> getList(String protobufTypeName) {
-        if (!protobufs.containsKey(protobufTypeName)) {
-            protobufs.put(protobufTypeName, new ArrayList<Message>());
+    /**
+     * Waits for logged changes to be durable.  Call this after releasing the instance's lock.
+     */
+    private void awaitDurable(long position) throws SQLException {
+        if (position == NOT_LOGGED) {
+            return;
         }
 
-        return protobufs.get(protobufTypeName);
+        try {
+            log.awaitDurable(position);
+        } catch (IOException e) {
+            throw new SQLException("The change could not be written to the write-ahead log", e);
+        }
     }
 
-    private void setList(String protobufTypeName, List<Message> newList) {
-        protobufs.put(protobufTypeName, newList);
+    @Override
+    protected MessageCursor innerSelectStream(String idName, String id, Message.Builder builder, String protobufTypeName) throws SQLException, JsonFormat.ParseException {
+        // Everything is already in memory so just iterate over the selected messages
+        return new IteratorMessageCursor(innerSelect(idName, id, builder, protobufTypeName));
     }
 
     @Override
-    protected void innerUpdate(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName) throws SQLException {
-        List<Message> existingList = getList(protobufTypeName);
+    protected synchronized List<Message> innerSelectByPath(FieldPath fieldPath, Object value, Message.Builder builder, String protobufTypeName) throws SQLException, JsonFormat.ParseException {
+        TableView table = getTableForRead(protobufTypeName);
+        List<Message> filteredMessages = new ArrayList<Message>();
 
-        Object id = message.getField(fieldDescriptor);
+        if (table == null) {
+            return filteredMessages;
+        }
 
-        List<Message> newList = new ArrayList<Message>();
+        for (Message message : table.values()) {
+            if (fieldPath.matches(message, value)) {
+                filteredMessages.add(message);
+            }
+        }
 
-        for (Message existingMessage : existingList) {
-            if (existingMessage.getField(fieldDescriptor).equals(id)) {
-                newList.add(message);
-            } else {
-                newList.add(existingMessage);
+        return filteredMessages;
+    }
+
+    @Override
+    protected void innerInsert(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName) throws SQLException {
+        long position;
+
+        synchronized (this) {
+            getTableForWrite(protobufTypeName, fieldDescriptor).insert(message);
+            position = logCommit();
+        }
+
+        awaitDurable(position);
+    }
+
+    /**
+     * Gets a type's messages as the current thread should see them
+     *
+     * @param protobufTypeName the type
+     * @return NULL if nothing of this type has ever been stored
+     */
+    private TableView getTableForRead(String protobufTypeName) {
+        Table committed = tables.get(protobufTypeName);
+        TransactionState transaction = currentTransaction.get();
+
+        // Are we inside a transaction that changed this type?
+        if ((transaction == null) || !transaction.changes.containsKey(protobufTypeName)) {
+            // No, only the committed messages are visible
+            return committed;
+        }
+
+        return new TransactionView(committed, transaction.changes.get(protobufTypeName));
+    }
+
+    /**
+     * Gets a type's messages so they can be changed.  Outside of a transaction the changes are made directly (and
+     * logged), inside a transaction they go to the transaction's overlay.
+     *
+     * @param protobufTypeName the type
+     * @param fieldDescriptor  the ID field to use if nothing of this type has been stored yet
+     * @return
+     */
+    private TableView getTableForWrite(String protobufTypeName, Descriptors.FieldDescriptor fieldDescriptor) {
+        Table committed = tables.get(protobufTypeName);
+        TransactionState transaction = currentTransaction.get();
+
+        // Are we inside a transaction?
+        if (transaction == null) {
+            // No, change the committed messages
+            if (committed == null) {
+                // The first field used to store this type becomes its ID field
+                committed = createTable(protobufTypeName, fieldDescriptor);
             }
+
+            return getLoggedTable(protobufTypeName, committed);
+        }
+
+        Table changes = transaction.changes.get(protobufTypeName);
+
+        if (changes == null) {
+            changes = new Table((committed != null) ? committed.getIdField() : fieldDescriptor, new HeapMessageStore());
+            transaction.changes.put(protobufTypeName, changes);
+        }
+
+        return new TransactionView(committed, changes);
+    }
+
+    /**
+     * Wraps the committed messages so changes to them are logged
+     */
+    private TableView getLoggedTable(String protobufTypeName, Table committed) {
+        if (log == null) {
+            return committed;
         }
 
-        setList(protobufTypeName, newList);
+        return new LoggedTable(protobufTypeName, committed, log);
+    }
+
+    @Override
+    protected void innerUpdate(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName) throws SQLException {
+        long position;
+
+        synchronized (this) {
+            replace(message, fieldDescriptor, protobufTypeName, message.getField(fieldDescriptor));
+            position = logCommit();
+        }
+
+        awaitDurable(position);
     }
 
     @Override
     public void innerDeleteAll(Descriptors.Descriptor descriptor, String protobufTypeName) throws SQLException {
-        protobufs.put(protobufTypeName, new ArrayList<Message>());
+        long position;
+
+        synchronized (this) {
+            TableView table = getTableForRead(protobufTypeName);
+
+            if (table == null) {
+                return;
+            }
+
+            getTableForWrite(protobufTypeName, table.getIdField()).clear();
+            position = logCommit();
+        }
+
+        awaitDurable(position);
     }
 
     @Override
-    protected void innerDelete(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName) {
-        List<Message> existingList = getList(protobufTypeName);
+    protected void innerDelete(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName) throws SQLException {
+        long position;
+
+        synchronized (this) {
+            if (getTableForRead(protobufTypeName) == null) {
+                return;
+            }
 
-        Object id = message.getField(fieldDescriptor);
+            TableView table = getTableForWrite(protobufTypeName, fieldDescriptor);
 
-        List<Message> newList = new ArrayList<Message>();
+            Object id = message.getField(fieldDescriptor);
 
-        for (Message existingMessage : existingList) {
-            if (!existingMessage.getField(fieldDescriptor).equals(id)) {
-                newList.add(existingMessage);
+            for (Object key : table.findKeys(fieldDescriptor, id)) {
+                table.remove(key);
             }
+
+            position = logCommit();
         }
 
-        setList(protobufTypeName, newList);
+        awaitDurable(position);
     }
 
     @Override
@@ -119,38 +591,816 @@ public class InMemoryProtobufPersistence extends AbstractProtobufPersistence imp
             return;
         }
 
-        List<Message> existingList = getList(protobufTypeName);
+        long position;
+
+        synchronized (this) {
+            replace(message, fieldDescriptor, protobufTypeName, previousId);
+            position = logCommit();
+        }
+
+        awaitDurable(position);
+    }
+
+    /**
+     * Replaces the messages whose ID field has a certain value with a new message, moving it to a new key if its ID
+     * changed
+     */
+    private void replace(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName, Object id) throws SQLException {
+        if (getTableForRead(protobufTypeName) == null) {
+            return;
+        }
+
+        TableView table = getTableForWrite(protobufTypeName, fieldDescriptor);
+
+        Object newKey = table.getKey(message);
+        List<Object> keys = table.findKeys(fieldDescriptor, id);
 
-        List<Message> newList = new ArrayList<Message>();
+        // Would more than one message end up with the new ID?
+        if (keys.size() > 1) {
+            // Yes, fail before changing any of them
+            throw new SQLException("Duplicate " + table.getIdField().getName() + " " + newKey + " in " + table.getIdField().getContainingType().getFullName(), UNIQUE_VIOLATION);
+        }
 
-        for (Message existingMessage : existingList) {
-            if (!existingMessage.getField(fieldDescriptor).equals(previousId)) {
-                newList.add(existingMessage);
+        for (Object key : keys) {
+            // Did the ID change?
+            if (key.equals(newKey)) {
+                // No, replace it in place
+                table.put(key, message);
             } else {
-                newList.add(message);
+                // Yes, move it
+                table.move(key, message);
+            }
+        }
+    }
+
+    private Table createTable(String protobufTypeName, Descriptors.FieldDescriptor idField) {
+        Table table = newTable(protobufTypeName, idField);
+
+        tables.put(protobufTypeName, table);
+
+        return table;
+    }
+
+    /**
+     * Creates an empty table with the type's indexes without storing it
+     */
+    private Table newTable(String protobufTypeName, Descriptors.FieldDescriptor idField) {
+        MessageStore messages = (storage == InMemoryStorage.OFF_HEAP) ? new OffHeapMessageStore() : new HeapMessageStore();
+        Table table = new Table(idField, messages);
+
+        Map<Descriptors.FieldDescriptor, IndexType> typeIndexTypes = indexTypes.get(protobufTypeName);
+
+        if (typeIndexTypes != null) {
+            for (Map.Entry<Descriptors.FieldDescriptor, IndexType> entry : typeIndexTypes.entrySet()) {
+                table.addIndex(new InMemoryIndex(entry.getKey(), entry.getValue()));
+            }
+        }
+
+        return table;
+    }
+
+    /**
+     * @return the position to wait for with awaitDurable()
+     */
+    private synchronized long applyChanges(TransactionState transaction) throws SQLException {
+        // Check every type before changing any of them so a commit that fails changes nothing
+        for (Map.Entry<String, Table> entry : transaction.changes.entrySet()) {
+            Table committed = tables.get(entry.getKey());
+
+            if (committed != null) {
+                committed.checkConflicts(entry.getValue());
+            }
+        }
+
+        for (Map.Entry<String, Table> entry : transaction.changes.entrySet()) {
+            Table committed = tables.get(entry.getKey());
+
+            if (committed == null) {
+                committed = createTable(entry.getKey(), entry.getValue().getIdField());
             }
+
+            getLoggedTable(entry.getKey(), committed).apply(entry.getValue());
         }
 
-        setList(protobufTypeName, newList);
+        return appendCommit();
+    }
+
+    @Override
+    public Transaction begin() throws SQLException {
+        return new InMemoryTransaction(new TransactionState());
     }
 
     @Override
     public void startTransaction() throws SQLException {
-        // Do nothing
+        // Is there already a transaction?
+        if (currentTransaction.get() == null) {
+            // No, start collecting changes
+            currentTransaction.set(new TransactionState());
+        }
     }
 
     @Override
     public void rollback() throws SQLException {
-        // Do nothing
+        throwExceptionIfTransactionNotStarted(ROLLBACK);
+
+        // Just forget the changes
+        currentTransaction.remove();
     }
 
     @Override
     public void commit() throws SQLException {
-        // Do nothing
+        throwExceptionIfTransactionNotStarted(COMMIT);
+
+        TransactionState transaction = currentTransaction.get();
+        currentTransaction.remove();
+
+        awaitDurable(applyChanges(transaction));
+    }
+
+    private void throwExceptionIfTransactionNotStarted(String errorType) {
+        if (currentTransaction.get() == null) {
+            throw new UnsupportedOperationException(errorType + " attempted without a transaction");
+        }
     }
 
     @Override
     public void resultSetToProtobuf(Message.Builder builder, ResultSet resultSet) throws SQLException, JsonFormat.ParseException {
         throw new UnsupportedOperationException("This method is not relevant in the in-memory implementation");
     }
-}
\ No newline at end of file
+
+    /**
+     * The messages of one type keyed by their ID field
+     */
+    private abstract static class TableView {
+        public abstract Descriptors.FieldDescriptor getIdField();
+
+        /**
+         * @return the message with the key, NULL if there isn't one
+         */
+        public abstract Message get(Object key);
+
+        /**
+         * Stores a message without checking if its key is already used
+         */
+        public abstract void put(Object key, Message message);
+
+        public abstract void remove(Object key);
+
+        public abstract boolean containsKey(Object key);
+
+        public abstract void clear();
+
+        /**
+         * @return a copy of all of the messages in insertion order so the table can be changed while they are used
+         */
+        public abstract List<Message> values();
+
+        /**
+         * Finds the messages with a value in a field.  This scans every message, implementations override it to use
+         * their indexes.
+         */
+        public List<Message> select(Descriptors.FieldDescriptor fieldDescriptor, Object value) {
+            // Is this the ID field?
+            if (fieldDescriptor.equals(getIdField())) {
+                // Yes, look it up directly
+                Message message = get(value);
+
+                List<Message> messages = new ArrayList<Message>(1);
+
+                if (message != null) {
+                    messages.add(message);
+                }
+
+                return messages;
+            }
+
+            List<Message> messages = new ArrayList<Message>();
+
+            for (Message message : values()) {
+                if (passesFilter(message, fieldDescriptor, value)) {
+                    messages.add(message);
+                }
+            }
+
+            return messages;
+        }
+
+        /**
+         * Finds the messages with a field in a range ordered by that field.  This scans every message, implementations
+         * override it to use their indexes.
+         */
+        public List<Message> selectRange(Descriptors.FieldDescriptor fieldDescriptor, Object from, Object to) {
+            List<Message> messages = new ArrayList<Message>();
+
+            for (Message message : values()) {
+                if (FieldValues.inRange(message.getField(fieldDescriptor), from, to)) {
+                    messages.add(message);
+                }
+            }
+
+            sortByField(messages, fieldDescriptor);
+
+            return messages;
+        }
+
+        public Object getKey(Message message) {
+            return message.getField(getIdField());
+        }
+
+        /**
+         * Checks that a transaction's changes can be applied to what is committed now
+         *
+         * @param changes the transaction's changes to this type
+         * @throws SQLException if the transaction inserted an ID that was committed by someone else in the meantime
+         */
+        public void checkConflicts(Table changes) throws SQLException {
+            // Did the transaction delete everything first?
+            if (changes.cleared) {
+                // Yes, whatever was committed in the meantime is deleted too
+                return;
+            }
+
+            for (Map.Entry<Object, Object> entry : changes.origins.entrySet()) {
+                Object key = entry.getKey();
+
+                Object origin = entry.getValue();
+
+                if ((changes.messages.get(key) != null) && (origin != REPLACED) && isApplied(origin) && containsKey(key)) {
+                    throw new SQLException("Duplicate " + getIdField().getName() + " " + key + " in " + getIdField().getContainingType().getFullName(), UNIQUE_VIOLATION);
+                }
+            }
+        }
+
+        /**
+         * Applies a transaction's changes.  Call checkConflicts() first.
+         *
+         * @param changes the transaction's changes to this type
+         */
+        public void apply(Table changes) {
+            if (changes.cleared) {
+                clear();
+            }
+
+            // Decide what to skip before changing anything, a message's old ID may be removed before it is moved
+            List<Object> skipped = new ArrayList<Object>();
+
+            if (!changes.cleared) {
+                for (Object key : changes.messages.keys()) {
+                    Object origin = changes.origins.get(key);
+
+                    // Was this an update of a message that has been deleted in the meantime?
+                    if ((origin == null) ? !containsKey(key) : !isApplied(origin)) {
+                        // Yes, PostgreSQL's UPDATE wouldn't find it either
+                        skipped.add(key);
+                    }
+                }
+            }
+
+            for (Object key : changes.messages.keys()) {
+                Message message = changes.messages.get(key);
+
+                if (message == null) {
+                    remove(key);
+                } else if (!skipped.contains(key)) {
+                    put(key, message);
+                }
+            }
+        }
+
+        /**
+         * @param origin where a transaction's message came from, INSERTED, REPLACED or the ID it was moved from
+         * @return true if the message should still be there when the transaction commits
+         */
+        private boolean isApplied(Object origin) {
+            return (origin == INSERTED) || (origin == REPLACED) || containsKey(origin);
+        }
+
+        /**
+         * Changes a message's ID
+         *
+         * @param key     the message's current key
+         * @param message the message with its new ID
+         */
+        public void move(Object key, Message message) throws SQLException {
+            // Check the new key before removing anything so a failed move leaves the message where it was
+            checkUnique(getKey(message));
+
+            remove(key);
+            insert(message);
+        }
+
+        public void insert(Message message) throws SQLException {
+            Object key = getKey(message);
+
+            checkUnique(key);
+
+            put(key, message);
+        }
+
+        /**
+         * @throws SQLException with UNIQUE_VIOLATION if there is already a message with the key
+         */
+        protected void checkUnique(Object key) throws SQLException {
+            if (get(key) != null) {
+                throw new SQLException("Duplicate " + getIdField().getName() + " " + key + " in " + getIdField().getContainingType().getFullName(), UNIQUE_VIOLATION);
+            }
+        }
+
+        /**
+         * Finds the keys of the messages with a certain value in a field.  This is a direct lookup for the ID field
+         * and a scan for any other field.
+         */
+        public List<Object> findKeys(Descriptors.FieldDescriptor fieldDescriptor, Object value) {
+            List<Object> keys = new ArrayList<Object>();
+
+            if (fieldDescriptor.equals(getIdField())) {
+                if (get(value) != null) {
+                    keys.add(value);
+                }
+
+                return keys;
+            }
+
+            for (Message message : values()) {
+                if (message.getField(fieldDescriptor).equals(value)) {
+                    keys.add(getKey(message));
+                }
+            }
+
+            return keys;
+        }
+    }
+
+    private static void sortByField(List<Message> messages, final Descriptors.FieldDescriptor fieldDescriptor) {
+        Collections.sort(messages, new Comparator<Message>() {
+            @Override
+            public int compare(Message first, Message second) {
+                return FieldValues.compare(first.getField(fieldDescriptor), second.getField(fieldDescriptor));
+            }
+        });
+    }
+
+    /**
+     * Messages that are stored directly.  This holds the committed messages and each transaction's changes, in a
+     * transaction's changes a NULL message means the key was deleted so those always use a HeapMessageStore.
+     */
+    private static class Table extends TableView {
+        private final Descriptors.FieldDescriptor idField;
+        private final MessageStore messages;
+        private final Map<Descriptors.FieldDescriptor, InMemoryIndex> indexes = new HashMap<Descriptors.FieldDescriptor, InMemoryIndex>();
+
+        /**
+         * True if the transaction deleted everything of this type before making the rest of its changes
+         */
+        private boolean cleared = false;
+
+        /**
+         * In a transaction's changes, where the messages the transaction inserted or moved came from.  The value is
+         * INSERTED for new messages, REPLACED for messages put back in place of a committed message the transaction
+         * deleted or the key the message was moved from.  Messages that were only updated in place or deleted aren't
+         * in here.
+         */
+        private final Map<Object, Object> origins = new HashMap<Object, Object>();
+
+        private Table(Descriptors.FieldDescriptor idField, MessageStore messages) {
+            this.idField = idField;
+            this.messages = messages;
+        }
+
+        @Override
+        public Descriptors.FieldDescriptor getIdField() {
+            return idField;
+        }
+
+        @Override
+        public Message get(Object key) {
+            return messages.get(key);
+        }
+
+        @Override
+        public void put(Object key, Message message) {
+            // Only get the previous message if the indexes need it, it may have to be decoded
+            Message previous = indexes.isEmpty() ? null : messages.get(key);
+            messages.put(key, message);
+
+            for (InMemoryIndex index : indexes.values()) {
+                if (previous != null) {
+                    index.remove(key, previous);
+                }
+
+                if (message != null) {
+                    index.add(key, message);
+                }
+            }
+        }
+
+        @Override
+        public void remove(Object key) {
+            Message previous = indexes.isEmpty() ? null : messages.get(key);
+            messages.remove(key);
+
+            if (previous == null) {
+                return;
+            }
+
+            for (InMemoryIndex index : indexes.values()) {
+                index.remove(key, previous);
+            }
+        }
+
+        @Override
+        public void clear() {
+            messages.clear();
+
+            for (InMemoryIndex index : indexes.values()) {
+                index.clear();
+            }
+        }
+
+        @Override
+        public List<Message> values() {
+            return messages.values();
+        }
+
+        @Override
+        public List<Message> select(Descriptors.FieldDescriptor fieldDescriptor, Object value) {
+            InMemoryIndex index = indexes.get(fieldDescriptor);
+
+            // Is this field indexed?
+            if (index == null) {
+                // No, use the ID field or scan
+                return super.select(fieldDescriptor, value);
+            }
+
+            return getAll(index.get(value));
+        }
+
+        @Override
+        public List<Message> selectRange(Descriptors.FieldDescriptor fieldDescriptor, Object from, Object to) {
+            InMemoryIndex index = indexes.get(fieldDescriptor);
+
+            // Is there a sorted index on this field?
+            if ((index == null) || (index.getIndexType() != IndexType.SORTED)) {
+                // No, scan
+                return super.selectRange(fieldDescriptor, from, to);
+            }
+
+            return getAll(index.getRange(from, to));
+        }
+
+        private int size() {
+            return messages.size();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return messages.containsKey(key);
+        }
+
+        /**
+         * Iterates over the messages in insertion order getting each one as it is needed so off-heap messages are
+         * decoded one at a time
+         */
+        private Iterator<Message> iterator() {
+            final Iterator<Object> keys = messages.keys().iterator();
+
+            return new Iterator<Message>() {
+                @Override
+                public boolean hasNext() {
+                    return keys.hasNext();
+                }
+
+                @Override
+                public Message next() {
+                    return messages.get(keys.next());
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        private InMemoryIndex getIndex(Descriptors.FieldDescriptor fieldDescriptor) {
+            return indexes.get(fieldDescriptor);
+        }
+
+        private void addIndex(InMemoryIndex index) {
+            for (Object key : messages.keys()) {
+                index.add(key, messages.get(key));
+            }
+
+            indexes.put(index.getFieldDescriptor(), index);
+        }
+
+        private List<Message> getAll(List<Object> keys) {
+            List<Message> values = new ArrayList<Message>(keys.size());
+
+            for (Object key : keys) {
+                values.add(messages.get(key));
+            }
+
+            return values;
+        }
+    }
+
+    /**
+     * The committed messages with every change written to the write-ahead log before it is made
+     */
+    private static class LoggedTable extends TableView {
+        private final String protobufTypeName;
+        private final Table table;
+        private final WriteAheadLog log;
+
+        private LoggedTable(String protobufTypeName, Table table, WriteAheadLog log) {
+            this.protobufTypeName = protobufTypeName;
+            this.table = table;
+            this.log = log;
+        }
+
+        @Override
+        public Descriptors.FieldDescriptor getIdField() {
+            return table.getIdField();
+        }
+
+        @Override
+        public Message get(Object key) {
+            return table.get(key);
+        }
+
+        @Override
+        public void put(Object key, Message message) {
+            log.appendPut(protobufTypeName, getIdField(), message);
+            table.put(key, message);
+        }
+
+        @Override
+        public void remove(Object key) {
+            // Don't log deletes that don't change anything
+            if (!table.containsKey(key)) {
+                return;
+            }
+
+            log.appendDelete(protobufTypeName, getIdField(), key);
+            table.remove(key);
+        }
+
+        @Override
+        public void clear() {
+            log.appendDeleteAll(protobufTypeName);
+            table.clear();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return table.containsKey(key);
+        }
+
+        @Override
+        public List<Message> values() {
+            return table.values();
+        }
+
+        @Override
+        public List<Message> select(Descriptors.FieldDescriptor fieldDescriptor, Object value) {
+            return table.select(fieldDescriptor, value);
+        }
+
+        @Override
+        public List<Message> selectRange(Descriptors.FieldDescriptor fieldDescriptor, Object from, Object to) {
+            return table.selectRange(fieldDescriptor, from, to);
+        }
+    }
+
+    /**
+     * The committed messages with a transaction's changes laid over them
+     */
+    private static class TransactionView extends TableView {
+        private final Table committed;
+        private final Table changes;
+
+        /**
+         * @param committed the committed messages, NULL if none have been committed
+         * @param changes   the transaction's changes
+         */
+        private TransactionView(Table committed, Table changes) {
+            this.committed = committed;
+            this.changes = changes;
+        }
+
+        @Override
+        public Descriptors.FieldDescriptor getIdField() {
+            return changes.getIdField();
+        }
+
+        @Override
+        public Message get(Object key) {
+            // Did the transaction change this message?
+            if (changes.messages.containsKey(key)) {
+                // Yes, it was changed or deleted
+                return changes.messages.get(key);
+            }
+
+            if (!isCommittedVisible()) {
+                return null;
+            }
+
+            return committed.get(key);
+        }
+
+        @Override
+        public void put(Object key, Message message) {
+            changes.messages.put(key, message);
+        }
+
+        @Override
+        public void remove(Object key) {
+            // Remember the delete so the committed message stays hidden
+            changes.messages.put(key, null);
+            changes.origins.remove(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if (changes.messages.containsKey(key)) {
+                return changes.messages.get(key) != null;
+            }
+
+            return isCommittedVisible() && committed.containsKey(key);
+        }
+
+        @Override
+        public void clear() {
+            changes.messages.clear();
+            changes.origins.clear();
+            changes.cleared = true;
+        }
+
+        @Override
+        public void insert(Message message) throws SQLException {
+            insert(message, INSERTED);
+        }
+
+        @Override
+        public void move(Object key, Message message) throws SQLException {
+            // A message this transaction created keeps its origin, anything else came from the committed key
+            Object origin = changes.origins.containsKey(key) ? changes.origins.get(key) : key;
+
+            // Check the new key before removing anything so a failed move leaves the message where it was
+            checkUnique(getKey(message));
+
+            remove(key);
+            insert(message, origin);
+        }
+
+        private void insert(Message message, Object origin) throws SQLException {
+            Object key = getKey(message);
+
+            // Did the transaction delete a committed message with this key?
+            boolean replacesCommitted = changes.messages.containsKey(key) && isCommittedVisible() && committed.containsKey(key);
+
+            super.insert(message);
+
+            // Yes, whatever is committed under the key when the transaction commits was deleted by it first
+            changes.origins.put(key, replacesCommitted ? REPLACED : origin);
+        }
+
+        @Override
+        public List<Message> values() {
+            List<Message> values = new ArrayList<Message>();
+
+            // Committed messages keep their position, changed ones are swapped in and deleted ones are skipped
+            if (isCommittedVisible()) {
+                for (Object key : committed.messages.keys()) {
+                    Message message = changes.messages.containsKey(key) ? changes.messages.get(key) : committed.messages.get(key);
+
+                    if (message != null) {
+                        values.add(message);
+                    }
+                }
+            }
+
+            // Messages inserted by the transaction go at the end
+            for (Object key : changes.messages.keys()) {
+                Message message = changes.messages.get(key);
+                boolean alreadyAdded = isCommittedVisible() && committed.messages.containsKey(key);
+
+                if ((message != null) && !alreadyAdded) {
+                    values.add(message);
+                }
+            }
+
+            return values;
+        }
+
+        @Override
+        public List<Message> select(Descriptors.FieldDescriptor fieldDescriptor, Object value) {
+            InMemoryIndex index = isCommittedVisible() ? committed.getIndex(fieldDescriptor) : null;
+
+            // Can the committed messages be looked up in an index?
+            if (fieldDescriptor.equals(getIdField()) || (index == null)) {
+                // No, use the ID field or scan
+                return super.select(fieldDescriptor, value);
+            }
+
+            List<Message> messages = getUnchanged(index.get(value));
+
+            // The transaction's own changes aren't indexed
+            for (Message message : changes.messages.values()) {
+                if ((message != null) && passesFilter(message, fieldDescriptor, value)) {
+                    messages.add(message);
+                }
+            }
+
+            return messages;
+        }
+
+        @Override
+        public List<Message> selectRange(Descriptors.FieldDescriptor fieldDescriptor, Object from, Object to) {
+            InMemoryIndex index = isCommittedVisible() ? committed.getIndex(fieldDescriptor) : null;
+
+            // Can the committed messages be looked up in a sorted index?
+            if ((index == null) || (index.getIndexType() != IndexType.SORTED)) {
+                // No, scan
+                return super.selectRange(fieldDescriptor, from, to);
+            }
+
+            List<Message> messages = getUnchanged(index.getRange(from, to));
+
+            // The transaction's own changes aren't indexed
+            for (Message message : changes.messages.values()) {
+                if ((message != null) && FieldValues.inRange(message.getField(fieldDescriptor), from, to)) {
+                    messages.add(message);
+                }
+            }
+
+            sortByField(messages, fieldDescriptor);
+
+            return messages;
+        }
+
+        /**
+         * Gets the committed messages that this transaction hasn't changed or deleted
+         */
+        private List<Message> getUnchanged(List<Object> committedKeys) {
+            List<Message> messages = new ArrayList<Message>();
+
+            for (Object key : committedKeys) {
+                if (!changes.messages.containsKey(key)) {
+                    messages.add(committed.get(key));
+                }
+            }
+
+            return messages;
+        }
+
+        private boolean isCommittedVisible() {
+            return !changes.cleared && (committed != null);
+        }
+    }
+
+    /**
+     * The changes made by one transaction keyed by type
+     */
+    private static class TransactionState {
+        private final Map<String, Table> changes = new HashMap<String, Table>();
+    }
+
+    /**
+     * A transaction with its own overlay of changes
+     */
+    private class InMemoryTransaction extends BoundTransaction<TransactionState> {
+        private InMemoryTransaction(TransactionState transaction) {
+            super(InMemoryProtobufPersistence.this, transaction);
+        }
+
+        @Override
+        protected TransactionState bind(TransactionState transaction) {
+            TransactionState previous = currentTransaction.get();
+
+            if (transaction == null) {
+                currentTransaction.remove();
+            } else {
+                currentTransaction.set(transaction);
+            }
+
+            return previous;
+        }
+
+        @Override
+        protected void commitState(boolean synchronous) throws SQLException {
+            long position = applyChanges(getState());
+
+            // Asynchronous commits don't wait for the log, the background flush writes them
+            if (synchronous) {
+                awaitDurable(position);
+            }
+        }
+
+        @Override
+        protected void rollbackState() {
+            // Do nothing, the changes are just dropped
+        }
+    }
+}
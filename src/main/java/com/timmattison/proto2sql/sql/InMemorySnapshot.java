@@ -0,0 +1,345 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A snapshot of the messages of one type in a file so the in-memory implementation can be reloaded quickly.
+ *
+ * The file starts with a header holding the full name of the type, a checksum of the type's definition, the number
+ * of the ID field and the number of messages.  The messages follow in protobuf's length-delimited format, the same
+ * format writeDelimitedTo() uses, and the file ends with a CRC32 of everything before it.  Snapshots of a different
+ * type or of an older definition of the type are rejected, as are snapshots that have been truncated or corrupted.
+ *
+ * Snapshots are read through memory-mapped windows of the file so reading one doesn't copy it into the heap first.
+ */
+public class InMemorySnapshot implements Iterator<Message>, Closeable {
+    private static final int MAGIC = 0x50325353;
+    private static final int VERSION = 1;
+    private static final int TRAILER_SIZE = 8;
+    private static final int NO_ID_FIELD = 0;
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int CHECKSUM_CHUNK_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile file;
+    private final MappedFileReader reader;
+    private final Message prototype;
+    private final Descriptors.FieldDescriptor idField;
+    private final long messageCount;
+    private long messagesRead = 0;
+
+    private InMemorySnapshot(File snapshotFile, Message.Builder builder) throws IOException {
+        file = new RandomAccessFile(snapshotFile, "r");
+
+        try {
+            reader = new MappedFileReader(file.getChannel());
+
+            verifyChecksum(snapshotFile);
+
+            // The checksum covers the header too so from here on anything unexpected is a different type or version
+            reader.seek(0);
+
+            Descriptors.Descriptor descriptor = builder.getDescriptorForType();
+
+            if ((reader.getInt() != MAGIC) || (reader.getInt() != VERSION)) {
+                throw new IOException(snapshotFile + " is not a snapshot or was written by an incompatible version");
+            }
+
+            String typeName = new String(reader.getBytes(reader.getInt()), UTF_8);
+
+            if (!typeName.equals(descriptor.getFullName())) {
+                throw new IOException(snapshotFile + " holds " + typeName + " not " + descriptor.getFullName());
+            }
+
+            if (reader.getLong() != getDefinitionChecksum(descriptor)) {
+                throw new IOException(snapshotFile + " was written with a different definition of " + typeName);
+            }
+
+            int idFieldNumber = reader.getInt();
+            idField = (idFieldNumber == NO_ID_FIELD) ? null : descriptor.findFieldByNumber(idFieldNumber);
+            messageCount = reader.getLong();
+            prototype = builder.getDefaultInstanceForType();
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a snapshot and checks that it is intact and holds the expected type
+     *
+     * @param snapshotFile the file
+     * @param builder      a builder for the type of protobuf in the snapshot
+     * @return the snapshot, positioned before the first message
+     * @throws IOException if the file can't be read or is not a valid snapshot of the type
+     */
+    public static InMemorySnapshot open(File snapshotFile, Message.Builder builder) throws IOException {
+        return new InMemorySnapshot(snapshotFile, builder);
+    }
+
+    /**
+     * Writes a snapshot.  It is written to a temporary file that replaces the snapshot file once it is complete so a
+     * crash while writing never leaves a partial snapshot behind.
+     *
+     * @param snapshotFile the file
+     * @param descriptor   the type of the messages
+     * @param idField      the ID field the messages are keyed by, NULL if there are no messages
+     * @param messageCount the number of messages
+     * @param messages     the messages
+     * @throws IOException
+     */
+    public static void write(File snapshotFile, Descriptors.Descriptor descriptor, Descriptors.FieldDescriptor idField, long messageCount, Iterator<? extends Message> messages) throws IOException {
+        File temporaryFile = new File(snapshotFile.getPath() + ".tmp");
+
+        try (FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile)) {
+            CheckedOutputStream checkedOutputStream = new CheckedOutputStream(new BufferedOutputStream(fileOutputStream), new CRC32());
+            DataOutputStream output = new DataOutputStream(checkedOutputStream);
+
+            byte[] typeName = descriptor.getFullName().getBytes(UTF_8);
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(typeName.length);
+            output.write(typeName);
+            output.writeLong(getDefinitionChecksum(descriptor));
+            output.writeInt((idField == null) ? NO_ID_FIELD : idField.getNumber());
+            output.writeLong(messageCount);
+
+            long messagesWritten = 0;
+
+            while (messages.hasNext()) {
+                messages.next().writeDelimitedTo(output);
+                messagesWritten++;
+            }
+
+            if (messagesWritten != messageCount) {
+                throw new IOException("Expected " + messageCount + " messages but got " + messagesWritten);
+            }
+
+            // Get the checksum before writing it since writing it changes it
+            output.writeLong(checkedOutputStream.getChecksum().getValue());
+            output.flush();
+
+            fileOutputStream.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            temporaryFile.delete();
+            throw e;
+        }
+
+        Files.move(temporaryFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A checksum of the type's definition so snapshots written before fields were added, removed or changed are
+     * rejected.  Fields of other message and enum types only name the type so the definitions of every type the
+     * message refers to, directly or through its children, are included too.  A type that refers to no others has
+     * the same checksum it always had so existing snapshots of it still load.
+     */
+    private static long getDefinitionChecksum(Descriptors.Descriptor descriptor) {
+        CRC32 crc32 = new CRC32();
+        addDefinition(crc32, descriptor, new HashSet<String>());
+
+        return crc32.getValue();
+    }
+
+    /**
+     * Adds a type and the types its fields refer to, in field order so the checksum is always the same
+     *
+     * @param visited the full names of the types that have already been added
+     */
+    private static void addDefinition(CRC32 crc32, Descriptors.Descriptor descriptor, Set<String> visited) {
+        // Have we already added this type?
+        if (!visited.add(descriptor.getFullName())) {
+            // Yes, this also stops recursive types from looping forever
+            return;
+        }
+
+        crc32.update(descriptor.toProto().toByteArray());
+
+        for (Descriptors.FieldDescriptor fieldDescriptor : descriptor.getFields()) {
+            if (fieldDescriptor.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+                addDefinition(crc32, fieldDescriptor.getMessageType(), visited);
+            } else if ((fieldDescriptor.getJavaType() == Descriptors.FieldDescriptor.JavaType.ENUM) && visited.add(fieldDescriptor.getEnumType().getFullName())) {
+                crc32.update(fieldDescriptor.getEnumType().toProto().toByteArray());
+            }
+        }
+    }
+
+    private void verifyChecksum(File snapshotFile) throws IOException {
+        long checkedLength = reader.getSize() - TRAILER_SIZE;
+
+        if (checkedLength < 0) {
+            throw new IOException(snapshotFile + " is too short to be a snapshot");
+        }
+
+        CRC32 crc32 = new CRC32();
+        byte[] chunk = new byte[CHECKSUM_CHUNK_SIZE];
+
+        for (long position = 0; position < checkedLength; position += chunk.length) {
+            int length = (int) Math.min(chunk.length, checkedLength - position);
+            reader.getBytes(chunk, length);
+            crc32.update(chunk, 0, length);
+        }
+
+        if (reader.getLong() != crc32.getValue()) {
+            throw new IOException(snapshotFile + " is corrupt, its checksum does not match");
+        }
+    }
+
+    /**
+     * @return the ID field the messages were keyed by, NULL if the snapshot is empty
+     */
+    public Descriptors.FieldDescriptor getIdField() {
+        return idField;
+    }
+
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return messagesRead < messageCount;
+    }
+
+    @Override
+    public Message next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        try {
+            messagesRead++;
+
+            return prototype.getParserForType().parseFrom(reader.getBytes(reader.getVarint32()));
+        } catch (InvalidProtocolBufferException e) {
+            throw new ProtobufPersistenceException("Message " + messagesRead + " in the snapshot could not be decoded", e);
+        } catch (IOException e) {
+            throw new ProtobufPersistenceException(e);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Snapshots are read-only");
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Reads a file through read-only memory mapped windows.  Windows are needed because a single mapping can't be
+     * bigger than 2GB.
+     */
+    private static class MappedFileReader {
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart = 0;
+        private MappedByteBuffer window;
+
+        private MappedFileReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        private long getSize() {
+            return size;
+        }
+
+        private void seek(long position) throws IOException {
+            map(position, 0);
+        }
+
+        private int getInt() throws IOException {
+            return require(4).getInt();
+        }
+
+        private long getLong() throws IOException {
+            return require(8).getLong();
+        }
+
+        private byte[] getBytes(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            getBytes(bytes, length);
+
+            return bytes;
+        }
+
+        private void getBytes(byte[] bytes, int length) throws IOException {
+            if (length < 0) {
+                throw new IOException("Negative length " + length);
+            }
+
+            require(length).get(bytes, 0, length);
+        }
+
+        /**
+         * Reads a varint the way CodedInputStream.readRawVarint32() does
+         */
+        private int getVarint32() throws IOException {
+            int result = 0;
+
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte value = require(1).get();
+                result |= (value & 0x7F) << shift;
+
+                if (value >= 0) {
+                    return result;
+                }
+            }
+
+            throw new IOException("Malformed length at " + getPosition());
+        }
+
+        private long getPosition() {
+            return windowStart + ((window == null) ? 0 : window.position());
+        }
+
+        /**
+         * Makes sure the next bytes are in the current window, moving the window if they aren't
+         */
+        private ByteBuffer require(int length) throws IOException {
+            if ((window == null) || (window.remaining() < length)) {
+                map(getPosition(), length);
+            }
+
+            return window;
+        }
+
+        private void map(long position, int length) throws IOException {
+            if (position + length > size) {
+                throw new EOFException("Unexpected end of snapshot at " + position);
+            }
+
+            long windowSize = Math.min(size - position, Math.max(WINDOW_SIZE, length));
+
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+        }
+    }
+}
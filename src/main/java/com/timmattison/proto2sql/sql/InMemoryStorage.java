@@ -0,0 +1,18 @@
+package com.timmattison.proto2sql.sql;
+
+/**
+ * Where the in-memory implementation keeps its committed messages
+ */
+public enum InMemoryStorage {
+    /**
+     * Message objects on the heap.  Selects return the stored objects without any decoding.
+     */
+    HEAP,
+
+    /**
+     * Protobuf wire format in direct ByteBuffers outside of the heap.  The heap only holds an index from ID to
+     * offset so the garbage collector has very little to trace no matter how many messages are stored.  Messages
+     * are decoded each time they are selected.
+     */
+    OFF_HEAP
+}
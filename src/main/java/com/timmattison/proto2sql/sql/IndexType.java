@@ -0,0 +1,16 @@
+package com.timmattison.proto2sql.sql;
+
+/**
+ * The kinds of secondary indexes the in-memory implementation can keep
+ */
+public enum IndexType {
+    /**
+     * A hash index, only used for equality
+     */
+    HASH,
+
+    /**
+     * A sorted index, used for equality and ranges
+     */
+    SORTED
+}
@@ -0,0 +1,44 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Message;
+
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * A cursor over messages that are already in memory
+ */
+public class IteratorMessageCursor implements MessageCursor {
+    private final Iterator<? extends Message> iterator;
+
+    /**
+     * @param messages the messages to iterate over, NULL for no messages
+     */
+    public IteratorMessageCursor(Iterable<? extends Message> messages) {
+        if (messages == null) {
+            this.iterator = Collections.<Message>emptyList().iterator();
+        } else {
+            this.iterator = messages.iterator();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return iterator.hasNext();
+    }
+
+    @Override
+    public Message next() {
+        return iterator.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Cursors are read-only");
+    }
+
+    @Override
+    public void close() {
+        // Do nothing
+    }
+}
@@ -0,0 +1,400 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.format.JsonFormat;
+
+/**
+ * Parses the JSON that JsonFormat prints for a message straight into a builder.  JsonFormat.merge() tokenizes with
+ * regular expressions and allocates several objects for every token, which makes it most of the cost of reading a
+ * row with JSON child messages.  This walks the characters once and only allocates the values that end up in the
+ * message.
+ *
+ * Only strings, booleans, signed integers, floating point numbers, child messages and arrays of them are handled.
+ * Anything else, like enums, bytes, unsigned integers, unknown fields or malformed JSON, makes merge() return false
+ * and the caller should clear what was merged and use JsonFormat instead so the results and errors are the same as
+ * they always were.
+ */
+public class JsonMessageParser {
+    /**
+     * Thrown when the JSON uses something this parser doesn't handle.  There is only one instance and it has no stack
+     * trace since it never leaves this class.
+     */
+    private static final Unsupported UNSUPPORTED = new Unsupported();
+
+    private final CharSequence json;
+    private int position = 0;
+    private StringBuilder unescaped;
+
+    private JsonMessageParser(CharSequence json) {
+        this.json = json;
+    }
+
+    /**
+     * Merges a JSON object into a builder
+     *
+     * @param json    the JSON
+     * @param builder the builder
+     * @return true if the JSON was merged, false if it has to be parsed with JsonFormat instead.  The builder may hold
+     * some of the fields when this returns false.
+     */
+    public static boolean merge(CharSequence json, Message.Builder builder) {
+        JsonMessageParser parser = new JsonMessageParser(json);
+
+        try {
+            parser.mergeObject(builder);
+
+            return parser.atEnd();
+        } catch (Unsupported e) {
+            return false;
+        }
+    }
+
+    /**
+     * Adds every element of a JSON array to a repeated field
+     *
+     * @param json    the JSON array
+     * @param builder the builder
+     * @param field   the repeated field
+     * @return true if the JSON was merged, false if it has to be parsed with JsonFormat instead.  The field may hold
+     * some of the elements when this returns false.
+     */
+    public static boolean mergeRepeatedField(CharSequence json, Message.Builder builder, Descriptors.FieldDescriptor field) {
+        JsonMessageParser parser = new JsonMessageParser(json);
+
+        try {
+            parser.mergeArray(builder, field);
+
+            return parser.atEnd();
+        } catch (Unsupported e) {
+            return false;
+        }
+    }
+
+    /**
+     * Merges a JSON object into a builder, using JsonFormat if this parser can't handle it
+     *
+     * @param json    the JSON
+     * @param builder the builder, it is cleared before falling back to JsonFormat so it should be empty to start with
+     * @throws JsonFormat.ParseException
+     */
+    public static void mergeOrFallBack(CharSequence json, Message.Builder builder) throws JsonFormat.ParseException {
+        if (!merge(json, builder)) {
+            builder.clear();
+            JsonFormat.merge(json, builder);
+        }
+    }
+
+    private void mergeObject(Message.Builder builder) throws Unsupported {
+        expect('{');
+
+        if (consume('}')) {
+            return;
+        }
+
+        do {
+            Descriptors.FieldDescriptor field = builder.getDescriptorForType().findFieldByName(readString());
+
+            // Is this a field we know about?
+            if (field == null) {
+                // No, JsonFormat knows what to do with unknown fields and extensions
+                throw UNSUPPORTED;
+            }
+
+            expect(':');
+
+            if (field.isRepeated()) {
+                mergeArray(builder, field);
+            } else {
+                builder.setField(field, readValue(builder, field));
+            }
+        } while (consume(','));
+
+        expect('}');
+    }
+
+    private void mergeArray(Message.Builder builder, Descriptors.FieldDescriptor field) throws Unsupported {
+        expect('[');
+
+        if (consume(']')) {
+            return;
+        }
+
+        do {
+            builder.addRepeatedField(field, readValue(builder, field));
+        } while (consume(','));
+
+        expect(']');
+    }
+
+    private Object readValue(Message.Builder builder, Descriptors.FieldDescriptor field) throws Unsupported {
+        switch (field.getType()) {
+            case STRING:
+                return readString();
+            case BOOL:
+                return readBoolean();
+            case INT32:
+            case SINT32:
+            case SFIXED32:
+                long value = readLong();
+
+                if ((value < Integer.MIN_VALUE) || (value > Integer.MAX_VALUE)) {
+                    throw UNSUPPORTED;
+                }
+
+                return (int) value;
+            case INT64:
+            case SINT64:
+            case SFIXED64:
+                return readLong();
+            case FLOAT:
+                return (float) readDouble();
+            case DOUBLE:
+                return readDouble();
+            case MESSAGE:
+                Message.Builder childBuilder = builder.newBuilderForField(field);
+                mergeObject(childBuilder);
+
+                // Is a required field missing?
+                if (!childBuilder.isInitialized()) {
+                    // Yes, let JsonFormat report it the way it always has
+                    throw UNSUPPORTED;
+                }
+
+                return childBuilder.build();
+            default:
+                // Enums, bytes, groups and unsigned integers
+                throw UNSUPPORTED;
+        }
+    }
+
+    private String readString() throws Unsupported {
+        expect('"');
+
+        int start = position;
+
+        // Look for the end, most strings don't have any escapes and can be copied as they are
+        while (position < json.length()) {
+            char character = json.charAt(position);
+
+            if (character == '"') {
+                String value = json.subSequence(start, position).toString();
+                position++;
+
+                return value;
+            }
+
+            if (character == '\\') {
+                return readEscapedString(start);
+            }
+
+            position++;
+        }
+
+        throw UNSUPPORTED;
+    }
+
+    private String readEscapedString(int start) throws Unsupported {
+        if (unescaped == null) {
+            unescaped = new StringBuilder();
+        }
+
+        unescaped.setLength(0);
+        unescaped.append(json, start, position);
+
+        while (position < json.length()) {
+            char character = json.charAt(position++);
+
+            if (character == '"') {
+                return unescaped.toString();
+            }
+
+            if (character != '\\') {
+                unescaped.append(character);
+                continue;
+            }
+
+            if (position >= json.length()) {
+                throw UNSUPPORTED;
+            }
+
+            char escaped = json.charAt(position++);
+
+            switch (escaped) {
+                case '"':
+                case '\\':
+                    unescaped.append(escaped);
+                    break;
+                case 'b':
+                    unescaped.append('\b');
+                    break;
+                case 'f':
+                    unescaped.append('\f');
+                    break;
+                case 'n':
+                    unescaped.append('\n');
+                    break;
+                case 'r':
+                    unescaped.append('\r');
+                    break;
+                case 't':
+                    unescaped.append('\t');
+                    break;
+                case 'u':
+                    unescaped.append(readHexCharacter());
+                    break;
+                default:
+                    throw UNSUPPORTED;
+            }
+        }
+
+        throw UNSUPPORTED;
+    }
+
+    private char readHexCharacter() throws Unsupported {
+        if (position + 4 > json.length()) {
+            throw UNSUPPORTED;
+        }
+
+        int value = 0;
+
+        for (int loop = 0; loop < 4; loop++) {
+            int digit = Character.digit(json.charAt(position++), 16);
+
+            if (digit < 0) {
+                throw UNSUPPORTED;
+            }
+
+            value = (value << 4) | digit;
+        }
+
+        return (char) value;
+    }
+
+    private Boolean readBoolean() throws Unsupported {
+        skipWhitespace();
+
+        if (matches("true")) {
+            return Boolean.TRUE;
+        }
+
+        if (matches("false")) {
+            return Boolean.FALSE;
+        }
+
+        throw UNSUPPORTED;
+    }
+
+    private long readLong() throws Unsupported {
+        skipWhitespace();
+
+        boolean negative = consumeCharacter('-');
+        int start = position;
+        long value = 0;
+
+        while ((position < json.length()) && (json.charAt(position) >= '0') && (json.charAt(position) <= '9')) {
+            // Would this digit overflow?
+            if (value > (Long.MAX_VALUE - 9) / 10) {
+                // Maybe, let JsonFormat sort out values this close to the limits
+                throw UNSUPPORTED;
+            }
+
+            value = (value * 10) + (json.charAt(position++) - '0');
+        }
+
+        // Was there at least one digit and nothing that makes this a floating point number?
+        if ((position == start) || ((position < json.length()) && isFloatingPointCharacter(json.charAt(position)))) {
+            // No
+            throw UNSUPPORTED;
+        }
+
+        return negative ? -value : value;
+    }
+
+    private double readDouble() throws Unsupported {
+        skipWhitespace();
+
+        int start = position;
+
+        while ((position < json.length()) && (isFloatingPointCharacter(json.charAt(position)) || ((json.charAt(position) >= '0') && (json.charAt(position) <= '9')))) {
+            position++;
+        }
+
+        if (position == start) {
+            // NaN and the infinities aren't numbers in JSON, JsonFormat has its own spelling for them
+            throw UNSUPPORTED;
+        }
+
+        try {
+            return Double.parseDouble(json.subSequence(start, position).toString());
+        } catch (NumberFormatException e) {
+            throw UNSUPPORTED;
+        }
+    }
+
+    private static boolean isFloatingPointCharacter(char character) {
+        return (character == '.') || (character == 'e') || (character == 'E') || (character == '-') || (character == '+');
+    }
+
+    private boolean matches(String literal) {
+        if (position + literal.length() > json.length()) {
+            return false;
+        }
+
+        for (int loop = 0; loop < literal.length(); loop++) {
+            if (json.charAt(position + loop) != literal.charAt(loop)) {
+                return false;
+            }
+        }
+
+        position += literal.length();
+
+        return true;
+    }
+
+    private void expect(char character) throws Unsupported {
+        if (!consume(character)) {
+            throw UNSUPPORTED;
+        }
+    }
+
+    /**
+     * Skips whitespace and then the character if it is next
+     *
+     * @return true if the character was next
+     */
+    private boolean consume(char character) {
+        skipWhitespace();
+
+        return consumeCharacter(character);
+    }
+
+    private boolean consumeCharacter(char character) {
+        if ((position < json.length()) && (json.charAt(position) == character)) {
+            position++;
+            return true;
+        }
+
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while ((position < json.length()) && Character.isWhitespace(json.charAt(position))) {
+            position++;
+        }
+    }
+
+    private boolean atEnd() {
+        skipWhitespace();
+
+        return position == json.length();
+    }
+
+    private static class Unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+}
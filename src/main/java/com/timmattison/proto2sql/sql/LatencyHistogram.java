@@ -0,0 +1,142 @@
+package com.timmattison.proto2sql.sql;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of latencies in nanoseconds laid out the way HdrHistogram lays out its buckets.  Values
+ * below 128 get a bucket each, above that every power of two is split into 64 buckets so any value is off by less
+ * than 1/64th (about 1.6%) no matter how big it is.  Values up to about 73 minutes fit, larger ones are counted as
+ * the largest value that fits.
+ *
+ * Recording is lock free and never allocates.  Reading while other threads record is fine but the counts may be
+ * from slightly different moments.
+ */
+public class LatencyHistogram {
+    /**
+     * Values are kept to this many significant bits, the top bit is always set above the linear range so each power
+     * of two gets 2^(SUB_BUCKET_BITS - 1) buckets
+     */
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+    /**
+     * 2^42 nanoseconds is about 73 minutes
+     */
+    private static final int VALUE_BITS = 42;
+    public static final long HIGHEST_TRACKABLE_VALUE = (1L << VALUE_BITS) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(getIndex(HIGHEST_TRACKABLE_VALUE) + 1);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalValue = new AtomicLong();
+    private final AtomicLong maximumValue = new AtomicLong();
+
+    /**
+     * Records a value
+     *
+     * @param value the value, negative values are counted as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > HIGHEST_TRACKABLE_VALUE) {
+            value = HIGHEST_TRACKABLE_VALUE;
+        }
+
+        counts.incrementAndGet(getIndex(value));
+        totalCount.incrementAndGet();
+        totalValue.addAndGet(value);
+
+        long maximum = maximumValue.get();
+
+        while ((value > maximum) && !maximumValue.compareAndSet(maximum, value)) {
+            maximum = maximumValue.get();
+        }
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return the largest value recorded, 0 if nothing has been recorded
+     */
+    public long getMaxValue() {
+        return maximumValue.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, 0 if nothing has been recorded
+     */
+    public double getMean() {
+        long count = totalCount.get();
+
+        if (count == 0) {
+            return 0;
+        }
+
+        return (double) totalValue.get() / count;
+    }
+
+    /**
+     * Gets the value that the given percentage of the recorded values are less than or equal to
+     *
+     * @param percentile the percentage, from 0 to 100
+     * @return the largest value that falls in the same bucket as the value at the percentile, never more than the
+     * maximum recorded.  0 if nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if ((percentile < 0) || (percentile > 100)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, " + percentile + " is not");
+        }
+
+        long count = totalCount.get();
+
+        if (count == 0) {
+            return 0;
+        }
+
+        // Always look for at least the first value so the 0th percentile is the smallest value recorded
+        long target = Math.max(1, (long) Math.ceil((percentile / 100.0) * count));
+        long seen = 0;
+
+        for (int index = 0; index < counts.length(); index++) {
+            seen += counts.get(index);
+
+            if (seen >= target) {
+                return Math.min(getHighestEquivalentValue(index), getMaxValue());
+            }
+        }
+
+        // Values were recorded while we were counting, the target is past all of them
+        return getMaxValue();
+    }
+
+    private static int getIndex(long value) {
+        // Is this in the linear range?
+        if (value < SUB_BUCKET_COUNT) {
+            // Yes, the value is the index
+            return (int) value;
+        }
+
+        // No, shift it so only SUB_BUCKET_BITS bits are left, the top one is always set
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+
+        return (shift * SUB_BUCKET_HALF_COUNT) + (int) (value >>> shift);
+    }
+
+    private static long getHighestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int shift = (index / SUB_BUCKET_HALF_COUNT) - 1;
+        long subBucket = index - (shift * SUB_BUCKET_HALF_COUNT);
+
+        return (subBucket << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,21 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Message;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+
+/**
+ * Iterates over selected protobufs one at a time without loading all of them first.  Cursors hold on to database
+ * resources until they are closed so always close them, preferably with try-with-resources.  Errors while iterating
+ * are thrown as ProtobufPersistenceExceptions since Iterator can't throw checked exceptions.
+ */
+public interface MessageCursor extends Iterator<Message>, AutoCloseable {
+    /**
+     * Releases everything the cursor holds.  Closing a cursor more than once has no effect.
+     *
+     * @throws SQLException
+     */
+    @Override
+    public void close() throws SQLException;
+}
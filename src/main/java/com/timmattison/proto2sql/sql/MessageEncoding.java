@@ -0,0 +1,23 @@
+package com.timmattison.proto2sql.sql;
+
+/**
+ * How fields that hold child messages are stored in the database
+ */
+public enum MessageEncoding {
+    /**
+     * JSON text in a text column (text[] for repeated messages).  This is the original format.
+     */
+    JSON,
+
+    /**
+     * Protobuf wire format in a bytea column (bytea[] for repeated messages).  Smaller and much faster to read and
+     * write than JSON but not readable from SQL.
+     */
+    BINARY,
+
+    /**
+     * JSON in a jsonb column.  Repeated messages are stored as one JSON array instead of a SQL array so the whole
+     * column can be covered by a GIN index and searched with selectByPath().
+     */
+    JSONB
+}
@@ -0,0 +1,38 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Message;
+
+import java.util.List;
+
+/**
+ * Holds the messages of one type keyed by their ID in the order they were first stored
+ */
+public interface MessageStore {
+    /**
+     * @return the message with the key, NULL if there isn't one
+     */
+    Message get(Object key);
+
+    boolean containsKey(Object key);
+
+    /**
+     * Stores a message, replacing any message with the same key in its current position
+     */
+    void put(Object key, Message message);
+
+    void remove(Object key);
+
+    void clear();
+
+    int size();
+
+    /**
+     * @return a copy of the keys in insertion order
+     */
+    List<Object> keys();
+
+    /**
+     * @return a copy of the messages in insertion order
+     */
+    List<Message> values();
+}
@@ -0,0 +1,24 @@
+package com.timmattison.proto2sql.sql;
+
+/**
+ * Metrics that are never recorded, this is what every ProtobufPersistence uses until it is given something else
+ */
+public class NoOpPersistenceMetrics implements PersistenceMetrics {
+    public static final NoOpPersistenceMetrics INSTANCE = new NoOpPersistenceMetrics();
+
+    private NoOpPersistenceMetrics() {
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return false;
+    }
+
+    @Override
+    public void recordOperation(String tableName, PersistenceOperation operation, long durationNanos, long rows, long bytes, boolean failed) {
+    }
+
+    @Override
+    public void recordCacheAccess(String tableName, PersistenceOperation operation, boolean hit) {
+    }
+}
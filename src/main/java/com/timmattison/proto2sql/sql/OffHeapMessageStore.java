@@ -0,0 +1,458 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps messages in protobuf wire format in direct ByteBuffers so millions of them don't have to be traced by the
+ * garbage collector.  Messages are appended to fixed size slabs with a four byte length in front of each one.  The
+ * only per-message data on the heap is the key and a long holding the slab and offset of the message, both kept in
+ * arrays with an open addressing hash table over them instead of a HashMap so there are no entry objects.  Integer
+ * and long keys are kept in a long array so they aren't boxed either, any other key, e.g. a string, is kept as the
+ * object it is.  keys() boxes numeric keys again as it copies them.
+ *
+ * Messages are decoded every time they are read.  Replacing a message with one that is no bigger overwrites it in
+ * place, anything else leaves garbage behind in the slabs.  Once the garbage is bigger than a slab and bigger than
+ * the live messages the live messages are copied into new slabs and the old ones are left for the garbage collector
+ * to free.
+ *
+ * This is not thread-safe.  NULL messages are not allowed.
+ */
+public class OffHeapMessageStore implements MessageStore {
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    private static final int LENGTH_SIZE = 4;
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Hash table slots hold the entry index plus one so zero means empty
+     */
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+
+    /**
+     * The location of an entry that has been removed but not compacted away yet
+     */
+    private static final long REMOVED = -1;
+
+    private final int slabSize;
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+    /**
+     * The class of the keys, Integer or Long when they are kept in numericKeys, Object when they are kept in
+     * objectKeys and NULL until the first key is stored.  A store only ever holds the keys of one ID field so they
+     * are all the same class, if one that isn't turns up every key is boxed into objectKeys.
+     */
+    private Class<?> keyType;
+
+    /**
+     * Keys and locations in insertion order, only one of the key arrays is used
+     */
+    private long[] numericKeys;
+    private Object[] objectKeys;
+    private long[] locations;
+    private int entryCount;
+    private int size;
+    private int[] slots;
+
+    private long liveBytes;
+    private long garbageBytes;
+
+    /**
+     * Decodes the stored bytes, taken from the first message stored
+     */
+    private Message prototype;
+
+    public OffHeapMessageStore() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * @param slabSize the size of each direct buffer, messages bigger than this get a buffer of their own
+     */
+    public OffHeapMessageStore(int slabSize) {
+        if (slabSize <= LENGTH_SIZE) {
+            throw new IllegalArgumentException("Slabs must be bigger than " + LENGTH_SIZE + " bytes");
+        }
+
+        this.slabSize = slabSize;
+
+        resize(INITIAL_CAPACITY, null);
+    }
+
+    @Override
+    public Message get(Object key) {
+        int slot = findSlot(key);
+
+        if (slot < 0) {
+            return null;
+        }
+
+        return decode(locations[slots[slot] - 1]);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return findSlot(key) >= 0;
+    }
+
+    @Override
+    public void put(Object key, Message message) {
+        if (message == null) {
+            throw new NullPointerException("Off-heap stores can't hold NULL messages");
+        }
+
+        if (prototype == null) {
+            prototype = message.getDefaultInstanceForType();
+        }
+
+        byte[] bytes = message.toByteArray();
+        int slot = findSlot(key);
+
+        // Is this a new key?
+        if (slot < 0) {
+            // Yes, add it at the end
+            addEntry(key, write(bytes));
+        } else {
+            // No, overwrite it if it fits or move it to the end of the slabs if it doesn't
+            int entry = slots[slot] - 1;
+            locations[entry] = replace(locations[entry], bytes);
+        }
+
+        compactIfNecessary();
+    }
+
+    @Override
+    public void remove(Object key) {
+        int slot = findSlot(key);
+
+        if (slot < 0) {
+            return;
+        }
+
+        int entry = slots[slot] - 1;
+        int recordSize = getRecordSize(locations[entry]);
+
+        liveBytes -= recordSize;
+        garbageBytes += recordSize;
+
+        locations[entry] = REMOVED;
+        slots[slot] = DELETED;
+        size--;
+
+        compactIfNecessary();
+    }
+
+    @Override
+    public void clear() {
+        slabs.clear();
+        entryCount = 0;
+        size = 0;
+        liveBytes = 0;
+        garbageBytes = 0;
+
+        resize(INITIAL_CAPACITY, null);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public List<Object> keys() {
+        List<Object> liveKeys = new ArrayList<Object>(size);
+
+        for (int entry = 0; entry < entryCount; entry++) {
+            if (locations[entry] != REMOVED) {
+                liveKeys.add(getKey(entry));
+            }
+        }
+
+        return liveKeys;
+    }
+
+    @Override
+    public List<Message> values() {
+        List<Message> messages = new ArrayList<Message>(size);
+
+        for (int entry = 0; entry < entryCount; entry++) {
+            if (locations[entry] != REMOVED) {
+                messages.add(decode(locations[entry]));
+            }
+        }
+
+        return messages;
+    }
+
+    /**
+     * @return the number of bytes of direct memory held by the slabs
+     */
+    public long getAllocatedBytes() {
+        long allocatedBytes = 0;
+
+        for (ByteBuffer slab : slabs) {
+            allocatedBytes += slab.capacity();
+        }
+
+        return allocatedBytes;
+    }
+
+    private int findSlot(Object key) {
+        // Could a key of this class be stored?
+        if ((keyType == null) || (isNumeric() && (key.getClass() != keyType))) {
+            // No, numeric keys only equal keys of the same class
+            return -1;
+        }
+
+        long numericKey = isNumeric() ? ((Number) key).longValue() : 0;
+        int mask = slots.length - 1;
+
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int value = slots[slot];
+
+            if (value == EMPTY) {
+                return -1;
+            }
+
+            if (value == DELETED) {
+                continue;
+            }
+
+            if (isNumeric() ? (numericKeys[value - 1] == numericKey) : key.equals(objectKeys[value - 1])) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean isNumeric() {
+        return (keyType == Integer.class) || (keyType == Long.class);
+    }
+
+    private int hash(Object key) {
+        return isNumeric() ? hash(((Number) key).longValue()) : spread(key.hashCode());
+    }
+
+    private int hashEntry(int entry) {
+        return isNumeric() ? hash(numericKeys[entry]) : spread(objectKeys[entry].hashCode());
+    }
+
+    private static int hash(long key) {
+        return spread((int) (key ^ (key >>> 32)));
+    }
+
+    private static int spread(int hash) {
+        // Spread the high bits down since only the low bits pick the slot
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return the entry's key, boxed if it is numeric
+     */
+    private Object getKey(int entry) {
+        if (keyType == Integer.class) {
+            return (int) numericKeys[entry];
+        }
+
+        if (keyType == Long.class) {
+            return numericKeys[entry];
+        }
+
+        return objectKeys[entry];
+    }
+
+    private void addEntry(Object key, long location) {
+        // Is this the first key?
+        if (keyType == null) {
+            // Yes, it decides how keys are kept
+            resize(locations.length, ((key instanceof Integer) || (key instanceof Long)) ? key.getClass() : Object.class);
+        } else if (isNumeric() && (key.getClass() != keyType)) {
+            // The keys aren't all the same class after all, box them
+            resize(locations.length, Object.class);
+        }
+
+        // Is there room for another entry?
+        if (entryCount == locations.length) {
+            // No, drop the deleted entries and grow if it is still more than half full
+            resize(Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(size, 1)) * 4), keyType);
+        }
+
+        if (isNumeric()) {
+            numericKeys[entryCount] = ((Number) key).longValue();
+        } else {
+            objectKeys[entryCount] = key;
+        }
+
+        locations[entryCount] = location;
+        insertSlot(entryCount);
+
+        entryCount++;
+        size++;
+    }
+
+    private void insertSlot(int entry) {
+        int mask = slots.length - 1;
+        int slot = hashEntry(entry) & mask;
+
+        while (slots[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+
+        slots[slot] = entry + 1;
+    }
+
+    /**
+     * Rebuilds the entries and hash table without the deleted entries.  The hash table has twice as many slots as
+     * there are entries so it is never more than half full.
+     *
+     * @param newKeyType how to keep the keys from now on, see keyType
+     */
+    private void resize(int capacity, Class<?> newKeyType) {
+        Class<?> oldKeyType = keyType;
+        long[] oldNumericKeys = numericKeys;
+        Object[] oldObjectKeys = objectKeys;
+        long[] oldLocations = locations;
+        int oldEntryCount = entryCount;
+
+        keyType = newKeyType;
+        numericKeys = isNumeric() ? new long[capacity] : null;
+        objectKeys = (keyType == Object.class) ? new Object[capacity] : null;
+        locations = new long[capacity];
+        slots = new int[capacity * 2];
+        entryCount = 0;
+
+        for (int entry = 0; entry < oldEntryCount; entry++) {
+            if (oldLocations[entry] == REMOVED) {
+                continue;
+            }
+
+            if (numericKeys != null) {
+                numericKeys[entryCount] = oldNumericKeys[entry];
+            } else if (oldNumericKeys != null) {
+                objectKeys[entryCount] = (oldKeyType == Integer.class) ? (Object) Integer.valueOf((int) oldNumericKeys[entry]) : (Object) Long.valueOf(oldNumericKeys[entry]);
+            } else {
+                objectKeys[entryCount] = oldObjectKeys[entry];
+            }
+
+            locations[entryCount] = oldLocations[entry];
+            insertSlot(entryCount);
+            entryCount++;
+        }
+    }
+
+    /**
+     * Appends a message to the slabs
+     *
+     * @return the location of the message
+     */
+    private long write(byte[] bytes) {
+        int recordSize = LENGTH_SIZE + bytes.length;
+
+        ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+
+        // Is there room in the current slab?
+        if ((slab == null) || (slab.remaining() < recordSize)) {
+            // No, start a new one
+            slab = ByteBuffer.allocateDirect(Math.max(slabSize, recordSize));
+            slabs.add(slab);
+        }
+
+        int offset = slab.position();
+
+        slab.putInt(bytes.length);
+        slab.put(bytes);
+
+        liveBytes += recordSize;
+
+        return toLocation(slabs.size() - 1, offset);
+    }
+
+    /**
+     * Replaces a stored message
+     *
+     * @return the new location of the message
+     */
+    private long replace(long location, byte[] bytes) {
+        int oldRecordSize = getRecordSize(location);
+        int recordSize = LENGTH_SIZE + bytes.length;
+
+        // Does it fit where the old one was?
+        if (recordSize > oldRecordSize) {
+            // No, append it and leave the old one as garbage
+            liveBytes -= oldRecordSize;
+            garbageBytes += oldRecordSize;
+
+            return write(bytes);
+        }
+
+        ByteBuffer record = slabs.get(getSlab(location)).duplicate();
+        record.position(getOffset(location));
+        record.putInt(bytes.length);
+        record.put(bytes);
+
+        liveBytes -= oldRecordSize - recordSize;
+        garbageBytes += oldRecordSize - recordSize;
+
+        return location;
+    }
+
+    private static byte[] read(List<ByteBuffer> slabs, long location) {
+        ByteBuffer record = slabs.get(getSlab(location)).duplicate();
+        record.position(getOffset(location));
+
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+
+        return bytes;
+    }
+
+    private Message decode(long location) {
+        try {
+            return prototype.getParserForType().parseFrom(read(slabs, location));
+        } catch (InvalidProtocolBufferException e) {
+            throw new ProtobufPersistenceException("Stored " + prototype.getDescriptorForType().getFullName() + " could not be decoded", e);
+        }
+    }
+
+    private int getRecordSize(long location) {
+        return LENGTH_SIZE + slabs.get(getSlab(location)).getInt(getOffset(location));
+    }
+
+    /**
+     * Copies the live messages into new slabs once there is more garbage than live data
+     */
+    private void compactIfNecessary() {
+        if ((garbageBytes <= slabSize) || (garbageBytes <= liveBytes)) {
+            return;
+        }
+
+        List<ByteBuffer> oldSlabs = new ArrayList<ByteBuffer>(slabs);
+
+        // write() adds the live bytes back as it copies them
+        slabs.clear();
+        liveBytes = 0;
+        garbageBytes = 0;
+
+        for (int entry = 0; entry < entryCount; entry++) {
+            if (locations[entry] != REMOVED) {
+                locations[entry] = write(read(oldSlabs, locations[entry]));
+            }
+        }
+    }
+
+    private static long toLocation(int slab, int offset) {
+        return ((long) slab << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int getSlab(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int getOffset(long location) {
+        return (int) location;
+    }
+}
@@ -0,0 +1,36 @@
+package com.timmattison.proto2sql.sql;
+
+/**
+ * Receives a measurement for every operation a ProtobufPersistence runs.  Implementations are called on the thread
+ * running the operation so they have to be thread safe and should be quick.
+ */
+public interface PersistenceMetrics {
+    /**
+     * Checked before every operation.  When this is false operations aren't timed and nothing is recorded so a
+     * disabled sink costs one call.
+     *
+     * @return true if measurements should be recorded
+     */
+    public boolean isEnabled();
+
+    /**
+     * Records an operation that finished
+     *
+     * @param tableName     the table the operation ran against
+     * @param operation     the operation
+     * @param durationNanos how long the operation took
+     * @param rows          the number of messages selected or written, 0 if the operation failed
+     * @param bytes         the serialized size of the messages written, 0 for selects and deletes by type
+     * @param failed        true if the operation threw an exception
+     */
+    public void recordOperation(String tableName, PersistenceOperation operation, long durationNanos, long rows, long bytes, boolean failed);
+
+    /**
+     * Records whether a cache answered a read without going to the underlying persistence
+     *
+     * @param tableName the table the read was for
+     * @param operation the operation
+     * @param hit       true if the cache answered it
+     */
+    public void recordCacheAccess(String tableName, PersistenceOperation operation, boolean hit);
+}
@@ -0,0 +1,20 @@
+package com.timmattison.proto2sql.sql;
+
+/**
+ * The ProtobufPersistence operations that are measured by PersistenceMetrics
+ */
+public enum PersistenceOperation {
+    SELECT,
+
+    /**
+     * Only opening the cursor is timed, reading the rows happens after selectStream() returns
+     */
+    SELECT_STREAM,
+    SELECT_BY_PATH,
+    INSERT,
+    INSERT_ALL,
+    UPDATE,
+    UPDATE_ALL,
+    DELETE,
+    DELETE_ALL
+}
@@ -0,0 +1,190 @@
+package com.timmattison.proto2sql.sql;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Owns a connection for as long as it is needed.  Operation scopes last for a single statement outside of a
+ * transaction and close everything they prepared.  Transaction scopes pin one connection until the transaction is
+ * committed or rolled back and keep their prepared statements open so repeated statements inside the transaction
+ * are only prepared once.
+ *
+ * Statements are only cached inside a transaction, not for the life of each pooled connection.  An operation gets a
+ * logical connection from the DataSource and closing it at the end of the operation closes every statement prepared
+ * on it, so there is nothing left to cache, and the physical connection behind it isn't visible through the JDBC
+ * API to key a cache on.  Statements that should survive from one operation to the next have to be cached by the
+ * pool, e.g. its maximum statements setting, or by the driver, e.g. preparedStatementCacheQueries in pgjdbc 9.4 and
+ * later.
+ */
+public class PostgresqlConnectionScope implements AutoCloseable {
+    private static final String ASYNCHRONOUS_COMMIT = "SET LOCAL synchronous_commit TO OFF";
+
+    private final Connection connection;
+    private final boolean transactional;
+    private final Map<String, PreparedStatement> statements;
+
+    private PostgresqlConnectionScope(Connection connection, boolean transactional) {
+        this.connection = connection;
+        this.transactional = transactional;
+        this.statements = transactional ? new HashMap<String, PreparedStatement>() : null;
+    }
+
+    /**
+     * Gets a connection for a single operation outside of a transaction
+     *
+     * @param dataSource where to get the connection from
+     * @return
+     * @throws SQLException
+     */
+    public static PostgresqlConnectionScope forOperation(DataSource dataSource) throws SQLException {
+        return new PostgresqlConnectionScope(dataSource.getConnection(), false);
+    }
+
+    /**
+     * Gets a connection and starts a transaction on it
+     *
+     * @param dataSource where to get the connection from
+     * @return
+     * @throws SQLException
+     */
+    public static PostgresqlConnectionScope forTransaction(DataSource dataSource) throws SQLException {
+        Connection connection = dataSource.getConnection();
+
+        try {
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+
+        return new PostgresqlConnectionScope(connection, true);
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public boolean isTransactional() {
+        return transactional;
+    }
+
+    /**
+     * Prepares a statement.  Inside a transaction the same statement object is returned every time the same SQL is
+     * prepared, outside of one a new statement is prepared every time.  Always hand the statement back with release().
+     *
+     * @param sql the SQL to prepare
+     * @return
+     * @throws SQLException
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        // Are we inside a transaction?
+        if (!transactional) {
+            // No, the statement will be closed when it is released
+            return connection.prepareStatement(sql);
+        }
+
+        PreparedStatement preparedStatement = statements.get(sql);
+
+        // Have we prepared this statement before?
+        if (preparedStatement == null) {
+            // No, prepare it and keep it for next time
+            preparedStatement = connection.prepareStatement(sql);
+            statements.put(sql, preparedStatement);
+        }
+
+        return preparedStatement;
+    }
+
+    /**
+     * Hands back a statement from prepareStatement().  Statements outside of a transaction are closed, statements
+     * inside of a transaction are cleared so they are ready to be used again.
+     *
+     * @param preparedStatement the statement, NULL is ignored
+     * @throws SQLException
+     */
+    public void release(PreparedStatement preparedStatement) throws SQLException {
+        if (preparedStatement == null) {
+            return;
+        }
+
+        if (transactional) {
+            preparedStatement.clearParameters();
+            preparedStatement.clearBatch();
+        } else {
+            preparedStatement.close();
+        }
+    }
+
+    public void commit() throws SQLException {
+        commit(true);
+    }
+
+    /**
+     * Commits the transaction
+     *
+     * @param synchronous true to wait for the commit to be flushed to disk, false to commit with
+     *                    synchronous_commit turned off for just this transaction
+     * @throws SQLException
+     */
+    public void commit(boolean synchronous) throws SQLException {
+        if (!synchronous) {
+            Statement statement = connection.createStatement();
+
+            try {
+                statement.execute(ASYNCHRONOUS_COMMIT);
+            } finally {
+                statement.close();
+            }
+        }
+
+        connection.commit();
+    }
+
+    public void rollback() throws SQLException {
+        connection.rollback();
+    }
+
+    /**
+     * Closes all of the cached statements and the connection.  Transactions must be committed or rolled back first,
+     * auto-commit is turned back on before the connection is returned to the data source.
+     *
+     * @throws SQLException
+     */
+    @Override
+    public void close() throws SQLException {
+        try {
+            if (transactional) {
+                closeStatements();
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private void closeStatements() throws SQLException {
+        SQLException firstException = null;
+
+        for (PreparedStatement preparedStatement : statements.values()) {
+            try {
+                preparedStatement.close();
+            } catch (SQLException e) {
+                // Keep closing the rest, throw the first failure at the end
+                if (firstException == null) {
+                    firstException = e;
+                }
+            }
+        }
+
+        statements.clear();
+
+        if (firstException != null) {
+            throw firstException;
+        }
+    }
+}
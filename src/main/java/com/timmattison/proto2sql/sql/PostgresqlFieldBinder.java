@@ -0,0 +1,514 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.format.JsonFormat;
+
+import java.io.IOException;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binds one protobuf field to a JDBC parameter.  The binder is chosen once per field when a statement plan is built
+ * so the per-row work doesn't have to figure out the field type again.
+ */
+public abstract class PostgresqlFieldBinder {
+    private static final String TEXT = "text";
+    private static final String BYTEA = "bytea";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final String COPY_NULL = "\\N";
+
+    /**
+     * Buffers bigger than this aren't kept so one huge message doesn't pin memory for the life of the thread
+     */
+    private static final int MAXIMUM_REUSED_BUFFER = 64 * 1024;
+
+    /**
+     * Each thread's buffer for printing child messages as JSON so the buffer isn't grown from scratch for every one
+     */
+    private static final ThreadLocal<StringBuilder> JSON_BUFFERS = new ThreadLocal<StringBuilder>();
+
+    protected final Descriptors.FieldDescriptor fieldDescriptor;
+
+    protected PostgresqlFieldBinder(Descriptors.FieldDescriptor fieldDescriptor) {
+        this.fieldDescriptor = fieldDescriptor;
+    }
+
+    public Descriptors.FieldDescriptor getFieldDescriptor() {
+        return fieldDescriptor;
+    }
+
+    /**
+     * Binds this field from the message to a parameter in the prepared statement
+     *
+     * @param connection        the connection the statement belongs to (used to create SQL arrays)
+     * @param preparedStatement the statement to bind to
+     * @param index             the JDBC parameter index
+     * @param message           the message to get the field value from
+     * @throws SQLException
+     */
+    public abstract void bind(Connection connection, PreparedStatement preparedStatement, int index, Message message) throws SQLException;
+
+    /**
+     * Appends this field from the message to a row in PostgreSQL's COPY text format.  The value is escaped so it can be
+     * written directly between the column delimiters.
+     *
+     * @param copyRow the row being built
+     * @param message the message to get the field value from
+     */
+    public abstract void appendCopyText(StringBuilder copyRow, Message message);
+
+    /**
+     * @return this thread's JSON buffer, empty
+     */
+    protected static StringBuilder getJsonBuffer() {
+        StringBuilder json = JSON_BUFFERS.get();
+
+        // Is there a buffer that isn't too big to keep?
+        if ((json == null) || (json.capacity() > MAXIMUM_REUSED_BUFFER)) {
+            // No, start a new one
+            json = new StringBuilder();
+            JSON_BUFFERS.set(json);
+        }
+
+        json.setLength(0);
+
+        return json;
+    }
+
+    /**
+     * Appends a message to a buffer as JSON, what toJson() does without a new buffer every time
+     *
+     * @param json    the buffer
+     * @param message the message
+     */
+    protected static void appendJson(StringBuilder json, Message message) {
+        try {
+            JsonFormat.print(message, json);
+        } catch (IOException e) {
+            // StringBuilders never throw IOExceptions
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param message the message
+     * @return the message as JSON
+     */
+    protected static String toJson(Message message) {
+        StringBuilder json = getJsonBuffer();
+        appendJson(json, message);
+
+        return json.toString();
+    }
+
+    /**
+     * Appends a value to a COPY text row, escaping the characters that COPY treats specially
+     *
+     * @param copyRow the row being built
+     * @param value   the value, NULL to write a SQL NULL
+     */
+    protected static void appendCopyValue(StringBuilder copyRow, String value) {
+        if (value == null) {
+            copyRow.append(COPY_NULL);
+            return;
+        }
+
+        for (int loop = 0; loop < value.length(); loop++) {
+            char character = value.charAt(loop);
+
+            switch (character) {
+                case '\\':
+                    copyRow.append("\\\\");
+                    break;
+                case '\t':
+                    copyRow.append("\\t");
+                    break;
+                case '\n':
+                    copyRow.append("\\n");
+                    break;
+                case '\r':
+                    copyRow.append("\\r");
+                    break;
+                default:
+                    copyRow.append(character);
+            }
+        }
+    }
+
+    /**
+     * Appends a list of values to a COPY text row as a SQL array literal
+     *
+     * @param copyRow the row being built
+     * @param values  the values, each one is converted with toString()
+     */
+    protected static void appendCopyArray(StringBuilder copyRow, List<?> values) {
+        StringBuilder arrayLiteral = new StringBuilder();
+        arrayLiteral.append("{");
+
+        String separator = "";
+
+        for (Object value : values) {
+            arrayLiteral.append(separator);
+            appendArrayElement(arrayLiteral, value.toString());
+
+            separator = ",";
+        }
+
+        arrayLiteral.append("}");
+
+        // The array literal itself still needs to be escaped for COPY
+        appendCopyValue(copyRow, arrayLiteral.toString());
+    }
+
+    private static void appendArrayElement(StringBuilder arrayLiteral, String value) {
+        // Always quote the element so commas, braces and whitespace are kept as-is
+        arrayLiteral.append("\"");
+
+        for (int loop = 0; loop < value.length(); loop++) {
+            char character = value.charAt(loop);
+
+            if ((character == '"') || (character == '\\')) {
+                arrayLiteral.append('\\');
+            }
+
+            arrayLiteral.append(character);
+        }
+
+        arrayLiteral.append("\"");
+    }
+
+    /**
+     * Converts bytes to PostgreSQL's hex format for bytea values (\\x followed by two hex digits per byte)
+     *
+     * @param bytes the bytes
+     * @return
+     */
+    protected static String toByteaHex(byte[] bytes) {
+        char[] hex = new char[2 + (bytes.length * 2)];
+        hex[0] = '\\';
+        hex[1] = 'x';
+
+        for (int loop = 0; loop < bytes.length; loop++) {
+            hex[2 + (loop * 2)] = HEX_DIGITS[(bytes[loop] >> 4) & 0xf];
+            hex[3 + (loop * 2)] = HEX_DIGITS[bytes[loop] & 0xf];
+        }
+
+        return new String(hex);
+    }
+
+    /**
+     * Picks the binder for a field
+     *
+     * @param fieldDescriptor the field
+     * @param messageEncoding how child messages are stored
+     * @return
+     */
+    public static PostgresqlFieldBinder forField(Descriptors.FieldDescriptor fieldDescriptor, MessageEncoding messageEncoding) {
+        // What type of field is this?
+        if ((fieldDescriptor.getType() == Descriptors.FieldDescriptor.Type.MESSAGE) && (messageEncoding == MessageEncoding.BINARY)) {
+            // It is a message, it will be converted to the protobuf wire format
+            if (fieldDescriptor.isRepeated()) {
+                return new RepeatedBinaryMessageBinder(fieldDescriptor);
+            }
+
+            return new BinaryMessageBinder(fieldDescriptor);
+        } else if ((fieldDescriptor.getType() == Descriptors.FieldDescriptor.Type.MESSAGE) && (messageEncoding == MessageEncoding.JSONB)) {
+            // It is a message, it will be converted to JSON and repeated messages will be put in one JSON array
+            if (fieldDescriptor.isRepeated()) {
+                return new JsonArrayMessageBinder(fieldDescriptor);
+            }
+
+            return new MessageBinder(fieldDescriptor);
+        } else if (fieldDescriptor.getType() == Descriptors.FieldDescriptor.Type.MESSAGE) {
+            // It is a message, it will be converted to JSON
+            if (fieldDescriptor.isRepeated()) {
+                return new RepeatedMessageBinder(fieldDescriptor);
+            }
+
+            return new MessageBinder(fieldDescriptor);
+        } else if (fieldDescriptor.getType() == Descriptors.FieldDescriptor.Type.ENUM) {
+            // It is an enum, it will be converted to a string
+            return new EnumBinder(fieldDescriptor);
+        } else if (fieldDescriptor.isRepeated() && (fieldDescriptor.getType() == Descriptors.FieldDescriptor.Type.STRING)) {
+            // It is a list of strings, it will be converted to a JDBC array
+            return new StringArrayBinder(fieldDescriptor);
+        }
+
+        // Is it a list of something else?
+        if (fieldDescriptor.isRepeated()) {
+            // Yes, it will be used directly
+            return new ObjectBinder(fieldDescriptor);
+        }
+
+        switch (fieldDescriptor.getJavaType()) {
+            case INT:
+                return new IntBinder(fieldDescriptor);
+            case LONG:
+                return new LongBinder(fieldDescriptor);
+            case BOOLEAN:
+                return new BooleanBinder(fieldDescriptor);
+            case STRING:
+                return new StringBinder(fieldDescriptor);
+            default:
+                // It is something else, it will be used directly
+                return new ObjectBinder(fieldDescriptor);
+        }
+    }
+
+    private static class MessageBinder extends PostgresqlFieldBinder {
+        private MessageBinder(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void bind(Connection connection, PreparedStatement preparedStatement, int index, Message message) throws SQLException {
+            // Just put one message
+            preparedStatement.setObject(index, toJson((Message) message.getField(fieldDescriptor)));
+        }
+
+        @Override
+        public void appendCopyText(StringBuilder copyRow, Message message) {
+            appendCopyValue(copyRow, toJson((Message) message.getField(fieldDescriptor)));
+        }
+    }
+
+    private static class RepeatedMessageBinder extends PostgresqlFieldBinder {
+        private RepeatedMessageBinder(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void bind(Connection connection, PreparedStatement preparedStatement, int index, Message message) throws SQLException {
+            int count = message.getRepeatedFieldCount(fieldDescriptor);
+
+            String[] childMessages = new String[count];
+
+            for (int loop = 0; loop < count; loop++) {
+                childMessages[loop] = toJson((Message) message.getRepeatedField(fieldDescriptor, loop));
+            }
+
+            Array sqlArray = connection.createArrayOf(TEXT, childMessages);
+            preparedStatement.setArray(index, sqlArray);
+        }
+
+        @Override
+        public void appendCopyText(StringBuilder copyRow, Message message) {
+            int count = message.getRepeatedFieldCount(fieldDescriptor);
+
+            List<String> childMessages = new ArrayList<String>(count);
+
+            for (int loop = 0; loop < count; loop++) {
+                childMessages.add(toJson((Message) message.getRepeatedField(fieldDescriptor, loop)));
+            }
+
+            appendCopyArray(copyRow, childMessages);
+        }
+    }
+
+    private static class JsonArrayMessageBinder extends PostgresqlFieldBinder {
+        private JsonArrayMessageBinder(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void bind(Connection connection, PreparedStatement preparedStatement, int index, Message message) throws SQLException {
+            preparedStatement.setString(index, toJsonArray(message));
+        }
+
+        @Override
+        public void appendCopyText(StringBuilder copyRow, Message message) {
+            appendCopyValue(copyRow, toJsonArray(message));
+        }
+
+        private String toJsonArray(Message message) {
+            int count = message.getRepeatedFieldCount(fieldDescriptor);
+
+            StringBuilder jsonArray = getJsonBuffer();
+            jsonArray.append("[");
+
+            for (int loop = 0; loop < count; loop++) {
+                if (loop != 0) {
+                    jsonArray.append(",");
+                }
+
+                appendJson(jsonArray, (Message) message.getRepeatedField(fieldDescriptor, loop));
+            }
+
+            jsonArray.append("]");
+
+            return jsonArray.toString();
+        }
+    }
+
+    private static class BinaryMessageBinder extends PostgresqlFieldBinder {
+        private BinaryMessageBinder(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void bind(Connection connection, PreparedStatement preparedStatement, int index, Message message) throws SQLException {
+            preparedStatement.setBytes(index, ((Message) message.getField(fieldDescriptor)).toByteArray());
+        }
+
+        @Override
+        public void appendCopyText(StringBuilder copyRow, Message message) {
+            appendCopyValue(copyRow, toByteaHex(((Message) message.getField(fieldDescriptor)).toByteArray()));
+        }
+    }
+
+    private static class RepeatedBinaryMessageBinder extends PostgresqlFieldBinder {
+        private RepeatedBinaryMessageBinder(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void bind(Connection connection, PreparedStatement preparedStatement, int index, Message message) throws SQLException {
+            // The driver can't build bytea arrays from byte arrays so each element is sent in bytea's hex format
+            Array sqlArray = connection.createArrayOf(BYTEA, toHexArray(message));
+            preparedStatement.setArray(index, sqlArray);
+        }
+
+        @Override
+        public void appendCopyText(StringBuilder copyRow, Message message) {
+            appendCopyArray(copyRow, Arrays.asList(toHexArray(message)));
+        }
+
+        private String[] toHexArray(Message message) {
+            int count = message.getRepeatedFieldCount(fieldDescriptor);
+
+            String[] childMessages = new String[count];
+
+            for (int loop = 0; loop < count; loop++) {
+                childMessages[loop] = toByteaHex(((Message) message.getRepeatedField(fieldDescriptor, loop)).toByteArray());
+            }
+
+            return childMessages;
+        }
+    }
+
+    private static class EnumBinder extends PostgresqlFieldBinder {
+        private EnumBinder(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void bind(Connection connection, PreparedStatement preparedStatement, int index, Message message) throws SQLException {
+            preparedStatement.setObject(index, message.getField(fieldDescriptor).toString());
+        }
+
+        @Override
+        public void appendCopyText(StringBuilder copyRow, Message message) {
+            appendCopyValue(copyRow, message.getField(fieldDescriptor).toString());
+        }
+    }
+
+    private static class StringArrayBinder extends PostgresqlFieldBinder {
+        private StringArrayBinder(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void bind(Connection connection, PreparedStatement preparedStatement, int index, Message message) throws SQLException {
+            List<?> stringList = (List<?>) message.getField(fieldDescriptor);
+            Array sqlArray = connection.createArrayOf(TEXT, stringList.toArray());
+            preparedStatement.setArray(index, sqlArray);
+        }
+
+        @Override
+        public void appendCopyText(StringBuilder copyRow, Message message) {
+            appendCopyArray(copyRow, (List<?>) message.getField(fieldDescriptor));
+        }
+    }
+
+    private static class ObjectBinder extends PostgresqlFieldBinder {
+        private ObjectBinder(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void bind(Connection connection, PreparedStatement preparedStatement, int index, Message message) throws SQLException {
+            preparedStatement.setObject(index, message.getField(fieldDescriptor));
+        }
+
+        @Override
+        public void appendCopyText(StringBuilder copyRow, Message message) {
+            Object field = message.getField(fieldDescriptor);
+
+            if (field instanceof List) {
+                appendCopyArray(copyRow, (List<?>) field);
+            } else {
+                appendCopyValue(copyRow, (field == null) ? null : field.toString());
+            }
+        }
+    }
+
+    private static class IntBinder extends PostgresqlFieldBinder {
+        private IntBinder(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void bind(Connection connection, PreparedStatement preparedStatement, int index, Message message) throws SQLException {
+            preparedStatement.setInt(index, (Integer) message.getField(fieldDescriptor));
+        }
+
+        @Override
+        public void appendCopyText(StringBuilder copyRow, Message message) {
+            copyRow.append(((Integer) message.getField(fieldDescriptor)).intValue());
+        }
+    }
+
+    private static class LongBinder extends PostgresqlFieldBinder {
+        private LongBinder(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void bind(Connection connection, PreparedStatement preparedStatement, int index, Message message) throws SQLException {
+            preparedStatement.setLong(index, (Long) message.getField(fieldDescriptor));
+        }
+
+        @Override
+        public void appendCopyText(StringBuilder copyRow, Message message) {
+            copyRow.append(((Long) message.getField(fieldDescriptor)).longValue());
+        }
+    }
+
+    private static class BooleanBinder extends PostgresqlFieldBinder {
+        private BooleanBinder(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void bind(Connection connection, PreparedStatement preparedStatement, int index, Message message) throws SQLException {
+            preparedStatement.setBoolean(index, (Boolean) message.getField(fieldDescriptor));
+        }
+
+        @Override
+        public void appendCopyText(StringBuilder copyRow, Message message) {
+            copyRow.append(((Boolean) message.getField(fieldDescriptor)).booleanValue());
+        }
+    }
+
+    private static class StringBinder extends PostgresqlFieldBinder {
+        private StringBinder(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void bind(Connection connection, PreparedStatement preparedStatement, int index, Message message) throws SQLException {
+            preparedStatement.setString(index, (String) message.getField(fieldDescriptor));
+        }
+
+        @Override
+        public void appendCopyText(StringBuilder copyRow, Message message) {
+            appendCopyValue(copyRow, (String) message.getField(fieldDescriptor));
+        }
+    }
+}
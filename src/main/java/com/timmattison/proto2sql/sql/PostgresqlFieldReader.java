@@ -0,0 +1,416 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.format.JsonFormat;
+import org.postgresql.util.PGbytea;
+
+import java.nio.charset.Charset;
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Reads one protobuf field from a result set column.  Like PostgresqlFieldBinder the reader is chosen once per field
+ * when a statement plan is built.  Columns are read by index, SQL NULLs leave the field unset.
+ *
+ * Scalars are read with the typed getters and wasNull() so nothing is boxed that the message doesn't box itself.
+ * Child messages are built with a builder each thread keeps and JSON is parsed with JsonMessageParser so reading a
+ * row allocates little more than what ends up in the message.
+ */
+public abstract class PostgresqlFieldReader {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    protected final Descriptors.FieldDescriptor fieldDescriptor;
+
+    private final ThreadLocal<ChildBuilder> childBuilders = new ThreadLocal<ChildBuilder>();
+
+    protected PostgresqlFieldReader(Descriptors.FieldDescriptor fieldDescriptor) {
+        this.fieldDescriptor = fieldDescriptor;
+    }
+
+    public Descriptors.FieldDescriptor getFieldDescriptor() {
+        return fieldDescriptor;
+    }
+
+    /**
+     * Reads this field from the current row and sets it in the builder
+     *
+     * @param resultSet the result set with the current record selected
+     * @param column    the index of this field's column in the result set
+     * @param builder   the builder to put the field in
+     * @throws SQLException
+     * @throws JsonFormat.ParseException
+     */
+    public abstract void read(ResultSet resultSet, int column, Message.Builder builder) throws SQLException, JsonFormat.ParseException;
+
+    /**
+     * Gets this thread's builder for the field's child messages, cleared and ready to use.  Builders are only reused
+     * for parents of the same class since generated and dynamic messages can't be mixed.
+     *
+     * @param builder the parent message's builder
+     * @return
+     */
+    protected Message.Builder getChildBuilder(Message.Builder builder) {
+        ChildBuilder childBuilder = childBuilders.get();
+
+        // Does this thread have a builder for this kind of parent yet?
+        if ((childBuilder == null) || (childBuilder.parentClass != builder.getClass())) {
+            // No, create one
+            childBuilder = new ChildBuilder(builder.getClass(), builder.newBuilderForField(fieldDescriptor));
+            childBuilders.set(childBuilder);
+        }
+
+        return childBuilder.builder.clear();
+    }
+
+    /**
+     * Picks the reader for a field
+     *
+     * @param fieldDescriptor the field
+     * @param messageEncoding how child messages are stored
+     * @return
+     */
+    public static PostgresqlFieldReader forField(Descriptors.FieldDescriptor fieldDescriptor, MessageEncoding messageEncoding) {
+        // What type of field is this?
+        if ((fieldDescriptor.getType() == Descriptors.FieldDescriptor.Type.MESSAGE) && (messageEncoding == MessageEncoding.BINARY)) {
+            // It is a message, it is stored in the protobuf wire format
+            if (fieldDescriptor.isRepeated()) {
+                return new RepeatedBinaryMessageReader(fieldDescriptor);
+            }
+
+            return new BinaryMessageReader(fieldDescriptor);
+        } else if ((fieldDescriptor.getType() == Descriptors.FieldDescriptor.Type.MESSAGE) && (messageEncoding == MessageEncoding.JSONB)) {
+            // It is a message, it is stored as JSON and repeated messages are stored in one JSON array
+            if (fieldDescriptor.isRepeated()) {
+                return new JsonArrayMessageReader(fieldDescriptor);
+            }
+
+            return new MessageReader(fieldDescriptor);
+        } else if (fieldDescriptor.getType() == Descriptors.FieldDescriptor.Type.MESSAGE) {
+            // It is a message, it is stored as JSON
+            if (fieldDescriptor.isRepeated()) {
+                return new RepeatedMessageReader(fieldDescriptor);
+            }
+
+            return new MessageReader(fieldDescriptor);
+        } else if (fieldDescriptor.getType() == Descriptors.FieldDescriptor.Type.ENUM) {
+            // It is an enum, it is stored as its name
+            return new EnumReader(fieldDescriptor);
+        } else if (fieldDescriptor.isRepeated()) {
+            // It is a list, it is stored as a SQL array
+            return new ArrayReader(fieldDescriptor);
+        }
+
+        switch (fieldDescriptor.getJavaType()) {
+            case INT:
+                return new IntReader(fieldDescriptor);
+            case LONG:
+                return new LongReader(fieldDescriptor);
+            case FLOAT:
+                return new FloatReader(fieldDescriptor);
+            case DOUBLE:
+                return new DoubleReader(fieldDescriptor);
+            case BOOLEAN:
+                return new BooleanReader(fieldDescriptor);
+            case STRING:
+                return new StringReader(fieldDescriptor);
+            default:
+                // It is something else, it is used directly
+                return new ObjectReader(fieldDescriptor);
+        }
+    }
+
+    private static class MessageReader extends PostgresqlFieldReader {
+        private MessageReader(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int column, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+            String json = resultSet.getString(column);
+
+            if (json == null) {
+                return;
+            }
+
+            // Create a protobuf using the JSON and a builder for this internal message
+            Message.Builder internalBuilder = getChildBuilder(builder);
+            JsonMessageParser.mergeOrFallBack(json, internalBuilder);
+
+            // Set the field to the built protobuf
+            builder.setField(fieldDescriptor, internalBuilder.build());
+        }
+    }
+
+    private static class RepeatedMessageReader extends PostgresqlFieldReader {
+        private RepeatedMessageReader(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int column, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+            Array sqlArray = resultSet.getArray(column);
+
+            if (sqlArray == null) {
+                return;
+            }
+
+            // Get a builder for the internal messages
+            Message.Builder internalBuilder = getChildBuilder(builder);
+
+            // Loop through all of the objects
+            for (Object json : (Object[]) sqlArray.getArray()) {
+                // Clear the builder
+                internalBuilder.clear();
+
+                // Create a protobuf using the JSON and the internal builder
+                JsonMessageParser.mergeOrFallBack((String) json, internalBuilder);
+
+                // Add built protobuf in the repeated field
+                builder.addRepeatedField(fieldDescriptor, internalBuilder.build());
+            }
+        }
+    }
+
+    private static class JsonArrayMessageReader extends PostgresqlFieldReader {
+        private JsonArrayMessageReader(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int column, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+            String jsonArray = resultSet.getString(column);
+
+            if (jsonArray == null) {
+                return;
+            }
+
+            // Can the elements be added directly?
+            if (!JsonMessageParser.mergeRepeatedField(jsonArray, builder, fieldDescriptor)) {
+                // No, drop any that were and wrap the array in an object with just this field so JsonFormat adds every
+                // element to the repeated field
+                builder.clearField(fieldDescriptor);
+                JsonFormat.merge("{\"" + fieldDescriptor.getName() + "\": " + jsonArray + "}", builder);
+            }
+        }
+    }
+
+    /**
+     * Parses a child message from the protobuf wire format
+     *
+     * @param builder the parent message's builder
+     * @param bytes   the child message
+     * @return
+     * @throws SQLException
+     */
+    protected Message parseMessage(Message.Builder builder, byte[] bytes) throws SQLException {
+        try {
+            return getChildBuilder(builder).mergeFrom(bytes).build();
+        } catch (InvalidProtocolBufferException e) {
+            throw new SQLException("Could not parse " + fieldDescriptor.getFullName(), e);
+        }
+    }
+
+    private static class BinaryMessageReader extends PostgresqlFieldReader {
+        private BinaryMessageReader(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int column, Message.Builder builder) throws SQLException {
+            byte[] bytes = resultSet.getBytes(column);
+
+            if (bytes == null) {
+                return;
+            }
+
+            builder.setField(fieldDescriptor, parseMessage(builder, bytes));
+        }
+    }
+
+    private static class RepeatedBinaryMessageReader extends PostgresqlFieldReader {
+        private RepeatedBinaryMessageReader(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int column, Message.Builder builder) throws SQLException {
+            Array sqlArray = resultSet.getArray(column);
+
+            if (sqlArray == null) {
+                return;
+            }
+
+            for (Object element : (Object[]) sqlArray.getArray()) {
+                byte[] bytes;
+
+                // Some driver versions return bytea array elements in bytea's text format instead of decoding them
+                if (element instanceof byte[]) {
+                    bytes = (byte[]) element;
+                } else {
+                    bytes = PGbytea.toBytes(((String) element).getBytes(ASCII));
+                }
+
+                builder.addRepeatedField(fieldDescriptor, parseMessage(builder, bytes));
+            }
+        }
+    }
+
+    private static class EnumReader extends PostgresqlFieldReader {
+        private EnumReader(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int column, Message.Builder builder) throws SQLException {
+            String name = resultSet.getString(column);
+
+            if (name == null) {
+                return;
+            }
+
+            // Convert the string to the actual enum
+            builder.setField(fieldDescriptor, fieldDescriptor.getEnumType().findValueByName(name));
+        }
+    }
+
+    private static class ArrayReader extends PostgresqlFieldReader {
+        private ArrayReader(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int column, Message.Builder builder) throws SQLException {
+            Array sqlArray = resultSet.getArray(column);
+
+            if (sqlArray == null) {
+                return;
+            }
+
+            // Add the elements one at a time, setField() would copy a list wrapped around them anyway
+            for (Object element : (Object[]) sqlArray.getArray()) {
+                builder.addRepeatedField(fieldDescriptor, element);
+            }
+        }
+    }
+
+    private static class IntReader extends PostgresqlFieldReader {
+        private IntReader(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int column, Message.Builder builder) throws SQLException {
+            int value = resultSet.getInt(column);
+
+            if (!resultSet.wasNull()) {
+                builder.setField(fieldDescriptor, value);
+            }
+        }
+    }
+
+    private static class LongReader extends PostgresqlFieldReader {
+        private LongReader(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int column, Message.Builder builder) throws SQLException {
+            long value = resultSet.getLong(column);
+
+            if (!resultSet.wasNull()) {
+                builder.setField(fieldDescriptor, value);
+            }
+        }
+    }
+
+    private static class FloatReader extends PostgresqlFieldReader {
+        private FloatReader(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int column, Message.Builder builder) throws SQLException {
+            float value = resultSet.getFloat(column);
+
+            if (!resultSet.wasNull()) {
+                builder.setField(fieldDescriptor, value);
+            }
+        }
+    }
+
+    private static class DoubleReader extends PostgresqlFieldReader {
+        private DoubleReader(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int column, Message.Builder builder) throws SQLException {
+            double value = resultSet.getDouble(column);
+
+            if (!resultSet.wasNull()) {
+                builder.setField(fieldDescriptor, value);
+            }
+        }
+    }
+
+    private static class BooleanReader extends PostgresqlFieldReader {
+        private BooleanReader(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int column, Message.Builder builder) throws SQLException {
+            boolean value = resultSet.getBoolean(column);
+
+            if (!resultSet.wasNull()) {
+                builder.setField(fieldDescriptor, value);
+            }
+        }
+    }
+
+    private static class StringReader extends PostgresqlFieldReader {
+        private StringReader(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int column, Message.Builder builder) throws SQLException {
+            String value = resultSet.getString(column);
+
+            if (value != null) {
+                builder.setField(fieldDescriptor, value);
+            }
+        }
+    }
+
+    private static class ObjectReader extends PostgresqlFieldReader {
+        private ObjectReader(Descriptors.FieldDescriptor fieldDescriptor) {
+            super(fieldDescriptor);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int column, Message.Builder builder) throws SQLException {
+            Object value = resultSet.getObject(column);
+
+            if (value != null) {
+                builder.setField(fieldDescriptor, value);
+            }
+        }
+    }
+
+    /**
+     * A child builder and the class of parent builder it was created from
+     */
+    private static class ChildBuilder {
+        private final Class<?> parentClass;
+        private final Message.Builder builder;
+
+        private ChildBuilder(Class<?> parentClass, Message.Builder builder) {
+            this.parentClass = parentClass;
+            this.builder = builder;
+        }
+    }
+}
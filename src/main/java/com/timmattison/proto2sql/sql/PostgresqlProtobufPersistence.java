@@ -1,309 +1,341 @@
 package com.timmattison.proto2sql.sql;
 
-import com.google.protobuf.DescriptorProtos;
 import com.google.protobuf.Descriptors;
 import com.google.protobuf.Message;
-import com.google.protobuf.UnmodifiableLazyStringList;
 import com.googlecode.protobuf.format.JsonFormat;
-import org.postgresql.jdbc4.Jdbc4Array;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
 
 import javax.inject.Inject;
 import javax.sql.DataSource;
+import java.nio.charset.Charset;
 import java.sql.*;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by timmattison on 11/4/14.
  */
 public class PostgresqlProtobufPersistence extends AbstractProtobufPersistence implements ProtobufPersistence {
-    private static final String VALUES = " VALUES ";
-    private static final String CAST = "CAST(";
-    private static final String AS = " AS ";
-    private static final String MESSAGE = "MESSAGE";
-    private static final String ENUM = "ENUM";
-    private static final String TEXT = "text";
-    private static final String INSERT_INTO = "INSERT INTO ";
-
-    private static final String SELECT_FROM = "SELECT * FROM ";
-    private static final String WHERE = " WHERE ";
-    private static final String VARIABLE = "?";
-    private static final String UPDATE = "UPDATE ";
-    private static final String SET = " SET ";
-    private static final String EQUALS = " = ";
-    private static final String DELETE_FROM = "DELETE FROM ";
     private static final String ROLLBACK = "ROLLBACK";
     private static final String COMMIT = "COMMIT";
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final Charset COPY_CHARSET = Charset.forName("UTF-8");
+
+    private enum BatchOperation {
+        INSERT, UPDATE, DELETE
+    }
+
+    private final ConcurrentMap<Descriptors.Descriptor, PostgresqlStatementPlan> plans = new ConcurrentHashMap<Descriptors.Descriptor, PostgresqlStatementPlan>();
 
     private final DataSource dataSource;
+    private final MessageEncoding messageEncoding;
+
+    /**
+     * Transactions belong to the thread that started them so one instance can be shared by many threads
+     */
+    private final ThreadLocal<PostgresqlConnectionScope> currentTransaction = new ThreadLocal<PostgresqlConnectionScope>();
 
-    private Connection currentConnection;
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile int fetchSize = DEFAULT_FETCH_SIZE;
+    private volatile StatementListener statementListener;
 
     @Inject
     public PostgresqlProtobufPersistence(DataSource dataSource) {
+        this(dataSource, new PrefixTableNamingStrategy());
+    }
+
+    public PostgresqlProtobufPersistence(DataSource dataSource, TableNamingStrategy tableNamingStrategy) {
+        this(dataSource, tableNamingStrategy, MessageEncoding.JSON);
+    }
+
+    /**
+     * @param dataSource          where to get connections from
+     * @param tableNamingStrategy decides which table each protobuf type resides in
+     * @param messageEncoding     how child messages are stored, this must match the encoding the tables were
+     *                            generated with
+     */
+    public PostgresqlProtobufPersistence(DataSource dataSource, TableNamingStrategy tableNamingStrategy, MessageEncoding messageEncoding) {
+        super(tableNamingStrategy);
         this.dataSource = dataSource;
+        this.messageEncoding = messageEncoding;
     }
 
     @Override
     public List<Message> innerSelect(String idName, String id, Message.Builder builder, String tableName) throws SQLException, JsonFormat.ParseException {
+        PostgresqlStatementPlan plan = getPlan(builder.getDescriptorForType(), tableName);
+
+        String sql = plan.getSelectSql(idName);
+
         // Get a connection to the database and prepare the statement.
-        Connection connection = getNewOrExistingConnection();
+        PostgresqlConnectionScope scope = getConnectionScope();
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+        List<Message> messages = null;
 
-        try {
-            // Get the result set
-            ResultSet resultSet = getResultSet(connection, idName, id, tableName);
+        StatementListener listener = statementListener;
+        long start = startStatement(listener);
 
-            List<Message> messages = new ArrayList<Message>();
+        try {
+            preparedStatement = scope.prepareStatement(sql);
 
-            // Loop through the results
-            while (resultSet.next()) {
-                // Clear out the builder and build a new protobuf
-                builder.clear();
-                buildProtobuf(builder, resultSet);
+            // Get the result set
+            resultSet = executeSelect(preparedStatement, idName, id);
 
-                // Add the built message to the message list
-                messages.add(builder.build());
-            }
+            messages = readMessages(plan, resultSet, builder);
 
             return messages;
         } finally {
-            closeIfNecessary(connection);
+            statementExecuted(listener, tableName, sql, (idName == null) ? 0 : 1, start, (messages == null) ? 0 : messages.size(), messages != null);
+
+            try {
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+            } finally {
+                release(scope, preparedStatement);
+            }
         }
     }
 
-    private void buildProtobuf(Message.Builder builder, ResultSet resultSet) throws SQLException, JsonFormat.ParseException {
-        Descriptors.Descriptor descriptor = builder.getDescriptorForType();
-
-        // Loop through all of the fields in this object
-        for (Descriptors.FieldDescriptor fieldDescriptor : descriptor.getFields()) {
-            // Get the field's name
-            String fieldName = fieldDescriptor.getName();
-
-            // Get the field's type
-            Descriptors.FieldDescriptor.Type fieldType = fieldDescriptor.getType();
+    @Override
+    protected List<Message> innerSelectByPath(FieldPath fieldPath, Object value, Message.Builder builder, String tableName) throws SQLException, JsonFormat.ParseException {
+        PostgresqlStatementPlan plan = getPlan(builder.getDescriptorForType(), tableName);
 
-            // What type is this field?
-            if (fieldType.equals(Descriptors.FieldDescriptor.Type.ENUM)) {
-                // It is an enum.  Convert the string to the actual enum.
-                builder.setField(fieldDescriptor, fieldDescriptor.getEnumType().findValueByName(resultSet.getString(fieldName)));
-            } else if (fieldType.equals(Descriptors.FieldDescriptor.Type.MESSAGE)) {
-                // It is a message.  Convert it from JSON to a protobuf.
+        // Build the SQL first so paths that can't be pushed down fail before a connection is taken
+        String sql = plan.getPathSelectSql(fieldPath);
+        Object parameter = plan.getPathParameter(fieldPath, value);
 
-                // Create a new builder for this internal message
-                Message.Builder internalBuilder = builder.newBuilderForField(fieldDescriptor);
+        PostgresqlConnectionScope scope = getConnectionScope();
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+        List<Message> messages = null;
 
-                if (fieldDescriptor.isRepeated()) {
-                    // Could be a normal type or could be an array.  Get the object.
-                    Object fieldObject = resultSet.getObject(fieldName);
+        StatementListener listener = statementListener;
+        long start = startStatement(listener);
 
-                    Jdbc4Array jdbc4Array = (Jdbc4Array) fieldObject;
-                    List<Object> objectList = Arrays.asList((Object[]) jdbc4Array.getArray());
+        try {
+            preparedStatement = scope.prepareStatement(sql);
+            preparedStatement.setObject(1, parameter);
 
-                    // Loop through all of the objects
-                    for (Object jsonObject : objectList) {
-                        // Clear the builder
-                        internalBuilder.clear();
+            resultSet = preparedStatement.executeQuery();
 
-                        // Create a protobuf using the JSON and the internal builder
-                        JsonFormat.merge((String) jsonObject, internalBuilder);
+            messages = readMessages(plan, resultSet, builder);
 
-                        // Add built protobuf in the repeated field
-                        builder.addRepeatedField(fieldDescriptor, internalBuilder.build());
-                    }
-                } else {
-                    // Create a protobuf using the JSON and the internal builder
-                    JsonFormat.merge(resultSet.getString(fieldName), internalBuilder);
+            return messages;
+        } finally {
+            statementExecuted(listener, tableName, sql, 1, start, (messages == null) ? 0 : messages.size(), messages != null);
 
-                    // Set the field to the built protobuf
-                    builder.setField(fieldDescriptor, internalBuilder.build());
-                }
-            } else {
-                // Could be a normal type or could be an array.  Get the object.
-                Object fieldObject = resultSet.getObject(fieldName);
-
-                // Is it an array?
-                if (fieldObject instanceof Jdbc4Array) {
-                    // Yes, it is an array.  Convert it and set it in the builder.
-                    Jdbc4Array jdbc4Array = (Jdbc4Array) fieldObject;
-                    List<Object> objectList = Arrays.asList((Object[]) jdbc4Array.getArray());
-                    builder.setField(fieldDescriptor, objectList);
-                } else {
-                    // No, just set it in the builder.
-                    builder.setField(fieldDescriptor, fieldObject);
+            try {
+                if (resultSet != null) {
+                    resultSet.close();
                 }
+            } finally {
+                release(scope, preparedStatement);
             }
         }
     }
 
+    private static List<Message> readMessages(PostgresqlStatementPlan plan, ResultSet resultSet, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+        List<Message> messages = new ArrayList<Message>();
+
+        // Find the columns once for all of the rows
+        int[] columns = plan.resolveColumns(resultSet);
+
+        // Loop through the results
+        while (resultSet.next()) {
+            // Clear out the builder and build a new protobuf
+            builder.clear();
+            plan.readRow(resultSet, columns, builder);
+
+            // Add the built message to the message list
+            messages.add(builder.build());
+        }
+
+        return messages;
+    }
+
     @Override
-    public void resultSetToProtobuf(Message.Builder builder, ResultSet resultSet) throws SQLException, JsonFormat.ParseException {
-        // Get the descriptor
-        Descriptors.Descriptor descriptor = builder.getDescriptorForType();
+    protected MessageCursor innerSelectStream(String idName, String id, Message.Builder builder, String tableName) throws SQLException, JsonFormat.ParseException {
+        PostgresqlStatementPlan plan = getPlan(builder.getDescriptorForType(), tableName);
 
-        // Loop through all of the fields in this object
-        for (Descriptors.FieldDescriptor fieldDescriptor : descriptor.getFields()) {
-            // Get the field's name
-            String fieldName = fieldDescriptor.getName();
+        // Are we inside a transaction?
+        PostgresqlConnectionScope transaction = currentTransaction.get();
+        boolean ownsScope = (transaction == null);
 
-            // Get the field's type
-            Descriptors.FieldDescriptor.Type fieldType = fieldDescriptor.getType();
+        // The driver only uses a server side cursor when auto-commit is off so streams outside of a transaction get
+        // their own connection and transaction
+        PostgresqlConnectionScope scope = ownsScope ? PostgresqlConnectionScope.forTransaction(dataSource) : transaction;
+        PreparedStatement preparedStatement = null;
+        String sql = plan.getSelectSql(idName);
 
-            // What type is this field?
-            if (fieldType.equals(Descriptors.FieldDescriptor.Type.ENUM)) {
-                // It is an enum.  Convert the string to the actual enum.
-                builder.setField(fieldDescriptor, fieldDescriptor.getEnumType().findValueByName(resultSet.getString(fieldName)));
-            } else if (fieldType.equals(Descriptors.FieldDescriptor.Type.MESSAGE)) {
-                // It is a message.  Convert it from JSON to a protobuf.
+        StatementListener listener = statementListener;
+        long start = startStatement(listener);
 
-                if (fieldDescriptor.isRepeated()) {
-                    // Could be a normal type or could be an array.  Get the object.
-                    Object fieldObject = resultSet.getObject(fieldName);
+        try {
+            // The cursor keeps the statement open while it is iterated over so it can't be shared with other
+            // statements in the transaction
+            preparedStatement = scope.getConnection().prepareStatement(sql);
+            preparedStatement.setFetchSize(fetchSize);
 
-                    Jdbc4Array jdbc4Array = (Jdbc4Array) fieldObject;
-                    List<Object> objectList = Arrays.asList((Object[]) jdbc4Array.getArray());
+            ResultSet resultSet = executeSelect(preparedStatement, idName, id);
 
-                    Message.Builder internalBuilder = builder.newBuilderForField(fieldDescriptor);
+            // Only the time to the first fetch is known, the rows are read after this returns
+            statementExecuted(listener, tableName, sql, (idName == null) ? 0 : 1, start, -1, true);
 
-                    for (Object jsonObject : objectList) {
-                        internalBuilder.clear();
-                        JsonFormat.merge((String) jsonObject, internalBuilder);
-                        builder.addRepeatedField(fieldDescriptor, internalBuilder.build());
-                    }
-                } else {
-                    DescriptorProtos.FieldDescriptorProto.Builder internalBuilder = fieldDescriptor.toProto().newBuilderForType();
-                    JsonFormat.merge(resultSet.getString(fieldName), internalBuilder);
-                    builder.setField(fieldDescriptor, internalBuilder.build());
+            return new ResultSetMessageCursor(plan, builder, ownsScope ? scope : null, preparedStatement, resultSet);
+        } catch (SQLException e) {
+            statementExecuted(listener, tableName, sql, (idName == null) ? 0 : 1, start, 0, false);
+
+            // Release everything if the query couldn't be started
+            try {
+                if (preparedStatement != null) {
+                    preparedStatement.close();
                 }
-            } else {
-                // Could be a normal type or could be an array.  Get the object.
-                Object fieldObject = resultSet.getObject(fieldName);
-
-                // Is it an array?
-                if (fieldObject instanceof Jdbc4Array) {
-                    // Yes, it is an array.  Convert it and set it in the builder.
-                    Jdbc4Array jdbc4Array = (Jdbc4Array) fieldObject;
-                    List<Object> objectList = Arrays.asList((Object[]) jdbc4Array.getArray());
-                    builder.setField(fieldDescriptor, objectList);
-                } else {
-                    // No, just set it in the builder.
-                    builder.setField(fieldDescriptor, fieldObject);
+            } finally {
+                if (ownsScope) {
+                    scope.close();
                 }
             }
+
+            throw e;
         }
     }
 
-    public ResultSet getResultSet(Connection connection, String idName, String id, String tableName) throws SQLException {
-        // Start building the SELECT statement from the table
-        StringBuilder selectSql = new StringBuilder();
-        selectSql.append(SELECT_FROM);
-        selectSql.append(tableName);
-
-        // If there is an ID add a WHERE clause
-        idWhereClause(idName, selectSql);
-
-        PreparedStatement preparedStatement = connection.prepareStatement(selectSql.toString());
-
-        // Do we have an ID?
-        if (idName != null) {
-            // Yes, add it as a parameter
-            preparedStatement.setString(1, id);
+    /**
+     * Sets how many rows streaming selects fetch from the database at a time
+     *
+     * @param fetchSize the number of rows per fetch
+     */
+    public void setFetchSize(int fetchSize) {
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException("Fetch size must be at least 1, was " + fetchSize);
         }
 
-        // Execute the query
-        return preparedStatement.executeQuery();
+        this.fetchSize = fetchSize;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
     }
 
     /**
-     * Adds a WHERE clause if the ID name value is not NULL.  The WHERE clause is bound to a parameter, not an actual
-     * value.
+     * Sets the listener that is told about every statement this runs, e.g. a SlowQueryLogger
      *
-     * @param idName
-     * @param stringBuilder
+     * @param statementListener the listener, NULL for none
      */
-    private void idWhereClause(String idName, StringBuilder stringBuilder) {
-        // Do we have an ID name value?
-        if (idName != null) {
-            // Yes, build the parameterized WHERE clause
-            stringBuilder.append(WHERE);
-            stringBuilder.append("\"");
-            stringBuilder.append(idName);
-            stringBuilder.append("\" = ");
-            stringBuilder.append(VARIABLE);
-        }
+    public void setStatementListener(StatementListener statementListener) {
+        this.statementListener = statementListener;
+    }
+
+    public StatementListener getStatementListener() {
+        return statementListener;
     }
 
     @Override
-    public void innerInsert(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName) throws SQLException {
-        // Start building the INSERT statement
-        StringBuilder insertSql = new StringBuilder();
-        insertSql.append(INSERT_INTO);
-        insertSql.append(protobufTypeName);
-        insertSql.append(" ");
+    public void resultSetToProtobuf(Message.Builder builder, ResultSet resultSet) throws SQLException, JsonFormat.ParseException {
+        // Get the descriptor
+        Descriptors.Descriptor descriptor = builder.getDescriptorForType();
 
-        // Build the field name list and the field value placeholders separately.  They are combined later.
-        StringBuilder fieldNames = new StringBuilder();
-        StringBuilder fieldPlaceholders = new StringBuilder();
+        PostgresqlStatementPlan plan = getPlan(descriptor, getTableName(descriptor));
 
-        fieldNames.append("(");
-        fieldPlaceholders.append("(");
+        // The columns can't be remembered between calls since the result set could be different each time
+        plan.readRow(resultSet, plan.resolveColumns(resultSet), builder);
+    }
 
-        String separator = "";
+    /**
+     * SELECTs rows using a connection that the caller manages.  The caller must close the result set and its
+     * statement (resultSet.getStatement()) when it is done.
+     *
+     * @param connection the connection to use
+     * @param idName     if filtering (WHERE clause) is desired this is the name of the field to filter by, NULL
+     *                   otherwise
+     * @param id         if filtering (WHERE clause) is desired this is the value of the field to filter by, NULL
+     *                   otherwise
+     * @param tableName  the table to select from
+     * @return
+     * @throws SQLException
+     */
+    public ResultSet getResultSet(Connection connection, String idName, String id, String tableName) throws SQLException {
+        String sql = PostgresqlStatementPlan.selectSql(tableName, idName);
 
-        /* TODO - See if we still need this
-        // Is the ID name a field that is not already in the object?
-        if (idSpecifiedAndNotNativeField(idName, descriptor)) {
-            // Yes, this means that it could be a child object.  We need to add in the ID field since it is not in the protobuf.
-            fieldNames.append(separator);
-            fieldPlaceholders.append(separator);
+        StatementListener listener = statementListener;
+        long start = startStatement(listener);
 
-            fieldNames.append(fieldDescriptor.getName());
-            fieldPlaceholders.append(VARIABLE);
+        PreparedStatement preparedStatement = connection.prepareStatement(sql);
 
-            separator = ", ";
-        }
-        */
+        try {
+            ResultSet resultSet = executeSelect(preparedStatement, idName, id);
 
-        // Loop through the fields
-        for (Descriptors.FieldDescriptor field : message.getDescriptorForType().getFields()) {
-            // Get the name of the field type
-            String typeName = field.getType().name();
+            // The caller reads the rows
+            statementExecuted(listener, tableName, sql, (idName == null) ? 0 : 1, start, -1, true);
 
-            // Get the name and type name of the current field
-            String name = field.getName();
+            return resultSet;
+        } catch (SQLException e) {
+            statementExecuted(listener, tableName, sql, (idName == null) ? 0 : 1, start, 0, false);
 
-            fieldNames.append(separator);
-            fieldPlaceholders.append(separator);
+            preparedStatement.close();
+            throw e;
+        }
+    }
 
-            // Do the first part of ENUM casting if necessary
-            castEnumPart1(fieldPlaceholders, typeName);
+    private static ResultSet executeSelect(PreparedStatement preparedStatement, String idName, String id) throws SQLException {
+        // Do we have an ID?
+        if (idName != null) {
+            // Yes, add it as a parameter
+            preparedStatement.setString(1, id);
+        }
 
-            // Add the field name
-            safeAddFieldName(fieldNames, name);
+        // Execute the query
+        return preparedStatement.executeQuery();
+    }
 
-            // Add the placeholder
-            fieldPlaceholders.append(VARIABLE);
+    /**
+     * Gets the statement plan for a protobuf type, building it the first time the type is seen
+     *
+     * @param descriptor the descriptor for the protobuf
+     * @param tableName  the name of the table that the protobuf resides in
+     * @return
+     */
+    protected PostgresqlStatementPlan getPlan(Descriptors.Descriptor descriptor, String tableName) {
+        PostgresqlStatementPlan plan = plans.get(descriptor);
 
-            // Do the second part of ENUM casting if necessary
-            castEnumPart2(fieldPlaceholders, field, typeName);
+        if (plan == null) {
+            // Multiple threads may build the same plan, only the first one is kept
+            plan = new PostgresqlStatementPlan(descriptor, tableName, messageEncoding);
+            PostgresqlStatementPlan existingPlan = plans.putIfAbsent(descriptor, plan);
 
-            separator = ", ";
+            if (existingPlan != null) {
+                plan = existingPlan;
+            }
         }
 
-        // Close up the different parts of the INSERT statement
-        fieldNames.append(")");
-        fieldPlaceholders.append(")");
+        return plan;
+    }
 
-        // Combine them
-        insertSql.append(fieldNames);
-        insertSql.append(VALUES);
-        insertSql.append(fieldPlaceholders);
+    @Override
+    public void innerInsert(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName) throws SQLException {
+        PostgresqlStatementPlan plan = getPlan(message.getDescriptorForType(), protobufTypeName);
+
+        String sql = plan.getInsertSql();
 
         // Get a connection to the database and prepare the statement.
-        Connection connection = getNewOrExistingConnection();
+        PostgresqlConnectionScope scope = getConnectionScope();
+        PreparedStatement preparedStatement = null;
+        int bindCount = 0;
+        long rowCount = -1;
+
+        StatementListener listener = statementListener;
+        long start = startStatement(listener);
 
         try {
-            PreparedStatement preparedStatement = connection.prepareStatement(insertSql.toString());
+            preparedStatement = scope.prepareStatement(sql);
 
             int counter = 1;
 
@@ -319,12 +351,15 @@ public class PostgresqlProtobufPersistence extends AbstractProtobufPersistence i
             */
 
             // Bind all of the parameters
-            bindParameters(message, message.getDescriptorForType(), connection, preparedStatement, counter);
+            bindCount = plan.bindParameters(message, scope.getConnection(), preparedStatement, counter) - 1;
 
             // Execute the query
             preparedStatement.execute();
+            rowCount = preparedStatement.getUpdateCount();
         } finally {
-            closeIfNecessary(connection);
+            statementExecuted(listener, protobufTypeName, sql, bindCount, start, rowCount, rowCount != -1);
+
+            release(scope, preparedStatement);
         }
     }
 
@@ -335,53 +370,24 @@ public class PostgresqlProtobufPersistence extends AbstractProtobufPersistence i
 
     @Override
     protected void innerUpdate(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName, Object previousId) throws SQLException {
-        // Start building the UPDATE statement
-        StringBuilder updateSql = new StringBuilder();
-        updateSql.append(UPDATE);
-        updateSql.append(protobufTypeName);
-        updateSql.append(SET);
-
-        String separator = "";
-
-        // Loop through all of the fields
-        for (Descriptors.FieldDescriptor field : message.getDescriptorForType().getFields()) {
-            // Get the field type
-            String typeName = field.getType().name();
-
-            // Get the name and type name of the current field
-            String name = field.getName();
-
-            updateSql.append(separator);
+        PostgresqlStatementPlan plan = getPlan(message.getDescriptorForType(), protobufTypeName);
 
-            // Add the field name
-            safeAddFieldName(updateSql, name);
-
-            updateSql.append(EQUALS);
-
-            // Do the first part of ENUM casting if necessary
-            castEnumPart1(updateSql, typeName);
-
-            updateSql.append(VARIABLE);
-
-            // Do the second part of ENUM casting if necessary
-            castEnumPart2(updateSql, field, typeName);
-
-            separator = ", ";
-        }
-
-        // Add the WHERE clause
-        idWhereClause(fieldDescriptor.getName(), updateSql);
+        String sql = plan.getUpdateSql(fieldDescriptor.getName());
 
         // Get a connection to the database and prepare the statement.
-        Connection connection = getNewOrExistingConnection();
+        PostgresqlConnectionScope scope = getConnectionScope();
+        PreparedStatement preparedStatement = null;
+        int counter = 1;
+        long rowCount = -1;
 
-        try {
-            PreparedStatement preparedStatement = connection.prepareStatement(updateSql.toString());
+        StatementListener listener = statementListener;
+        long start = startStatement(listener);
 
-            int counter = 1;
+        try {
+            preparedStatement = scope.prepareStatement(sql);
 
             // Loop through all of the parameters
-            counter = bindParameters(message, message.getDescriptorForType(), connection, preparedStatement, counter);
+            counter = plan.bindParameters(message, scope.getConnection(), preparedStatement, counter);
 
             // Bind the ID as the last parameter
             if (previousId != null) {
@@ -392,30 +398,69 @@ public class PostgresqlProtobufPersistence extends AbstractProtobufPersistence i
 
             // Execute the query
             preparedStatement.execute();
+            rowCount = preparedStatement.getUpdateCount();
         } finally {
-            closeIfNecessary(connection);
+            statementExecuted(listener, protobufTypeName, sql, counter, start, rowCount, rowCount != -1);
+
+            release(scope, preparedStatement);
         }
     }
 
-    private void closeIfNecessary(Connection connection) throws SQLException {
-        // Is there a connection?
-        if (connection == null) {
-            // No, just return
-            return;
+    /**
+     * Gets the connection scope for the next operation.  Inside a transaction this is the transaction's scope,
+     * otherwise it is a new scope that must be closed when the operation is done.
+     *
+     * @return
+     * @throws SQLException
+     */
+    private PostgresqlConnectionScope getConnectionScope() throws SQLException {
+        PostgresqlConnectionScope transaction = currentTransaction.get();
+
+        if (transaction != null) {
+            return transaction;
         }
 
-        // Are we inside a transaction?
-        if (connection.getAutoCommit() == false) {
-            // No, we can close the connection
-            connection.close();
+        return PostgresqlConnectionScope.forOperation(dataSource);
+    }
+
+    private static long startStatement(StatementListener listener) {
+        // Only read the clock if someone is listening
+        return (listener == null) ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Tells the listener about a statement that finished
+     *
+     * @param listener  the listener read when the statement started, NULL if there isn't one
+     * @param start     the time from startStatement()
+     * @param rowCount  the number of rows, ignored if the statement failed
+     * @param succeeded false if the statement threw an exception
+     */
+    private static void statementExecuted(StatementListener listener, String tableName, String sql, int bindCount, long start, long rowCount, boolean succeeded) {
+        if (listener == null) {
+            return;
         }
+
+        listener.statementExecuted(tableName, sql, bindCount, System.nanoTime() - start, succeeded ? rowCount : 0, !succeeded);
     }
 
-    private static void safeAddFieldName(StringBuilder stringBuilder, String name) {
-        // Add the field name with double quotes
-        stringBuilder.append("\"");
-        stringBuilder.append(name);
-        stringBuilder.append("\"");
+    /**
+     * Releases a statement and closes the scope if it isn't a transaction
+     *
+     * @param scope             the scope from getConnectionScope()
+     * @param preparedStatement the statement, may be NULL
+     * @throws SQLException
+     */
+    private static void release(PostgresqlConnectionScope scope, PreparedStatement preparedStatement) throws SQLException {
+        try {
+            scope.release(preparedStatement);
+        } finally {
+            // Are we inside a transaction?
+            if (!scope.isTransactional()) {
+                // No, we can close the connection
+                scope.close();
+            }
+        }
     }
 
     private static boolean idSpecifiedAndNotNativeField(String idName, Descriptors.Descriptor descriptor) {
@@ -423,144 +468,515 @@ public class PostgresqlProtobufPersistence extends AbstractProtobufPersistence i
         return (idName != null) && (descriptor.findFieldByName(idName) == null);
     }
 
-    private static void castEnumPart2(StringBuilder stringBuilder, Descriptors.FieldDescriptor field, String typeName) {
-        // Is this an ENUM?
-        if (ENUM.equals(typeName)) {
-            // Yes, finish the SQL CAST
-            stringBuilder.append(AS);
-            stringBuilder.append(field.getEnumType().getName());
-            stringBuilder.append(")");
+    /**
+     * Sets how many rows are sent to the database at once by insertAll, updateAll and deleteAll
+     *
+     * @param batchSize the number of rows per batch
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, was " + batchSize);
         }
+
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    protected void innerInsertAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        executeBatches(messages, fieldDescriptor, BatchOperation.INSERT);
+    }
+
+    @Override
+    protected void innerUpdateAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        executeBatches(messages, fieldDescriptor, BatchOperation.UPDATE);
     }
 
-    private static void castEnumPart1(StringBuilder stringBuilder, String typeName) {
-        // Is this an ENUM?
-        if (ENUM.equals(typeName)) {
-            // Yes, we'll need a SQL CAST here
-            stringBuilder.append(CAST);
+    @Override
+    protected void innerDeleteAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException {
+        executeBatches(messages, fieldDescriptor, BatchOperation.DELETE);
+    }
+
+    /**
+     * Runs the same statement for many messages using JDBC batches.  One prepared statement is reused for each run of
+     * messages of the same type and the batch is sent to the database every batchSize messages.
+     *
+     * @param messages        the messages
+     * @param fieldDescriptor the field to use as their ID
+     * @param batchOperation  the statement to run for each message
+     * @throws SQLException
+     */
+    private void executeBatches(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor, BatchOperation batchOperation) throws SQLException {
+        // Get a connection to the database
+        PostgresqlConnectionScope scope = getConnectionScope();
+
+        PostgresqlStatementPlan plan = null;
+        PreparedStatement preparedStatement = null;
+        BatchState batch = new BatchState(statementListener);
+
+        try {
+            for (Message message : messages) {
+                Descriptors.Descriptor descriptor = message.getDescriptorForType();
+
+                // Is this message a different type than the last one?
+                if ((plan == null) || (plan.getDescriptor() != descriptor)) {
+                    // Yes, send what we have for the previous type and prepare the statement for this type
+                    if (preparedStatement != null) {
+                        flushBatch(preparedStatement, batch);
+
+                        scope.release(preparedStatement);
+                    }
+
+                    plan = getPlan(descriptor, getTableName(descriptor));
+                    batch.tableName = plan.getTableName();
+                    batch.sql = getBatchSql(plan, fieldDescriptor, batchOperation);
+                    batch.start();
+                    preparedStatement = scope.prepareStatement(batch.sql);
+                }
+
+                batch.bindCount += bindBatchParameters(plan, message, fieldDescriptor, batchOperation, scope.getConnection(), preparedStatement);
+                preparedStatement.addBatch();
+                batch.pending++;
+
+                // Is the batch full?
+                if (batch.pending == batchSize) {
+                    // Yes, send it
+                    flushBatch(preparedStatement, batch);
+                }
+            }
+
+            // Send whatever is left
+            if (preparedStatement != null) {
+                flushBatch(preparedStatement, batch);
+            }
+        } finally {
+            // Did a batch fail before it was sent?
+            if (batch.pending != 0) {
+                // Yes, the listener still needs to hear about it
+                batch.executed(0, false);
+            }
+
+            release(scope, preparedStatement);
         }
     }
 
-    private static int bindParameters(Message message, Descriptors.Descriptor descriptor, Connection connection, PreparedStatement preparedStatement, int counter) throws SQLException {
-        // Loop through all of the fields
-        for (Descriptors.FieldDescriptor fieldDescriptor : descriptor.getFields()) {
-            // Get the type name
-            String typeName = fieldDescriptor.getType().name();
+    private static void flushBatch(PreparedStatement preparedStatement, BatchState batch) throws SQLException {
+        // Is there anything to send?
+        if (batch.pending == 0) {
+            // No, just return
+            return;
+        }
 
-            // Get the raw object
-            Object field = message.getField(fieldDescriptor);
+        // Yes, send it
+        int[] updateCounts = preparedStatement.executeBatch();
 
-            // What type of parameters is this?
-            if (MESSAGE.equals(typeName)) {
-                // It is a message, just convert it to JSON
-                addMessageToPreparedStatement(connection, message, preparedStatement, counter, fieldDescriptor, field);
-            } else if (ENUM.equals(typeName)) {
-                // It is an enum, convert it to a string
-                preparedStatement.setObject(counter, field.toString());
-            } else if (field instanceof UnmodifiableLazyStringList) {
-                // It is a list, convert it to a JDBC array
-                UnmodifiableLazyStringList stringList = (UnmodifiableLazyStringList) field;
-                Array sqlArray = connection.createArrayOf(TEXT, stringList.toArray());
-                preparedStatement.setArray(counter, sqlArray);
-            } else {
-                // It is something else, just use it directly
-                preparedStatement.setObject(counter, field);
+        if (batch.listener != null) {
+            long rowCount = 0;
+
+            for (int updateCount : updateCounts) {
+                // The driver may not know how many rows each statement changed, count those as one
+                rowCount += (updateCount >= 0) ? updateCount : 1;
             }
 
-            // Move on to the next field
-            counter++;
+            batch.executed(rowCount, true);
         }
 
-        return counter;
+        batch.pending = 0;
+        batch.bindCount = 0;
+        batch.start();
+    }
+
+    private static String getBatchSql(PostgresqlStatementPlan plan, Descriptors.FieldDescriptor fieldDescriptor, BatchOperation batchOperation) {
+        switch (batchOperation) {
+            case INSERT:
+                return plan.getInsertSql();
+            case UPDATE:
+                return plan.getUpdateSql(fieldDescriptor.getName());
+            case DELETE:
+                return plan.getDeleteSql(fieldDescriptor.getName());
+            default:
+                throw new UnsupportedOperationException("Unknown batch operation " + batchOperation);
+        }
+    }
+
+    /**
+     * @return the number of parameters that were bound
+     */
+    private static int bindBatchParameters(PostgresqlStatementPlan plan, Message message, Descriptors.FieldDescriptor fieldDescriptor, BatchOperation batchOperation, Connection connection, PreparedStatement preparedStatement) throws SQLException {
+        switch (batchOperation) {
+            case INSERT:
+                // Bind all of the fields
+                return plan.bindParameters(message, connection, preparedStatement, 1) - 1;
+            case UPDATE:
+                // Bind all of the fields and then the ID as the last parameter
+                int counter = plan.bindParameters(message, connection, preparedStatement, 1);
+                preparedStatement.setObject(counter, message.getField(fieldDescriptor));
+                return counter;
+            case DELETE:
+                // Just bind the ID
+                preparedStatement.setObject(1, message.getField(fieldDescriptor));
+                return 1;
+            default:
+                throw new UnsupportedOperationException("Unknown batch operation " + batchOperation);
+        }
     }
 
-    private static void addMessageToPreparedStatement(Connection connection, Message parentMessage, PreparedStatement preparedStatement, int counter, Descriptors.FieldDescriptor fieldDescriptor, Object message) throws SQLException {
-        // Is the message repeated?
-        if (fieldDescriptor.isRepeated()) {
-            // Yes, handle the repeated messages
-            int count = parentMessage.getRepeatedFieldCount(fieldDescriptor);
+    /**
+     * Loads protobufs with COPY ... FROM STDIN.  This is much faster than INSERTs for large loads.  Messages are
+     * pulled from the iterator and sent to the database in small chunks so the whole set is never held in memory.
+     * The field mapping is the same as insert uses.
+     *
+     * @param descriptor the descriptor for the protobufs, all of the messages must be of this type
+     * @param messages   the protobufs themselves
+     * @return the number of rows loaded
+     * @throws SQLException
+     */
+    public long copyIn(Descriptors.Descriptor descriptor, Iterator<? extends Message> messages) throws SQLException {
+        PostgresqlStatementPlan plan = getPlan(descriptor, getTableName(descriptor));
+
+        String sql = plan.getCopySql();
+
+        // Get a connection to the database and start the COPY
+        PostgresqlConnectionScope scope = getConnectionScope();
+
+        CopyIn copyIn = null;
+        long rowCount = -1;
+
+        StatementListener listener = statementListener;
+        long start = startStatement(listener);
+
+        try {
+            copyIn = scope.getConnection().unwrap(PGConnection.class).getCopyAPI().copyIn(sql);
 
-            List<String> childMessages = new ArrayList<String>();
+            StringBuilder copyRows = new StringBuilder(COPY_BUFFER_SIZE);
 
-            for (int loop = 0; loop < count; loop++) {
-                childMessages.add(JsonFormat.printToString((Message) parentMessage.getRepeatedField(fieldDescriptor, loop)));
+            while (messages.hasNext()) {
+                Message message = messages.next();
+
+                if (message.getDescriptorForType() != descriptor) {
+                    throw new IllegalArgumentException("Expected " + descriptor.getFullName() + " but found " + message.getDescriptorForType().getFullName());
+                }
+
+                plan.appendCopyRow(message, copyRows);
+
+                // Have we built up enough data to send?
+                if (copyRows.length() >= COPY_BUFFER_SIZE) {
+                    // Yes, send it and start over
+                    writeToCopy(copyIn, copyRows);
+                }
             }
 
-            Array sqlArray = connection.createArrayOf(TEXT, childMessages.toArray());
-            preparedStatement.setArray(counter, sqlArray);
-        } else {
-            // No, just put one message
-            preparedStatement.setObject(counter, JsonFormat.printToString((Message) message));
+            // Send whatever is left and finish the COPY
+            writeToCopy(copyIn, copyRows);
+
+            rowCount = copyIn.endCopy();
+
+            return rowCount;
+        } finally {
+            try {
+                statementExecuted(listener, plan.getTableName(), sql, 0, start, rowCount, rowCount != -1);
+
+                // Did the COPY fail part way through?
+                if ((copyIn != null) && copyIn.isActive()) {
+                    // Yes, cancel it so the connection can be used again
+                    copyIn.cancelCopy();
+                }
+            } finally {
+                // Hand the connection back even if cancelling the COPY failed
+                release(scope, null);
+            }
         }
     }
 
+    private static void writeToCopy(CopyIn copyIn, StringBuilder copyRows) throws SQLException {
+        // Is there anything to send?
+        if (copyRows.length() == 0) {
+            // No, just return
+            return;
+        }
+
+        byte[] bytes = copyRows.toString().getBytes(COPY_CHARSET);
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+        copyRows.setLength(0);
+    }
+
     @Override
     public void innerDeleteAll(Descriptors.Descriptor descriptor, String protobufTypeName) throws SQLException {
-        // Start building the DELETE statement
-        StringBuilder deleteSql = new StringBuilder();
-        deleteSql.append(DELETE_FROM);
-        deleteSql.append(protobufTypeName);
+        PostgresqlStatementPlan plan = getPlan(descriptor, protobufTypeName);
+
+        String sql = plan.getDeleteAllSql();
 
-        PreparedStatement preparedStatement = getNewOrExistingConnection().prepareStatement(deleteSql.toString());
-        preparedStatement.execute();
+        // Get a connection to the database and prepare the statement
+        PostgresqlConnectionScope scope = getConnectionScope();
+        PreparedStatement preparedStatement = null;
+        long rowCount = -1;
+
+        StatementListener listener = statementListener;
+        long start = startStatement(listener);
+
+        try {
+            preparedStatement = scope.prepareStatement(sql);
+            preparedStatement.execute();
+            rowCount = preparedStatement.getUpdateCount();
+        } finally {
+            statementExecuted(listener, protobufTypeName, sql, 0, start, rowCount, rowCount != -1);
+
+            release(scope, preparedStatement);
+        }
     }
 
     @Override
     protected void innerDelete(Message message, Descriptors.FieldDescriptor fieldDescriptor, String protobufTypeName) throws SQLException {
-        // Start building the DELETE statement
-        StringBuilder deleteSql = new StringBuilder();
-        deleteSql.append(DELETE_FROM);
-        deleteSql.append(protobufTypeName);
+        PostgresqlStatementPlan plan = getPlan(message.getDescriptorForType(), protobufTypeName);
 
-        // Add the WHERE clause
-        idWhereClause(fieldDescriptor.getName(), deleteSql);
+        String sql = plan.getDeleteSql(fieldDescriptor.getName());
 
         // Get a connection to the database and prepare the statement
-        PreparedStatement preparedStatement = getNewOrExistingConnection().prepareStatement(deleteSql.toString());
-        preparedStatement.setObject(1, message.getField(fieldDescriptor));
-        preparedStatement.execute();
-    }
+        PostgresqlConnectionScope scope = getConnectionScope();
+        PreparedStatement preparedStatement = null;
+        long rowCount = -1;
 
-    private Connection getNewOrExistingConnection() throws SQLException {
-        if (currentConnection == null) {
-            currentConnection = dataSource.getConnection();
+        StatementListener listener = statementListener;
+        long start = startStatement(listener);
+
+        try {
+            preparedStatement = scope.prepareStatement(sql);
+            preparedStatement.setObject(1, message.getField(fieldDescriptor));
+            preparedStatement.execute();
+            rowCount = preparedStatement.getUpdateCount();
+        } finally {
+            statementExecuted(listener, protobufTypeName, sql, 1, start, rowCount, rowCount != -1);
+
+            release(scope, preparedStatement);
         }
+    }
 
-        return currentConnection;
+    @Override
+    public Transaction begin() throws SQLException {
+        return new PostgresqlTransaction(PostgresqlConnectionScope.forTransaction(dataSource));
     }
 
+    /**
+     * Starts a transaction for the calling thread.  Operations on other threads are not part of it.
+     *
+     * @throws SQLException
+     */
     @Override
     public void startTransaction() throws SQLException {
-        getNewOrExistingConnection().setAutoCommit(false);
+        // Is there already a transaction?
+        if (currentTransaction.get() == null) {
+            // No, pin a connection for it
+            currentTransaction.set(PostgresqlConnectionScope.forTransaction(dataSource));
+        }
     }
 
     @Override
     public void rollback() throws SQLException {
         throwExceptionIfTransactionNotStarted(ROLLBACK);
 
+        PostgresqlConnectionScope transaction = currentTransaction.get();
+        currentTransaction.remove();
+
         // Rollback and close the connection
-        getNewOrExistingConnection().rollback();
-        getNewOrExistingConnection().close();
-        currentConnection = null;
+        try {
+            transaction.rollback();
+        } finally {
+            transaction.close();
+        }
     }
 
     @Override
     public void commit() throws SQLException {
         throwExceptionIfTransactionNotStarted(COMMIT);
 
+        PostgresqlConnectionScope transaction = currentTransaction.get();
+        currentTransaction.remove();
+
         // Commit and close the connection
-        getNewOrExistingConnection().commit();
-        getNewOrExistingConnection().close();
-        currentConnection = null;
+        try {
+            transaction.commit();
+        } finally {
+            transaction.close();
+        }
     }
 
-    private void throwExceptionIfTransactionNotStarted(String errorType) throws SQLException {
-        if (currentConnection == null) {
-            throw new UnsupportedOperationException(errorType + " attempted without a connection");
+    private void throwExceptionIfTransactionNotStarted(String errorType) {
+        if (currentTransaction.get() == null) {
+            throw new UnsupportedOperationException(errorType + " attempted without a transaction");
         }
+    }
+
+    /**
+     * What the statement listener needs to know about the batch being built
+     */
+    private static class BatchState {
+        private final StatementListener listener;
+        private String tableName;
+        private String sql;
+        private int pending = 0;
+        private int bindCount = 0;
+        private long start;
+
+        private BatchState(StatementListener listener) {
+            this.listener = listener;
+        }
+
+        private void start() {
+            start = startStatement(listener);
+        }
+
+        private void executed(long rowCount, boolean succeeded) {
+            statementExecuted(listener, tableName, sql, bindCount, start, rowCount, succeeded);
+        }
+    }
+
+    /**
+     * Builds protobufs from a result set as it is iterated over
+     */
+    private static class ResultSetMessageCursor implements MessageCursor {
+        private final PostgresqlStatementPlan plan;
+        private final Message.Builder builder;
+        private final PostgresqlConnectionScope scope;
+        private final PreparedStatement preparedStatement;
+        private final ResultSet resultSet;
+        private final int[] columns;
+
+        private boolean advanced = false;
+        private boolean hasRow = false;
+        private boolean closed = false;
+
+        /**
+         * @param plan              the plan for the type of protobuf being selected
+         * @param builder           the builder to reuse for each row
+         * @param scope             the scope to close with the cursor, NULL if the cursor is inside of a transaction
+         * @param preparedStatement the statement the result set came from
+         * @param resultSet         the result set
+         */
+        private ResultSetMessageCursor(PostgresqlStatementPlan plan, Message.Builder builder, PostgresqlConnectionScope scope, PreparedStatement preparedStatement, ResultSet resultSet) throws SQLException {
+            this.plan = plan;
+            this.builder = builder;
+            this.scope = scope;
+            this.preparedStatement = preparedStatement;
+            this.resultSet = resultSet;
+            this.columns = plan.resolveColumns(resultSet);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (closed) {
+                return false;
+            }
+
+            // Have we already moved to the next row?
+            if (!advanced) {
+                // No, move to it now
+                try {
+                    hasRow = resultSet.next();
+                } catch (SQLException e) {
+                    throw new ProtobufPersistenceException(e);
+                }
 
-        if (currentConnection.getAutoCommit() == true) {
-            throw new UnsupportedOperationException(errorType + " attempted when auto-commit was on");
+                advanced = true;
+            }
+
+            return hasRow;
+        }
+
+        @Override
+        public Message next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            advanced = false;
+
+            // Clear out the builder and build a new protobuf
+            builder.clear();
+
+            try {
+                plan.readRow(resultSet, columns, builder);
+            } catch (SQLException e) {
+                throw new ProtobufPersistenceException(e);
+            } catch (JsonFormat.ParseException e) {
+                throw new ProtobufPersistenceException(e);
+            }
+
+            return builder.build();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Cursors are read-only");
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            try {
+                resultSet.close();
+            } finally {
+                try {
+                    preparedStatement.close();
+                } finally {
+                    // Do we own the connection?
+                    if (scope != null) {
+                        // Yes, end the read-only transaction and close it
+                        try {
+                            scope.rollback();
+                        } finally {
+                            scope.close();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A transaction with its own pinned connection
+     */
+    private class PostgresqlTransaction extends BoundTransaction<PostgresqlConnectionScope> {
+        private PostgresqlTransaction(PostgresqlConnectionScope scope) {
+            super(PostgresqlProtobufPersistence.this, scope);
+        }
+
+        @Override
+        protected PostgresqlConnectionScope bind(PostgresqlConnectionScope scope) {
+            PostgresqlConnectionScope previous = currentTransaction.get();
+
+            if (scope == null) {
+                currentTransaction.remove();
+            } else {
+                currentTransaction.set(scope);
+            }
+
+            return previous;
+        }
+
+        @Override
+        protected void commitState(boolean synchronous) throws SQLException {
+            try {
+                getState().commit(synchronous);
+            } finally {
+                getState().close();
+            }
+        }
+
+        @Override
+        protected void rollbackState() throws SQLException {
+            try {
+                getState().rollback();
+            } finally {
+                getState().close();
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,649 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.format.JsonFormat;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The SQL text and field binders for one protobuf type.  Plans are built once per descriptor and reused for every
+ * statement on that type.
+ */
+public class PostgresqlStatementPlan {
+    private static final String VALUES = " VALUES ";
+    private static final String CAST = "CAST(";
+    private static final String AS = " AS ";
+    private static final String INSERT_INTO = "INSERT INTO ";
+    private static final String SELECT_FROM = "SELECT * FROM ";
+    private static final String WHERE = " WHERE ";
+    private static final String VARIABLE = "?";
+    private static final String UPDATE = "UPDATE ";
+    private static final String SET = " SET ";
+    private static final String EQUALS = " = ";
+    private static final String DELETE_FROM = "DELETE FROM ";
+    private static final String COPY = "COPY ";
+    private static final String FROM_STDIN = " FROM STDIN";
+    private static final String JSONB = "jsonb";
+    private static final String JSON = "json";
+    private static final String CONTAINS = " @> ";
+    private static final String ANY = " = ANY(";
+
+    /**
+     * How a path query is pushed down to SQL
+     */
+    private enum PathFilter {
+        /**
+         * The path is a single scalar column
+         */
+        COLUMN,
+
+        /**
+         * The path is a single SQL array column
+         */
+        ARRAY_COLUMN,
+
+        /**
+         * The path goes into a JSON text column without crossing a repeated field, the field is extracted with ->>
+         */
+        JSON_EXTRACT,
+
+        /**
+         * The path goes into a JSON column, the column is tested with @> against a document that only has the path
+         */
+        JSONB_CONTAINS,
+
+        /**
+         * The path goes into a text[] column of JSON messages, any element is tested with @>
+         */
+        JSON_ARRAY_CONTAINS
+    }
+
+    private final Descriptors.Descriptor descriptor;
+    private final String tableName;
+    private final MessageEncoding messageEncoding;
+    private final PostgresqlFieldBinder[] binders;
+    private final PostgresqlFieldReader[] readers;
+
+    private final String insertSql;
+    private final String updateSqlWithoutWhere;
+    private final String selectAllSql;
+    private final String deleteAllSql;
+    private final String copySql;
+
+    /**
+     * Statements with a WHERE clause depend on the ID field so they are built the first time each ID field is used
+     */
+    private final ConcurrentMap<String, String> selectSqlByIdName = new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String, String> updateSqlByIdName = new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String, String> deleteSqlByIdName = new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String, String> selectSqlByPath = new ConcurrentHashMap<String, String>();
+
+    public PostgresqlStatementPlan(Descriptors.Descriptor descriptor, String tableName) {
+        this(descriptor, tableName, MessageEncoding.JSON);
+    }
+
+    public PostgresqlStatementPlan(Descriptors.Descriptor descriptor, String tableName, MessageEncoding messageEncoding) {
+        this.descriptor = descriptor;
+        this.tableName = tableName;
+        this.messageEncoding = messageEncoding;
+
+        List<Descriptors.FieldDescriptor> fields = descriptor.getFields();
+        binders = new PostgresqlFieldBinder[fields.size()];
+        readers = new PostgresqlFieldReader[fields.size()];
+
+        for (int loop = 0; loop < binders.length; loop++) {
+            binders[loop] = PostgresqlFieldBinder.forField(fields.get(loop), messageEncoding);
+            readers[loop] = PostgresqlFieldReader.forField(fields.get(loop), messageEncoding);
+        }
+
+        insertSql = buildInsertSql();
+        updateSqlWithoutWhere = buildUpdateSql();
+        selectAllSql = SELECT_FROM + tableName;
+        deleteAllSql = DELETE_FROM + tableName;
+        copySql = buildCopySql();
+    }
+
+    public Descriptors.Descriptor getDescriptor() {
+        return descriptor;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public String getInsertSql() {
+        return insertSql;
+    }
+
+    public String getDeleteAllSql() {
+        return deleteAllSql;
+    }
+
+    public String getCopySql() {
+        return copySql;
+    }
+
+    public String getSelectSql(String idName) {
+        // No ID name means no WHERE clause
+        if (idName == null) {
+            return selectAllSql;
+        }
+
+        String sql = selectSqlByIdName.get(idName);
+
+        if (sql == null) {
+            sql = selectSql(tableName, idName);
+            selectSqlByIdName.putIfAbsent(idName, sql);
+        }
+
+        return sql;
+    }
+
+    public String getUpdateSql(String idName) {
+        String sql = updateSqlByIdName.get(idName);
+
+        if (sql == null) {
+            StringBuilder updateSql = new StringBuilder(updateSqlWithoutWhere);
+            idWhereClause(idName, updateSql);
+            sql = updateSql.toString();
+            updateSqlByIdName.putIfAbsent(idName, sql);
+        }
+
+        return sql;
+    }
+
+    public String getDeleteSql(String idName) {
+        String sql = deleteSqlByIdName.get(idName);
+
+        if (sql == null) {
+            StringBuilder deleteSql = new StringBuilder(deleteAllSql);
+            idWhereClause(idName, deleteSql);
+            sql = deleteSql.toString();
+            deleteSqlByIdName.putIfAbsent(idName, sql);
+        }
+
+        return sql;
+    }
+
+    /**
+     * Gets the SELECT statement for a path query.  The statement has one parameter, bind it with
+     * getPathParameter().
+     *
+     * @param fieldPath the path to filter on
+     * @return
+     */
+    public String getPathSelectSql(FieldPath fieldPath) {
+        String sql = selectSqlByPath.get(fieldPath.getPath());
+
+        if (sql == null) {
+            sql = buildPathSelectSql(fieldPath);
+            selectSqlByPath.putIfAbsent(fieldPath.getPath(), sql);
+        }
+
+        return sql;
+    }
+
+    /**
+     * Converts the value of a path query to the parameter the statement from getPathSelectSql() expects
+     *
+     * @param fieldPath the path to filter on
+     * @param value     the value, already converted with FieldPath.parseValue()
+     * @return
+     */
+    public Object getPathParameter(FieldPath fieldPath, Object value) {
+        switch (getPathFilter(fieldPath)) {
+            case COLUMN:
+            case ARRAY_COLUMN:
+                // Enums are bound by name and cast in the SQL
+                return (value instanceof Descriptors.EnumValueDescriptor) ? ((Descriptors.EnumValueDescriptor) value).getName() : value;
+            case JSON_EXTRACT:
+                // ->> returns the field as text
+                return (value instanceof Descriptors.EnumValueDescriptor) ? ((Descriptors.EnumValueDescriptor) value).getName() : value.toString();
+            case JSONB_CONTAINS:
+                // Repeated messages in jsonb are stored in a JSON array so the document has to be in an array too
+                boolean wrapInArray = fieldPath.getFields().get(0).isRepeated();
+                return buildContainmentDocument(fieldPath, value, wrapInArray);
+            default:
+                // Each element of the text[] is a single message
+                return buildContainmentDocument(fieldPath, value, false);
+        }
+    }
+
+    /**
+     * Binds every field of the message to the prepared statement in the order the plan's SQL expects them
+     *
+     * @param message           the message to bind
+     * @param connection        the connection the statement belongs to
+     * @param preparedStatement the statement
+     * @param counter           the first JDBC parameter index to use
+     * @return the next unused JDBC parameter index
+     * @throws SQLException
+     */
+    public int bindParameters(Message message, Connection connection, PreparedStatement preparedStatement, int counter) throws SQLException {
+        for (PostgresqlFieldBinder binder : binders) {
+            binder.bind(connection, preparedStatement, counter, message);
+
+            // Move on to the next field
+            counter++;
+        }
+
+        return counter;
+    }
+
+    /**
+     * Finds the column for each field in a result set.  Do this once per result set and pass the result to readRow()
+     * for every row so columns don't have to be looked up by name on every row.
+     *
+     * @param resultSet the result set
+     * @return the column index of each field in the order readRow() expects them
+     * @throws SQLException
+     */
+    public int[] resolveColumns(ResultSet resultSet) throws SQLException {
+        int[] columns = new int[readers.length];
+
+        for (int loop = 0; loop < readers.length; loop++) {
+            columns[loop] = resultSet.findColumn(readers[loop].getFieldDescriptor().getName());
+        }
+
+        return columns;
+    }
+
+    /**
+     * Reads every field of the current row into the builder
+     *
+     * @param resultSet the result set with the current record selected
+     * @param columns   the column indexes from resolveColumns()
+     * @param builder   the builder to put the fields in
+     * @throws SQLException
+     * @throws JsonFormat.ParseException
+     */
+    public void readRow(ResultSet resultSet, int[] columns, Message.Builder builder) throws SQLException, JsonFormat.ParseException {
+        for (int loop = 0; loop < readers.length; loop++) {
+            readers[loop].read(resultSet, columns[loop], builder);
+        }
+    }
+
+    /**
+     * Appends one message to a COPY text stream as a single row with the columns in the order the COPY statement
+     * expects them
+     *
+     * @param message the message
+     * @param copyRow where to put the row
+     */
+    public void appendCopyRow(Message message, StringBuilder copyRow) {
+        String separator = "";
+
+        for (PostgresqlFieldBinder binder : binders) {
+            copyRow.append(separator);
+            binder.appendCopyText(copyRow, message);
+
+            separator = "\t";
+        }
+
+        copyRow.append('\n');
+    }
+
+    /**
+     * Builds a SELECT statement for a table with an optional parameterized WHERE clause
+     *
+     * @param tableName the table to select from
+     * @param idName    the field to filter on, NULL to select everything
+     * @return
+     */
+    public static String selectSql(String tableName, String idName) {
+        // Start building the SELECT statement from the table
+        StringBuilder selectSql = new StringBuilder();
+        selectSql.append(SELECT_FROM);
+        selectSql.append(tableName);
+
+        // If there is an ID add a WHERE clause
+        idWhereClause(idName, selectSql);
+
+        return selectSql.toString();
+    }
+
+    private String buildInsertSql() {
+        // Start building the INSERT statement
+        StringBuilder insertSql = new StringBuilder();
+        insertSql.append(INSERT_INTO);
+        insertSql.append(tableName);
+        insertSql.append(" ");
+
+        // Build the field name list and the field value placeholders separately.  They are combined later.
+        StringBuilder fieldNames = new StringBuilder();
+        StringBuilder fieldPlaceholders = new StringBuilder();
+
+        fieldNames.append("(");
+        fieldPlaceholders.append("(");
+
+        String separator = "";
+
+        // Loop through the fields
+        for (PostgresqlFieldBinder binder : binders) {
+            Descriptors.FieldDescriptor field = binder.getFieldDescriptor();
+
+            fieldNames.append(separator);
+            fieldPlaceholders.append(separator);
+
+            // Add the field name
+            safeAddFieldName(fieldNames, field.getName());
+
+            // Add the placeholder, cast if necessary
+            addPlaceholder(fieldPlaceholders, field);
+
+            separator = ", ";
+        }
+
+        // Close up the different parts of the INSERT statement
+        fieldNames.append(")");
+        fieldPlaceholders.append(")");
+
+        // Combine them
+        insertSql.append(fieldNames);
+        insertSql.append(VALUES);
+        insertSql.append(fieldPlaceholders);
+
+        return insertSql.toString();
+    }
+
+    private String buildCopySql() {
+        StringBuilder copySql = new StringBuilder();
+        copySql.append(COPY);
+        copySql.append(tableName);
+        copySql.append(" (");
+
+        String separator = "";
+
+        for (PostgresqlFieldBinder binder : binders) {
+            copySql.append(separator);
+            safeAddFieldName(copySql, binder.getFieldDescriptor().getName());
+
+            separator = ", ";
+        }
+
+        copySql.append(")");
+        copySql.append(FROM_STDIN);
+
+        return copySql.toString();
+    }
+
+    private String buildUpdateSql() {
+        // Start building the UPDATE statement
+        StringBuilder updateSql = new StringBuilder();
+        updateSql.append(UPDATE);
+        updateSql.append(tableName);
+        updateSql.append(SET);
+
+        String separator = "";
+
+        // Loop through all of the fields
+        for (PostgresqlFieldBinder binder : binders) {
+            Descriptors.FieldDescriptor field = binder.getFieldDescriptor();
+
+            updateSql.append(separator);
+
+            // Add the field name
+            safeAddFieldName(updateSql, field.getName());
+
+            updateSql.append(EQUALS);
+
+            // Add the placeholder, cast if necessary
+            addPlaceholder(updateSql, field);
+
+            separator = ", ";
+        }
+
+        return updateSql.toString();
+    }
+
+    /**
+     * Adds a WHERE clause if the ID name value is not NULL.  The WHERE clause is bound to a parameter, not an actual
+     * value.
+     *
+     * @param idName
+     * @param stringBuilder
+     */
+    private static void idWhereClause(String idName, StringBuilder stringBuilder) {
+        // Do we have an ID name value?
+        if (idName != null) {
+            // Yes, build the parameterized WHERE clause
+            stringBuilder.append(WHERE);
+            safeAddFieldName(stringBuilder, idName);
+            stringBuilder.append(EQUALS);
+            stringBuilder.append(VARIABLE);
+        }
+    }
+
+    private PathFilter getPathFilter(FieldPath fieldPath) {
+        List<Descriptors.FieldDescriptor> fields = fieldPath.getFields();
+        Descriptors.FieldDescriptor column = fields.get(0);
+
+        // Is the path just one field?
+        if (fields.size() == 1) {
+            // Yes, compare the column directly
+            return column.isRepeated() ? PathFilter.ARRAY_COLUMN : PathFilter.COLUMN;
+        }
+
+        switch (messageEncoding) {
+            case JSONB:
+                return PathFilter.JSONB_CONTAINS;
+            case JSON:
+                if (column.isRepeated()) {
+                    return PathFilter.JSON_ARRAY_CONTAINS;
+                }
+
+                // Can the field be extracted without going through a repeated field?
+                for (Descriptors.FieldDescriptor field : fields) {
+                    if (field.isRepeated()) {
+                        // No, use containment which matches any element of an array
+                        return PathFilter.JSONB_CONTAINS;
+                    }
+                }
+
+                return PathFilter.JSON_EXTRACT;
+            default:
+                throw new UnsupportedOperationException("Child messages stored as " + messageEncoding + " can't be queried by path");
+        }
+    }
+
+    private String buildPathSelectSql(FieldPath fieldPath) {
+        List<Descriptors.FieldDescriptor> fields = fieldPath.getFields();
+        Descriptors.FieldDescriptor column = fields.get(0);
+
+        StringBuilder selectSql = new StringBuilder();
+        selectSql.append(SELECT_FROM);
+        selectSql.append(tableName);
+        selectSql.append(WHERE);
+
+        switch (getPathFilter(fieldPath)) {
+            case COLUMN:
+                safeAddFieldName(selectSql, column.getName());
+                selectSql.append(EQUALS);
+                addPlaceholder(selectSql, column);
+                break;
+            case ARRAY_COLUMN:
+                addPlaceholder(selectSql, column);
+                selectSql.append(ANY);
+                safeAddFieldName(selectSql, column.getName());
+                selectSql.append(")");
+                break;
+            case JSON_EXTRACT:
+                // CAST("column" AS json)->'child'->>'field' = ?
+                addCast(selectSql, column.getName(), JSON);
+
+                for (int loop = 1; loop < fields.size(); loop++) {
+                    selectSql.append((loop == (fields.size() - 1)) ? "->>'" : "->'");
+                    selectSql.append(fields.get(loop).getName());
+                    selectSql.append("'");
+                }
+
+                selectSql.append(EQUALS);
+                selectSql.append(VARIABLE);
+                break;
+            case JSONB_CONTAINS:
+                // Only cast the column if it isn't already jsonb, otherwise a GIN index on it couldn't be used
+                if (messageEncoding == MessageEncoding.JSONB) {
+                    safeAddFieldName(selectSql, column.getName());
+                } else {
+                    addCast(selectSql, column.getName(), JSONB);
+                }
+
+                selectSql.append(CONTAINS);
+                addJsonbPlaceholder(selectSql);
+                break;
+            case JSON_ARRAY_CONTAINS:
+                selectSql.append("EXISTS (SELECT 1 FROM unnest(");
+                safeAddFieldName(selectSql, column.getName());
+                selectSql.append(") AS element WHERE CAST(element AS jsonb)");
+                selectSql.append(CONTAINS);
+                addJsonbPlaceholder(selectSql);
+                selectSql.append(")");
+                break;
+        }
+
+        return selectSql.toString();
+    }
+
+    /**
+     * Builds the smallest JSON document that a column contains when the field at the end of the path has the value,
+     * for example {"child": {"name": "value"}}.  Repeated fields on the path are put in arrays since an array contains
+     * another array if every element in the second one is in the first one.
+     *
+     * @param fieldPath   the path, the first field is the column
+     * @param value       the value of the field at the end of the path
+     * @param wrapInArray true if the column itself holds a JSON array
+     * @return
+     */
+    private static String buildContainmentDocument(FieldPath fieldPath, Object value, boolean wrapInArray) {
+        List<Descriptors.FieldDescriptor> fields = fieldPath.getFields();
+
+        StringBuilder document = new StringBuilder();
+
+        if (wrapInArray) {
+            document.append("[");
+        }
+
+        for (int loop = 1; loop < fields.size(); loop++) {
+            Descriptors.FieldDescriptor field = fields.get(loop);
+
+            document.append("{");
+            appendJsonString(document, field.getName());
+            document.append(": ");
+
+            if (field.isRepeated()) {
+                document.append("[");
+            }
+        }
+
+        appendJsonValue(document, value);
+
+        for (int loop = fields.size() - 1; loop >= 1; loop--) {
+            if (fields.get(loop).isRepeated()) {
+                document.append("]");
+            }
+
+            document.append("}");
+        }
+
+        if (wrapInArray) {
+            document.append("]");
+        }
+
+        return document.toString();
+    }
+
+    /**
+     * Appends a value the way JsonFormat prints it so it matches the JSON stored in the database
+     */
+    private static void appendJsonValue(StringBuilder json, Object value) {
+        if (value instanceof Descriptors.EnumValueDescriptor) {
+            appendJsonString(json, ((Descriptors.EnumValueDescriptor) value).getName());
+        } else if (value instanceof String) {
+            appendJsonString(json, (String) value);
+        } else {
+            // Numbers and booleans are printed as-is
+            json.append(value);
+        }
+    }
+
+    private static void appendJsonString(StringBuilder json, String value) {
+        json.append('"');
+
+        for (int loop = 0; loop < value.length(); loop++) {
+            char character = value.charAt(loop);
+
+            switch (character) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (character < 0x20) {
+                        json.append(String.format("\\u%04x", (int) character));
+                    } else {
+                        json.append(character);
+                    }
+            }
+        }
+
+        json.append('"');
+    }
+
+    private static void addCast(StringBuilder stringBuilder, String name, String type) {
+        stringBuilder.append(CAST);
+        safeAddFieldName(stringBuilder, name);
+        stringBuilder.append(AS);
+        stringBuilder.append(type);
+        stringBuilder.append(")");
+    }
+
+    private static void addJsonbPlaceholder(StringBuilder stringBuilder) {
+        stringBuilder.append(CAST);
+        stringBuilder.append(VARIABLE);
+        stringBuilder.append(AS);
+        stringBuilder.append(JSONB);
+        stringBuilder.append(")");
+    }
+
+    private void addPlaceholder(StringBuilder stringBuilder, Descriptors.FieldDescriptor field) {
+        // Is this an ENUM?
+        if (field.getType() == Descriptors.FieldDescriptor.Type.ENUM) {
+            // Yes, we'll need a SQL CAST here
+            stringBuilder.append(CAST);
+            stringBuilder.append(VARIABLE);
+            stringBuilder.append(AS);
+            stringBuilder.append(field.getEnumType().getName());
+            stringBuilder.append(")");
+        } else if ((field.getType() == Descriptors.FieldDescriptor.Type.MESSAGE) && (messageEncoding == MessageEncoding.JSONB)) {
+            // Child messages are sent as text, the column is jsonb
+            addJsonbPlaceholder(stringBuilder);
+        } else {
+            stringBuilder.append(VARIABLE);
+        }
+    }
+
+    private static void safeAddFieldName(StringBuilder stringBuilder, String name) {
+        // Add the field name with double quotes
+        stringBuilder.append("\"");
+        stringBuilder.append(name);
+        stringBuilder.append("\"");
+    }
+}
@@ -0,0 +1,38 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+
+/**
+ * Names tables after the full name of the protobuf with a leading prefix (usually the package) removed and all dots
+ * replaced with underscores.  For example, "domain.Outer.Inner" becomes "Outer_Inner" with the default prefix.
+ */
+public class PrefixTableNamingStrategy implements TableNamingStrategy {
+    public static final String DEFAULT_PREFIX = "domain.";
+
+    private final String prefix;
+
+    public PrefixTableNamingStrategy() {
+        this(DEFAULT_PREFIX);
+    }
+
+    /**
+     * @param prefix the prefix to remove from the start of the full name, NULL or empty to keep the full name
+     */
+    public PrefixTableNamingStrategy(String prefix) {
+        this.prefix = (prefix == null) ? "" : prefix;
+    }
+
+    @Override
+    public String getTableName(Descriptors.Descriptor descriptor) {
+        String fullName = descriptor.getFullName();
+
+        // Does the full name start with the prefix?
+        if (fullName.startsWith(prefix)) {
+            // Yes, remove it
+            fullName = fullName.substring(prefix.length());
+        }
+
+        // Replace all dots with underscores
+        return fullName.replace('.', '_');
+    }
+}
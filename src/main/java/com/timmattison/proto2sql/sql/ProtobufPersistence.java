@@ -24,6 +24,34 @@ public interface ProtobufPersistence {
      */
     public List<Message> select(String idName, String id, Message.Builder builder) throws SQLException, JsonFormat.ParseException;
 
+    /**
+     * SELECTs protobufs from a database one at a time.  Rows are only turned into protobufs as the cursor is advanced
+     * so large tables can be read without holding all of them in memory.  The cursor must be closed.
+     *
+     * @param idName  if filtering (WHERE clause) is desired this is the name of the field to filter by, NULL otherwise
+     * @param id      if filtering (WHERE clause) is desired this is the value of the field to filter by, NULL otherwise
+     * @param builder a builder for the type of protobuf requested, the cursor reuses it for every row
+     * @return
+     * @throws SQLException
+     * @throws JsonFormat.ParseException
+     */
+    public MessageCursor selectStream(String idName, String id, Message.Builder builder) throws SQLException, JsonFormat.ParseException;
+
+    /**
+     * SELECTs protobufs by the value of a field that can be inside of a child message.  The path names a field in the
+     * protobuf or a chain of fields through its child messages separated by dots, for example "child.name".  When a
+     * field on the path is repeated a protobuf matches if any of the elements match.  Implementations that store child
+     * messages in a queryable format filter in the database.
+     *
+     * @param path    the dotted path to a scalar field
+     * @param value   the value the field must have, it is converted to the field's type
+     * @param builder a builder for the type of protobuf requested
+     * @return
+     * @throws SQLException
+     * @throws JsonFormat.ParseException
+     */
+    public List<Message> selectByPath(String path, String value, Message.Builder builder) throws SQLException, JsonFormat.ParseException;
+
     /**
      * INSERTs a protobuf into a database
      *
@@ -33,6 +61,15 @@ public interface ProtobufPersistence {
      */
     public void insert(Message message, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException;
 
+    /**
+     * INSERTs many protobufs into a database.  Implementations may send them to the database in batches.
+     *
+     * @param messages        the protobufs themselves
+     * @param fieldDescriptor the field to use as their ID
+     * @throws SQLException
+     */
+    public void insertAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException;
+
     /**
      * UPDATEs a protobuf in a database where the ID field has not changed
      *
@@ -52,6 +89,16 @@ public interface ProtobufPersistence {
      */
     public void update(Message message, Descriptors.FieldDescriptor fieldDescriptor, Object previousId) throws SQLException;
 
+    /**
+     * UPDATEs many protobufs in a database where the ID fields have not changed.  Implementations may send them to
+     * the database in batches.
+     *
+     * @param messages        the protobufs themselves
+     * @param fieldDescriptor the field to use as their ID
+     * @throws SQLException
+     */
+    public void updateAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException;
+
     /**
      * DELETEs one protobuf of a certain type from the database
      *
@@ -61,6 +108,16 @@ public interface ProtobufPersistence {
      */
     public void delete(Message message, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException;
 
+    /**
+     * DELETEs many protobufs from the database by their IDs.  Implementations may send them to the database in
+     * batches.
+     *
+     * @param messages        the protobufs themselves
+     * @param fieldDescriptor the field to use as their ID
+     * @throws SQLException
+     */
+    public void deleteAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException;
+
     /**
      * DELETEs all protobufs of a certain type from the database
      *
@@ -69,6 +126,14 @@ public interface ProtobufPersistence {
      */
     public void deleteAll(Descriptors.Descriptor descriptor) throws SQLException;
 
+    /**
+     * Starts a transaction with its own connection that is not bound to the calling thread
+     *
+     * @return the transaction, close it when you are done with it
+     * @throws SQLException
+     */
+    public Transaction begin() throws SQLException;
+
     /**
      * Starts a transaction
      *
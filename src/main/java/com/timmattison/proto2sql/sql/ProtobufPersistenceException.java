@@ -0,0 +1,16 @@
+package com.timmattison.proto2sql.sql;
+
+/**
+ * Wraps checked exceptions from places that can't throw them, like Iterator methods
+ */
+public class ProtobufPersistenceException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ProtobufPersistenceException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public ProtobufPersistenceException(Throwable cause) {
+        super(cause);
+    }
+}
@@ -0,0 +1,135 @@
+package com.timmattison.proto2sql.sql;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs statements that take longer than a threshold, and the ones that fail, to java.util.logging at WARNING.  Fast
+ * statements only cost a comparison.
+ *
+ * A sample rate below 1 logs only that fraction of the slow statements so a database that slows down everything
+ * doesn't flood the log.  Each line says how many slow statements were skipped since the last one was logged.
+ */
+public class SlowQueryLogger implements StatementListener {
+    private static final Logger LOGGER = Logger.getLogger(SlowQueryLogger.class.getName());
+
+    private final Logger logger;
+    private final long thresholdNanos;
+    private final double sampleRate;
+
+    /**
+     * Chooses which slow statements are logged, NULL to use the current thread's random number generator
+     */
+    private final Random random;
+    private final AtomicLong slowStatementCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    /**
+     * Logs every slow statement
+     *
+     * @param threshold statements that take longer than this are logged
+     * @param timeUnit  the unit of threshold
+     */
+    public SlowQueryLogger(long threshold, TimeUnit timeUnit) {
+        this(threshold, timeUnit, 1.0);
+    }
+
+    /**
+     * @param threshold  statements that take longer than this are logged
+     * @param timeUnit   the unit of threshold
+     * @param sampleRate the fraction of slow statements to log, from 0 to 1
+     */
+    public SlowQueryLogger(long threshold, TimeUnit timeUnit, double sampleRate) {
+        this(LOGGER, threshold, timeUnit, sampleRate);
+    }
+
+    /**
+     * @param logger     where to log the slow statements
+     * @param threshold  statements that take longer than this are logged
+     * @param timeUnit   the unit of threshold
+     * @param sampleRate the fraction of slow statements to log, from 0 to 1
+     */
+    public SlowQueryLogger(Logger logger, long threshold, TimeUnit timeUnit, double sampleRate) {
+        this(logger, threshold, timeUnit, sampleRate, null);
+    }
+
+    /**
+     * @param logger     where to log the slow statements
+     * @param threshold  statements that take longer than this are logged
+     * @param timeUnit   the unit of threshold
+     * @param sampleRate the fraction of slow statements to log, from 0 to 1
+     * @param random     chooses which slow statements are logged, give it a seed to log the same ones every time.
+     *                   NULL uses the current thread's random number generator which doesn't contend between threads.
+     */
+    public SlowQueryLogger(Logger logger, long threshold, TimeUnit timeUnit, double sampleRate, Random random) {
+        if ((sampleRate < 0) || (sampleRate > 1)) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1, was " + sampleRate);
+        }
+
+        this.logger = logger;
+        this.thresholdNanos = timeUnit.toNanos(threshold);
+        this.sampleRate = sampleRate;
+        this.random = random;
+    }
+
+    @Override
+    public void statementExecuted(String tableName, String sql, int bindCount, long elapsedNanos, long rowCount, boolean failed) {
+        // Is this statement interesting?
+        if ((elapsedNanos <= thresholdNanos) && !failed) {
+            // No, most statements stop here
+            return;
+        }
+
+        slowStatementCount.incrementAndGet();
+
+        // Should this one be logged?
+        if (!logger.isLoggable(Level.WARNING) || ((sampleRate < 1) && (nextDouble() >= sampleRate))) {
+            // No, just remember that it was skipped
+            skippedCount.incrementAndGet();
+            return;
+        }
+
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append(failed ? "Failed statement on " : "Slow statement on ").append(tableName)
+                .append(" took ").append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)).append(" ms")
+                .append(", ").append(bindCount).append(" parameters");
+
+        if (rowCount >= 0) {
+            stringBuilder.append(", ").append(rowCount).append(" rows");
+        }
+
+        long skipped = skippedCount.getAndSet(0);
+
+        if (skipped != 0) {
+            stringBuilder.append(", ").append(skipped).append(" more not logged");
+        }
+
+        stringBuilder.append(": ").append(sql);
+
+        logger.log(Level.WARNING, stringBuilder.toString());
+    }
+
+    private double nextDouble() {
+        return (random == null) ? ThreadLocalRandom.current().nextDouble() : random.nextDouble();
+    }
+
+    /**
+     * @return the number of statements that were slower than the threshold or failed, including the ones that
+     * weren't logged
+     */
+    public long getSlowStatementCount() {
+        return slowStatementCount.get();
+    }
+
+    public long getThreshold(TimeUnit timeUnit) {
+        return timeUnit.convert(thresholdNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+}
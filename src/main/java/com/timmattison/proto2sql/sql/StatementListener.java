@@ -0,0 +1,22 @@
+package com.timmattison.proto2sql.sql;
+
+/**
+ * Told about every statement PostgresqlProtobufPersistence runs.  Listeners are called on the thread that ran the
+ * statement, before its connection is released, so they have to be thread safe, quick and must not throw.
+ */
+public interface StatementListener {
+    /**
+     * Called once a statement has finished
+     *
+     * @param tableName    the table the statement ran against
+     * @param sql          the SQL that was prepared, values are always bound as parameters so this never contains
+     *                     them
+     * @param bindCount    the number of parameters that were bound, for batches this is the total for every row in
+     *                     the batch
+     * @param elapsedNanos how long preparing, binding, executing and, for selects, reading every row took
+     * @param rowCount     the number of rows selected, written or deleted, -1 if it isn't known yet like for streaming
+     *                     selects, 0 if the statement failed
+     * @param failed       true if the statement threw an exception
+     */
+    public void statementExecuted(String tableName, String sql, int bindCount, long elapsedNanos, long rowCount, boolean failed);
+}
@@ -0,0 +1,17 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+
+/**
+ * Decides which table a protobuf type resides in.  Table names are looked up on every operation so implementations
+ * are only called once per type and the result is remembered.
+ */
+public interface TableNamingStrategy {
+    /**
+     * Gets the name of the table for a protobuf type
+     *
+     * @param descriptor the descriptor for the protobuf
+     * @return
+     */
+    public String getTableName(Descriptors.Descriptor descriptor);
+}
@@ -0,0 +1,101 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.format.JsonFormat;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * A transaction that carries its own connection.  Unlike startTransaction/commit/rollback on ProtobufPersistence a
+ * transaction is not tied to the thread that started it so many of them can be open at once.  A transaction must
+ * only be used by one thread at a time.  Closing a transaction that was not committed rolls it back.
+ */
+public interface Transaction extends AutoCloseable {
+    /**
+     * @see ProtobufPersistence#select(String, String, Message.Builder)
+     */
+    public List<Message> select(String idName, String id, Message.Builder builder) throws SQLException, JsonFormat.ParseException;
+
+    /**
+     * @see ProtobufPersistence#selectStream(String, String, Message.Builder)
+     */
+    public MessageCursor selectStream(String idName, String id, Message.Builder builder) throws SQLException, JsonFormat.ParseException;
+
+    /**
+     * @see ProtobufPersistence#selectByPath(String, String, Message.Builder)
+     */
+    public List<Message> selectByPath(String path, String value, Message.Builder builder) throws SQLException, JsonFormat.ParseException;
+
+    /**
+     * @see ProtobufPersistence#insert(Message, Descriptors.FieldDescriptor)
+     */
+    public void insert(Message message, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException;
+
+    /**
+     * @see ProtobufPersistence#insertAll(Iterable, Descriptors.FieldDescriptor)
+     */
+    public void insertAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException;
+
+    /**
+     * @see ProtobufPersistence#update(Message, Descriptors.FieldDescriptor)
+     */
+    public void update(Message message, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException;
+
+    /**
+     * @see ProtobufPersistence#update(Message, Descriptors.FieldDescriptor, Object)
+     */
+    public void update(Message message, Descriptors.FieldDescriptor fieldDescriptor, Object previousId) throws SQLException;
+
+    /**
+     * @see ProtobufPersistence#updateAll(Iterable, Descriptors.FieldDescriptor)
+     */
+    public void updateAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException;
+
+    /**
+     * @see ProtobufPersistence#delete(Message, Descriptors.FieldDescriptor)
+     */
+    public void delete(Message message, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException;
+
+    /**
+     * @see ProtobufPersistence#deleteAll(Iterable, Descriptors.FieldDescriptor)
+     */
+    public void deleteAll(Iterable<? extends Message> messages, Descriptors.FieldDescriptor fieldDescriptor) throws SQLException;
+
+    /**
+     * @see ProtobufPersistence#deleteAll(Descriptors.Descriptor)
+     */
+    public void deleteAll(Descriptors.Descriptor descriptor) throws SQLException;
+
+    /**
+     * Commits the transaction and waits until it is durable
+     *
+     * @throws SQLException
+     */
+    public void commit() throws SQLException;
+
+    /**
+     * Commits the transaction without waiting for it to be durable.  The changes are visible to everyone as soon as
+     * this returns but a crash shortly afterwards can lose them.  Use this for latency sensitive writes that can be
+     * lost.
+     *
+     * @throws SQLException
+     */
+    public void commitAsync() throws SQLException;
+
+    /**
+     * Rolls the transaction back
+     *
+     * @throws SQLException
+     */
+    public void rollback() throws SQLException;
+
+    /**
+     * Rolls the transaction back if it hasn't been committed or rolled back yet and releases its connection
+     *
+     * @throws SQLException
+     */
+    @Override
+    public void close() throws SQLException;
+}
@@ -0,0 +1,635 @@
+package com.timmattison.proto2sql.sql;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import com.google.protobuf.WireFormat;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes committed to an in-memory store so they survive a restart.
+ *
+ * Each record is a small protobuf message (the operation, the type and the message or ID it applies to) written
+ * with a four byte length and a four byte CRC32 in front of it.  The records of each commit are followed by a COMMIT
+ * record and replay ignores records that aren't followed by one, so a commit is either replayed completely or not at
+ * all.  Replay stops at the first record that is truncated or fails its checksum and cuts the log off there, that is
+ * where the process stopped writing.
+ *
+ * Appending only copies the record into a buffer.  Writers then wait for the buffer to reach the file, the first
+ * waiting writer writes everything that has been appended so far and calls fsync while the others wait for it.
+ * Writers that arrive during an fsync are handled together by the next one, this is what lets many concurrent
+ * writers share one fsync.
+ *
+ * The log doesn't know about snapshots.  InMemoryProtobufPersistence.checkpoint() writes snapshots of the store into
+ * the log's directory and then truncates the log.
+ */
+public class WriteAheadLog implements Closeable {
+    public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 1000;
+    public static final long DEFAULT_CHECKPOINT_BYTES = 64 * 1024 * 1024;
+
+    private static final String LOG_FILE_NAME = "wal.log";
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    private static final int OPERATION_FIELD = 1;
+    private static final int TYPE_FIELD = 2;
+    private static final int ID_FIELD_NUMBER_FIELD = 3;
+    private static final int MESSAGE_FIELD = 4;
+
+    /**
+     * The operations recorded in the log
+     */
+    public enum Operation {
+        PUT(1),
+        DELETE(2),
+        DELETE_ALL(3),
+        COMMIT(4);
+
+        private final int number;
+
+        Operation(int number) {
+            this.number = number;
+        }
+
+        private static Operation forNumber(int number) throws IOException {
+            for (Operation operation : values()) {
+                if (operation.number == number) {
+                    return operation;
+                }
+            }
+
+            throw new IOException("Unknown operation " + number);
+        }
+    }
+
+    /**
+     * Receives the records of committed changes during replay
+     */
+    public interface ReplayHandler {
+        void replay(Record record) throws IOException;
+    }
+
+    private final File directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final long checkpointBytes;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Thread flusher;
+
+    private final Object lock = new Object();
+
+    /**
+     * Records that have been appended but not written yet.  The writer doing the fsync swaps in the spare buffer
+     * while it writes so other threads can keep appending.
+     */
+    private RecordBuffer pending = new RecordBuffer();
+    private RecordBuffer spare = new RecordBuffer();
+
+    /**
+     * Positions count every byte ever appended to the log, they keep growing when the log is truncated
+     */
+    private long appendedPosition;
+    private long writtenPosition;
+    private long durablePosition;
+    private long truncatedPosition;
+    private long lastCommitPosition;
+
+    private boolean syncing = false;
+    private boolean replayed = false;
+    private boolean closed = false;
+    private IOException failure;
+
+    public WriteAheadLog(File directory, FsyncPolicy fsyncPolicy) throws IOException {
+        this(directory, fsyncPolicy, DEFAULT_FSYNC_INTERVAL_MILLIS, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    /**
+     * @param directory           the directory for the log and the snapshots that compact it
+     * @param fsyncPolicy         when writes are forced to disk
+     * @param fsyncIntervalMillis how often the background thread writes and, unless the policy is NEVER, forces
+     *                            records that nobody is waiting for (INTERVAL commits and asynchronous commits)
+     * @param checkpointBytes     how big the log can get before the store writes a snapshot and truncates it
+     * @throws IOException
+     */
+    public WriteAheadLog(File directory, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis, long checkpointBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.checkpointBytes = checkpointBytes;
+
+        file = new RandomAccessFile(new File(directory, LOG_FILE_NAME), "rw");
+        channel = file.getChannel();
+
+        flusher = new Thread(new Flusher(fsyncIntervalMillis), "WriteAheadLog flusher " + directory);
+        flusher.setDaemon(true);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Replays the committed records in the log and cuts off anything after the last complete commit.  This must be
+     * called once before anything is appended.
+     *
+     * @param replayHandler receives the records in the order they were appended
+     * @throws IOException
+     */
+    public void replay(ReplayHandler replayHandler) throws IOException {
+        synchronized (lock) {
+            if (replayed) {
+                throw new IllegalStateException("The log has already been replayed");
+            }
+
+            replayed = true;
+        }
+
+        long position = 0;
+        List<Record> uncommitted = new ArrayList<Record>();
+
+        channel.position(0);
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+
+        while (true) {
+            byte[] bytes;
+
+            try {
+                int length = input.readInt();
+                int checksum = input.readInt();
+
+                if ((length < 0) || (length > channel.size() - position - FRAME_HEADER_SIZE)) {
+                    // The length itself was torn
+                    break;
+                }
+
+                bytes = new byte[length];
+                input.readFully(bytes);
+
+                if (checksum != getChecksum(bytes)) {
+                    break;
+                }
+            } catch (EOFException e) {
+                break;
+            }
+
+            position += FRAME_HEADER_SIZE + bytes.length;
+
+            Record record = Record.parse(bytes);
+
+            // Is this the end of a commit?
+            if (record.getOperation() != Operation.COMMIT) {
+                // No, hold on to it until we know it was committed
+                uncommitted.add(record);
+                continue;
+            }
+
+            for (Record committed : uncommitted) {
+                replayHandler.replay(committed);
+            }
+
+            uncommitted.clear();
+            lastCommitPosition = position;
+        }
+
+        // Drop the partial commit and whatever was being written when the process stopped
+        channel.truncate(lastCommitPosition);
+        channel.position(lastCommitPosition);
+        channel.force(true);
+
+        synchronized (lock) {
+            appendedPosition = lastCommitPosition;
+            writtenPosition = lastCommitPosition;
+            durablePosition = lastCommitPosition;
+        }
+
+        flusher.start();
+    }
+
+    public void appendPut(String protobufTypeName, Descriptors.FieldDescriptor idField, Message message) {
+        append(new Record(Operation.PUT, protobufTypeName, idField.getNumber(), message.toByteString()));
+    }
+
+    /**
+     * Records a delete by ID.  The ID is recorded as a message of the type with only the ID field set.
+     */
+    public void appendDelete(String protobufTypeName, Descriptors.FieldDescriptor idField, Object id) {
+        ByteString idOnly = DynamicMessage.newBuilder(idField.getContainingType()).setField(idField, id).build().toByteString();
+
+        append(new Record(Operation.DELETE, protobufTypeName, idField.getNumber(), idOnly));
+    }
+
+    public void appendDeleteAll(String protobufTypeName) {
+        append(new Record(Operation.DELETE_ALL, protobufTypeName, 0, null));
+    }
+
+    /**
+     * Ends the records of a commit
+     *
+     * @return the position to pass to awaitDurable(), if nothing was appended since the last commit this is the
+     * position of the last commit
+     */
+    public long appendCommit() {
+        synchronized (lock) {
+            if (appendedPosition != lastCommitPosition) {
+                append(new Record(Operation.COMMIT, null, 0, null));
+                lastCommitPosition = appendedPosition;
+            }
+
+            return lastCommitPosition;
+        }
+    }
+
+    private void append(Record record) {
+        byte[] bytes = record.toByteArray();
+
+        synchronized (lock) {
+            if (!replayed) {
+                throw new IllegalStateException("The log must be replayed before anything is appended");
+            }
+
+            pending.writeInt(bytes.length);
+            pending.writeInt(getChecksum(bytes));
+            pending.write(bytes, 0, bytes.length);
+
+            appendedPosition += FRAME_HEADER_SIZE + bytes.length;
+        }
+    }
+
+    /**
+     * Waits until everything up to a position has been written and, if the policy is ALWAYS, forced to disk
+     *
+     * @param position a position returned by appendCommit()
+     * @throws IOException if the log could not be written, once this happens the log stays failed
+     */
+    public void awaitDurable(long position) throws IOException {
+        sync(position, fsyncPolicy == FsyncPolicy.ALWAYS);
+    }
+
+    /**
+     * Writes and, unless the policy is NEVER, forces everything appended so far
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        long position;
+
+        synchronized (lock) {
+            position = appendedPosition;
+        }
+
+        sync(position, fsyncPolicy != FsyncPolicy.NEVER);
+    }
+
+    /**
+     * @return true if the log has grown past the size where it should be compacted by a snapshot
+     */
+    public boolean isCheckpointDue() {
+        synchronized (lock) {
+            return (appendedPosition - truncatedPosition) > checkpointBytes;
+        }
+    }
+
+    /**
+     * @return the number of bytes in the log, including ones that haven't been written yet
+     */
+    public long getSize() {
+        synchronized (lock) {
+            return appendedPosition - truncatedPosition;
+        }
+    }
+
+    /**
+     * Empties the log once everything in it has been saved somewhere else.  Nothing can be appended while this runs
+     * and the last record must be a commit.
+     *
+     * @throws IOException
+     */
+    public void truncate() throws IOException {
+        synchronized (lock) {
+            while (syncing) {
+                waitForSync();
+            }
+
+            throwIfFailed();
+
+            pending.reset();
+
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+
+            // Everything appended so far is safe in the snapshots
+            truncatedPosition = appendedPosition;
+            writtenPosition = appendedPosition;
+            durablePosition = appendedPosition;
+
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            lock.notifyAll();
+        }
+
+        // Interrupting the flusher could close the channel in the middle of a write so just wake it up
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            if (replayed) {
+                flush();
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private void sync(long position, boolean force) throws IOException {
+        while (true) {
+            RecordBuffer batch;
+            long batchPosition;
+
+            synchronized (lock) {
+                while (true) {
+                    throwIfFailed();
+
+                    // Did another thread already get this far?
+                    if ((force ? durablePosition : writtenPosition) >= position) {
+                        // Yes, nothing to do
+                        return;
+                    }
+
+                    if (!syncing) {
+                        break;
+                    }
+
+                    waitForSync();
+                }
+
+                // Take everything appended so far
+                syncing = true;
+                batch = pending;
+                pending = spare;
+                spare = null;
+                batchPosition = appendedPosition;
+            }
+
+            IOException batchFailure = null;
+
+            try {
+                ByteBuffer bytes = batch.toByteBuffer();
+
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+
+                if (force) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                batchFailure = e;
+            } finally {
+                synchronized (lock) {
+                    batch.reset();
+                    spare = batch;
+                    syncing = false;
+
+                    if (batchFailure == null) {
+                        writtenPosition = Math.max(writtenPosition, batchPosition);
+
+                        if (force) {
+                            durablePosition = Math.max(durablePosition, batchPosition);
+                        }
+                    } else {
+                        failure = batchFailure;
+                    }
+
+                    lock.notifyAll();
+                }
+            }
+
+            throwIfFailed();
+        }
+    }
+
+    private void waitForSync() throws InterruptedIOException {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the write-ahead log");
+        }
+    }
+
+    private void throwIfFailed() throws IOException {
+        if (failure != null) {
+            throw new IOException("The write-ahead log failed earlier and can't be used", failure);
+        }
+    }
+
+    private static int getChecksum(byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes);
+
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * One change in the log
+     */
+    public static class Record {
+        private final Operation operation;
+        private final String protobufTypeName;
+        private final int idFieldNumber;
+        private final ByteString message;
+
+        private Record(Operation operation, String protobufTypeName, int idFieldNumber, ByteString message) {
+            this.operation = operation;
+            this.protobufTypeName = protobufTypeName;
+            this.idFieldNumber = idFieldNumber;
+            this.message = message;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        public String getProtobufTypeName() {
+            return protobufTypeName;
+        }
+
+        /**
+         * @return the number of the ID field for PUT and DELETE records
+         */
+        public int getIdFieldNumber() {
+            return idFieldNumber;
+        }
+
+        /**
+         * @return the message for PUT records and a message with only its ID set for DELETE records
+         */
+        public ByteString getMessage() {
+            return message;
+        }
+
+        private byte[] toByteArray() {
+            int size = CodedOutputStream.computeEnumSize(OPERATION_FIELD, operation.number);
+
+            if (protobufTypeName != null) {
+                size += CodedOutputStream.computeStringSize(TYPE_FIELD, protobufTypeName);
+            }
+
+            if (idFieldNumber != 0) {
+                size += CodedOutputStream.computeUInt32Size(ID_FIELD_NUMBER_FIELD, idFieldNumber);
+            }
+
+            if (message != null) {
+                size += CodedOutputStream.computeBytesSize(MESSAGE_FIELD, message);
+            }
+
+            byte[] bytes = new byte[size];
+            CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+
+            try {
+                output.writeEnum(OPERATION_FIELD, operation.number);
+
+                if (protobufTypeName != null) {
+                    output.writeString(TYPE_FIELD, protobufTypeName);
+                }
+
+                if (idFieldNumber != 0) {
+                    output.writeUInt32(ID_FIELD_NUMBER_FIELD, idFieldNumber);
+                }
+
+                if (message != null) {
+                    output.writeBytes(MESSAGE_FIELD, message);
+                }
+
+                output.checkNoSpaceLeft();
+            } catch (IOException e) {
+                // Can't happen, the array is exactly the right size
+                throw new ProtobufPersistenceException(e);
+            }
+
+            return bytes;
+        }
+
+        private static Record parse(byte[] bytes) throws IOException {
+            CodedInputStream input = CodedInputStream.newInstance(bytes);
+
+            Operation operation = null;
+            String protobufTypeName = null;
+            int idFieldNumber = 0;
+            ByteString message = null;
+
+            for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case OPERATION_FIELD:
+                        operation = Operation.forNumber(input.readEnum());
+                        break;
+                    case TYPE_FIELD:
+                        protobufTypeName = input.readString();
+                        break;
+                    case ID_FIELD_NUMBER_FIELD:
+                        idFieldNumber = input.readUInt32();
+                        break;
+                    case MESSAGE_FIELD:
+                        message = input.readBytes();
+                        break;
+                    default:
+                        input.skipField(tag);
+                }
+            }
+
+            if (operation == null) {
+                throw new IOException("Log record without an operation");
+            }
+
+            return new Record(operation, protobufTypeName, idFieldNumber, message);
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream that can be written to the channel without copying
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        private void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Writes the records nobody is waiting for
+     */
+    private class Flusher implements Runnable {
+        private final long intervalMillis;
+
+        private Flusher(long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (waitForInterval()) {
+                    flush();
+                }
+            } catch (InterruptedException | IOException e) {
+                // Do nothing, failures are kept and thrown to the writers
+            }
+        }
+
+        /**
+         * @return false if the log was closed while waiting
+         */
+        private boolean waitForInterval() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + intervalMillis;
+
+            synchronized (lock) {
+                // Other threads notify the lock all the time so keep waiting until the interval is really over
+                for (long remaining = intervalMillis; !closed && (remaining > 0); remaining = deadline - System.currentTimeMillis()) {
+                    lock.wait(remaining);
+                }
+
+                return !closed;
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.timmattison.proto2sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.timmattison.proto2sql.sql.AsyncProtobufPersistence;
+import com.timmattison.proto2sql.sql.InMemoryProtobufPersistence;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that operations run on the executor, failures reach the futures and the number of outstanding operations
+ * is limited
+ */
+public class AsyncProtobufPersistenceTest {
+    private final Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+
+    private AsyncProtobufPersistence asyncProtobufPersistence;
+
+    @Before
+    public void setup() {
+        asyncProtobufPersistence = new AsyncProtobufPersistence(new InMemoryProtobufPersistence(), 4, 16);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        asyncProtobufPersistence.close();
+    }
+
+    @Test
+    public void testOperations() throws Exception {
+        List<Message> messages = new ArrayList<Message>();
+
+        for (int loop = 0; loop < 10; loop++) {
+            messages.add(TestProtobufs.SearchRequest.newBuilder().setQuery("Query " + loop).setPageNumber(loop).build());
+        }
+
+        asyncProtobufPersistence.insertAll(messages, idField).get();
+
+        TestProtobufs.SearchRequest updated = TestProtobufs.SearchRequest.newBuilder().setQuery("Query 1").setPageNumber(100).build();
+        asyncProtobufPersistence.update(updated, idField).get();
+        asyncProtobufPersistence.delete(messages.get(0), idField).get();
+
+        List<Message> results = asyncProtobufPersistence.select("query", "Query 1", TestProtobufs.SearchRequest.newBuilder()).get();
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(updated, results.get(0));
+
+        Assert.assertEquals(9, asyncProtobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder()).get().size());
+
+        asyncProtobufPersistence.deleteAll(TestProtobufs.SearchRequest.getDescriptor()).get();
+        Assert.assertTrue(asyncProtobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder()).get().isEmpty());
+        Assert.assertEquals(0, asyncProtobufPersistence.getOutstandingCount());
+    }
+
+    @Test
+    public void testFailuresCompleteTheFuture() throws Exception {
+        TestProtobufs.SearchRequest searchRequest = TestProtobufs.SearchRequest.newBuilder().setQuery("Query").build();
+        asyncProtobufPersistence.insert(searchRequest, idField).get();
+
+        try {
+            asyncProtobufPersistence.insert(searchRequest, idField).get();
+            Assert.fail("The duplicate insert should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof SQLException);
+        }
+
+        Assert.assertEquals(0, asyncProtobufPersistence.getOutstandingCount());
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        final AsyncProtobufPersistence limited = AsyncProtobufPersistence.withVirtualThreads(new InMemoryProtobufPersistence(), 2);
+
+        // Operations don't wait for a slot unless they are told to
+        Assert.assertEquals(0, limited.getMaximumWait(TimeUnit.NANOSECONDS));
+
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch finish = new CountDownLatch(1);
+        List<CompletableFuture<Boolean>> blocked = new ArrayList<CompletableFuture<Boolean>>();
+
+        try {
+            for (int loop = 0; loop < 2; loop++) {
+                blocked.add(limited.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        started.countDown();
+                        return finish.await(1, TimeUnit.MINUTES);
+                    }
+                }));
+            }
+
+            Assert.assertTrue(started.await(1, TimeUnit.MINUTES));
+            Assert.assertEquals(2, limited.getOutstandingCount());
+
+            // There is no room for a third operation
+            try {
+                limited.select(null, null, TestProtobufs.SearchRequest.newBuilder()).get();
+                Assert.fail("The select should have been rejected");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+
+            // Waiting a short time doesn't help either
+            limited.setMaximumWait(10, TimeUnit.MILLISECONDS);
+
+            try {
+                limited.select(null, null, TestProtobufs.SearchRequest.newBuilder()).get();
+                Assert.fail("The select should have been rejected after waiting");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+
+            // Waiting as long as it takes gets the next free slot
+            limited.setMaximumWait(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+            FutureTask<Void> waitingInsert = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    return limited.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Waited").build(), idField).get();
+                }
+            });
+
+            Thread waitingThread = new Thread(waitingInsert);
+            waitingThread.start();
+
+            while (waitingThread.getState() != Thread.State.WAITING) {
+                Thread.yield();
+            }
+
+            finish.countDown();
+
+            for (CompletableFuture<Boolean> future : blocked) {
+                Assert.assertTrue(future.get());
+            }
+
+            waitingInsert.get(1, TimeUnit.MINUTES);
+
+            // Once they finish there is room again
+            limited.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query").build(), idField).get();
+            Assert.assertEquals(2, limited.select(null, null, TestProtobufs.SearchRequest.newBuilder()).get().size());
+        } finally {
+            finish.countDown();
+            limited.close();
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.timmattison.proto2sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.timmattison.proto2sql.sql.BloomFilter;
+import com.timmattison.proto2sql.sql.CachingProtobufPersistence;
+import com.timmattison.proto2sql.sql.InMemoryProtobufPersistence;
+import com.timmattison.proto2sql.sql.ProtobufPersistence;
+import com.timmattison.proto2sql.sql.Transaction;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the common persistence tests through the cache and checks when cached results are used
+ */
+public class CachingProtobufPersistenceTest extends ProtobufPersistenceTest {
+    private final Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+
+    private InMemoryProtobufPersistence inMemoryProtobufPersistence;
+    private CachingProtobufPersistence cachingProtobufPersistence;
+
+    @Override
+    protected void innerTeardown() {
+        // Do nothing
+    }
+
+    @Override
+    protected void innerSetup() {
+        inMemoryProtobufPersistence = new InMemoryProtobufPersistence();
+        cachingProtobufPersistence = new CachingProtobufPersistence(inMemoryProtobufPersistence, 1000, 1, TimeUnit.MINUTES);
+        protobufPersistence = cachingProtobufPersistence;
+        random = new Random(0);
+    }
+
+    @Test
+    public void testRepeatedSelectsAreCached() throws Exception {
+        TestProtobufs.SearchRequest original = TestProtobufs.SearchRequest.newBuilder().setQuery("Query").setPageNumber(1).build();
+        protobufPersistence.insert(original, idField);
+
+        Assert.assertEquals(original, protobufPersistence.select("query", "Query", TestProtobufs.SearchRequest.newBuilder()).get(0));
+        Assert.assertEquals(original, protobufPersistence.select("query", "Query", TestProtobufs.SearchRequest.newBuilder()).get(0));
+        Assert.assertEquals(1, cachingProtobufPersistence.getMissCount());
+        Assert.assertEquals(1, cachingProtobufPersistence.getHitCount());
+
+        // Changes made behind the cache's back aren't seen
+        inMemoryProtobufPersistence.update(original.toBuilder().setPageNumber(2).build(), idField);
+        Assert.assertEquals(original, protobufPersistence.select("query", "Query", TestProtobufs.SearchRequest.newBuilder()).get(0));
+
+        // Changes made through it are
+        TestProtobufs.SearchRequest updated = original.toBuilder().setPageNumber(3).build();
+        protobufPersistence.update(updated, idField);
+        Assert.assertEquals(updated, protobufPersistence.select("query", "Query", TestProtobufs.SearchRequest.newBuilder()).get(0));
+    }
+
+    @Test
+    public void testWritesInvalidateSelectsByOtherFields() throws Exception {
+        protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("First").setPageNumber(1).build(), idField);
+
+        Assert.assertEquals(1, protobufPersistence.select("page_number", "1", TestProtobufs.SearchRequest.newBuilder()).size());
+        Assert.assertEquals(1, protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder()).size());
+        Assert.assertTrue(protobufPersistence.select("query", "Other", TestProtobufs.SearchRequest.newBuilder()).isEmpty());
+
+        protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Second").setPageNumber(1).build(), idField);
+
+        Assert.assertEquals(2, protobufPersistence.select("page_number", "1", TestProtobufs.SearchRequest.newBuilder()).size());
+        Assert.assertEquals(2, protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder()).size());
+
+        // Only the select by the written field and value had to be reloaded
+        long missCount = cachingProtobufPersistence.getMissCount();
+        Assert.assertTrue(protobufPersistence.select("query", "Other", TestProtobufs.SearchRequest.newBuilder()).isEmpty());
+        Assert.assertEquals(missCount, cachingProtobufPersistence.getMissCount());
+    }
+
+    @Test
+    public void testTransactionsInvalidateOnCommit() throws Exception {
+        TestProtobufs.SearchRequest original = TestProtobufs.SearchRequest.newBuilder().setQuery("Query").setPageNumber(1).build();
+        TestProtobufs.SearchRequest updated = original.toBuilder().setPageNumber(2).build();
+        protobufPersistence.insert(original, idField);
+
+        try (Transaction transaction = protobufPersistence.begin()) {
+            transaction.update(updated, idField);
+
+            // The transaction sees its own change, everybody else still sees the cached result
+            Assert.assertEquals(updated, transaction.select("query", "Query", TestProtobufs.SearchRequest.newBuilder()).get(0));
+            Assert.assertEquals(original, protobufPersistence.select("query", "Query", TestProtobufs.SearchRequest.newBuilder()).get(0));
+
+            transaction.commit();
+        }
+
+        Assert.assertEquals(updated, protobufPersistence.select("query", "Query", TestProtobufs.SearchRequest.newBuilder()).get(0));
+
+        try (Transaction transaction = protobufPersistence.begin()) {
+            transaction.delete(updated, idField);
+        }
+
+        // Rolled back changes don't invalidate anything
+        long missCount = cachingProtobufPersistence.getMissCount();
+        Assert.assertEquals(updated, protobufPersistence.select("query", "Query", TestProtobufs.SearchRequest.newBuilder()).get(0));
+        Assert.assertEquals(missCount, cachingProtobufPersistence.getMissCount());
+    }
+
+    @Test
+    public void testFailedCommitEndsTheTransaction() throws Exception {
+        // Another thread caches that there is no "Later"
+        protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Other").build(), idField);
+        Assert.assertTrue(selectOnAnotherThread("Later").isEmpty());
+
+        protobufPersistence.startTransaction();
+        protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query").build(), idField);
+
+        // Somebody else commits the same ID first
+        try (Transaction transaction = inMemoryProtobufPersistence.begin()) {
+            transaction.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query").build(), idField);
+            transaction.commit();
+        }
+
+        try {
+            protobufPersistence.commit();
+            Assert.fail("The commit should have failed");
+        } catch (SQLException e) {
+            Assert.assertEquals("23505", e.getSQLState());
+        }
+
+        // Writes after the failed commit aren't held back for a transaction that is over
+        protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Later").build(), idField);
+        Assert.assertEquals(1, selectOnAnotherThread("Later").size());
+    }
+
+    @Test
+    public void testWriteAfterFailedCommitIsAddedToBloomFilter() throws Exception {
+        protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Other").build(), idField);
+        cachingProtobufPersistence.enableBloomFilter(TestProtobufs.SearchRequest.newBuilder(), "query", 1000, 0.01);
+
+        protobufPersistence.startTransaction();
+        protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query").build(), idField);
+
+        try (Transaction transaction = inMemoryProtobufPersistence.begin()) {
+            transaction.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query").build(), idField);
+            transaction.commit();
+        }
+
+        try {
+            protobufPersistence.commit();
+            Assert.fail("The commit should have failed");
+        } catch (SQLException e) {
+            Assert.assertEquals("23505", e.getSQLState());
+        }
+
+        // The insert isn't mistaken for part of the failed transaction so the filter gets its ID
+        protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Later").build(), idField);
+        Assert.assertEquals(1, selectOnAnotherThread("Later").size());
+    }
+
+    /**
+     * Selects by query from a thread that isn't in a transaction so the cache is used
+     */
+    private List<Message> selectOnAnotherThread(final String query) throws Exception {
+        FutureTask<List<Message>> select = new FutureTask<List<Message>>(new Callable<List<Message>>() {
+            @Override
+            public List<Message> call() throws Exception {
+                return cachingProtobufPersistence.select("query", query, TestProtobufs.SearchRequest.newBuilder());
+            }
+        });
+
+        new Thread(select).start();
+
+        return select.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedResultsAreEvicted() throws Exception {
+        cachingProtobufPersistence = new CachingProtobufPersistence(inMemoryProtobufPersistence, 2, 1, TimeUnit.MINUTES);
+
+        for (int loop = 0; loop < 3; loop++) {
+            cachingProtobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query " + loop).build(), idField);
+        }
+
+        cachingProtobufPersistence.select("query", "Query 0", TestProtobufs.SearchRequest.newBuilder());
+        cachingProtobufPersistence.select("query", "Query 1", TestProtobufs.SearchRequest.newBuilder());
+        cachingProtobufPersistence.select("query", "Query 0", TestProtobufs.SearchRequest.newBuilder());
+        cachingProtobufPersistence.select("query", "Query 2", TestProtobufs.SearchRequest.newBuilder());
+
+        Assert.assertEquals(2, cachingProtobufPersistence.size());
+
+        // Query 1 was used least recently
+        long missCount = cachingProtobufPersistence.getMissCount();
+        cachingProtobufPersistence.select("query", "Query 0", TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(missCount, cachingProtobufPersistence.getMissCount());
+        cachingProtobufPersistence.select("query", "Query 1", TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(missCount + 1, cachingProtobufPersistence.getMissCount());
+    }
+
+    @Test
+    public void testResultsExpire() throws Exception {
+        cachingProtobufPersistence = new CachingProtobufPersistence(inMemoryProtobufPersistence, 10, 0, TimeUnit.NANOSECONDS);
+        cachingProtobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query").build(), idField);
+
+        List<Message> results = cachingProtobufPersistence.select("query", "Query", TestProtobufs.SearchRequest.newBuilder());
+        Thread.sleep(1);
+        Assert.assertEquals(results, cachingProtobufPersistence.select("query", "Query", TestProtobufs.SearchRequest.newBuilder()));
+
+        Assert.assertEquals(0, cachingProtobufPersistence.getHitCount());
+        Assert.assertEquals(2, cachingProtobufPersistence.getMissCount());
+    }
+
+    @Test
+    public void testNegativeResultsExpireSooner() throws Exception {
+        cachingProtobufPersistence = new CachingProtobufPersistence(inMemoryProtobufPersistence, 10, TimeUnit.MINUTES.toNanos(1), 0, TimeUnit.NANOSECONDS);
+        cachingProtobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query").build(), idField);
+
+        cachingProtobufPersistence.select("query", "Query", TestProtobufs.SearchRequest.newBuilder());
+        cachingProtobufPersistence.select("query", "Missing", TestProtobufs.SearchRequest.newBuilder());
+        Thread.sleep(1);
+        cachingProtobufPersistence.select("query", "Query", TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertTrue(cachingProtobufPersistence.select("query", "Missing", TestProtobufs.SearchRequest.newBuilder()).isEmpty());
+
+        Assert.assertEquals(1, cachingProtobufPersistence.getHitCount());
+        Assert.assertEquals(3, cachingProtobufPersistence.getMissCount());
+    }
+
+    @Test
+    public void testBloomFilterSkipsMissingIds() throws Exception {
+        // Messages stored before the filter is enabled are found by its scan
+        for (int loop = 0; loop < 100; loop++) {
+            inMemoryProtobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query " + loop).build(), idField);
+        }
+
+        cachingProtobufPersistence.enableBloomFilter(TestProtobufs.SearchRequest.newBuilder(), "query", 1000, 0.01);
+
+        Assert.assertEquals(1, cachingProtobufPersistence.select("query", "Query 50", TestProtobufs.SearchRequest.newBuilder()).size());
+        Assert.assertEquals(1, cachingProtobufPersistence.getMissCount());
+
+        for (int loop = 0; loop < 1000; loop++) {
+            Assert.assertTrue(cachingProtobufPersistence.select("query", "Missing " + loop, TestProtobufs.SearchRequest.newBuilder()).isEmpty());
+        }
+
+        // Nearly all of the missing IDs never reached the underlying persistence
+        BloomFilter bloomFilter = cachingProtobufPersistence.getBloomFilter(TestProtobufs.SearchRequest.getDescriptor());
+        Assert.assertEquals(1001, bloomFilter.getCheckCount());
+        Assert.assertEquals(1000, bloomFilter.getRejectionCount() + bloomFilter.getFalsePositiveCount());
+        Assert.assertEquals(1 + bloomFilter.getFalsePositiveCount(), cachingProtobufPersistence.getMissCount());
+        Assert.assertEquals(bloomFilter.getRejectionCount(), cachingProtobufPersistence.getHitCount());
+        Assert.assertTrue(bloomFilter.getObservedFalsePositiveRate() < 0.05);
+        Assert.assertTrue(bloomFilter.getExpectedFalsePositiveRate() < 0.05);
+
+        // IDs inserted and updated through the cache are added to the filter
+        cachingProtobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Inserted").build(), idField);
+        Assert.assertEquals(1, cachingProtobufPersistence.select("query", "Inserted", TestProtobufs.SearchRequest.newBuilder()).size());
+
+        try (Transaction transaction = cachingProtobufPersistence.begin()) {
+            transaction.update(TestProtobufs.SearchRequest.newBuilder().setQuery("Renamed").build(), idField, "Query 0");
+            transaction.commit();
+        }
+
+        Assert.assertEquals(1, cachingProtobufPersistence.select("query", "Renamed", TestProtobufs.SearchRequest.newBuilder()).size());
+    }
+
+    @Test
+    public void testCachedFalsePositivesAreOnlyCountedOnce() throws Exception {
+        // A filter this small is nearly full after a few IDs so most missing IDs get through it
+        cachingProtobufPersistence.enableBloomFilter(TestProtobufs.SearchRequest.newBuilder(), "query", 1, 0.5);
+
+        for (int loop = 0; loop < 100; loop++) {
+            cachingProtobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query " + loop).build(), idField);
+        }
+
+        BloomFilter bloomFilter = cachingProtobufPersistence.getBloomFilter(TestProtobufs.SearchRequest.getDescriptor());
+        int missing = 0;
+
+        while (!bloomFilter.mightContain("Missing " + missing)) {
+            missing++;
+        }
+
+        // The first select reaches the underlying persistence, the second is answered by the cache
+        Assert.assertTrue(cachingProtobufPersistence.select("query", "Missing " + missing, TestProtobufs.SearchRequest.newBuilder()).isEmpty());
+        Assert.assertTrue(cachingProtobufPersistence.select("query", "Missing " + missing, TestProtobufs.SearchRequest.newBuilder()).isEmpty());
+
+        Assert.assertEquals(1, cachingProtobufPersistence.getHitCount());
+        Assert.assertEquals(1, bloomFilter.getFalsePositiveCount());
+    }
+
+    @Test
+    public void testBloomFilterRebuildWaitsForInsertsInProgress() throws Exception {
+        final CountDownLatch insertStarted = new CountDownLatch(1);
+        final CountDownLatch finishInsert = new CountDownLatch(1);
+
+        // Holds inserts in the underlying persistence until they are allowed to finish
+        ProtobufPersistence blockingProtobufPersistence = (ProtobufPersistence) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ProtobufPersistence.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("insert")) {
+                    insertStarted.countDown();
+                    finishInsert.await();
+                }
+
+                try {
+                    return method.invoke(inMemoryProtobufPersistence, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+
+        final CachingProtobufPersistence caching = new CachingProtobufPersistence(blockingProtobufPersistence, 1000, 1, TimeUnit.MINUTES);
+        caching.enableBloomFilter(TestProtobufs.SearchRequest.newBuilder(), "query", 1000, 0.01);
+
+        // The insert adds its ID to the current filter and then waits before it is stored
+        FutureTask<Void> insert = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                caching.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Inserted").build(), idField);
+                return null;
+            }
+        });
+
+        new Thread(insert).start();
+        Assert.assertTrue(insertStarted.await(10, TimeUnit.SECONDS));
+
+        // The rebuild registers its filter after the insert added its ID
+        FutureTask<Void> rebuild = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                caching.enableBloomFilter(TestProtobufs.SearchRequest.newBuilder(), "query", 1000, 0.01);
+                return null;
+            }
+        });
+
+        Thread rebuildThread = new Thread(rebuild);
+        rebuildThread.start();
+
+        // Let the rebuild get as far as it can, its scan must not run before the insert is stored
+        while ((rebuildThread.getState() != Thread.State.WAITING) && (rebuildThread.getState() != Thread.State.TERMINATED)) {
+            Thread.yield();
+        }
+
+        finishInsert.countDown();
+        insert.get(10, TimeUnit.SECONDS);
+        rebuild.get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(1, caching.select("query", "Inserted", TestProtobufs.SearchRequest.newBuilder()).size());
+    }
+
+    @Test
+    public void testBloomFilterRegisteredDuringATransactionGetsItsIds() throws Exception {
+        try (Transaction transaction = cachingProtobufPersistence.begin()) {
+            transaction.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Inserted").build(), idField);
+
+            // The scan can't see the insert until the transaction commits
+            cachingProtobufPersistence.enableBloomFilter(TestProtobufs.SearchRequest.newBuilder(), "query", 1000, 0.01);
+
+            transaction.commit();
+        }
+
+        Assert.assertEquals(1, cachingProtobufPersistence.select("query", "Inserted", TestProtobufs.SearchRequest.newBuilder()).size());
+    }
+}
@@ -0,0 +1,21 @@
+package com.timmattison.proto2sql;
+
+import com.timmattison.proto2sql.sql.ConcurrentInMemoryProtobufPersistence;
+
+import java.util.Random;
+
+/**
+ * Runs the common persistence tests against the concurrent in-memory implementation
+ */
+public class ConcurrentInMemoryProtobufPersistenceTest extends ProtobufPersistenceTest {
+    @Override
+    protected void innerTeardown() {
+        // Do nothing
+    }
+
+    @Override
+    protected void innerSetup() {
+        protobufPersistence = new ConcurrentInMemoryProtobufPersistence();
+        random = new Random(0);
+    }
+}
@@ -0,0 +1,54 @@
+package com.timmattison.proto2sql;
+
+import com.google.protobuf.DynamicMessage;
+import com.timmattison.proto2sql.sql.ConvertToPostgresql;
+import com.timmattison.proto2sql.sql.MessageEncoding;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Created by timmattison on 11/24/14.
+ */
+public class ConvertToPostgresqlTest {
+    @Test
+    public void testJsonEncoding() {
+        List<String> sql = new ConvertToPostgresql().generateSql(DynamicMessage.getDefaultInstance(TestDescriptors.getParentDescriptor()));
+
+        Assert.assertEquals(1, sql.size());
+        Assert.assertTrue(sql.get(0).contains("\"child\" text "));
+        Assert.assertTrue(sql.get(0).contains("\"children\" text[] "));
+    }
+
+    @Test
+    public void testBinaryEncoding() {
+        List<String> sql = new ConvertToPostgresql(MessageEncoding.BINARY).generateSql(DynamicMessage.getDefaultInstance(TestDescriptors.getParentDescriptor()));
+
+        Assert.assertEquals(1, sql.size());
+        Assert.assertTrue(sql.get(0).contains("\"child\" bytea "));
+        Assert.assertTrue(sql.get(0).contains("\"children\" bytea[] "));
+
+        // Only message fields are affected
+        Assert.assertTrue(sql.get(0).contains("\"tags\" varchar[] "));
+    }
+
+    @Test
+    public void testJsonbEncodingWithGinIndexes() {
+        List<String> sql = new ConvertToPostgresql(MessageEncoding.JSONB, true).generateSql(DynamicMessage.getDefaultInstance(TestDescriptors.getParentDescriptor()));
+
+        Assert.assertEquals(3, sql.size());
+        Assert.assertTrue(sql.get(0).contains("\"child\" jsonb "));
+
+        // Repeated messages are one JSON array, not a SQL array
+        Assert.assertTrue(sql.get(0).contains("\"children\" jsonb "));
+
+        Assert.assertEquals("create index Parent_child_gin on Parent using gin (\"child\");", sql.get(1));
+        Assert.assertEquals("create index Parent_children_gin on Parent using gin (\"children\");", sql.get(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGinIndexesRequireJsonb() {
+        new ConvertToPostgresql(MessageEncoding.JSON, true);
+    }
+}
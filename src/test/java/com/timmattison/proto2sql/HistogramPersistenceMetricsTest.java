@@ -0,0 +1,153 @@
+package com.timmattison.proto2sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.timmattison.proto2sql.sql.CachingProtobufPersistence;
+import com.timmattison.proto2sql.sql.HistogramPersistenceMetrics;
+import com.timmattison.proto2sql.sql.InMemoryProtobufPersistence;
+import com.timmattison.proto2sql.sql.LatencyHistogram;
+import com.timmattison.proto2sql.sql.NoOpPersistenceMetrics;
+import com.timmattison.proto2sql.sql.PersistenceOperation;
+import com.timmattison.proto2sql.sql.PrefixTableNamingStrategy;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the latency histogram and what gets recorded for each operation
+ */
+public class HistogramPersistenceMetricsTest {
+    private final Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+    private final String tableName = new PrefixTableNamingStrategy().getTableName(TestProtobufs.SearchRequest.getDescriptor());
+
+    private InMemoryProtobufPersistence inMemoryProtobufPersistence;
+    private HistogramPersistenceMetrics metrics;
+
+    @Before
+    public void setup() {
+        inMemoryProtobufPersistence = new InMemoryProtobufPersistence();
+        metrics = new HistogramPersistenceMetrics();
+        inMemoryProtobufPersistence.setMetrics(metrics);
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+
+        Assert.assertEquals(100000, histogram.getTotalCount());
+        Assert.assertEquals(100000, histogram.getMaxValue());
+        Assert.assertEquals(50000.5, histogram.getMean(), 0.001);
+        Assert.assertEquals(1, histogram.getValueAtPercentile(0));
+        Assert.assertEquals(100, histogram.getValueAtPercentile(0.1));
+        Assert.assertEquals(100000, histogram.getValueAtPercentile(100));
+
+        // Every percentile is within the histogram's precision of the real value
+        double[] percentiles = {50, 90, 99, 99.9};
+
+        for (double percentile : percentiles) {
+            long expected = (long) (percentile * 1000);
+            long actual = histogram.getValueAtPercentile(percentile);
+
+            Assert.assertTrue(percentile + " was " + actual, actual >= expected);
+            Assert.assertTrue(percentile + " was " + actual, actual <= expected + (expected / 64));
+        }
+
+        // Values that don't fit are counted as the largest one that does
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals(LatencyHistogram.HIGHEST_TRACKABLE_VALUE, histogram.getMaxValue());
+    }
+
+    @Test
+    public void testOperationsAreRecorded() throws Exception {
+        // Nothing of the type has been stored yet, that isn't an error
+        Assert.assertNull(inMemoryProtobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder()));
+
+        TestProtobufs.SearchRequest first = TestProtobufs.SearchRequest.newBuilder().setQuery("First").setPageNumber(1).build();
+        inMemoryProtobufPersistence.insert(first, idField);
+
+        List<Message> messages = new ArrayList<Message>();
+
+        for (int loop = 0; loop < 3; loop++) {
+            messages.add(TestProtobufs.SearchRequest.newBuilder().setQuery("Batch " + loop).setPageNumber(loop).build());
+        }
+
+        inMemoryProtobufPersistence.insertAll(messages, idField);
+        Assert.assertEquals(4, inMemoryProtobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder()).size());
+
+        // Inserting the same ID again fails
+        try {
+            inMemoryProtobufPersistence.insert(first, idField);
+            Assert.fail("The duplicate insert should have failed");
+        } catch (SQLException e) {
+            // Expected
+        }
+
+        HistogramPersistenceMetrics.OperationMetrics inserts = metrics.getOperationMetrics(tableName, PersistenceOperation.INSERT);
+        // The batch is only recorded as a batch, not as each of its inserts too
+        Assert.assertEquals(2, inserts.getLatencies().getTotalCount());
+        Assert.assertEquals(1, inserts.getErrorCount());
+        Assert.assertEquals(1, inserts.getRowCount());
+
+        HistogramPersistenceMetrics.OperationMetrics insertAlls = metrics.getOperationMetrics(tableName, PersistenceOperation.INSERT_ALL);
+        long batchBytes = 0;
+
+        for (Message message : messages) {
+            batchBytes += message.getSerializedSize();
+        }
+
+        Assert.assertEquals(1, insertAlls.getLatencies().getTotalCount());
+        Assert.assertEquals(messages.size(), insertAlls.getRowCount());
+        Assert.assertEquals(batchBytes, insertAlls.getByteCount());
+
+        HistogramPersistenceMetrics.OperationMetrics selects = metrics.getOperationMetrics(tableName, PersistenceOperation.SELECT);
+        Assert.assertEquals(2, selects.getLatencies().getTotalCount());
+        Assert.assertEquals(0, selects.getErrorCount());
+        Assert.assertEquals(4, selects.getRowCount());
+
+        String dump = metrics.dump();
+        Assert.assertTrue(dump, dump.contains(tableName));
+        Assert.assertTrue(dump, dump.contains("INSERT_ALL"));
+        Assert.assertFalse(dump, dump.contains("DELETE"));
+
+        metrics.reset();
+        Assert.assertNull(metrics.getOperationMetrics(tableName, PersistenceOperation.INSERT));
+    }
+
+    @Test
+    public void testCacheAccessesAreRecorded() throws Exception {
+        CachingProtobufPersistence cachingProtobufPersistence = new CachingProtobufPersistence(inMemoryProtobufPersistence, 1000, 1, TimeUnit.MINUTES);
+        cachingProtobufPersistence.setMetrics(metrics);
+
+        cachingProtobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query").build(), idField);
+
+        for (int loop = 0; loop < 3; loop++) {
+            cachingProtobufPersistence.select("query", "Query", TestProtobufs.SearchRequest.newBuilder());
+        }
+
+        HistogramPersistenceMetrics.OperationMetrics selects = metrics.getOperationMetrics(tableName, PersistenceOperation.SELECT);
+        Assert.assertEquals(2, selects.getCacheHitCount());
+        Assert.assertEquals(1, selects.getCacheMissCount());
+
+        // Only the miss reached the underlying persistence
+        Assert.assertEquals(1, selects.getLatencies().getTotalCount());
+    }
+
+    @Test
+    public void testNoOpRecordsNothing() throws Exception {
+        inMemoryProtobufPersistence.setMetrics(null);
+        Assert.assertSame(NoOpPersistenceMetrics.INSTANCE, inMemoryProtobufPersistence.getMetrics());
+
+        inMemoryProtobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query").build(), idField);
+        Assert.assertNull(metrics.getOperationMetrics(tableName, PersistenceOperation.INSERT));
+    }
+}
@@ -1,13 +1,34 @@
 package com.timmattison.proto2sql;
 
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import com.timmattison.proto2sql.sql.FsyncPolicy;
 import com.timmattison.proto2sql.sql.InMemoryProtobufPersistence;
+import com.timmattison.proto2sql.sql.IndexType;
+import com.timmattison.proto2sql.sql.Transaction;
+import com.timmattison.proto2sql.sql.WriteAheadLog;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 /**
  * Created by timmattison on 11/18/14.
  */
 public class InMemoryProtobufPersistenceTest extends ProtobufPersistenceTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Override
     protected void innerTeardown() {
         // Do nothing
@@ -15,7 +36,565 @@ public class InMemoryProtobufPersistenceTest extends ProtobufPersistenceTest {
 
     @Override
     protected void innerSetup() {
-        protobufPersistence = new InMemoryProtobufPersistence();
+        protobufPersistence = newInMemoryProtobufPersistence();
         random = new Random(0);
     }
+
+    protected InMemoryProtobufPersistence newInMemoryProtobufPersistence() {
+        return new InMemoryProtobufPersistence();
+    }
+
+    @Test
+    public void testSelectByNestedPath() throws Exception {
+        Descriptors.Descriptor childDescriptor = TestDescriptors.getChildDescriptor();
+        Descriptors.Descriptor parentDescriptor = TestDescriptors.getParentDescriptor();
+
+        List<Message> parents = new ArrayList<Message>();
+
+        for (int loop = 0; loop < 10; loop++) {
+            DynamicMessage child = DynamicMessage.newBuilder(childDescriptor)
+                    .setField(childDescriptor.findFieldByName("name"), "child" + loop)
+                    .setField(childDescriptor.findFieldByName("size"), (long) loop)
+                    .build();
+
+            parents.add(DynamicMessage.newBuilder(parentDescriptor)
+                    .setField(parentDescriptor.findFieldByName("id"), String.valueOf(loop))
+                    .setField(parentDescriptor.findFieldByName("child"), child)
+                    .addRepeatedField(parentDescriptor.findFieldByName("children"), child)
+                    .build());
+        }
+
+        protobufPersistence.insertAll(parents, parentDescriptor.findFieldByName("id"));
+
+        List<Message> results = protobufPersistence.selectByPath("child.size", "3", DynamicMessage.newBuilder(parentDescriptor));
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(parents.get(3), results.get(0));
+
+        results = protobufPersistence.selectByPath("children.name", "child7", DynamicMessage.newBuilder(parentDescriptor));
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(parents.get(7), results.get(0));
+
+        Assert.assertTrue(protobufPersistence.selectByPath("child.name", "missing", DynamicMessage.newBuilder(parentDescriptor)).isEmpty());
+    }
+
+    @Test(expected = SQLException.class)
+    public void testInsertDuplicateIdFails() throws Exception {
+        TestProtobufs.SearchRequest searchRequest = TestProtobufs.SearchRequest.newBuilder().setQuery("Duplicate").build();
+
+        protobufPersistence.insert(searchRequest, searchRequest.getDescriptorForType().findFieldByNumber(1));
+        protobufPersistence.insert(searchRequest, searchRequest.getDescriptorForType().findFieldByNumber(1));
+    }
+
+    @Test
+    public void testSelectByIdAfterIdChanges() throws Exception {
+        TestProtobufs.SearchRequest searchRequest = TestProtobufs.SearchRequest.newBuilder().setQuery("Old").build();
+        TestProtobufs.SearchRequest renamed = searchRequest.toBuilder().setQuery("New").build();
+
+        protobufPersistence.insert(searchRequest, searchRequest.getDescriptorForType().findFieldByNumber(1));
+        protobufPersistence.update(renamed, renamed.getDescriptorForType().findFieldByNumber(1), "Old");
+
+        Assert.assertTrue(protobufPersistence.select("query", "Old", TestProtobufs.SearchRequest.newBuilder()).isEmpty());
+        Assert.assertEquals(renamed, protobufPersistence.select("query", "New", TestProtobufs.SearchRequest.newBuilder()).get(0));
+    }
+
+    @Test
+    public void testChangingIdToAnExistingIdKeepsBothMessages() throws Exception {
+        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+
+        TestProtobufs.SearchRequest a = TestProtobufs.SearchRequest.newBuilder().setQuery("a").build();
+        TestProtobufs.SearchRequest b = TestProtobufs.SearchRequest.newBuilder().setQuery("b").build();
+        protobufPersistence.insert(a, idField);
+        protobufPersistence.insert(b, idField);
+
+        // Moving a to b's ID fails without deleting a
+        try {
+            protobufPersistence.update(b.toBuilder().setPageNumber(1).build(), idField, "a");
+            Assert.fail("Moved a message onto an ID that was taken");
+        } catch (SQLException e) {
+            Assert.assertEquals("23505", e.getSQLState());
+        }
+
+        Assert.assertEquals(a, protobufPersistence.select("query", "a", TestProtobufs.SearchRequest.newBuilder()).get(0));
+        Assert.assertEquals(b, protobufPersistence.select("query", "b", TestProtobufs.SearchRequest.newBuilder()).get(0));
+
+        // The same inside a transaction
+        protobufPersistence.startTransaction();
+
+        try {
+            protobufPersistence.update(b.toBuilder().setPageNumber(1).build(), idField, "a");
+            Assert.fail("Moved a message onto an ID that was taken in a transaction");
+        } catch (SQLException e) {
+            Assert.assertEquals("23505", e.getSQLState());
+        }
+
+        Assert.assertEquals(2, protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder()).size());
+        protobufPersistence.commit();
+
+        Assert.assertEquals(a, protobufPersistence.select("query", "a", TestProtobufs.SearchRequest.newBuilder()).get(0));
+        Assert.assertEquals(b, protobufPersistence.select("query", "b", TestProtobufs.SearchRequest.newBuilder()).get(0));
+    }
+
+    @Test
+    public void testRollbackDiscardsChanges() throws Exception {
+        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+
+        TestProtobufs.SearchRequest kept = TestProtobufs.SearchRequest.newBuilder().setQuery("Kept").setPageNumber(1).build();
+        TestProtobufs.SearchRequest deleted = TestProtobufs.SearchRequest.newBuilder().setQuery("Deleted").build();
+        protobufPersistence.insert(kept, idField);
+        protobufPersistence.insert(deleted, idField);
+
+        protobufPersistence.startTransaction();
+        protobufPersistence.update(kept.toBuilder().setPageNumber(2).build(), idField);
+        protobufPersistence.delete(deleted, idField);
+        protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Inserted").build(), idField);
+
+        // The transaction sees its own changes
+        Assert.assertEquals(2, protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder()).size());
+        Assert.assertEquals(2, ((TestProtobufs.SearchRequest) protobufPersistence.select("query", "Kept", TestProtobufs.SearchRequest.newBuilder()).get(0)).getPageNumber());
+
+        protobufPersistence.rollback();
+
+        List<Message> results = protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals(kept, results.get(0));
+        Assert.assertEquals(deleted, results.get(1));
+    }
+
+    @Test
+    public void testTransactionChangesAreIsolatedUntilCommit() throws Exception {
+        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+
+        TestProtobufs.SearchRequest existing = TestProtobufs.SearchRequest.newBuilder().setQuery("Existing").build();
+        protobufPersistence.insert(existing, idField);
+
+        try (Transaction transaction = protobufPersistence.begin()) {
+            transaction.deleteAll(TestProtobufs.SearchRequest.getDescriptor());
+            transaction.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("New").build(), idField);
+
+            Assert.assertEquals(1, transaction.select("query", "New", TestProtobufs.SearchRequest.newBuilder()).size());
+            Assert.assertTrue(transaction.select("query", "Existing", TestProtobufs.SearchRequest.newBuilder()).isEmpty());
+
+            // Nobody else can see the changes before they are committed
+            List<Message> results = protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+            Assert.assertEquals(1, results.size());
+            Assert.assertEquals(existing, results.get(0));
+
+            transaction.commit();
+        }
+
+        List<Message> results = protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals("New", ((TestProtobufs.SearchRequest) results.get(0)).getQuery());
+    }
+
+    @Test
+    public void testConcurrentInsertsOfTheSameIdConflict() throws Exception {
+        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+        TestProtobufs.SearchRequest first = TestProtobufs.SearchRequest.newBuilder().setQuery("X").setPageNumber(1).build();
+        TestProtobufs.SearchRequest second = TestProtobufs.SearchRequest.newBuilder().setQuery("X").setPageNumber(2).build();
+
+        try (Transaction firstTransaction = protobufPersistence.begin();
+             Transaction secondTransaction = protobufPersistence.begin()) {
+            firstTransaction.insert(first, idField);
+            secondTransaction.insert(second, idField);
+            secondTransaction.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Y").build(), idField);
+
+            firstTransaction.commit();
+
+            try {
+                secondTransaction.commit();
+                Assert.fail("The second insert of X should have failed");
+            } catch (SQLException e) {
+                Assert.assertEquals("23505", e.getSQLState());
+            }
+        }
+
+        // The first insert is kept and nothing from the failed commit was applied
+        List<Message> results = protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(first, results.get(0));
+    }
+
+    @Test
+    public void testUpdateOfMessageDeletedOutsideTransactionIsSkipped() throws Exception {
+        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+        TestProtobufs.SearchRequest updated = TestProtobufs.SearchRequest.newBuilder().setQuery("Updated").build();
+        TestProtobufs.SearchRequest moved = TestProtobufs.SearchRequest.newBuilder().setQuery("Moved").build();
+        protobufPersistence.insert(updated, idField);
+        protobufPersistence.insert(moved, idField);
+
+        try (Transaction transaction = protobufPersistence.begin()) {
+            transaction.update(updated.toBuilder().setPageNumber(2).build(), idField);
+            transaction.update(moved.toBuilder().setQuery("New ID").build(), idField, "Moved");
+            transaction.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Inserted").build(), idField);
+
+            protobufPersistence.delete(updated, idField);
+            protobufPersistence.delete(moved, idField);
+
+            transaction.commit();
+        }
+
+        // Neither deleted message comes back, the insert is still applied
+        List<Message> results = protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals("Inserted", ((TestProtobufs.SearchRequest) results.get(0)).getQuery());
+    }
+
+    @Test
+    public void testDeleteAndReinsertInTransactionReplacesConcurrentInsert() throws Exception {
+        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+        TestProtobufs.SearchRequest original = TestProtobufs.SearchRequest.newBuilder().setQuery("X").setPageNumber(1).build();
+        TestProtobufs.SearchRequest replacement = original.toBuilder().setPageNumber(2).build();
+        protobufPersistence.insert(original, idField);
+
+        try (Transaction transaction = protobufPersistence.begin()) {
+            transaction.delete(original, idField);
+            transaction.insert(replacement, idField);
+
+            protobufPersistence.update(original.toBuilder().setPageNumber(3).build(), idField);
+
+            transaction.commit();
+        }
+
+        List<Message> results = protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(replacement, results.get(0));
+    }
+
+    @Test
+    public void testTransactionRollbackOnClose() throws Exception {
+        TestProtobufs.SearchRequest searchRequest = TestProtobufs.SearchRequest.newBuilder().setQuery("Rolled back").build();
+
+        try (Transaction transaction = protobufPersistence.begin()) {
+            transaction.insert(searchRequest, searchRequest.getDescriptorForType().findFieldByNumber(1));
+        }
+
+        Assert.assertNull(protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder()));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testCommitWithoutTransactionFails() throws Exception {
+        protobufPersistence.commit();
+    }
+
+    @Test
+    public void testSelectByNonStringField() throws Exception {
+        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+
+        TestProtobufs.SearchRequest searchRequest = TestProtobufs.SearchRequest.newBuilder().setQuery("Page").setPageNumber(5).build();
+        protobufPersistence.insert(searchRequest, idField);
+
+        List<Message> results = protobufPersistence.select("page_number", "5", TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(searchRequest, results.get(0));
+    }
+
+    @Test
+    public void testHashIndexFollowsUpdatesAndDeletes() throws Exception {
+        InMemoryProtobufPersistence inMemoryProtobufPersistence = (InMemoryProtobufPersistence) protobufPersistence;
+        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+        Descriptors.FieldDescriptor pageNumberField = TestProtobufs.SearchRequest.getDescriptor().findFieldByName("page_number");
+
+        for (int loop = 0; loop < 10; loop++) {
+            protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query " + loop).setPageNumber(loop % 2).build(), idField);
+        }
+
+        // Indexes created after messages are stored include those messages
+        inMemoryProtobufPersistence.createIndex(pageNumberField, IndexType.HASH);
+        Assert.assertEquals(5, protobufPersistence.select("page_number", "1", TestProtobufs.SearchRequest.newBuilder()).size());
+
+        TestProtobufs.SearchRequest moved = TestProtobufs.SearchRequest.newBuilder().setQuery("Query 0").setPageNumber(1).build();
+        protobufPersistence.update(moved, idField);
+        protobufPersistence.delete(TestProtobufs.SearchRequest.newBuilder().setQuery("Query 1").build(), idField);
+
+        Assert.assertEquals(4, protobufPersistence.select("page_number", "0", TestProtobufs.SearchRequest.newBuilder()).size());
+        List<Message> results = protobufPersistence.select("page_number", "1", TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(5, results.size());
+        Assert.assertTrue(results.contains(moved));
+    }
+
+    @Test
+    public void testSelectRangeWithSortedIndex() throws Exception {
+        InMemoryProtobufPersistence inMemoryProtobufPersistence = (InMemoryProtobufPersistence) protobufPersistence;
+        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+
+        // Indexes created before anything is stored are used once the type is stored
+        inMemoryProtobufPersistence.createIndex(TestProtobufs.SearchRequest.getDescriptor().findFieldByName("page_number"), IndexType.SORTED);
+
+        for (int loop = 99; loop >= 0; loop--) {
+            protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query " + loop).setPageNumber(loop).build(), idField);
+        }
+
+        List<Message> results = inMemoryProtobufPersistence.selectRange("page_number", "10", "20", TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(10, results.size());
+
+        for (int loop = 0; loop < results.size(); loop++) {
+            Assert.assertEquals(10 + loop, ((TestProtobufs.SearchRequest) results.get(loop)).getPageNumber());
+        }
+
+        // A transaction sees its own changes in the range
+        protobufPersistence.startTransaction();
+        protobufPersistence.update(TestProtobufs.SearchRequest.newBuilder().setQuery("Query 50").setPageNumber(15).build(), idField);
+        protobufPersistence.delete(TestProtobufs.SearchRequest.newBuilder().setQuery("Query 10").build(), idField);
+
+        results = inMemoryProtobufPersistence.selectRange("page_number", "10", "20", TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(10, results.size());
+        Assert.assertEquals(11, ((TestProtobufs.SearchRequest) results.get(0)).getPageNumber());
+
+        protobufPersistence.rollback();
+
+        Assert.assertEquals(90, inMemoryProtobufPersistence.selectRange("page_number", "10", null, TestProtobufs.SearchRequest.newBuilder()).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRepeatedFieldsCantBeIndexed() {
+        ((InMemoryProtobufPersistence) protobufPersistence).createIndex(TestDescriptors.getParentDescriptor().findFieldByName("tags"), IndexType.HASH);
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        InMemoryProtobufPersistence inMemoryProtobufPersistence = (InMemoryProtobufPersistence) protobufPersistence;
+        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+        File snapshotFile = temporaryFolder.newFile();
+
+        List<Message> searchRequests = new ArrayList<Message>();
+
+        for (int loop = 0; loop < 1000; loop++) {
+            searchRequests.add(TestProtobufs.SearchRequest.newBuilder().setQuery("Query " + loop).setPageNumber(loop).build());
+        }
+
+        protobufPersistence.insertAll(searchRequests, idField);
+        inMemoryProtobufPersistence.saveSnapshot(TestProtobufs.SearchRequest.getDescriptor(), snapshotFile);
+
+        // Indexes are rebuilt from the reloaded messages
+        inMemoryProtobufPersistence.createIndex(TestProtobufs.SearchRequest.getDescriptor().findFieldByName("page_number"), IndexType.HASH);
+        protobufPersistence.deleteAll(TestProtobufs.SearchRequest.getDescriptor());
+
+        inMemoryProtobufPersistence.loadSnapshot(TestProtobufs.SearchRequest.newBuilder(), snapshotFile);
+
+        Assert.assertEquals(searchRequests, protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder()));
+        Assert.assertEquals(searchRequests.get(500), protobufPersistence.select("page_number", "500", TestProtobufs.SearchRequest.newBuilder()).get(0));
+        Assert.assertEquals(searchRequests.get(7), protobufPersistence.select("query", "Query 7", TestProtobufs.SearchRequest.newBuilder()).get(0));
+    }
+
+    @Test
+    public void testSnapshotOfAnotherTypeIsRejected() throws Exception {
+        InMemoryProtobufPersistence inMemoryProtobufPersistence = (InMemoryProtobufPersistence) protobufPersistence;
+        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+        File snapshotFile = temporaryFolder.newFile();
+
+        protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Kept").build(), idField);
+        inMemoryProtobufPersistence.saveSnapshot(TestProtobufs.SearchRequest.getDescriptor(), snapshotFile);
+
+        try {
+            inMemoryProtobufPersistence.loadSnapshot(DynamicMessage.newBuilder(TestDescriptors.getParentDescriptor()), snapshotFile);
+            Assert.fail("Loaded a snapshot of the wrong type");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSnapshotIsRejectedWhenAReferencedTypeChanges() throws Exception {
+        InMemoryProtobufPersistence inMemoryProtobufPersistence = (InMemoryProtobufPersistence) protobufPersistence;
+        File snapshotFile = temporaryFolder.newFile();
+
+        // The parent is the same both times, only the child declared in another file changes
+        Descriptors.Descriptor before = buildParentWithSeparateChild(DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT64);
+        Descriptors.Descriptor after = buildParentWithSeparateChild(DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING);
+        Assert.assertEquals(before.toProto(), after.toProto());
+
+        Message parent = DynamicMessage.newBuilder(before).setField(before.findFieldByName("id"), "a").build();
+        protobufPersistence.insert(parent, before.findFieldByName("id"));
+        inMemoryProtobufPersistence.saveSnapshot(before, snapshotFile);
+
+        // The unchanged definition still loads
+        inMemoryProtobufPersistence.loadSnapshot(DynamicMessage.newBuilder(before), snapshotFile);
+
+        try {
+            inMemoryProtobufPersistence.loadSnapshot(DynamicMessage.newBuilder(after), snapshotFile);
+            Assert.fail("Loaded a snapshot written before the child type changed");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * message Parent { required string id = 1; optional Child child = 2; } with Child { optional sizeType size = 1; } in
+     * a file of its own
+     */
+    private static Descriptors.Descriptor buildParentWithSeparateChild(DescriptorProtos.FieldDescriptorProto.Type sizeType) throws Descriptors.DescriptorValidationException {
+        DescriptorProtos.FileDescriptorProto childFile = DescriptorProtos.FileDescriptorProto.newBuilder()
+                .setName("Child.proto")
+                .addMessageType(DescriptorProtos.DescriptorProto.newBuilder()
+                        .setName("Child")
+                        .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("size").setNumber(1).setType(sizeType).setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL)))
+                .build();
+
+        DescriptorProtos.FileDescriptorProto parentFile = DescriptorProtos.FileDescriptorProto.newBuilder()
+                .setName("Parent.proto")
+                .addDependency("Child.proto")
+                .addMessageType(DescriptorProtos.DescriptorProto.newBuilder()
+                        .setName("Parent")
+                        .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("id").setNumber(1).setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING).setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_REQUIRED))
+                        .addField(DescriptorProtos.FieldDescriptorProto.newBuilder().setName("child").setNumber(2).setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE).setTypeName(".Child").setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL)))
+                .build();
+
+        Descriptors.FileDescriptor child = Descriptors.FileDescriptor.buildFrom(childFile, new Descriptors.FileDescriptor[0]);
+
+        return Descriptors.FileDescriptor.buildFrom(parentFile, new Descriptors.FileDescriptor[]{child}).findMessageTypeByName("Parent");
+    }
+
+    @Test
+    public void testCorruptSnapshotIsRejected() throws Exception {
+        InMemoryProtobufPersistence inMemoryProtobufPersistence = (InMemoryProtobufPersistence) protobufPersistence;
+        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+        File snapshotFile = temporaryFolder.newFile();
+
+        TestProtobufs.SearchRequest searchRequest = TestProtobufs.SearchRequest.newBuilder().setQuery("Kept").build();
+        protobufPersistence.insert(searchRequest, idField);
+        inMemoryProtobufPersistence.saveSnapshot(TestProtobufs.SearchRequest.getDescriptor(), snapshotFile);
+
+        // Flip a bit in the last message
+        try (RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw")) {
+            file.seek(file.length() - 10);
+            int value = file.read();
+            file.seek(file.length() - 10);
+            file.write(value ^ 1);
+        }
+
+        protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Added").build(), idField);
+
+        try {
+            inMemoryProtobufPersistence.loadSnapshot(TestProtobufs.SearchRequest.newBuilder(), snapshotFile);
+            Assert.fail("Loaded a corrupt snapshot");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        // The messages that were there are left alone
+        Assert.assertEquals(2, protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder()).size());
+    }
+
+    @Test
+    public void testWriteAheadLogRecovery() throws Exception {
+        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+        File directory = temporaryFolder.newFolder();
+
+        InMemoryProtobufPersistence inMemoryProtobufPersistence = (InMemoryProtobufPersistence) protobufPersistence;
+
+        try (WriteAheadLog log = new WriteAheadLog(directory, FsyncPolicy.ALWAYS)) {
+            inMemoryProtobufPersistence.openLog(log, TestProtobufs.SearchRequest.newBuilder());
+
+            for (int loop = 0; loop < 10; loop++) {
+                protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query " + loop).setPageNumber(loop).build(), idField);
+            }
+
+            protobufPersistence.update(TestProtobufs.SearchRequest.newBuilder().setQuery("Query 1").setPageNumber(100).build(), idField);
+            protobufPersistence.delete(TestProtobufs.SearchRequest.newBuilder().setQuery("Query 2").build(), idField);
+
+            // A move onto a taken ID fails without logging anything
+            try {
+                protobufPersistence.update(TestProtobufs.SearchRequest.newBuilder().setQuery("Query 6").build(), idField, "Query 5");
+                Assert.fail("Moved a message onto an ID that was taken");
+            } catch (SQLException e) {
+                // Expected
+            }
+
+            try (Transaction transaction = protobufPersistence.begin()) {
+                transaction.delete(TestProtobufs.SearchRequest.newBuilder().setQuery("Query 3").build(), idField);
+                transaction.commit();
+            }
+
+            // Rolled back changes are never logged
+            try (Transaction transaction = protobufPersistence.begin()) {
+                transaction.delete(TestProtobufs.SearchRequest.newBuilder().setQuery("Query 4").build(), idField);
+            }
+        }
+
+        List<Message> expected = protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(8, expected.size());
+
+        InMemoryProtobufPersistence recovered = newInMemoryProtobufPersistence();
+
+        try (WriteAheadLog log = new WriteAheadLog(directory, FsyncPolicy.ALWAYS)) {
+            recovered.openLog(log, TestProtobufs.SearchRequest.newBuilder());
+
+            Assert.assertEquals(expected, recovered.select(null, null, TestProtobufs.SearchRequest.newBuilder()));
+        }
+    }
+
+    @Test
+    public void testCheckpointCompactsWriteAheadLog() throws Exception {
+        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+        File directory = temporaryFolder.newFolder();
+
+        InMemoryProtobufPersistence inMemoryProtobufPersistence = (InMemoryProtobufPersistence) protobufPersistence;
+
+        // A tiny checkpoint size so the log is compacted many times
+        try (WriteAheadLog log = new WriteAheadLog(directory, FsyncPolicy.INTERVAL, 10, 1024)) {
+            inMemoryProtobufPersistence.openLog(log, TestProtobufs.SearchRequest.newBuilder());
+
+            for (int loop = 0; loop < 200; loop++) {
+                protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Query " + loop).setPageNumber(loop).build(), idField);
+            }
+
+            Assert.assertTrue(log.getSize() <= 1024);
+
+            protobufPersistence.deleteAll(TestProtobufs.SearchRequest.getDescriptor());
+            protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Last").build(), idField);
+        }
+
+        InMemoryProtobufPersistence recovered = newInMemoryProtobufPersistence();
+
+        try (WriteAheadLog log = new WriteAheadLog(directory, FsyncPolicy.INTERVAL)) {
+            recovered.openLog(log, TestProtobufs.SearchRequest.newBuilder());
+
+            List<Message> results = recovered.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+            Assert.assertEquals(1, results.size());
+            Assert.assertEquals("Last", ((TestProtobufs.SearchRequest) results.get(0)).getQuery());
+        }
+    }
+
+    @Test
+    public void testTornWriteAheadLogTailIsDropped() throws Exception {
+        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+        File directory = temporaryFolder.newFolder();
+
+        InMemoryProtobufPersistence inMemoryProtobufPersistence = (InMemoryProtobufPersistence) protobufPersistence;
+
+        try (WriteAheadLog log = new WriteAheadLog(directory, FsyncPolicy.ALWAYS)) {
+            inMemoryProtobufPersistence.openLog(log, TestProtobufs.SearchRequest.newBuilder());
+            protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Kept").build(), idField);
+            protobufPersistence.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("Torn").build(), idField);
+        }
+
+        // Cut the last commit in half like a crash in the middle of a write would
+        File logFile = new File(directory, "wal.log");
+
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            file.setLength(file.length() - 20);
+        }
+
+        InMemoryProtobufPersistence recovered = newInMemoryProtobufPersistence();
+
+        try (WriteAheadLog log = new WriteAheadLog(directory, FsyncPolicy.ALWAYS)) {
+            recovered.openLog(log, TestProtobufs.SearchRequest.newBuilder());
+
+            List<Message> results = recovered.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+            Assert.assertEquals(1, results.size());
+            Assert.assertEquals("Kept", ((TestProtobufs.SearchRequest) results.get(0)).getQuery());
+
+            // New commits go after the last complete one
+            recovered.insert(TestProtobufs.SearchRequest.newBuilder().setQuery("After").build(), idField);
+        }
+
+        recovered = newInMemoryProtobufPersistence();
+
+        try (WriteAheadLog log = new WriteAheadLog(directory, FsyncPolicy.ALWAYS)) {
+            recovered.openLog(log, TestProtobufs.SearchRequest.newBuilder());
+
+            Assert.assertEquals(2, recovered.select(null, null, TestProtobufs.SearchRequest.newBuilder()).size());
+        }
+    }
 }
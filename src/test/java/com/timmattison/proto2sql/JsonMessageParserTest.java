@@ -0,0 +1,138 @@
+package com.timmattison.proto2sql;
+
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.format.JsonFormat;
+import com.timmattison.proto2sql.sql.JsonMessageParser;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Checks that JsonMessageParser builds the same messages JsonFormat does and gives up on anything it doesn't handle
+ */
+public class JsonMessageParserTest {
+    private final Descriptors.Descriptor parent = TestDescriptors.getParentDescriptor();
+    private final Descriptors.Descriptor child = TestDescriptors.getChildDescriptor();
+
+    @Test
+    public void testMatchesJsonFormat() throws Exception {
+        Random random = new Random(0);
+
+        for (int loop = 0; loop < 1000; loop++) {
+            Message message = randomParent(random);
+            String json = JsonFormat.printToString(message);
+
+            DynamicMessage.Builder builder = DynamicMessage.newBuilder(parent);
+            Assert.assertTrue(json, JsonMessageParser.merge(json, builder));
+            Assert.assertEquals(json, message, builder.build());
+        }
+
+        TestProtobufs.SearchRequest searchRequest = TestProtobufs.SearchRequest.newBuilder().setQuery("Query").setPageNumber(Integer.MIN_VALUE).setResultPerPage(Integer.MAX_VALUE).build();
+        TestProtobufs.SearchRequest.Builder searchRequestBuilder = TestProtobufs.SearchRequest.newBuilder();
+        Assert.assertTrue(JsonMessageParser.merge(JsonFormat.printToString(searchRequest), searchRequestBuilder));
+        Assert.assertEquals(searchRequest, searchRequestBuilder.build());
+    }
+
+    @Test
+    public void testReorderedAndSpacedJson() throws Exception {
+        // jsonb sorts the keys and puts spaces after commas
+        String json = "{\"size\": -5, \"name\": \"tab\\there \\u00e9\"}";
+
+        DynamicMessage.Builder builder = DynamicMessage.newBuilder(child);
+        Assert.assertTrue(JsonMessageParser.merge(json, builder));
+
+        DynamicMessage.Builder expected = DynamicMessage.newBuilder(child);
+        JsonFormat.merge(json, expected);
+
+        Assert.assertEquals(expected.build(), builder.build());
+        Assert.assertEquals("tab\there \u00e9", builder.getField(child.findFieldByName("name")));
+    }
+
+    @Test
+    public void testRepeatedField() throws Exception {
+        Descriptors.FieldDescriptor children = parent.findFieldByName("children");
+        DynamicMessage.Builder builder = DynamicMessage.newBuilder(parent);
+
+        Assert.assertTrue(JsonMessageParser.mergeRepeatedField("[{\"name\": \"a\"}, {\"name\": \"b\", \"size\": 2}]", builder, children));
+        Assert.assertEquals(2, builder.getRepeatedFieldCount(children));
+        Assert.assertEquals(2L, ((Message) builder.getRepeatedField(children, 1)).getField(child.findFieldByName("size")));
+
+        Assert.assertTrue(JsonMessageParser.mergeRepeatedField("[]", DynamicMessage.newBuilder(parent), children));
+    }
+
+    @Test
+    public void testUnsupportedJsonFallsBack() throws Exception {
+        // Unknown fields, a missing required field, values of the wrong type, escapes JsonFormat rejects and malformed
+        // JSON
+        String[] unsupported = {
+                "{\"id\": \"a\", \"other\": 1}",
+                "{\"id\": \"a\", \"child\": {\"size\": 1}}",
+                "{\"id\": 1}",
+                "{\"id\": \"a\", \"child\": {\"name\": \"b\", \"size\": 1.5}}",
+                "{\"id\": \"a\", \"child\": {\"name\": \"b\", \"size\": 99999999999999999999}}",
+                "{\"id\": \"a\", \"tags\": [\"a\\/b\"]}",
+                "{\"id\": \"a\"",
+                "{\"id\": \"a\"} trailing"
+        };
+
+        for (String json : unsupported) {
+            Assert.assertFalse(json, JsonMessageParser.merge(json, DynamicMessage.newBuilder(parent)));
+        }
+
+        // Enums are left to JsonFormat
+        DescriptorProtos.FieldOptions fieldOptions = DescriptorProtos.FieldOptions.newBuilder().setCtype(DescriptorProtos.FieldOptions.CType.CORD).setDeprecated(true).build();
+        String json = JsonFormat.printToString(fieldOptions);
+        DescriptorProtos.FieldOptions.Builder builder = DescriptorProtos.FieldOptions.newBuilder();
+
+        Assert.assertFalse(JsonMessageParser.merge(json, builder));
+
+        builder.clear();
+        JsonMessageParser.mergeOrFallBack(json, builder);
+        Assert.assertEquals(fieldOptions, builder.build());
+    }
+
+    private Message randomParent(Random random) {
+        DynamicMessage.Builder builder = DynamicMessage.newBuilder(parent);
+        builder.setField(parent.findFieldByName("id"), randomString(random));
+
+        if (random.nextBoolean()) {
+            builder.setField(parent.findFieldByName("child"), randomChild(random));
+        }
+
+        for (int loop = random.nextInt(4); loop > 0; loop--) {
+            builder.addRepeatedField(parent.findFieldByName("children"), randomChild(random));
+            builder.addRepeatedField(parent.findFieldByName("tags"), randomString(random));
+        }
+
+        return builder.build();
+    }
+
+    private Message randomChild(Random random) {
+        DynamicMessage.Builder builder = DynamicMessage.newBuilder(child);
+        builder.setField(child.findFieldByName("name"), randomString(random));
+
+        if (random.nextBoolean()) {
+            builder.setField(child.findFieldByName("size"), random.nextLong());
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Strings with quotes, backslashes, control characters and non-ASCII characters in them
+     */
+    private static String randomString(Random random) {
+        String characters = "ab \"\\/\n\t\r\b\f\u0001\u001f\u00e9\u4e2d'";
+        StringBuilder stringBuilder = new StringBuilder();
+
+        for (int loop = random.nextInt(12); loop > 0; loop--) {
+            stringBuilder.append(characters.charAt(random.nextInt(characters.length())));
+        }
+
+        return stringBuilder.toString();
+    }
+}
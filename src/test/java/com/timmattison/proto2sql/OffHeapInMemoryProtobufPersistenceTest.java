@@ -0,0 +1,107 @@
+package com.timmattison.proto2sql;
+
+import com.google.protobuf.Message;
+import com.timmattison.proto2sql.sql.InMemoryStorage;
+import com.timmattison.proto2sql.sql.InMemoryProtobufPersistence;
+import com.timmattison.proto2sql.sql.OffHeapMessageStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the in-memory tests with the messages stored off-heap
+ */
+public class OffHeapInMemoryProtobufPersistenceTest extends InMemoryProtobufPersistenceTest {
+    @Override
+    protected InMemoryProtobufPersistence newInMemoryProtobufPersistence() {
+        return new InMemoryProtobufPersistence(InMemoryStorage.OFF_HEAP);
+    }
+
+    @Test
+    public void testStoreKeepsInsertionOrderThroughGrowthAndDeletes() {
+        OffHeapMessageStore store = new OffHeapMessageStore(64);
+        List<Object> expectedKeys = new ArrayList<Object>();
+
+        for (int loop = 0; loop < 100; loop++) {
+            store.put("key" + loop, TestProtobufs.SearchRequest.newBuilder().setQuery("key" + loop).setPageNumber(loop).build());
+            expectedKeys.add("key" + loop);
+        }
+
+        for (int loop = 0; loop < 100; loop += 2) {
+            store.remove("key" + loop);
+            expectedKeys.remove("key" + loop);
+        }
+
+        // Enough to fill the hash table again after the deletes
+        for (int loop = 100; loop < 150; loop++) {
+            store.put("key" + loop, TestProtobufs.SearchRequest.newBuilder().setQuery("key" + loop).build());
+            expectedKeys.add("key" + loop);
+        }
+
+        Assert.assertEquals(expectedKeys, store.keys());
+        Assert.assertEquals(100, store.size());
+        Assert.assertFalse(store.containsKey("key0"));
+        Assert.assertEquals(51, ((TestProtobufs.SearchRequest) store.get("key51")).getPageNumber());
+    }
+
+    @Test
+    public void testStoreCompactsGarbage() {
+        OffHeapMessageStore store = new OffHeapMessageStore(64);
+
+        Message small = TestProtobufs.SearchRequest.newBuilder().setQuery("small").build();
+        Message large = TestProtobufs.SearchRequest.newBuilder().setQuery("a much larger query than before").build();
+
+        store.put("key", small);
+        long allocatedBytes = store.getAllocatedBytes();
+
+        // Replacing a message with one that fits overwrites it
+        store.put("key", small);
+        Assert.assertEquals(allocatedBytes, store.getAllocatedBytes());
+
+        // Growing it over and over leaves garbage until it is compacted
+        for (int loop = 0; loop < 100; loop++) {
+            store.put("key", (loop % 2 == 0) ? large : small);
+            store.put("key", large);
+        }
+
+        Assert.assertTrue(store.getAllocatedBytes() <= 64 * 3);
+        Assert.assertEquals(large, store.get("key"));
+    }
+
+    @Test
+    public void testStoreKeepsNumericKeys() {
+        OffHeapMessageStore store = new OffHeapMessageStore(64);
+        List<Object> expectedKeys = new ArrayList<Object>();
+
+        for (long loop = 0; loop < 100; loop++) {
+            store.put(loop * 1000000007L, TestProtobufs.SearchRequest.newBuilder().setQuery("Query").setPageNumber((int) loop).build());
+            expectedKeys.add(loop * 1000000007L);
+        }
+
+        for (long loop = 0; loop < 100; loop += 3) {
+            store.remove(loop * 1000000007L);
+            expectedKeys.remove(loop * 1000000007L);
+        }
+
+        Assert.assertEquals(expectedKeys, store.keys());
+        Assert.assertEquals(5, ((TestProtobufs.SearchRequest) store.get(5 * 1000000007L)).getPageNumber());
+        Assert.assertFalse(store.containsKey(3 * 1000000007L));
+
+        // A long key never equals an integer key with the same value
+        store.clear();
+        store.put(5, TestProtobufs.SearchRequest.newBuilder().setQuery("Query").setPageNumber(5).build());
+        Assert.assertTrue(store.containsKey(5));
+        Assert.assertFalse(store.containsKey(5L));
+
+        // A key of another class makes the store keep every key as an object
+        store.put("five", TestProtobufs.SearchRequest.newBuilder().setQuery("Query").setPageNumber(6).build());
+        store.put(5L, TestProtobufs.SearchRequest.newBuilder().setQuery("Query").setPageNumber(7).build());
+
+        Assert.assertEquals(Arrays.<Object>asList(5, "five", 5L), store.keys());
+        Assert.assertEquals(5, ((TestProtobufs.SearchRequest) store.get(5)).getPageNumber());
+        Assert.assertEquals(7, ((TestProtobufs.SearchRequest) store.get(5L)).getPageNumber());
+    }
+}
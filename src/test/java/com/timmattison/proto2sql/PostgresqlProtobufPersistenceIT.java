@@ -1,16 +1,23 @@
 package com.timmattison.proto2sql;
 
 import com.google.protobuf.Message;
+import com.googlecode.protobuf.format.JsonFormat;
 import com.timmattison.proto2sql.sql.ConvertToPostgresql;
 import com.timmattison.proto2sql.sql.ConvertToSql;
 import com.timmattison.proto2sql.sql.PostgresqlProtobufPersistence;
+import com.timmattison.proto2sql.sql.StatementListener;
+import com.timmattison.proto2sql.sql.Transaction;
 import org.flywaydb.core.Flyway;
 import org.flywaydb.core.api.migration.jdbc.JdbcMigration;
+import org.junit.Assert;
+import org.junit.Test;
 import org.postgresql.ds.PGSimpleDataSource;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
@@ -40,6 +47,71 @@ public class PostgresqlProtobufPersistenceIT extends ProtobufPersistenceTest {
         random = new Random(0);
     }
 
+    @Test
+    public void testCopyInThenSelect() throws SQLException, JsonFormat.ParseException {
+        List<Message> messages = new ArrayList<Message>();
+
+        for (int loop = 0; loop < 1000; loop++) {
+            TestProtobufs.SearchRequest.Builder builder = TestProtobufs.SearchRequest.newBuilder();
+            builder.setQuery("Query\t" + loop + "\n\\");
+            builder.setPageNumber(loop);
+            builder.setResultPerPage(random.nextInt());
+            messages.add(builder.build());
+        }
+
+        long count = ((PostgresqlProtobufPersistence) protobufPersistence).copyIn(TestProtobufs.SearchRequest.getDescriptor(), messages.iterator());
+        Assert.assertEquals(messages.size(), count);
+
+        List<Message> results = protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(messages.size(), results.size());
+        Assert.assertTrue(results.containsAll(messages));
+    }
+
+    @Test
+    public void testStatementListenerSeesEveryStatement() throws Exception {
+        final List<String> statements = new ArrayList<String>();
+
+        ((PostgresqlProtobufPersistence) protobufPersistence).setStatementListener(new StatementListener() {
+            @Override
+            public synchronized void statementExecuted(String tableName, String sql, int bindCount, long elapsedNanos, long rowCount, boolean failed) {
+                statements.add(sql.substring(0, sql.indexOf(' ')) + " " + tableName + " " + bindCount + " " + rowCount + " " + failed);
+            }
+        });
+
+        TestProtobufs.SearchRequest searchRequest = TestProtobufs.SearchRequest.newBuilder().setQuery("Query").setPageNumber(1).setResultPerPage(2).build();
+        protobufPersistence.insert(searchRequest, searchRequest.getDescriptorForType().findFieldByNumber(1));
+        protobufPersistence.select("query", "Query", TestProtobufs.SearchRequest.newBuilder());
+
+        try {
+            protobufPersistence.select("no_such_column", "Query", TestProtobufs.SearchRequest.newBuilder());
+            Assert.fail("The select should have failed");
+        } catch (SQLException e) {
+            // Expected
+        }
+
+        Assert.assertEquals(3, statements.size());
+        Assert.assertTrue(statements.get(0), statements.get(0).startsWith("INSERT"));
+        Assert.assertTrue(statements.get(0), statements.get(0).endsWith(" 1 false"));
+        Assert.assertTrue(statements.get(1), statements.get(1).startsWith("SELECT"));
+        Assert.assertTrue(statements.get(1), statements.get(1).endsWith(" 1 1 false"));
+        Assert.assertTrue(statements.get(2), statements.get(2).startsWith("SELECT"));
+        Assert.assertTrue(statements.get(2), statements.get(2).endsWith(" 1 0 true"));
+    }
+
+    @Test
+    public void testTransactionRollbackOnClose() throws Exception {
+        TestProtobufs.SearchRequest searchRequest = TestProtobufs.SearchRequest.newBuilder().setQuery("Rolled back").build();
+
+        try (Transaction transaction = protobufPersistence.begin()) {
+            transaction.insert(searchRequest, searchRequest.getDescriptorForType().findFieldByNumber(1));
+
+            // Nobody else can see the insert before it is committed
+            Assert.assertEquals(0, protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder()).size());
+        }
+
+        Assert.assertEquals(0, protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder()).size());
+    }
+
     private void initializeDatasource() {
         dataSource = new PGSimpleDataSource();
         dataSource.setServerName("localhost");
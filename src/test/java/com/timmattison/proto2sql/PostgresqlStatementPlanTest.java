@@ -0,0 +1,137 @@
+package com.timmattison.proto2sql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.timmattison.proto2sql.sql.FieldPath;
+import com.timmattison.proto2sql.sql.MessageEncoding;
+import com.timmattison.proto2sql.sql.PostgresqlStatementPlan;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Created by timmattison on 11/20/14.
+ */
+public class PostgresqlStatementPlanTest {
+    private PostgresqlStatementPlan plan;
+
+    @Before
+    public void setup() {
+        plan = new PostgresqlStatementPlan(TestProtobufs.SearchRequest.getDescriptor(), "SearchRequest");
+    }
+
+    @Test
+    public void testInsertSql() {
+        Assert.assertEquals("INSERT INTO SearchRequest (\"query\", \"page_number\", \"result_per_page\") VALUES (?, ?, ?)", plan.getInsertSql());
+    }
+
+    @Test
+    public void testUpdateSql() {
+        Assert.assertEquals("UPDATE SearchRequest SET \"query\" = ?, \"page_number\" = ?, \"result_per_page\" = ? WHERE \"query\" = ?", plan.getUpdateSql("query"));
+    }
+
+    @Test
+    public void testDeleteSql() {
+        Assert.assertEquals("DELETE FROM SearchRequest WHERE \"query\" = ?", plan.getDeleteSql("query"));
+        Assert.assertEquals("DELETE FROM SearchRequest", plan.getDeleteAllSql());
+    }
+
+    @Test
+    public void testSelectSql() {
+        Assert.assertEquals("SELECT * FROM SearchRequest", plan.getSelectSql(null));
+        Assert.assertEquals("SELECT * FROM SearchRequest WHERE \"query\" = ?", plan.getSelectSql("query"));
+    }
+
+    @Test
+    public void testCopySql() {
+        Assert.assertEquals("COPY SearchRequest (\"query\", \"page_number\", \"result_per_page\") FROM STDIN", plan.getCopySql());
+    }
+
+    @Test
+    public void testCopyRowIsEscaped() {
+        TestProtobufs.SearchRequest searchRequest = TestProtobufs.SearchRequest.newBuilder()
+                .setQuery("tab\there\nnewline \\ backslash")
+                .setPageNumber(1)
+                .setResultPerPage(100)
+                .build();
+
+        StringBuilder copyRow = new StringBuilder();
+        plan.appendCopyRow(searchRequest, copyRow);
+
+        Assert.assertEquals("tab\\there\\nnewline \\\\ backslash\t1\t100\n", copyRow.toString());
+    }
+
+    @Test
+    public void testBinaryMessagesCopyAsHex() {
+        PostgresqlStatementPlan binaryPlan = new PostgresqlStatementPlan(TestDescriptors.getParentDescriptor(), "Parent", MessageEncoding.BINARY);
+
+        Descriptors.Descriptor childDescriptor = TestDescriptors.getChildDescriptor();
+        DynamicMessage child = DynamicMessage.newBuilder(childDescriptor)
+                .setField(childDescriptor.findFieldByName("name"), "a")
+                .build();
+
+        Descriptors.Descriptor parentDescriptor = TestDescriptors.getParentDescriptor();
+        DynamicMessage parent = DynamicMessage.newBuilder(parentDescriptor)
+                .setField(parentDescriptor.findFieldByName("id"), "1")
+                .setField(parentDescriptor.findFieldByName("child"), child)
+                .addRepeatedField(parentDescriptor.findFieldByName("children"), child)
+                .addRepeatedField(parentDescriptor.findFieldByName("tags"), "x")
+                .build();
+
+        StringBuilder copyRow = new StringBuilder();
+        binaryPlan.appendCopyRow(parent, copyRow);
+
+        // Child is field 1, length delimited, 1 byte long, "a"
+        Assert.assertEquals("1\t\\\\x0a0161\t{\"\\\\\\\\x0a0161\"}\t{\"x\"}\n", copyRow.toString());
+    }
+
+    @Test
+    public void testPathSelectSql() {
+        Descriptors.Descriptor descriptor = TestDescriptors.getParentDescriptor();
+        PostgresqlStatementPlan jsonPlan = new PostgresqlStatementPlan(descriptor, "Parent", MessageEncoding.JSON);
+        PostgresqlStatementPlan jsonbPlan = new PostgresqlStatementPlan(descriptor, "Parent", MessageEncoding.JSONB);
+
+        FieldPath tags = FieldPath.parse(descriptor, "tags");
+        FieldPath childName = FieldPath.parse(descriptor, "child.name");
+        FieldPath childrenName = FieldPath.parse(descriptor, "children.name");
+
+        Assert.assertEquals("SELECT * FROM Parent WHERE ? = ANY(\"tags\")", jsonPlan.getPathSelectSql(tags));
+        Assert.assertEquals("SELECT * FROM Parent WHERE CAST(\"child\" AS json)->>'name' = ?", jsonPlan.getPathSelectSql(childName));
+        Assert.assertEquals("SELECT * FROM Parent WHERE EXISTS (SELECT 1 FROM unnest(\"children\") AS element WHERE CAST(element AS jsonb) @> CAST(? AS jsonb))", jsonPlan.getPathSelectSql(childrenName));
+
+        // jsonb columns are compared directly so a GIN index can be used
+        Assert.assertEquals("SELECT * FROM Parent WHERE \"child\" @> CAST(? AS jsonb)", jsonbPlan.getPathSelectSql(childName));
+        Assert.assertEquals("SELECT * FROM Parent WHERE \"children\" @> CAST(? AS jsonb)", jsonbPlan.getPathSelectSql(childrenName));
+    }
+
+    @Test
+    public void testPathParameters() {
+        Descriptors.Descriptor descriptor = TestDescriptors.getParentDescriptor();
+        PostgresqlStatementPlan jsonPlan = new PostgresqlStatementPlan(descriptor, "Parent", MessageEncoding.JSON);
+        PostgresqlStatementPlan jsonbPlan = new PostgresqlStatementPlan(descriptor, "Parent", MessageEncoding.JSONB);
+
+        FieldPath childName = FieldPath.parse(descriptor, "child.name");
+        FieldPath childrenName = FieldPath.parse(descriptor, "children.name");
+        FieldPath childSize = FieldPath.parse(descriptor, "child.size");
+
+        Assert.assertEquals("a \"quoted\" name", jsonPlan.getPathParameter(childName, "a \"quoted\" name"));
+        Assert.assertEquals("{\"name\": \"a \\\"quoted\\\" name\"}", jsonbPlan.getPathParameter(childName, "a \"quoted\" name"));
+        Assert.assertEquals("[{\"name\": \"a\"}]", jsonbPlan.getPathParameter(childrenName, "a"));
+        Assert.assertEquals("{\"name\": \"a\"}", jsonPlan.getPathParameter(childrenName, "a"));
+        Assert.assertEquals("{\"size\": 5}", jsonbPlan.getPathParameter(childSize, childSize.parseValue("5")));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testBinaryMessagesCantBeQueriedByPath() {
+        Descriptors.Descriptor descriptor = TestDescriptors.getParentDescriptor();
+        PostgresqlStatementPlan binaryPlan = new PostgresqlStatementPlan(descriptor, "Parent", MessageEncoding.BINARY);
+
+        binaryPlan.getPathSelectSql(FieldPath.parse(descriptor, "child.name"));
+    }
+
+    @Test
+    public void testSqlIsReused() {
+        Assert.assertSame(plan.getSelectSql("query"), plan.getSelectSql("query"));
+        Assert.assertSame(plan.getUpdateSql("query"), plan.getUpdateSql("query"));
+    }
+}
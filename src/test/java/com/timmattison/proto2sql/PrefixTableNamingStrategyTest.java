@@ -0,0 +1,50 @@
+package com.timmattison.proto2sql;
+
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.timmattison.proto2sql.sql.PrefixTableNamingStrategy;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Created by timmattison on 11/20/14.
+ */
+public class PrefixTableNamingStrategyTest {
+    @Test
+    public void testTypeWithoutPackage() {
+        Assert.assertEquals("SearchRequest", new PrefixTableNamingStrategy().getTableName(TestProtobufs.SearchRequest.getDescriptor()));
+    }
+
+    @Test
+    public void testDefaultPrefixIsRemoved() throws Descriptors.DescriptorValidationException {
+        Assert.assertEquals("Outer_Inner", new PrefixTableNamingStrategy().getTableName(createNestedType("domain")));
+    }
+
+    @Test
+    public void testPrefixOnlyMatchesLiterally() throws Descriptors.DescriptorValidationException {
+        // The prefix must match exactly and only at the start of the name
+        Assert.assertEquals("domainx_Outer_Inner", new PrefixTableNamingStrategy().getTableName(createNestedType("domainx")));
+        Assert.assertEquals("other_domain_Outer_Inner", new PrefixTableNamingStrategy().getTableName(createNestedType("other.domain")));
+    }
+
+    @Test
+    public void testCustomPrefix() throws Descriptors.DescriptorValidationException {
+        Assert.assertEquals("Outer_Inner", new PrefixTableNamingStrategy("com.example.").getTableName(createNestedType("com.example")));
+        Assert.assertEquals("com_example_Outer_Inner", new PrefixTableNamingStrategy(null).getTableName(createNestedType("com.example")));
+    }
+
+    private Descriptors.Descriptor createNestedType(String packageName) throws Descriptors.DescriptorValidationException {
+        DescriptorProtos.DescriptorProto inner = DescriptorProtos.DescriptorProto.newBuilder().setName("Inner").build();
+        DescriptorProtos.DescriptorProto outer = DescriptorProtos.DescriptorProto.newBuilder().setName("Outer").addNestedType(inner).build();
+
+        DescriptorProtos.FileDescriptorProto fileDescriptorProto = DescriptorProtos.FileDescriptorProto.newBuilder()
+                .setName("naming.proto")
+                .setPackage(packageName)
+                .addMessageType(outer)
+                .build();
+
+        Descriptors.FileDescriptor fileDescriptor = Descriptors.FileDescriptor.buildFrom(fileDescriptorProto, new Descriptors.FileDescriptor[0]);
+
+        return fileDescriptor.findMessageTypeByName("Outer").getNestedTypes().get(0);
+    }
+}
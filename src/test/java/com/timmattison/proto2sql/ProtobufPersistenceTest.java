@@ -1,8 +1,11 @@
 package com.timmattison.proto2sql;
 
+import com.google.protobuf.Descriptors;
 import com.google.protobuf.Message;
 import com.googlecode.protobuf.format.JsonFormat;
+import com.timmattison.proto2sql.sql.MessageCursor;
 import com.timmattison.proto2sql.sql.ProtobufPersistence;
+import com.timmattison.proto2sql.sql.Transaction;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -13,6 +16,10 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Created by timmattison on 11/14/14.
@@ -169,6 +176,226 @@ public abstract class ProtobufPersistenceTest {
         originalMessagePresent(searchRequest, results);
     }
 
+    @Test
+    public void testInsertAllAndCheckCount() throws SQLException, JsonFormat.ParseException {
+        List<Message> messages = createRandomSearchRequests();
+        protobufPersistence.insertAll(messages, TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1));
+
+        List<Message> results = protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertNotNull(results);
+        Assert.assertEquals(insertCount, results.size());
+
+        for (Message message : messages) {
+            messagePresent(message, results);
+        }
+    }
+
+    @Test
+    public void testInsertAllThenUpdateAll() throws SQLException, JsonFormat.ParseException {
+        List<Message> messages = createRandomSearchRequests();
+        protobufPersistence.insertAll(messages, TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1));
+
+        List<Message> modifiedMessages = new ArrayList<Message>();
+
+        for (Message message : messages) {
+            TestProtobufs.SearchRequest.Builder builder = ((TestProtobufs.SearchRequest) message).toBuilder();
+            builder.setPageNumber(99999);
+            modifiedMessages.add(builder.build());
+        }
+
+        protobufPersistence.updateAll(modifiedMessages, TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1));
+
+        List<Message> results = protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(insertCount, results.size());
+
+        for (Message message : modifiedMessages) {
+            messagePresent(message, results);
+        }
+    }
+
+    @Test
+    public void testInsertAllThenDeleteHalf() throws SQLException, JsonFormat.ParseException {
+        List<Message> messages = createRandomSearchRequests();
+        protobufPersistence.insertAll(messages, TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1));
+
+        List<Message> deletedMessages = messages.subList(0, insertCount / 2);
+        protobufPersistence.deleteAll(deletedMessages, TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1));
+
+        List<Message> results = protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(insertCount - deletedMessages.size(), results.size());
+
+        for (Message message : deletedMessages) {
+            messageNotPresent(message, results);
+        }
+    }
+
+    @Test
+    public void testSelectStream() throws Exception {
+        List<Message> messages = createRandomSearchRequests();
+        protobufPersistence.insertAll(messages, TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1));
+
+        List<Message> results = new ArrayList<Message>();
+
+        try (MessageCursor messageCursor = protobufPersistence.selectStream(null, null, TestProtobufs.SearchRequest.newBuilder())) {
+            while (messageCursor.hasNext()) {
+                results.add(messageCursor.next());
+            }
+        }
+
+        Assert.assertEquals(insertCount, results.size());
+
+        for (Message message : messages) {
+            messagePresent(message, results);
+        }
+    }
+
+    @Test
+    public void testSelectStreamWithId() throws Exception {
+        List<Message> messages = createRandomSearchRequests();
+        protobufPersistence.insertAll(messages, TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1));
+
+        TestProtobufs.SearchRequest searchRequest = (TestProtobufs.SearchRequest) messages.get(insertCount / 2);
+
+        try (MessageCursor messageCursor = protobufPersistence.selectStream("query", searchRequest.getQuery(), TestProtobufs.SearchRequest.newBuilder())) {
+            Assert.assertTrue(messageCursor.hasNext());
+            Assert.assertEquals(searchRequest, messageCursor.next());
+            Assert.assertFalse(messageCursor.hasNext());
+        }
+    }
+
+    @Test
+    public void testSelectByPath() throws Exception {
+        List<Message> messages = createRandomSearchRequests();
+        protobufPersistence.insertAll(messages, TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1));
+
+        TestProtobufs.SearchRequest searchRequest = (TestProtobufs.SearchRequest) messages.get(insertCount / 2);
+
+        // The value is converted to the type of the field
+        List<Message> results = protobufPersistence.selectByPath("page_number", String.valueOf(searchRequest.getPageNumber()), TestProtobufs.SearchRequest.newBuilder());
+
+        messagePresent(searchRequest, results);
+    }
+
+    @Test
+    public void testConcurrentWritersAndReaders() throws Exception {
+        final int threadCount = 8;
+        final int messagesPerThread = 50;
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+            for (int thread = 0; thread < threadCount; thread++) {
+                final int threadNumber = thread;
+
+                futures.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Descriptors.FieldDescriptor idField = TestProtobufs.SearchRequest.getDescriptor().findFieldByNumber(1);
+
+                        // Every other thread writes inside of its own transaction
+                        boolean transactional = (threadNumber % 2) == 0;
+
+                        if (transactional) {
+                            protobufPersistence.startTransaction();
+                        }
+
+                        for (int loop = 0; loop < messagesPerThread; loop++) {
+                            TestProtobufs.SearchRequest.Builder builder = TestProtobufs.SearchRequest.newBuilder();
+                            builder.setQuery("Thread " + threadNumber + " message " + loop);
+                            builder.setPageNumber(loop);
+                            TestProtobufs.SearchRequest searchRequest = builder.build();
+
+                            protobufPersistence.insert(searchRequest, idField);
+
+                            // Each thread must always be able to read its own writes
+                            List<Message> results = protobufPersistence.select("query", searchRequest.getQuery(), TestProtobufs.SearchRequest.newBuilder());
+                            originalMessagePresent(searchRequest, results);
+                        }
+
+                        if (transactional) {
+                            protobufPersistence.commit();
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        List<Message> results = protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(threadCount * messagesPerThread, results.size());
+    }
+
+    @Test
+    public void testTransactionInsertThenCommit() throws Exception {
+        TestProtobufs.SearchRequest searchRequest = createSearchRequest();
+
+        try (Transaction transaction = protobufPersistence.begin()) {
+            transaction.insert(searchRequest, searchRequest.getDescriptorForType().findFieldByNumber(1));
+
+            // The transaction can see its own write
+            originalMessagePresent(searchRequest, transaction.select(null, null, TestProtobufs.SearchRequest.newBuilder()));
+
+            transaction.commit();
+        }
+
+        List<Message> results = protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+        originalMessagePresent(searchRequest, results);
+    }
+
+    @Test
+    public void testManyTransactionsCommitAsync() throws Exception {
+        List<Message> messages = createRandomSearchRequests();
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        // Keep many transactions open at the same time on one thread
+        for (Message message : messages) {
+            Transaction transaction = protobufPersistence.begin();
+            transaction.insert(message, message.getDescriptorForType().findFieldByNumber(1));
+            transactions.add(transaction);
+
+            if (transactions.size() == 10) {
+                for (Transaction openTransaction : transactions) {
+                    openTransaction.commitAsync();
+                    openTransaction.close();
+                }
+
+                transactions.clear();
+            }
+        }
+
+        List<Message> results = protobufPersistence.select(null, null, TestProtobufs.SearchRequest.newBuilder());
+        Assert.assertEquals(insertCount, results.size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testTransactionCannotBeUsedAfterCommit() throws Exception {
+        TestProtobufs.SearchRequest searchRequest = createSearchRequest();
+
+        try (Transaction transaction = protobufPersistence.begin()) {
+            transaction.commit();
+            transaction.insert(searchRequest, searchRequest.getDescriptorForType().findFieldByNumber(1));
+        }
+    }
+
+    private List<Message> createRandomSearchRequests() {
+        List<Message> messages = new ArrayList<Message>();
+
+        for (int loop = 0; loop < insertCount; loop++) {
+            messages.add(createRandomSearchRequest());
+        }
+
+        return messages;
+    }
+
     private void originalMessagePresent(TestProtobufs.SearchRequest searchRequest, List<Message> results) {
         Assert.assertNotNull(results);
         Assert.assertEquals(1, results.size());
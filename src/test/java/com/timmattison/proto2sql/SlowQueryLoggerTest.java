@@ -0,0 +1,95 @@
+package com.timmattison.proto2sql;
+
+import com.timmattison.proto2sql.sql.SlowQueryLogger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks which statements the slow query logger logs
+ */
+public class SlowQueryLoggerTest {
+    private static final String SQL = "UPDATE SearchRequest SET query = ? WHERE query = ?";
+    private static final Pattern NOT_LOGGED = Pattern.compile(", (\\d+) more not logged");
+
+    private final List<LogRecord> records = new ArrayList<LogRecord>();
+    private Logger logger;
+
+    @Before
+    public void setup() {
+        logger = Logger.getAnonymousLogger();
+        logger.setUseParentHandlers(false);
+        logger.addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                records.add(record);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    @Test
+    public void testOnlySlowAndFailedStatementsAreLogged() {
+        SlowQueryLogger slowQueryLogger = new SlowQueryLogger(logger, 100, TimeUnit.MILLISECONDS, 1.0);
+
+        slowQueryLogger.statementExecuted("SearchRequest", SQL, 2, TimeUnit.MILLISECONDS.toNanos(99), 1, false);
+        Assert.assertTrue(records.isEmpty());
+
+        slowQueryLogger.statementExecuted("SearchRequest", SQL, 2, TimeUnit.MILLISECONDS.toNanos(250), 1, false);
+        slowQueryLogger.statementExecuted("SearchRequest", SQL, 2, TimeUnit.MILLISECONDS.toNanos(1), 0, true);
+
+        Assert.assertEquals(2, records.size());
+        Assert.assertEquals(2, slowQueryLogger.getSlowStatementCount());
+        Assert.assertEquals("Slow statement on SearchRequest took 250 ms, 2 parameters, 1 rows: " + SQL, records.get(0).getMessage());
+        Assert.assertTrue(records.get(1).getMessage(), records.get(1).getMessage().startsWith("Failed statement on SearchRequest"));
+    }
+
+    @Test
+    public void testSampling() {
+        // Seeded so the same statements are logged every run
+        SlowQueryLogger slowQueryLogger = new SlowQueryLogger(logger, 0, TimeUnit.MILLISECONDS, 0.1, new Random(0));
+
+        for (int loop = 0; loop < 10000; loop++) {
+            slowQueryLogger.statementExecuted("SearchRequest", SQL, 2, 1, -1, false);
+        }
+
+        Assert.assertEquals(10000, slowQueryLogger.getSlowStatementCount());
+        Assert.assertTrue(Integer.toString(records.size()), (records.size() > 800) && (records.size() < 1200));
+
+        // The statements that weren't logged are counted in the next line that is
+        long notLogged = 0;
+
+        for (LogRecord record : records) {
+            Matcher matcher = NOT_LOGGED.matcher(record.getMessage());
+
+            if (matcher.find()) {
+                notLogged += Long.parseLong(matcher.group(1));
+            }
+        }
+
+        Assert.assertTrue(notLogged > 0);
+        Assert.assertTrue(Long.toString(notLogged), records.size() + notLogged <= 10000);
+
+        slowQueryLogger = new SlowQueryLogger(logger, 0, TimeUnit.MILLISECONDS, 0);
+        records.clear();
+        slowQueryLogger.statementExecuted("SearchRequest", SQL, 2, 1, -1, false);
+        Assert.assertTrue(records.isEmpty());
+    }
+}
@@ -0,0 +1,63 @@
+package com.timmattison.proto2sql;
+
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+
+/**
+ * Created by timmattison on 11/24/14.
+ *
+ * Builds protobuf types with child messages at runtime since the generated test protobufs only have scalar fields
+ */
+public class TestDescriptors {
+    private static final Descriptors.FileDescriptor FILE_DESCRIPTOR = buildFileDescriptor();
+
+    /**
+     * message Child { required string name = 1; optional int64 size = 2; }
+     */
+    public static Descriptors.Descriptor getChildDescriptor() {
+        return FILE_DESCRIPTOR.findMessageTypeByName("Child");
+    }
+
+    /**
+     * message Parent { required string id = 1; optional Child child = 2; repeated Child children = 3; repeated string tags = 4; }
+     */
+    public static Descriptors.Descriptor getParentDescriptor() {
+        return FILE_DESCRIPTOR.findMessageTypeByName("Parent");
+    }
+
+    private static Descriptors.FileDescriptor buildFileDescriptor() {
+        DescriptorProtos.DescriptorProto child = DescriptorProtos.DescriptorProto.newBuilder()
+                .setName("Child")
+                .addField(field("name", 1, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING, DescriptorProtos.FieldDescriptorProto.Label.LABEL_REQUIRED))
+                .addField(field("size", 2, DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT64, DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL))
+                .build();
+
+        DescriptorProtos.DescriptorProto parent = DescriptorProtos.DescriptorProto.newBuilder()
+                .setName("Parent")
+                .addField(field("id", 1, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING, DescriptorProtos.FieldDescriptorProto.Label.LABEL_REQUIRED))
+                .addField(field("child", 2, DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE, DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL).setTypeName("Child"))
+                .addField(field("children", 3, DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE, DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED).setTypeName("Child"))
+                .addField(field("tags", 4, DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING, DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED))
+                .build();
+
+        DescriptorProtos.FileDescriptorProto fileDescriptorProto = DescriptorProtos.FileDescriptorProto.newBuilder()
+                .setName("TestDescriptors.proto")
+                .addMessageType(child)
+                .addMessageType(parent)
+                .build();
+
+        try {
+            return Descriptors.FileDescriptor.buildFrom(fileDescriptorProto, new Descriptors.FileDescriptor[0]);
+        } catch (Descriptors.DescriptorValidationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static DescriptorProtos.FieldDescriptorProto.Builder field(String name, int number, DescriptorProtos.FieldDescriptorProto.Type type, DescriptorProtos.FieldDescriptorProto.Label label) {
+        return DescriptorProtos.FieldDescriptorProto.newBuilder()
+                .setName(name)
+                .setNumber(number)
+                .setType(type)
+                .setLabel(label);
+    }
+}